@@ -0,0 +1,76 @@
+package com.github.raphcal.notela;
+
+/**
+ * Analyse du texte : découpe une valeur en termes puis applique une suite
+ * de filtres sur chaque terme.
+ * <p>
+ * L'analyse est faite une seule fois lors de l'indexation d'un document,
+ * puis sur le texte des requêtes <code>match</code>.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+public final class Analyzer {
+
+    /**
+     * Découpe du texte en termes.
+     */
+    @FunctionalInterface
+    public static interface Tokenizer {
+        /**
+         * Découpe le texte donné. La position d'un terme est son indice dans
+         * le tableau renvoyé.
+         *
+         * @param text Texte à découper.
+         * @return Les termes, dans l'ordre du texte.
+         */
+        String[] tokenize(String text);
+    }
+
+    /**
+     * Transformation d'un terme.
+     */
+    @FunctionalInterface
+    public static interface TokenFilter {
+        String filter(String token);
+    }
+
+    /**
+     * Découpe sur les espaces.
+     */
+    public static final Tokenizer WHITESPACE_TOKENIZER = text -> text.split(" ");
+
+    /**
+     * Passage en minuscules.
+     */
+    public static final TokenFilter LOWERCASE_FILTER = String::toLowerCase;
+
+    /**
+     * Analyseur utilisé par défaut : découpe sur les espaces et passage en
+     * minuscules.
+     */
+    public static final Analyzer STANDARD = new Analyzer(WHITESPACE_TOKENIZER, LOWERCASE_FILTER);
+
+    private final Tokenizer tokenizer;
+    private final TokenFilter[] filters;
+
+    public Analyzer(Tokenizer tokenizer, TokenFilter... filters) {
+        this.tokenizer = tokenizer;
+        this.filters = filters;
+    }
+
+    /**
+     * Analyse le texte donné.
+     *
+     * @param text Texte à analyser.
+     * @return Les termes analysés, indexés par leur position.
+     */
+    public String[] analyze(String text) {
+        final String[] tokens = tokenizer.tokenize(text);
+        for (final TokenFilter filter : filters) {
+            for (int index = 0; index < tokens.length; index++) {
+                tokens[index] = filter.filter(tokens[index]);
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Lecture au fil de l'eau d'une requête <code>_bulk</code> au format NDJSON.
+ * <p>
+ * Les lignes ne sont pas découpées : les en-têtes et les documents sont lus
+ * directement depuis le flux, les documents sous forme de
+ * <code>JsonObject</code>.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class BulkReader {
+
+    static final String INDEX = "index";
+    static final String CREATE = "create";
+    static final String UPDATE = "update";
+    static final String DELETE = "delete";
+
+    /**
+     * Opération lue depuis la requête.
+     */
+    static final class Operation {
+        String action;
+        String index;
+        String type;
+        String id;
+        /**
+         * Document pour <code>index</code> et <code>create</code>, corps de
+         * la mise à jour pour <code>update</code>, <code>null</code> pour
+         * <code>delete</code>.
+         */
+        JsonObject source;
+    }
+
+    private final JsonReader reader;
+
+    BulkReader(Reader reader) {
+        this.reader = new JsonReader(reader);
+        // Autorise plusieurs valeurs à la racine.
+        this.reader.setStrictness(Strictness.LENIENT);
+    }
+
+    /**
+     * Lit l'opération suivante.
+     *
+     * @return L'opération lue ou <code>null</code> à la fin du flux.
+     * @throws IOException En cas d'erreur de lecture.
+     * @throws IllegalArgumentException Si l'en-tête ou le document est mal
+     * formé.
+     */
+    Operation next() throws IOException {
+        if (reader.peek() == JsonToken.END_DOCUMENT) {
+            return null;
+        }
+        final Operation operation = new Operation();
+        reader.beginObject();
+        if (!reader.hasNext()) {
+            throw new IllegalArgumentException("Malformed action/metadata line, expected an action but found an empty object");
+        }
+        operation.action = reader.nextName();
+        switch (operation.action) {
+            case INDEX:
+            case CREATE:
+            case UPDATE:
+            case DELETE:
+                break;
+            default:
+                throw new IllegalArgumentException("Malformed action/metadata line, expected one of [create, delete, index, update] but found [" + operation.action + "]");
+        }
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IllegalArgumentException("Malformed action/metadata line, expected START_OBJECT for [" + operation.action + "]");
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "_index":
+                    operation.index = reader.nextString();
+                    break;
+                case "_type":
+                    operation.type = reader.nextString();
+                    break;
+                case "_id":
+                    operation.id = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        reader.endObject();
+        if (operation.index == null) {
+            throw new IllegalArgumentException("Validation Failed: 1: index is missing;");
+        }
+
+        if (!DELETE.equals(operation.action)) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new IllegalArgumentException("The bulk request must be terminated by a newline [\\n]");
+            }
+            final JsonElement source = JsonParser.parseReader(reader);
+            operation.source = source.getAsJsonObject();
+        }
+        return operation;
+    }
+}
@@ -0,0 +1,279 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.JsonPrimitive;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Arrondi des dates au début de leur intervalle, pour les agrégations
+ * <code>date_histogram</code>.
+ * <p>
+ * Un intervalle calendaire (<code>calendar_interval</code>) suit les jours,
+ * semaines, mois, trimestres et années du fuseau horaire demandé. Un
+ * intervalle fixe (<code>fixed_interval</code>) découpe le temps en durées
+ * égales depuis l'époque Unix, décalées du fuseau horaire. Les dates sont
+ * manipulées en millisecondes depuis l'époque Unix.
+ * <p>
+ * Un arrondi est immuable et peut être partagé entre plusieurs threads.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class DateRounding {
+
+    private static final Pattern EPOCH_MILLIS = Pattern.compile("-?\\d+");
+    private static final DateTimeFormatter KEY_FORMAT = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSSXXX");
+    private static final Pattern FIXED_INTERVAL = Pattern.compile("(\\d+)(ms|s|m|h|d)");
+
+    private static enum CalendarUnit {
+        MINUTE, HOUR, DAY, WEEK, MONTH, QUARTER, YEAR
+    }
+
+    /**
+     * Unité calendaire, ou <code>null</code> pour un intervalle fixe.
+     */
+    private final CalendarUnit unit;
+
+    /**
+     * Durée d'un intervalle fixe, en millisecondes.
+     */
+    private final long interval;
+
+    private final ZoneId zone;
+
+    private DateRounding(CalendarUnit unit, long interval, ZoneId zone) {
+        this.unit = unit;
+        this.interval = interval;
+        this.zone = zone;
+    }
+
+    /**
+     * Lit l'intervalle d'une agrégation <code>date_histogram</code>.
+     *
+     * @param parameters Paramètres de l'agrégation :
+     * <code>calendar_interval</code>, <code>fixed_interval</code> ou
+     * <code>interval</code>, et <code>time_zone</code>.
+     * @return L'arrondi correspondant.
+     * @throws IllegalArgumentException Si l'intervalle est absent ou mal
+     * formé.
+     */
+    static DateRounding parse(Map<String, Object> parameters) {
+        final ZoneId zone;
+        try {
+            zone = ZoneId.of((String) parameters.getOrDefault("time_zone", "UTC"));
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Unknown time-zone ID: " + parameters.get("time_zone"), e);
+        }
+        final Object calendarInterval = parameters.get("calendar_interval");
+        if (calendarInterval != null) {
+            final CalendarUnit unit = calendarUnit(calendarInterval.toString());
+            if (unit == null) {
+                throw new IllegalArgumentException("The supplied interval [" + calendarInterval + "] could not be parsed as a calendar interval.");
+            }
+            return new DateRounding(unit, 0, zone);
+        }
+        final Object fixedInterval = parameters.get("fixed_interval");
+        if (fixedInterval != null) {
+            return new DateRounding(null, fixedInterval(fixedInterval.toString()), zone);
+        }
+        final Object interval = parameters.get("interval");
+        if (interval != null) {
+            final CalendarUnit unit = calendarUnit(interval.toString());
+            return unit != null
+                    ? new DateRounding(unit, 0, zone)
+                    : new DateRounding(null, fixedInterval(interval.toString()), zone);
+        }
+        throw new IllegalArgumentException("Required one of fields [interval, calendar_interval, fixed_interval], but none were specified.");
+    }
+
+    /**
+     * Arrondit une date au début de son intervalle.
+     *
+     * @param millis Date en millisecondes depuis l'époque Unix.
+     * @return Début de l'intervalle, en millisecondes depuis l'époque Unix.
+     */
+    long round(long millis) {
+        final Instant instant = Instant.ofEpochMilli(millis);
+        if (unit == null) {
+            final long offset = zone.getRules().getOffset(instant).getTotalSeconds() * 1000L;
+            return Math.floorDiv(millis + offset, interval) * interval - offset;
+        }
+        ZonedDateTime date = instant.atZone(zone);
+        switch (unit) {
+            case MINUTE:
+                date = date.truncatedTo(ChronoUnit.MINUTES);
+                break;
+            case HOUR:
+                date = date.truncatedTo(ChronoUnit.HOURS);
+                break;
+            case DAY:
+                date = date.truncatedTo(ChronoUnit.DAYS);
+                break;
+            case WEEK:
+                date = date.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                break;
+            case MONTH:
+                date = date.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+                break;
+            case QUARTER:
+                date = date.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1)
+                        .withMonth((date.getMonthValue() - 1) / 3 * 3 + 1);
+                break;
+            default:
+                date = date.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+                break;
+        }
+        return date.toInstant().toEpochMilli();
+    }
+
+    /**
+     * Donne le début de l'intervalle suivant.
+     *
+     * @param rounded Début d'un intervalle, donné par <code>round</code>.
+     * @return Début de l'intervalle suivant.
+     */
+    long next(long rounded) {
+        if (unit == null) {
+            return rounded + interval;
+        }
+        final ZonedDateTime date = Instant.ofEpochMilli(rounded).atZone(zone);
+        final ZonedDateTime next;
+        switch (unit) {
+            case MINUTE:
+                next = date.plusMinutes(1);
+                break;
+            case HOUR:
+                next = date.plusHours(1);
+                break;
+            case DAY:
+                next = date.plusDays(1);
+                break;
+            case WEEK:
+                next = date.plusWeeks(1);
+                break;
+            case MONTH:
+                next = date.plusMonths(1);
+                break;
+            case QUARTER:
+                next = date.plusMonths(3);
+                break;
+            default:
+                next = date.plusYears(1);
+                break;
+        }
+        return round(next.toInstant().toEpochMilli());
+    }
+
+    /**
+     * Écrit le début d'un intervalle au format ISO 8601 dans le fuseau
+     * horaire de l'arrondi, pour <code>key_as_string</code>.
+     *
+     * @param millis Date en millisecondes depuis l'époque Unix.
+     * @return La date formatée.
+     */
+    String format(long millis) {
+        return KEY_FORMAT.format(Instant.ofEpochMilli(millis).atZone(zone));
+    }
+
+    /**
+     * Lit une date depuis une valeur de document.
+     *
+     * @param value Nombre de millisecondes depuis l'époque Unix ou date au
+     * format ISO 8601, avec ou sans heure et fuseau horaire.
+     * @return La date en millisecondes depuis l'époque Unix ou
+     * <code>null</code> si la valeur n'est pas une date.
+     */
+    static Long millisOf(JsonPrimitive value) {
+        if (value.isNumber()) {
+            return value.getAsNumber().longValue();
+        } else if (!value.isString()) {
+            return null;
+        }
+        return millisOf(value.getAsString());
+    }
+
+    /**
+     * Lit une date.
+     *
+     * @param value Nombre de millisecondes depuis l'époque Unix ou date au
+     * format ISO 8601, avec ou sans heure et fuseau horaire.
+     * @return La date en millisecondes depuis l'époque Unix ou
+     * <code>null</code> si la valeur n'est pas une date.
+     */
+    static Long millisOf(String value) {
+        try {
+            if (EPOCH_MILLIS.matcher(value).matches()) {
+                return Long.parseLong(value);
+            } else if (value.length() == 10) {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            }
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (NumberFormatException | DateTimeException e) {
+            try {
+                return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeException notLocal) {
+                return null;
+            }
+        }
+    }
+
+    private static CalendarUnit calendarUnit(String interval) {
+        switch (interval) {
+            case "minute":
+            case "1m":
+                return CalendarUnit.MINUTE;
+            case "hour":
+            case "1h":
+                return CalendarUnit.HOUR;
+            case "day":
+            case "1d":
+                return CalendarUnit.DAY;
+            case "week":
+            case "1w":
+                return CalendarUnit.WEEK;
+            case "month":
+            case "1M":
+                return CalendarUnit.MONTH;
+            case "quarter":
+            case "1q":
+                return CalendarUnit.QUARTER;
+            case "year":
+            case "1y":
+                return CalendarUnit.YEAR;
+            default:
+                return null;
+        }
+    }
+
+    private static long fixedInterval(String interval) {
+        final Matcher matcher = FIXED_INTERVAL.matcher(interval.trim());
+        if (!matcher.matches() || Long.parseLong(matcher.group(1)) == 0) {
+            throw new IllegalArgumentException("failed to parse setting [date_histogram.fixedInterval] with value [" + interval + "] as a time value: unit is missing or unrecognized");
+        }
+        final long amount = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "ms":
+                return amount;
+            case "s":
+                return amount * 1000L;
+            case "m":
+                return amount * 60_000L;
+            case "h":
+                return amount * 3_600_000L;
+            default:
+                return amount * 86_400_000L;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Chemin vers un champ d'un document, découpé une seule fois.
+ * <p>
+ * Un chemin compilé pour une requête tient déjà compte du suffixe
+ * ".keyword" et des champs "copy to" de l'index. Les documents sont
+ * parcourus sans créer de liste : chaque valeur trouvée est donnée à une
+ * fonction et les tableaux d'objets intermédiaires sont parcourus en
+ * profondeur. Un tableau à la fin du chemin n'est pas une valeur primitive.
+ * <p>
+ * Un chemin est immuable et peut être partagé entre plusieurs threads.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+public final class FieldPath {
+
+    private static final String KEYWORD_SUFFIX = ".keyword";
+
+    private static final ToDoubleFunction<JsonElement> PRESENCE = element -> 1.0;
+
+    /**
+     * Chemin tel que donné, sans le suffixe ".keyword" pour un chemin de
+     * champ.
+     */
+    private final String path;
+
+    /**
+     * Noms des objets traversés, terminés par le nom du champ.
+     */
+    private final String[] parts;
+
+    /**
+     * Champs copiés dans ce champ, lus à la place du chemin, ou
+     * <code>null</code>.
+     */
+    private final FieldPath[] sources;
+
+    private FieldPath(String path, FieldPath[] sources) {
+        this.path = path;
+        this.parts = split(path);
+        this.sources = sources;
+    }
+
+    /**
+     * Compile le chemin donné tel quel.
+     *
+     * @param path Noms des objets traversés et du champ, séparés par des
+     * points.
+     * @return Le chemin compilé.
+     */
+    public static FieldPath compile(String path) {
+        return new FieldPath(path, null);
+    }
+
+    /**
+     * Compile le chemin d'un champ demandé par une requête, sans son suffixe
+     * ".keyword".
+     *
+     * @param path Chemin du champ.
+     * @return Le chemin compilé.
+     */
+    static FieldPath forField(String path) {
+        return forField(path, Collections.<String, Collection<String>>emptyMap());
+    }
+
+    /**
+     * Compile le chemin d'un champ demandé par une requête, sans son suffixe
+     * ".keyword" et en suivant les champs "copy to" de l'index.
+     *
+     * @param path Chemin du champ.
+     * @param copyToFields Champs sources de chaque champ "copy to".
+     * @return Le chemin compilé.
+     */
+    static FieldPath forField(String path, Map<String, ? extends Collection<String>> copyToFields) {
+        if (path.endsWith(KEYWORD_SUFFIX)) {
+            path = path.substring(0, path.length() - KEYWORD_SUFFIX.length());
+        }
+        final Collection<String> copySources = copyToFields.get(path);
+        if (copySources == null) {
+            return new FieldPath(path, null);
+        }
+        final FieldPath[] sources = new FieldPath[copySources.size()];
+        int index = 0;
+        for (final String source : copySources) {
+            sources[index++] = new FieldPath(source, null);
+        }
+        return new FieldPath(path, sources);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getLeafName() {
+        return parts[parts.length - 1];
+    }
+
+    /**
+     * Lit la valeur du champ en ne traversant que des objets.
+     *
+     * @param object Objet racine.
+     * @return La valeur ou <code>null</code> si un objet traversé est absent.
+     */
+    public JsonElement get(JsonObject object) {
+        final JsonObject parent = parent(object);
+        return parent != null ? parent.get(parts[parts.length - 1]) : null;
+    }
+
+    /**
+     * Remplace la valeur du champ si tous les objets traversés existent.
+     *
+     * @param object Objet racine.
+     * @param value Nouvelle valeur.
+     */
+    public void set(JsonObject object, JsonElement value) {
+        final JsonObject parent = parent(object);
+        if (parent != null) {
+            parent.add(parts[parts.length - 1], value);
+        }
+    }
+
+    /**
+     * Additionne le résultat de la fonction donnée pour chaque valeur
+     * primitive du champ.
+     *
+     * @param object Document.
+     * @param function Fonction appelée pour chaque valeur.
+     * @return La somme des résultats, 0 si le champ n'a pas de valeur.
+     */
+    @SuppressWarnings("unchecked")
+    double sum(JsonObject object, ToDoubleFunction<? super JsonPrimitive> function) {
+        return visit(object, (ToDoubleFunction<JsonElement>) function, true);
+    }
+
+    /**
+     * Appelle l'action donnée pour chaque valeur primitive du champ.
+     *
+     * @param object Document.
+     * @param action Action à exécuter.
+     */
+    void forEach(JsonObject object, Consumer<? super JsonPrimitive> action) {
+        sum(object, primitive -> {
+            action.accept(primitive);
+            return 0.0;
+        });
+    }
+
+    /**
+     * Compte les objets du document ayant ce champ, quelle que soit sa
+     * valeur.
+     *
+     * @param object Document.
+     * @return Nombre d'occurrences du champ.
+     */
+    int count(JsonObject object) {
+        return (int) visit(object, PRESENCE, false);
+    }
+
+    /**
+     * Donne l'unique valeur primitive du champ.
+     *
+     * @param object Document.
+     * @return La valeur si le champ a exactement une valeur primitive,
+     * <code>null</code> sinon.
+     */
+    JsonPrimitive single(JsonObject object) {
+        final JsonPrimitive[] value = new JsonPrimitive[1];
+        final double count = sum(object, primitive -> {
+            value[0] = primitive;
+            return 1.0;
+        });
+        return count == 1.0 ? value[0] : null;
+    }
+
+    private double visit(JsonObject object, ToDoubleFunction<JsonElement> function, boolean primitivesOnly) {
+        if (sources == null) {
+            return visit(object, 0, function, primitivesOnly);
+        }
+        double sum = 0.0;
+        for (final FieldPath source : sources) {
+            sum += source.visit(object, 0, function, primitivesOnly);
+        }
+        return sum;
+    }
+
+    private double visit(JsonObject node, int depth, ToDoubleFunction<JsonElement> function, boolean primitivesOnly) {
+        final int last = parts.length - 1;
+        for (; depth < last; depth++) {
+            final JsonElement element = node.get(parts[depth]);
+            if (element == null) {
+                return 0.0;
+            } else if (element.isJsonObject()) {
+                node = element.getAsJsonObject();
+            } else if (element.isJsonArray()) {
+                final JsonArray array = element.getAsJsonArray();
+                double sum = 0.0;
+                for (int index = 0; index < array.size(); index++) {
+                    final JsonElement entry = array.get(index);
+                    if (entry != null && entry.isJsonObject()) {
+                        sum += visit(entry.getAsJsonObject(), depth + 1, function, primitivesOnly);
+                    }
+                }
+                return sum;
+            } else {
+                return 0.0;
+            }
+        }
+        final JsonElement leaf = node.get(parts[last]);
+        if (leaf == null || (primitivesOnly && !leaf.isJsonPrimitive())) {
+            return 0.0;
+        }
+        return function.applyAsDouble(leaf);
+    }
+
+    private JsonObject parent(JsonObject object) {
+        JsonObject current = object;
+        for (int index = 0; index < parts.length - 1; index++) {
+            final JsonElement element = current.get(parts[index]);
+            if (element != null && element.isJsonObject()) {
+                current = element.getAsJsonObject();
+            } else {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    private static String[] split(String path) {
+        int count = 1;
+        for (int index = path.indexOf('.'); index >= 0; index = path.indexOf('.', index + 1)) {
+            count++;
+        }
+        final String[] parts = new String[count];
+        int start = 0;
+        for (int part = 0; part < count - 1; part++) {
+            final int end = path.indexOf('.', start);
+            parts[part] = path.substring(start, end);
+            start = end + 1;
+        }
+        parts[count - 1] = path.substring(start);
+        return parts;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,239 @@
+package com.github.raphcal.notela;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Estimation du nombre de valeurs distinctes par l'algorithme
+ * HyperLogLog++.
+ * <p>
+ * Tant que le nombre de valeurs ne dépasse pas le seuil de précision, les
+ * hash des valeurs sont gardés dans un ensemble et le compte est exact.
+ * Au-delà, chaque hash met à jour un registre parmi
+ * <code>2^precision</code> : la mémoire reste fixe, quelques kilo-octets
+ * avec le seuil par défaut, quel que soit le nombre de valeurs. Les petites
+ * cardinalités sont estimées par comptage linéaire des registres vides.
+ * <p>
+ * Deux estimations de même précision peuvent être fusionnées, par exemple
+ * pour réunir celles de plusieurs index. Une estimation n'est pas
+ * synchronisée.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class HyperLogLog {
+
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 18;
+
+    /**
+     * Seuil de précision par défaut, comme dans Elasticsearch.
+     */
+    static final long DEFAULT_PRECISION_THRESHOLD = 3000;
+
+    /**
+     * Seuil maximal de précision, comme dans Elasticsearch.
+     */
+    static final long MAX_PRECISION_THRESHOLD = 40000;
+
+    private static final long EMPTY = 0L;
+
+    private final int precision;
+    private final long threshold;
+
+    /**
+     * Hash des valeurs, en adressage ouvert, tant que le compte est exact.
+     * <code>null</code> une fois passé aux registres.
+     */
+    private long[] hashes = new long[16];
+    private int hashCount;
+
+    /**
+     * Plus grand rang de bit observé pour chaque registre, ou
+     * <code>null</code> tant que le compte est exact.
+     */
+    private byte[] registers;
+
+    /**
+     * Crée une estimation pour le seuil de précision donné.
+     *
+     * @param precisionThreshold Nombre de valeurs distinctes comptées
+     * exactement, borné à <code>MAX_PRECISION_THRESHOLD</code>.
+     */
+    HyperLogLog(long precisionThreshold) {
+        this.threshold = Math.max(0, Math.min(precisionThreshold, MAX_PRECISION_THRESHOLD));
+        this.precision = precisionFromThreshold(threshold);
+    }
+
+    /**
+     * Donne la précision permettant de compter exactement jusqu'au seuil
+     * donné, comme dans Elasticsearch.
+     *
+     * @param threshold Seuil de précision.
+     * @return Nombre de bits de hash utilisés pour choisir un registre.
+     */
+    static int precisionFromThreshold(long threshold) {
+        final long entries = (long) Math.ceil(threshold / 0.75);
+        final int precision = 64 - Long.numberOfLeadingZeros(Math.max(1, entries - 1));
+        return Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, precision));
+    }
+
+    /**
+     * Calcule le hash sur 64 bits d'une chaîne (FNV-1a sur ses octets UTF-8,
+     * mélangé par la finalisation de MurmurHash3).
+     *
+     * @param value Chaîne.
+     * @return Le hash.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Calcule le hash sur 64 bits d'un nombre.
+     *
+     * @param value Nombre.
+     * @return Le hash.
+     */
+    static long hash(double value) {
+        // 0.0 et -0.0 sont la même valeur.
+        return mix(Double.doubleToLongBits(value == 0.0 ? 0.0 : value));
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Ajoute une valeur.
+     *
+     * @param hash Hash de la valeur, donné par <code>hash</code>.
+     */
+    void add(long hash) {
+        if (registers != null) {
+            addToRegisters(hash);
+            return;
+        }
+        if (hash == EMPTY) {
+            hash = 1L;
+        }
+        final int mask = hashes.length - 1;
+        int slot = (int) hash & mask;
+        while (hashes[slot] != EMPTY) {
+            if (hashes[slot] == hash) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        hashCount++;
+        if (hashCount > threshold) {
+            toRegisters();
+        } else if (hashCount * 4 > hashes.length * 3) {
+            final long[] previous = hashes;
+            hashes = new long[previous.length * 2];
+            hashCount = 0;
+            for (final long previousHash : previous) {
+                if (previousHash != EMPTY) {
+                    add(previousHash);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ajoute les valeurs d'une autre estimation de même seuil.
+     *
+     * @param other Estimation à fusionner.
+     */
+    void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge sketches of precision " + other.precision + " and " + precision);
+        }
+        if (other.registers == null) {
+            for (final long hash : other.hashes) {
+                if (hash != EMPTY) {
+                    add(hash);
+                }
+            }
+            return;
+        }
+        if (registers == null) {
+            toRegisters();
+        }
+        for (int index = 0; index < registers.length; index++) {
+            registers[index] = (byte) Math.max(registers[index], other.registers[index]);
+        }
+    }
+
+    /**
+     * Estime le nombre de valeurs distinctes ajoutées.
+     *
+     * @return Le compte exact jusqu'au seuil de précision, une estimation
+     * au-delà.
+     */
+    long cardinality() {
+        if (registers == null) {
+            return hashCount;
+        }
+        final int count = registers.length;
+        double sum = 0.0;
+        int zeros = 0;
+        for (final byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = alpha(count) * count * count / sum;
+        if (zeros > 0 && estimate <= 2.5 * count) {
+            // Comptage linéaire, plus juste que l'estimation brute pour les
+            // petites cardinalités.
+            return Math.round(count * Math.log((double) count / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    private void toRegisters() {
+        final long[] previous = hashes;
+        registers = new byte[1 << precision];
+        hashes = null;
+        hashCount = 0;
+        for (final long hash : previous) {
+            if (hash != EMPTY) {
+                addToRegisters(hash);
+            }
+        }
+    }
+
+    private void addToRegisters(long hash) {
+        final int index = (int) (hash >>> (64 - precision));
+        // Bit sentinelle pour borner le rang quand les bits restants sont
+        // tous à 0.
+        final long remaining = (hash << precision) | (1L << (precision - 1));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    private static double alpha(int count) {
+        switch (count) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1.0 + 1.079 / count);
+        }
+    }
+}
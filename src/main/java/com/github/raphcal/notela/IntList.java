@@ -0,0 +1,83 @@
+package com.github.raphcal.notela;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Liste d'entiers primitifs, sans boxing.
+ * <p>
+ * Un seul thread peut ajouter des valeurs mais la liste peut être lue
+ * pendant un ajout : une valeur est écrite avant que la taille ne soit
+ * publiée et un tableau agrandi est rempli avant d'être publié.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class IntList {
+
+    private volatile int[] values;
+    private volatile int size;
+
+    IntList() {
+        this(4);
+    }
+
+    IntList(int capacity) {
+        this.values = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Crée une liste contenant les valeurs données, sans les copier.
+     *
+     * @param values Valeurs de la liste.
+     */
+    IntList(int[] values) {
+        this.values = values.length > 0 ? values : new int[1];
+        this.size = values.length;
+    }
+
+    void add(int value) {
+        final int size = this.size;
+        int[] values = this.values;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size + (size >> 1) + 1);
+            this.values = values;
+        }
+        values[size] = value;
+        this.size = size + 1;
+    }
+
+    int get(int index) {
+        return values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Renvoi la dernière valeur ajoutée.
+     *
+     * @return Dernière valeur ou -1 si la liste est vide.
+     */
+    int last() {
+        final int size = this.size;
+        return size > 0 ? values[size - 1] : -1;
+    }
+
+    /**
+     * Ajoute les valeurs de cette liste dans l'ensemble donné.
+     *
+     * @param bitSet Ensemble à compléter.
+     */
+    void addTo(BitSet bitSet) {
+        final int size = this.size;
+        final int[] values = this.values;
+        for (int index = 0; index < size; index++) {
+            bitSet.set(values[index]);
+        }
+    }
+}
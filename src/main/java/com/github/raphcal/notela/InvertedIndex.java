@@ -0,0 +1,178 @@
+package com.github.raphcal.notela;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index inversé : pour chaque champ, associe chaque terme normalisé à la
+ * liste triée des ordinaux des documents qui le contiennent.
+ * <p>
+ * Les ordinaux étant attribués de manière croissante à l'ajout, les listes
+ * restent triées sans effort. Les documents supprimés ne sont pas retirés
+ * des listes : c'est à l'appelant de filtrer les documents qui ne sont plus
+ * actifs.
+ * <p>
+ * Les ajouts sont faits par un seul thread à la fois et peuvent avoir lieu
+ * pendant des lectures.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class InvertedIndex {
+
+    private final Map<String, Map<String, IntList>> fields = new ConcurrentHashMap<>();
+
+    /**
+     * Ajoute le terme donné pour le document d'ordinal donné.
+     *
+     * @param field Chemin du champ.
+     * @param term Terme normalisé.
+     * @param ordinal Ordinal du document.
+     */
+    void add(String field, String term, int ordinal) {
+        final IntList postings = fields
+                .computeIfAbsent(field, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(term, key -> new IntList());
+        if (postings.last() != ordinal) {
+            postings.add(ordinal);
+        }
+    }
+
+    /**
+     * Récupère les ordinaux des documents contenant le terme donné.
+     *
+     * @param field Chemin du champ.
+     * @param term Terme normalisé.
+     * @return La liste des ordinaux ou <code>null</code> si aucun document ne
+     * contient ce terme.
+     */
+    IntList get(String field, String term) {
+        final Map<String, IntList> terms = fields.get(field);
+        return terms != null ? terms.get(term) : null;
+    }
+
+    /**
+     * Crée une copie de cet index en renumérotant les documents. Les
+     * documents supprimés sont retirés des listes, qui restent triées car
+     * la renumérotation garde l'ordre des ordinaux.
+     *
+     * @param newOrdinals Nouvel ordinal de chaque document, -1 pour les
+     * documents supprimés.
+     * @return L'index renuméroté.
+     */
+    InvertedIndex compact(int[] newOrdinals) {
+        final InvertedIndex compacted = new InvertedIndex();
+        for (final Map.Entry<String, Map<String, IntList>> field : fields.entrySet()) {
+            final Map<String, IntList> terms = new ConcurrentHashMap<>();
+            for (final Map.Entry<String, IntList> term : field.getValue().entrySet()) {
+                final IntList postings = term.getValue();
+                final IntList compactedPostings = new IntList();
+                for (int index = 0; index < postings.size(); index++) {
+                    final int ordinal = postings.get(index);
+                    if (ordinal < newOrdinals.length && newOrdinals[ordinal] >= 0) {
+                        compactedPostings.add(newOrdinals[ordinal]);
+                    }
+                }
+                if (!compactedPostings.isEmpty()) {
+                    terms.put(term.getKey(), compactedPostings);
+                }
+            }
+            if (!terms.isEmpty()) {
+                compacted.fields.put(field.getKey(), terms);
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Écrit cet index dans un fichier de segment en renumérotant les
+     * documents comme <code>compact</code>, sans créer de copie de
+     * l'index.
+     *
+     * @param output Section des index du fichier.
+     * @param newOrdinals Rang de chaque document dans le fichier, -1 pour
+     * les documents qui n'y sont pas.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    void writeTo(DataOutput output, int[] newOrdinals) throws IOException {
+        int[] compactedPostings = new int[16];
+        for (final Map.Entry<String, Map<String, IntList>> field : fields.entrySet()) {
+            output.writeBoolean(true);
+            SegmentFile.writeString(output, field.getKey());
+            // Nombre de termes avant renumérotation, pour dimensionner la
+            // table à la lecture.
+            output.writeInt(field.getValue().size());
+            for (final Map.Entry<String, IntList> term : field.getValue().entrySet()) {
+                final IntList postings = term.getValue();
+                final int size = postings.size();
+                if (compactedPostings.length < size) {
+                    compactedPostings = new int[size];
+                }
+                int count = 0;
+                for (int index = 0; index < size; index++) {
+                    final int ordinal = postings.get(index);
+                    if (ordinal < newOrdinals.length && newOrdinals[ordinal] >= 0) {
+                        compactedPostings[count++] = newOrdinals[ordinal];
+                    }
+                }
+                if (count > 0) {
+                    output.writeBoolean(true);
+                    SegmentFile.writeString(output, term.getKey());
+                    output.writeInt(count);
+                    for (int index = 0; index < count; index++) {
+                        output.writeInt(compactedPostings[index]);
+                    }
+                }
+            }
+            output.writeBoolean(false);
+        }
+        output.writeBoolean(false);
+    }
+
+    /**
+     * Lit un index écrit par <code>writeTo</code>.
+     *
+     * @param input Section des index du fichier.
+     * @return L'index lu.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    static InvertedIndex readFrom(SegmentFile.Input input) throws IOException {
+        final InvertedIndex index = new InvertedIndex();
+        while (input.readBoolean()) {
+            final String field = input.readString();
+            final Map<String, IntList> terms = new ConcurrentHashMap<>(input.readLength());
+            while (input.readBoolean()) {
+                final String term = input.readString();
+                terms.put(term, new IntList(input.readInts(input.readLength())));
+            }
+            if (!terms.isEmpty()) {
+                index.fields.put(field, terms);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Créé l'ensemble des ordinaux des documents contenant au moins un des
+     * termes donnés dans au moins un des champs donnés.
+     *
+     * @param fieldNames Chemins des champs.
+     * @param terms Termes normalisés.
+     * @return Ensemble des ordinaux correspondants.
+     */
+    BitSet union(Collection<String> fieldNames, Collection<String> terms) {
+        final BitSet result = new BitSet();
+        for (final String field : fieldNames) {
+            for (final String term : terms) {
+                final IntList postings = get(field, term);
+                if (postings != null) {
+                    postings.addTo(result);
+                }
+            }
+        }
+        return result;
+    }
+}
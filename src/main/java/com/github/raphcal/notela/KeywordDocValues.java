@@ -0,0 +1,273 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.JsonObject;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Valeurs textuelles exactes d'un champ, stockées en colonne par ordinal de
+ * document sous forme d'ordinaux de termes.
+ * <p>
+ * Chaque chaîne distincte reçoit un ordinal de terme dans l'ordre de sa
+ * première apparition. Les ordinaux de termes de chaque document sont rangés
+ * à la suite dans un seul tableau, sans doublon, pour que les agrégations
+ * comptent les documents dans un tableau d'entiers indexé par terme.
+ * <p>
+ * Les ordinaux de termes sont attribués pour tout l'index et non par
+ * segment : une colonne couvre tous les segments de l'index, qui ne sont
+ * que des plages d'ordinaux de documents. Le compactage renumérote les
+ * termes restants dans une nouvelle colonne.
+ * <p>
+ * Un seul thread ajoute des documents, par ordinal croissant, pendant que
+ * d'autres peuvent lire la colonne. Un lecteur ne doit lire que les ordinaux
+ * de documents visibles dans son instantané : leurs termes sont tous publiés.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class KeywordDocValues {
+
+    private static final int[] NO_TERMS = new int[0];
+
+    /**
+     * Chemin du champ dans les documents.
+     */
+    private final FieldPath path;
+
+    /**
+     * Ordinal de chaque terme. Lu et modifié uniquement par l'écrivain.
+     */
+    private final HashMap<String, Integer> termOrdinals = new HashMap<>();
+
+    /**
+     * Termes par ordinal de terme.
+     */
+    private volatile String[] terms = new String[16];
+    private volatile int termCount;
+
+    /**
+     * Position dans <code>documentTerms</code> des termes de chaque document.
+     * Les termes de l'ordinal <code>n</code> vont de <code>starts[n]</code>
+     * inclus à <code>starts[n + 1]</code> exclu.
+     */
+    private volatile int[] starts = new int[17];
+
+    /**
+     * Ordinaux des termes des documents, à la suite.
+     */
+    private volatile int[] documentTerms = new int[16];
+
+    /**
+     * Nombre d'ordinaux de documents ajoutés.
+     */
+    private volatile int size;
+
+    KeywordDocValues(FieldPath path) {
+        this.path = path;
+    }
+
+    FieldPath path() {
+        return path;
+    }
+
+    /**
+     * Enregistre les chaînes d'un document. Les ordinaux sautés n'ont aucun
+     * terme.
+     *
+     * @param ordinal Ordinal du document, supérieur à ceux déjà ajoutés.
+     * @param document Document dont les valeurs sont lues.
+     */
+    void add(int ordinal, JsonObject document) {
+        final int size = this.size;
+        int[] starts = this.starts;
+        if (ordinal + 2 > starts.length) {
+            starts = Arrays.copyOf(starts, Math.max(ordinal + 2, starts.length * 2));
+        }
+        final int end = starts[size];
+        for (int skipped = size + 1; skipped <= ordinal; skipped++) {
+            starts[skipped] = end;
+        }
+        final int[] position = new int[] { end };
+        path.forEach(document, primitive -> {
+            if (primitive.isString()) {
+                final int term = termOrdinal(primitive.getAsString());
+                int[] documentTerms = this.documentTerms;
+                for (int index = end; index < position[0]; index++) {
+                    if (documentTerms[index] == term) {
+                        return;
+                    }
+                }
+                if (position[0] == documentTerms.length) {
+                    documentTerms = Arrays.copyOf(documentTerms, documentTerms.length * 2);
+                    this.documentTerms = documentTerms;
+                }
+                documentTerms[position[0]++] = term;
+            }
+        });
+        starts[ordinal + 1] = position[0];
+        this.starts = starts;
+        this.size = ordinal + 1;
+    }
+
+    /**
+     * Donne le nombre de termes distincts. Tous les termes des documents
+     * visibles par l'appelant ont un ordinal inférieur.
+     *
+     * @return Nombre de termes.
+     */
+    int termCount() {
+        return termCount;
+    }
+
+    String term(int termOrdinal) {
+        return terms[termOrdinal];
+    }
+
+    /**
+     * Ajoute 1 au compteur de chaque terme du document donné.
+     *
+     * @param ordinal Ordinal du document.
+     * @param counts Compteurs par ordinal de terme, d'au moins
+     * <code>termCount()</code> cases lues après l'instantané du document.
+     */
+    void count(int ordinal, int[] counts) {
+        if (ordinal >= size) {
+            return;
+        }
+        final int[] starts = this.starts;
+        final int[] documentTerms = this.documentTerms;
+        final int end = starts[ordinal + 1];
+        for (int index = starts[ordinal]; index < end; index++) {
+            counts[documentTerms[index]]++;
+        }
+    }
+
+    /**
+     * Donne les ordinaux des termes du document donné.
+     *
+     * @param ordinal Ordinal du document.
+     * @return Ordinaux des termes, sans doublon, dans l'ordre du document.
+     */
+    int[] terms(int ordinal) {
+        if (ordinal >= size) {
+            return NO_TERMS;
+        }
+        final int[] starts = this.starts;
+        return Arrays.copyOfRange(documentTerms, starts[ordinal], starts[ordinal + 1]);
+    }
+
+    /**
+     * Crée une copie de cette colonne en renumérotant les documents et en
+     * retirant les documents supprimés. Les termes qui ne sont plus utilisés
+     * sont retirés et les autres sont renumérotés dans l'ordre de leur
+     * première apparition.
+     *
+     * @param newOrdinals Nouvel ordinal de chaque document, -1 pour les
+     * documents supprimés.
+     * @return La colonne renumérotée.
+     */
+    KeywordDocValues compact(int[] newOrdinals) {
+        final KeywordDocValues compacted = new KeywordDocValues(path);
+        final int size = Math.min(this.size, newOrdinals.length);
+        final int[] starts = this.starts;
+        final int[] documentTerms = this.documentTerms;
+        final String[] terms = this.terms;
+        final int[] compactedStarts = new int[Math.max(size, 16) + 1];
+        final int[] compactedTerms = new int[Math.max(starts[size], 16)];
+        int position = 0;
+        int compactedSize = 0;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            final int newOrdinal = newOrdinals[ordinal];
+            if (newOrdinal < 0) {
+                continue;
+            }
+            for (int skipped = compactedSize + 1; skipped <= newOrdinal; skipped++) {
+                compactedStarts[skipped] = position;
+            }
+            for (int index = starts[ordinal]; index < starts[ordinal + 1]; index++) {
+                compactedTerms[position++] = compacted.termOrdinal(terms[documentTerms[index]]);
+            }
+            compactedStarts[newOrdinal + 1] = position;
+            compactedSize = newOrdinal + 1;
+        }
+        compacted.starts = compactedStarts;
+        compacted.documentTerms = compactedTerms;
+        compacted.size = compactedSize;
+        return compacted;
+    }
+
+    /**
+     * Écrit cette colonne dans un fichier de segment, renumérotée par
+     * <code>compact</code>.
+     *
+     * @param output Section des index du fichier.
+     * @param newOrdinals Rang de chaque document dans le fichier, -1 pour
+     * les documents qui n'y sont pas.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    void writeTo(DataOutput output, int[] newOrdinals) throws IOException {
+        final KeywordDocValues compacted = compact(newOrdinals);
+        output.writeInt(compacted.termCount);
+        for (int term = 0; term < compacted.termCount; term++) {
+            SegmentFile.writeString(output, compacted.terms[term]);
+        }
+        output.writeInt(compacted.size);
+        for (int ordinal = 0; ordinal <= compacted.size; ordinal++) {
+            output.writeInt(compacted.starts[ordinal]);
+        }
+        final int documentTermCount = compacted.starts[compacted.size];
+        output.writeInt(documentTermCount);
+        for (int index = 0; index < documentTermCount; index++) {
+            output.writeInt(compacted.documentTerms[index]);
+        }
+    }
+
+    /**
+     * Lit une colonne écrite par <code>writeTo</code>.
+     *
+     * @param input Section des index du fichier.
+     * @param path Chemin du champ.
+     * @return La colonne lue.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    static KeywordDocValues readFrom(SegmentFile.Input input, FieldPath path) throws IOException {
+        final KeywordDocValues column = new KeywordDocValues(path);
+        final int termCount = input.readLength();
+        final String[] terms = new String[Math.max(termCount, 16)];
+        for (int term = 0; term < termCount; term++) {
+            terms[term] = input.readString();
+            column.termOrdinals.put(terms[term], term);
+        }
+        final int size = input.readLength();
+        final int[] starts = Arrays.copyOf(input.readInts(size + 1), Math.max(size, 16) + 1);
+        final int documentTermCount = input.readLength();
+        if (starts[size] != documentTermCount) {
+            throw new IOException("Corrupted segment file: invalid keyword column " + path);
+        }
+        final int[] documentTerms = Arrays.copyOf(input.readInts(documentTermCount), Math.max(documentTermCount, 16));
+        column.terms = terms;
+        column.termCount = termCount;
+        column.starts = starts;
+        column.documentTerms = documentTerms;
+        column.size = size;
+        return column;
+    }
+
+    private int termOrdinal(String term) {
+        final Integer existing = termOrdinals.get(term);
+        if (existing != null) {
+            return existing;
+        }
+        final int termOrdinal = termCount;
+        String[] terms = this.terms;
+        if (termOrdinal == terms.length) {
+            terms = Arrays.copyOf(terms, terms.length * 2);
+            this.terms = terms;
+        }
+        terms[termOrdinal] = term;
+        termOrdinals.put(term, termOrdinal);
+        termCount = termOrdinal + 1;
+        return termOrdinal;
+    }
+}
@@ -0,0 +1,221 @@
+package com.github.raphcal.notela;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache borné, vidé en retirant les entrées les moins récemment lues.
+ * <p>
+ * Chaque entrée a un poids donné par une fonction de pesée : 1 pour compter
+ * les entrées, une taille estimée en octets pour limiter la mémoire. Le
+ * cache compte les lectures trouvées, les lectures manquées et les entrées
+ * retirées pour faire de la place.
+ * <p>
+ * Toutes les méthodes sont synchronisées. Les valeurs sont calculées hors du
+ * cache par l'appelant : deux threads peuvent calculer la même valeur, le
+ * dernier ajout remplace le premier.
+ * <p>
+ * Une action peut être donnée pour libérer les valeurs qui quittent le
+ * cache, qu'elles soient remplacées, retirées ou évincées. Elle est
+ * appelée sous le verrou du cache.
+ *
+ * @param <K> Type des clés.
+ * @param <V> Type des valeurs.
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class LruCache<K, V> {
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ToLongFunction<? super V> weigher;
+    private final Consumer<? super V> onRemoval;
+
+    private long maxWeight;
+    private long weight;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Crée un cache limité en nombre d'entrées.
+     *
+     * @param maxSize Nombre maximal d'entrées.
+     */
+    LruCache(long maxSize) {
+        this(maxSize, value -> 1L);
+    }
+
+    /**
+     * Crée un cache limité en poids.
+     *
+     * @param maxWeight Poids total maximal.
+     * @param weigher Poids d'une valeur.
+     */
+    LruCache(long maxWeight, ToLongFunction<? super V> weigher) {
+        this(maxWeight, weigher, value -> {});
+    }
+
+    /**
+     * Crée un cache limité en poids dont les valeurs sont libérées quand
+     * elles le quittent.
+     *
+     * @param maxWeight Poids total maximal.
+     * @param weigher Poids d'une valeur.
+     * @param onRemoval Libération d'une valeur remplacée, retirée, évincée
+     * ou trop lourde pour être conservée.
+     */
+    LruCache(long maxWeight, ToLongFunction<? super V> weigher, Consumer<? super V> onRemoval) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.onRemoval = onRemoval;
+    }
+
+    /**
+     * Lit la valeur associée à la clé donnée et la marque comme la plus
+     * récemment lue.
+     *
+     * @param key Clé.
+     * @return La valeur ou <code>null</code> si elle est absente.
+     */
+    synchronized V get(K key) {
+        final V value = entries.get(key);
+        if (value != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Ajoute ou remplace une valeur puis retire les entrées les moins
+     * récemment lues tant que le poids total dépasse le maximum. Une valeur
+     * plus lourde que le maximum n'est pas conservée.
+     *
+     * @param key Clé.
+     * @param value Valeur.
+     */
+    synchronized void put(K key, V value) {
+        final long valueWeight = weigher.applyAsLong(value);
+        final V previous = entries.remove(key);
+        if (previous != null) {
+            weight -= weigher.applyAsLong(previous);
+            if (previous != value) {
+                onRemoval.accept(previous);
+            }
+        }
+        if (valueWeight > maxWeight) {
+            onRemoval.accept(value);
+            return;
+        }
+        entries.put(key, value);
+        weight += valueWeight;
+        evict();
+    }
+
+    /**
+     * Retire la valeur associée à la clé donnée et la libère.
+     *
+     * @param key Clé.
+     * @return La valeur retirée ou <code>null</code> si elle était absente.
+     */
+    synchronized V remove(K key) {
+        final V value = entries.remove(key);
+        if (value != null) {
+            weight -= weigher.applyAsLong(value);
+            onRemoval.accept(value);
+        }
+        return value;
+    }
+
+    /**
+     * Retire les valeurs vérifiant le prédicat donné.
+     *
+     * @param predicate Condition de retrait.
+     */
+    synchronized void removeIf(Predicate<? super V> predicate) {
+        final Iterator<V> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final V value = iterator.next();
+            if (predicate.test(value)) {
+                weight -= weigher.applyAsLong(value);
+                iterator.remove();
+                onRemoval.accept(value);
+            }
+        }
+    }
+
+    /**
+     * Copie les clés du cache, de la moins récemment lue à la plus récente.
+     *
+     * @return Les clés présentes.
+     */
+    synchronized Set<K> keys() {
+        return new LinkedHashSet<>(entries.keySet());
+    }
+
+    synchronized void clear() {
+        entries.values().forEach(onRemoval);
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Change le poids total maximal, en retirant des entrées si besoin.
+     *
+     * @param maxWeight Nouveau maximum.
+     */
+    synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    /**
+     * Donne l'état du cache.
+     *
+     * @return Nombre d'entrées (<code>size</code>), poids
+     * (<code>weight</code>, <code>max_weight</code>) et compteurs
+     * (<code>hit_count</code>, <code>miss_count</code>,
+     * <code>hit_rate</code>, <code>evictions</code>).
+     */
+    synchronized Map<String, Object> stats() {
+        final LinkedHashMap<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", entries.size());
+        stats.put("weight", weight);
+        stats.put("max_weight", maxWeight);
+        stats.put("hit_count", hitCount);
+        stats.put("miss_count", missCount);
+        stats.put("hit_rate", hitRate(hitCount, missCount));
+        stats.put("evictions", evictionCount);
+        return stats;
+    }
+
+    /**
+     * Calcule la part des lectures trouvées.
+     *
+     * @param hitCount Nombre de lectures trouvées.
+     * @param missCount Nombre de lectures manquées.
+     * @return Taux entre 0 et 1, 0 si aucune lecture n'a eu lieu.
+     */
+    static double hitRate(long hitCount, long missCount) {
+        final long total = hitCount + missCount;
+        return total > 0 ? (double) hitCount / total : 0.0;
+    }
+
+    private void evict() {
+        final Iterator<V> iterator = entries.values().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            final V value = iterator.next();
+            weight -= weigher.applyAsLong(value);
+            iterator.remove();
+            evictionCount++;
+            onRemoval.accept(value);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Lecture au fil de l'eau d'une requête <code>_msearch</code> au format
+ * NDJSON.
+ * <p>
+ * Chaque recherche est composée d'un en-tête donnant les index à interroger
+ * et d'un corps de recherche, lu sous forme de <code>JsonObject</code>.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class MultiSearchReader {
+
+    /**
+     * Recherche lue depuis la requête.
+     */
+    static final class Search {
+        /**
+         * Index à interroger, séparés par des virgules, ou <code>null</code>
+         * si l'en-tête n'en donne pas.
+         */
+        String index;
+        JsonObject body;
+    }
+
+    private final JsonReader reader;
+
+    MultiSearchReader(Reader reader) {
+        this.reader = new JsonReader(reader);
+        // Autorise plusieurs valeurs à la racine.
+        this.reader.setStrictness(Strictness.LENIENT);
+    }
+
+    /**
+     * Lit la recherche suivante.
+     *
+     * @return La recherche lue ou <code>null</code> à la fin du flux.
+     * @throws IOException En cas d'erreur de lecture.
+     * @throws IllegalArgumentException Si l'en-tête ou le corps est mal
+     * formé.
+     */
+    Search next() throws IOException {
+        if (reader.peek() == JsonToken.END_DOCUMENT) {
+            return null;
+        }
+        final Search search = new Search();
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IllegalArgumentException("Expected [START_OBJECT] but found [" + reader.peek() + "]");
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("index".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                final StringBuilder names = new StringBuilder();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (names.length() > 0) {
+                        names.append(',');
+                    }
+                    names.append(reader.nextString());
+                }
+                reader.endArray();
+                search.index = names.toString();
+            } else if ("index".equals(name) && reader.peek() == JsonToken.STRING) {
+                search.index = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IllegalArgumentException("The msearch request must be terminated by a newline [\\n]");
+        }
+        final JsonElement body = JsonParser.parseReader(reader);
+        search.body = body.getAsJsonObject();
+        return search;
+    }
+}
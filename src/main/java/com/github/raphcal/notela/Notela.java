@@ -9,14 +9,18 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.SerializedName;
 import com.google.gson.reflect.TypeToken;
-import fr.bdf.center.graalod.api.elastic.mock.BulkResponse;
-import fr.bdf.center.graalod.api.elastic.mock.BulkResponseItem;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import fr.bdf.center.graalod.api.elastic.mock.CreateResponse;
 import fr.bdf.center.graalod.api.elastic.mock.FieldMapping;
-import fr.bdf.center.graalod.api.elastic.mock.GetResponse;
 import fr.bdf.center.graalod.api.elastic.mock.LongSearchResponseHitsTotal;
 import fr.bdf.center.graalod.api.elastic.mock.MultiSearchResponse;
 import fr.bdf.center.graalod.api.elastic.mock.RelationSearchResponseHitsTotal;
@@ -27,27 +31,70 @@ import fr.bdf.center.graalod.api.elastic.mock.SearchResponseHitsTotal;
 import fr.bdf.center.graalod.api.elastic.mock.SearchResponseHitsTotalRelation;
 import fr.bdf.center.graalod.api.elastic.mock.SearchResponseHitsTotalSerializer;
 import fr.bdf.center.graalod.api.elastic.mock.Shards;
-import fr.bdf.center.graalod.api.elastic.mock.TermsBucket;
 import fr.bdf.center.graalod.api.elastic.mock.VersionNumber;
 import fr.bdf.center.graalod.api.elastic.painless.Painless;
-import fr.bdf.center.graalod.util.SizedMap;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.DoubleConsumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import com.github.raphcal.logdorak.Logger;
 import java.util.Arrays;
@@ -72,19 +119,260 @@ public class Notela extends HttpServlet {
      */
     private static final String JSON_CONTENT_TYPE = "application/json";
 
-    private static final Query NO_QUERY = object -> 1.0;
+    /**
+     * Types des champs dont les valeurs sont stockées dans des
+     * <code>NumericDocValues</code>.
+     */
+    private static final Set<String> NUMERIC_TYPES = new HashSet<>(Arrays.asList(
+            "long", "integer", "short", "byte", "double", "float", "half_float", "scaled_float", "unsigned_long"));
+
+    /**
+     * Types des champs dont les valeurs sont stockées dans des
+     * <code>SortedDocValues</code> dès l'indexation.
+     */
+    private static final Set<String> SORTABLE_TYPES = new HashSet<>(Arrays.asList(
+            "keyword", "boolean", "date", "long", "integer", "short", "byte", "double", "float", "half_float", "scaled_float", "unsigned_long"));
+
+    /**
+     * Nombre maximal de seaux d'un histogramme, comme le paramètre
+     * <code>search.max_buckets</code> d'Elasticsearch.
+     */
+    private static final int MAX_BUCKETS = 65536;
+
+    /**
+     * Centiles calculés par défaut par l'agrégation <code>percentiles</code>.
+     */
+    private static final List<Number> DEFAULT_PERCENTS = Collections.unmodifiableList(Arrays.<Number>asList(1.0, 5.0, 25.0, 50.0, 75.0, 95.0, 99.0));
+
+    /**
+     * Nombre d'opérations <code>_bulk</code> lues avant d'être appliquées.
+     */
+    private static final int BULK_BATCH_SIZE = 1000;
+
+    /**
+     * Nombre de documents par segment d'index.
+     * <p>
+     * Les segments ne sont pas des structures immuables comme ceux de
+     * Lucene : ce sont des plages de <code>SEGMENT_SIZE</code> ordinaux
+     * dans les tableaux et les colonnes de l'index, partagés par tous les
+     * segments et complétés en place. Un instantané fige seulement le
+     * nombre d'ordinaux visibles et les suppressions. Le compactage
+     * renumérote les documents et donc le contenu de chaque segment ; les
+     * instantanés déjà pris gardent leurs anciens tableaux.
+     */
+    private static final int SEGMENT_SIZE = 16384;
+
+    /**
+     * Paramètre d'index donnant le nombre maximal de tâches d'une recherche.
+     */
+    private static final String PARALLELISM_SETTING = "index.search.parallelism";
+
+    /**
+     * Paramètre d'index activant ou désactivant le cache des recherches.
+     */
+    private static final String REQUEST_CACHE_SETTING = "index.requests.cache.enable";
+
+    /**
+     * Paramètre d'index donnant la plus grande valeur de from + size d'une
+     * recherche et la plus grande taille de page d'un scroll.
+     */
+    private static final String MAX_RESULT_WINDOW_SETTING = "index.max_result_window";
+
+    /**
+     * Valeur par défaut de <code>index.max_result_window</code>, comme
+     * Elasticsearch.
+     */
+    private static final int DEFAULT_MAX_RESULT_WINDOW = 10000;
+
+    /**
+     * Taille par défaut du cache des recherches de chaque index, en octets :
+     * 1% de la mémoire, comme Elasticsearch.
+     */
+    private static final long DEFAULT_REQUEST_CACHE_SIZE = Runtime.getRuntime().maxMemory() / 100;
+
+    /**
+     * Fichier décrivant un snapshot, dans le dossier du snapshot.
+     */
+    private static final String SNAPSHOT_INFO_FILE = "snapshot.json";
+
+    /**
+     * Dossier des fichiers de segment d'un snapshot.
+     */
+    private static final String SNAPSHOT_INDICES_DIRECTORY = "indices";
+    private static final String SEGMENT_EXTENSION = ".seg";
+
+    /**
+     * Paramètre d'index choisissant le stockage des documents :
+     * <code>compact</code> pour ne garder que leur JSON en UTF-8, lu à la
+     * demande, <code>off_heap</code> pour garder ce JSON hors du tas, ou
+     * l'arbre d'objets par défaut.
+     */
+    private static final String SOURCE_MODE = "index.source.mode";
+    private static final String SOURCE_MODE_COMPACT = "compact";
+    private static final String SOURCE_MODE_OFF_HEAP = "off_heap";
+
+    /**
+     * Dossier des journaux des index, dans le dossier des données.
+     */
+    private static final String TRANSLOG_DIRECTORY = "translog";
+
+    /**
+     * Paramètre d'index choisissant quand le journal est synchronisé sur
+     * disque : <code>request</code> ou <code>async</code>. Dans les deux
+     * cas, les recherches voient les écritures dès leur publication, avant
+     * leur synchronisation.
+     */
+    private static final String TRANSLOG_DURABILITY = "index.translog.durability";
+
+    /**
+     * Intervalle entre deux synchronisations des journaux en durabilité
+     * <code>async</code>, en millisecondes, comme la valeur par défaut de
+     * <code>index.translog.sync_interval</code>.
+     */
+    private static final long TRANSLOG_SYNC_INTERVAL = 5000;
+
+    /**
+     * Synchronisation des journaux de toutes les instances.
+     */
+    private static final ScheduledExecutorService TRANSLOG_SYNCER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "notela-translog-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Exécution des recherches sur plusieurs segments.
+     */
+    private static final ForkJoinPool SEARCH_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Nombre de recherches d'un <code>_msearch</code> exécutées en même
+     * temps quand <code>max_concurrent_searches</code> n'est pas donné. Comme
+     * Elasticsearch sur un seul nœud : le nombre de threads de recherche,
+     * limité à 10.
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_SEARCHES = Math.max(1, Math.min(SEARCH_POOL.getParallelism(), 10));
+
+    /**
+     * Taille par défaut des curseurs de tous les scrolls, en octets : 5% de
+     * la mémoire.
+     */
+    private static final long DEFAULT_SCROLL_MEMORY_LIMIT = Runtime.getRuntime().maxMemory() / 20;
+
+    /**
+     * Nombre maximal de point-in-time ouverts.
+     */
+    private static final int MAX_OPEN_POINT_IN_TIMES = 500;
+
+    /**
+     * Intervalle entre deux retraits des scrolls et des point-in-time
+     * expirés, en millisecondes.
+     */
+    private static final long SEARCH_CONTEXT_REAPER_INTERVAL = 1000;
+
+    /**
+     * Retrait des scrolls et des point-in-time expirés de toutes les
+     * instances.
+     */
+    private static final ScheduledExecutorService SEARCH_CONTEXT_REAPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "notela-search-context-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Durée au format d'Elasticsearch, comme <code>5m</code> ou
+     * <code>500ms</code>.
+     */
+    private static final Pattern TIME_VALUE = Pattern.compile("(\\d+)(nanos|micros|ms|s|m|h|d)");
+
+    private static final Query NO_QUERY = (ordinal, object) -> 1.0;
+
+    private static final QueryTemplate NO_QUERY_TEMPLATE = parameters -> index -> NO_QUERY;
+
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    /**
+     * Nombre d'entrées par défaut de chaque cache des plans de requêtes.
+     */
+    private static final int DEFAULT_QUERY_PLAN_CACHE_SIZE = 1000;
+
+    /**
+     * Source des versions des mappings. Chaque index et chaque changement
+     * de mappings ou d'analyseur reçoit une nouvelle version.
+     */
+    private static final AtomicLong MAPPING_VERSIONS = new AtomicLong();
 
     private static final Highlighter NO_HIGHLIGHTER  = object -> Collections.emptyMap();
 
-    private VersionNumber version = new VersionNumber("7.0.0");
+    private volatile VersionNumber version = new VersionNumber("7.0.0");
 
     private Gson gson = new GsonBuilder()
             .serializeNulls()
             .registerTypeAdapter(SearchResponseHitsTotal.class, new SearchResponseHitsTotalSerializer())
+            .registerTypeAdapterFactory(new SubclassAdapterFactory(SearchResponse.class))
+            .registerTypeAdapterFactory(new SubclassAdapterFactory(SearchResponseHit.class))
             .create();
-    private final Map<String, Scroll> scrolls = new SizedMap<>(20);
+    /**
+     * Taille maximale des curseurs des scrolls, en octets.
+     */
+    private volatile long scrollMemoryLimit = DEFAULT_SCROLL_MEMORY_LIMIT;
+
+    /**
+     * Scrolls en cours, par identifiant. Les moins récemment lus sont
+     * retirés quand leurs curseurs dépassent la taille maximale.
+     */
+    private final LruCache<String, Scroll> scrolls = new LruCache<>(DEFAULT_SCROLL_MEMORY_LIMIT, scroll -> scroll.weight, Scroll::release);
+
+    /**
+     * Point-in-time ouverts, par identifiant.
+     */
+    private final LruCache<String, PointInTime> pointInTimes = new LruCache<>(MAX_OPEN_POINT_IN_TIMES, pointInTime -> 1L, PointInTime::release);
+
+    private final AtomicBoolean reaperStarted = new AtomicBoolean();
+
+    /**
+     * Index par nom, triés pour trouver les index commençant par un préfixe
+     * donné sans parcourir toute la table.
+     */
+    private final NavigableMap<String, Index> indexes = new ConcurrentSkipListMap<>();
+
+    /**
+     * Taille du cache des recherches de chaque index, en octets.
+     */
+    private volatile long requestCacheSize = DEFAULT_REQUEST_CACHE_SIZE;
+
+    /**
+     * Dossiers des dépôts de snapshots déclarés, par nom de dépôt.
+     */
+    private final Map<String, Path> snapshotRepositories = new ConcurrentHashMap<>();
+
+    /**
+     * Dossier des données, ou <code>null</code> si les index ne sont gardés
+     * qu'en mémoire.
+     */
+    private volatile Path dataPath;
+
+    /**
+     * Journaux des index, par nom d'index.
+     */
+    private final Map<String, Translog> translogs = new ConcurrentHashMap<>();
+
+    /**
+     * Corps de recherche déjà lus, par texte de la requête.
+     */
+    private final LruCache<String, ParsedSearch> searchRequests = new LruCache<>(DEFAULT_QUERY_PLAN_CACHE_SIZE);
+
+    /**
+     * Modèles de requêtes, par index, version des mappings et forme de la
+     * requête.
+     */
+    private final LruCache<List<Object>, QueryTemplate> queryTemplates = new LruCache<>(DEFAULT_QUERY_PLAN_CACHE_SIZE);
 
-    private Map<String, Index> indexes;
+    /**
+     * Plans de requêtes, par modèle et valeurs des paramètres.
+     */
+    private final LruCache<List<Object>, QueryPlan> queryPlans = new LruCache<>(DEFAULT_QUERY_PLAN_CACHE_SIZE);
 
     @Override
     public void doGet(HttpRequest request, HttpResponse response) {
@@ -119,6 +407,10 @@ public class Notela extends HttpServlet {
                 continueScroll(request, response);
                 return;
             }
+            if (target.startsWith("/_snapshot/")) {
+                handleSnapshotRequest("GET", target, queryParameters, request, response);
+                return;
+            }
             target = trimTarget(target);
             final String[] parts = target.split("/");
 
@@ -129,8 +421,13 @@ public class Notela extends HttpServlet {
                 }
             }
 
+            if ("_stats".equals(parts[0])) {
+                response.setContent(gson.toJson(stats()));
+                return;
+            }
+
             final String indexName = parts[0];
-            if (indexes == null || !indexes.containsKey(indexName)) {
+            if (!indexes.containsKey(indexName)) {
                 response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"},\"status\":404}");
                 return;
             }
@@ -147,7 +444,7 @@ public class Notela extends HttpServlet {
 
             switch (parts[1]) {
                 case "_count":
-                    response.setContent("{\"count\":" + index.content.size() + ",\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0}}");
+                    response.setContent("{\"count\":" + index.snapshot().size() + ",\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0}}");
                     break;
 
                 case "doc":
@@ -160,10 +457,27 @@ public class Notela extends HttpServlet {
                     }
                     else if (parts.length == 3) {
                         final String id = parts[2];
-                        final JsonObject object = index.content.get(id);
-
-                        final GetResponse<JsonObject> getResponse = new GetResponse<>(indexName, parts[1], id, 1, object != null, object);
-                        response.setContent(gson.toJson(getResponse));
+                        // Le JSON stocké en mode compact ou off_heap est
+                        // recopié sans être relu.
+                        final byte[] storedSource = index.storedSource(id);
+                        final JsonObject object = storedSource == null ? index.get(id) : null;
+
+                        final StringWriter output = new StringWriter();
+                        final JsonWriter out = gson.newJsonWriter(output);
+                        out.beginObject();
+                        out.name("_index").value(indexName);
+                        out.name("_type").value(parts[1]);
+                        out.name("_id").value(id);
+                        out.name("_version").value(1);
+                        out.name("found").value(storedSource != null || object != null);
+                        out.name("_source");
+                        if (storedSource != null) {
+                            writeStoredSource(out, storedSource);
+                        } else {
+                            gson.toJson(object, JsonObject.class, out);
+                        }
+                        out.endObject();
+                        response.setContent(output.toString());
                     }
                     break;
                 case "_mapping":
@@ -211,6 +525,10 @@ public class Notela extends HttpServlet {
             String target = request.getTarget();
             final HashMap<String, String> queryParameters = new HashMap<>();
             target = parseQueryParameters(target, queryParameters);
+            if (target.startsWith("/_snapshot/")) {
+                handleSnapshotRequest("POST", target, queryParameters, request, response);
+                return;
+            }
             switch (target) {
                 case "/":
                     // Aucune action au chemin /
@@ -235,14 +553,16 @@ public class Notela extends HttpServlet {
                         response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + source + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + source + "\",\"index_uuid\":\"_na_\",\"index\":\"" + source + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + source + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + source + "\",\"index_uuid\":\"_na_\",\"index\":\"" + source + "\"},\"status\":404}");
                         return;
                     }
-                    Index destinationIndex = indexes.get(destination);
-                    if (destinationIndex == null) {
-                        destinationIndex = new Index();
-                        destinationIndex.name = destination;
-                        indexes.put(destination, destinationIndex);
+                    final Index destinationIndex = indexes.computeIfAbsent(destination, this::newIndex);
+                    final Snapshot sourceSnapshot = sourceIndex.acquireSnapshot();
+                    destinationIndex.lock();
+                    try {
+                        sourceSnapshot.liveOrdinals().forEach(ordinal -> destinationIndex.put(sourceSnapshot.identifier(ordinal), sourceSnapshot.document(ordinal)));
+                    } finally {
+                        destinationIndex.unlock();
+                        sourceSnapshot.release();
                     }
-                    destinationIndex.content.putAll(sourceIndex.content);
-                    response.setContent("{\"took\":4686,\"timed_out\":false,\"total\":" + sourceIndex.content.size() + ",\"updated\":0,\"created\":" + sourceIndex.content.size() + ",\"deleted\":0,\"batches\":53,\"version_conflicts\":0,\"noops\":0,\"retries\":{\"bulk\":0,\"search\":0},\"throttled_millis\":0,\"requests_per_second\":-1.0,\"throttled_until_millis\":0,\"failures\":[]}");
+                    response.setContent("{\"took\":4686,\"timed_out\":false,\"total\":" + sourceSnapshot.size() + ",\"updated\":0,\"created\":" + sourceSnapshot.size() + ",\"deleted\":0,\"batches\":53,\"version_conflicts\":0,\"noops\":0,\"retries\":{\"bulk\":0,\"search\":0},\"throttled_millis\":0,\"requests_per_second\":-1.0,\"throttled_until_millis\":0,\"failures\":[]}");
                     return;
 
                 case "/_bulk":
@@ -253,61 +573,31 @@ public class Notela extends HttpServlet {
                         return;
                     }
 
-                    final String content;
-                    if (request.getCharset().equals(StandardCharsets.UTF_8)) {
-                        content = request.getContent();
-                    } else {
-                        content = new String(request.getContent().getBytes(request.getCharset()), StandardCharsets.UTF_8);
-                    }
-
-                    final BulkResponse bulkResponse = new BulkResponse();
-                    final String[] bulkJsons = content.split("\n");
-                    for (int i = 0; i < bulkJsons.length; i += 2) {
-                        final Map<String, Object> header = gson.fromJson(bulkJsons[i], Map.class);
-                        final Map<String, Object> body = gson.fromJson(bulkJsons[i + 1], Map.class);
-
-                        final Map.Entry<String, Object> entry = header.entrySet().iterator().next();
-                        final Map<String, String> entryValue = ((Map<String, String>)entry.getValue());
-                        final String operation = entry.getKey();
-                        final String indexName = entryValue.get("_index");
-                        final String documentType = entryValue.get("_type");
-                        final String documentId = entryValue.getOrDefault("_id", generateIdentifier());
-
-                        switch (operation) {
-                            case "index":
-                                add(indexName, documentId, body);
-                                bulkResponse.addIndex(new CreateResponse(null, indexName, documentType, documentId, 1, 1, 0, null, Boolean.TRUE, null));
-                                break;
-                            default:
-                                bulkResponse.getItems().add(new BulkResponseItem());
-                                bulkResponse.setErrors(true);
-                                break;
-                        }
+                    final JsonObject bulkResponse = bulk(contentReader(request));
+                    if (bulkResponse.has("error")) {
+                        response.setStatusCode(400);
                     }
                     response.setContent(gson.toJson(bulkResponse));
                     return;
 
                 case "/_msearch":
-                    final ArrayList<SearchResponse<JsonObject>> searchResponses = new ArrayList<>();
-                    final String[] searchJsons = request.getContent().split("\n");
-                    for (int i = 0; i < searchJsons.length; i += 2) {
-                        final String header = searchJsons[i];
-                        final String body = searchJsons[i + 1];
-                        final String indexName = (String)gson.fromJson(header, Map.class).get("index");
-
-                        if (!indexExists(indexName)) {
-                            searchResponses.add(gson.fromJson("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"},\"status\":404}", SearchResponse.class));
-                        } else {
-                            searchResponses.add(searchInIndex(indexes.get(indexName), "_doc", body, queryParameters));
-                        }
-                    }
-                    response.setContent(gson.toJson(new MultiSearchResponse<>(searchResponses)));
+                    response.setContent(gson.toJson(multiSearch(contentReader(request), queryParameters)));
                     return;
 
                 case "/_search/scroll":
                     continueScroll(request, response);
                     return;
 
+                case "/_search":
+                    // Seule une recherche dans un point-in-time se passe du
+                    // nom des index : ils sont donnés par le point-in-time.
+                    final Map<String, Object> pitSearch = gson.fromJson(request.getContent(), Map.class);
+                    if (pitSearch != null && pitSearch.get("pit") != null) {
+                        sendSearchResult(searchInIndexes(new Index[0], "_doc", pitSearch, queryParameters), response);
+                        return;
+                    }
+                    break;
+
                 default:
                     break;
             }
@@ -319,13 +609,11 @@ public class Notela extends HttpServlet {
 
             target = trimTarget(target);
             final String[] parts = target.split("/");
-            final String[] indexesName = parts[0].split(",");
-            final Index[] indexArray = new Index[indexesName.length];
-            for (int i = 0; i < indexesName.length; i++) {
-                final String indexName = indexesName[i];
-                if (!indexExists(indexName)) {
+            final List<String> indexesName = new ArrayList<>();
+            for (final String expression : parts[0].split(",")) {
+                if (!isIndexPattern(expression) && !indexExists(expression)) {
                     response.setStatusCode(404);
-                    response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"},\"status\":404}");
+                    response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + expression + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + expression + "\",\"index_uuid\":\"_na_\",\"index\":\"" + expression + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + expression + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + expression + "\",\"index_uuid\":\"_na_\",\"index\":\"" + expression + "\"},\"status\":404}");
                     return;
                 }
                 if (parts.length == 1) {
@@ -333,11 +621,26 @@ public class Notela extends HttpServlet {
                     response.setContent("{\"error\":\"Incorrect HTTP method for uri [" + request.getTarget() + "] and method [POST], allowed: [PUT]\",\"status\":405}");
                     return;
                 }
-                indexArray[i] = indexes.get(indexName);
+                for (final String name : resolveIndexNames(expression)) {
+                    if (!indexesName.contains(name)) {
+                        indexesName.add(name);
+                    }
+                }
+            }
+            final Index[] indexArray = new Index[indexesName.size()];
+            for (int i = 0; i < indexArray.length; i++) {
+                indexArray[i] = indexes.get(indexesName.get(i));
             }
 
-            final Index index = indexArray[0];
-            final String indexName = indexesName[0];
+            final boolean search = parts.length == 3 && "_search".equals(parts[2]);
+            if (indexArray.length == 0 && !search) {
+                final String indexName = parts[0];
+                response.setStatusCode(404);
+                response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"},\"status\":404}");
+                return;
+            }
+            final Index index = indexArray.length > 0 ? indexArray[0] : null;
+            final String indexName = indexArray.length > 0 ? indexesName.get(0) : parts[0];
             switch (parts[1]) {
                 case "_clone":
                     if (parts.length == 3) {
@@ -346,8 +649,14 @@ public class Notela extends HttpServlet {
                             response.setStatusCode(500);
                             return;
                         }
+                        if (indexes.containsKey(parts[2])) {
+                            deletePersistedIndex(parts[2]);
+                        }
                         Index clone = copyIndex(parts[2], index);
-                        indexes.put(clone.name, clone);
+                        final Index replaced = indexes.put(clone.name, clone);
+                        if (replaced != null) {
+                            replaced.close();
+                        }
                         response.setContent("{\"acknowledged\":true,\"shards_acknowledged\":true,\"index\":\"" + clone.name + "\"}");
                     }
                     break;
@@ -360,9 +669,8 @@ public class Notela extends HttpServlet {
                         add(indexName, id, object);
                         response.setContent(gson.toJson(new CreateResponse(new Shards(1, 1, 0, 0), indexName, parts[1], id, 1, 0, 1, "created", Boolean.TRUE, null)));
                     }
-                    else if (parts.length == 3 && "_search".equals(parts[2])) {
-                        final SearchResponse<JsonObject> searchResponse = searchInIndexes(indexArray, parts[1], request.getContent(), queryParameters);
-                        response.setContent(gson.toJson(searchResponse));
+                    else if (search) {
+                        sendSearchResult(searchInIndexes(indexArray, parts[1], request.getContent(), queryParameters), response);
                     }
                     else if (parts.length == 3) {
                         final JsonObject object = gson.fromJson(request.getContent(), JsonObject.class);
@@ -372,6 +680,12 @@ public class Notela extends HttpServlet {
                     }
                     break;
 
+                case "_pit":
+                    if (parts.length == 2) {
+                        response.setContent(gson.toJson(map("id", openPointInTime(indexArray, queryParameters.get("keep_alive")))));
+                    }
+                    break;
+
                 case "_open":
                     if (parts.length == 2) {
                         response.setContent("{\"acknowledged\":true,\"shards_acknowledged\":true}");
@@ -389,9 +703,21 @@ public class Notela extends HttpServlet {
                     }
                     final Painless painless = Painless.parse((String)script.get("source"), gson);
                     final Map<String, Object> scriptParameters = (Map<String, Object>)script.get("params");
-                    for (final SearchResponseHit<JsonObject> document : index.search(parseQuery(query, index))) {
-                        painless.execute(document, scriptParameters);
-                        index.content.put(document.getId(), document.getSource());
+                    index.lock();
+                    try {
+                        // Instantané pris sous le verrou : aucune écriture
+                        // ne peut être écrasée par une copie plus ancienne.
+                        final Snapshot snapshot = index.snapshot();
+                        for (final SearchResponseHit<JsonObject> hit : snapshot.search(parseQuery(query, snapshot))) {
+                            // Le script modifie une copie : la source
+                            // publiée reste visible telle quelle par les
+                            // recherches, les scrolls et les point-in-time.
+                            final SearchResponseHit<JsonObject> document = new SearchResponseHit<>(hit.getIndex(), "_doc", hit.getId(), hit.getScore(), hit.getSource().deepCopy());
+                            painless.execute(document, scriptParameters);
+                            index.put(hit.getId(), document.getSource());
+                        }
+                    } finally {
+                        index.unlock();
                     }
                     response.setContent("{\"acknowledged\":true,\"shards_acknowledged\":true}");
                     break;
@@ -422,15 +748,18 @@ public class Notela extends HttpServlet {
                 response.setContent("{\"error\":\"Incorrect HTTP method for uri [/] and method [PUT], allowed: [GET]\",\"status\":405}");
                 return;
             }
+            if (target.startsWith("/_snapshot/")) {
+                handleSnapshotRequest("PUT", target, queryParameters, request, response);
+                return;
+            }
             target = trimTarget(target);
             final String[] parts = target.split("/");
             final String indexName = parts[0];
             if (parts.length == 1) {
-                if (indexes == null) {
-                    indexes = new HashMap<>();
+                if (indexes.containsKey(indexName)) {
+                    deletePersistedIndex(indexName);
                 }
-                final Index index = new Index();
-                index.name = indexName;
+                final Index index = newIndex(indexName);
                 Map<String, Object> configuration = null;
                 try {
                     configuration = gson.fromJson(request.getContent(), Map.class);
@@ -438,13 +767,16 @@ public class Notela extends HttpServlet {
                     LOGGER.error("Bad JSON value: ", request.getContent(), e);
                 }
                 if (configuration != null) {
-                    index.settings = (Map<String, Object>) configuration.get("settings");
+                    index.setSettings((Map<String, Object>) configuration.get("settings"));
+                }
+                final Index replaced = indexes.put(indexName, index);
+                if (replaced != null) {
+                    replaced.close();
                 }
-                indexes.put(indexName, index);
                 response.setContent("{\"acknowledged\":true,\"shards_acknowledged\":true,\"index\":\"" + indexName + "\"}");
                 return;
             }
-            if (indexes == null || !indexes.containsKey(indexName)) {
+            if (!indexes.containsKey(indexName)) {
                 response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"},\"status\":404}");
                 return;
             }
@@ -455,7 +787,7 @@ public class Notela extends HttpServlet {
                 case "doc":
                 case "_doc":
                     final String id = parts.length == 3 ? parts[2] : generateIdentifier();
-                    index.content.put(id, gson.fromJson(request.getContent(), JsonObject.class));
+                    index.put(id, gson.fromJson(request.getContent(), JsonObject.class));
                     response.setContent(gson.toJson(new CreateResponse(new Shards(1, 1, 0, 0), indexName, parts[1], id, 1, 0, 1, "created", Boolean.TRUE, null)));
                     break;
                 case "_mapping":
@@ -465,7 +797,7 @@ public class Notela extends HttpServlet {
                     break;
                 case "_settings":
                     final Map<String, Map<String, Object>> settings = gson.fromJson(request.getContent(), new TypeToken<Map<String, Map<String, Object>>>() {}.getType());
-                    index.settings = settings.get("settings");
+                    index.setSettings(settings.get("settings"));
                     response.setContent("{\"acknowledged\":true}");
                     break;
             }
@@ -489,6 +821,10 @@ public class Notela extends HttpServlet {
                 response.setContent("{\"error\":\"Incorrect HTTP method for uri [/] and method [DELETE], allowed: [GET]\",\"status\":405}");
                 return;
             }
+            if (target.startsWith("/_snapshot/")) {
+                handleSnapshotRequest("DELETE", target, queryParameters, request, response);
+                return;
+            }
             if ("/_search/scroll".equals(target)) {
                 final Map<String, Object> body = gson.fromJson(request.getContent(), Map.class);
                 final Object scrollId = body.get("scroll_id");
@@ -507,17 +843,31 @@ public class Notela extends HttpServlet {
                 response.setContent("{\"succeeded\":\"true\",\"num_freed\":" + scrollIds.size() + "}");
                 return;
             }
+            if ("/_pit".equals(target)) {
+                final Map<String, Object> body = gson.fromJson(request.getContent(), Map.class);
+                final Object id = body != null ? body.get("id") : null;
+                if (!(id instanceof String)) {
+                    throw new IllegalArgumentException("[id] is required");
+                }
+                final boolean freed = pointInTimes.remove((String) id) != null;
+                response.setContent("{\"succeeded\":true,\"num_freed\":" + (freed ? 1 : 0) + "}");
+                return;
+            }
             target = trimTarget(target);
             final String[] parts = target.split("/");
             final String indexName = parts[0];
 
-            if (indexes == null || !indexes.containsKey(indexName)) {
+            if (!indexes.containsKey(indexName)) {
                 response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + indexName + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + indexName + "\",\"index_uuid\":\"_na_\",\"index\":\"" + indexName + "\"},\"status\":404}");
                 return;
             }
 
             if (parts.length == 1) {
-                indexes.remove(indexName);
+                final Index removed = indexes.remove(indexName);
+                if (removed != null) {
+                    removed.close();
+                }
+                deletePersistedIndex(indexName);
                 response.setContent("{\"acknowledged\":true}");
                 return;
             }
@@ -529,8 +879,7 @@ public class Notela extends HttpServlet {
                 case "_doc":
                     if (parts.length == 3) {
                         final String documentId = parts[2];
-                        final JsonObject removed = index.content.remove(documentId);
-                        if (removed != null) {
+                        if (index.remove(documentId)) {
                             response.setContent("{\"_index\":\"" + indexName + "\",\"_type\":\"" + parts[1] + "\",\"_id\":\"" + documentId + "\",\"_version\":2,\"result\":\"deleted\",\"_shards\":{\"total\":2,\"successful\":1,\"failed\":0},\"_seq_no\":129,\"_primary_term\":34}");
                         } else {
                             response.setContent("{\"_index\":\"" + indexName + "\",\"_type\":\"" + parts[1] + "\",\"_id\":\"" + documentId + "\",\"_version\":3,\"result\":\"not_found\",\"_shards\":{\"total\":2,\"successful\":1,\"failed\":0},\"_seq_no\":130,\"_primary_term\":34}");
@@ -564,18 +913,61 @@ public class Notela extends HttpServlet {
         this.version = new VersionNumber(version);
     }
 
-    public void createIndex(String indexName) {
-        if (indexes == null) {
-            indexes = new HashMap<>();
-        }
-        Index index = indexes.get(indexName);
-        if (index == null) {
-            index = new Index();
-            index.name = indexName;
-            indexes.put(indexName, index);
+    private Index newIndex(String name) {
+        final Index index = new Index(name, requestCacheSize);
+        attachTranslog(index);
+        return index;
+    }
+
+    /**
+     * Ajoute à l'index donné le journal de son nom si les index sont
+     * durables. Doit être appelé seulement quand l'index est celui
+     * enregistré sous son nom.
+     *
+     * @param index Index sans journal.
+     */
+    private void attachTranslog(Index index) {
+        final Path dataPath = this.dataPath;
+        if (dataPath != null) {
+            index.translog = translogs.computeIfAbsent(index.name, key -> {
+                try {
+                    return new Translog(dataPath.resolve(TRANSLOG_DIRECTORY).resolve(key));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
         }
     }
 
+    public void createIndex(String indexName) {
+        indexes.computeIfAbsent(indexName, this::newIndex);
+    }
+
+    /**
+     * Change l'analyseur utilisé pour les champs texte de l'index donné.
+     * Les documents déjà présents sont analysés à nouveau.
+     *
+     * @param indexName Nom de l'index, créé s'il n'existe pas.
+     * @param analyzer Analyseur à utiliser.
+     */
+    public void setAnalyzer(String indexName, Analyzer analyzer) {
+        createIndex(indexName);
+        indexes.get(indexName).setAnalyzer(analyzer);
+    }
+
+    /**
+     * Change les mappings de l'index donné, comme
+     * <code>PUT /&lt;index&gt;/_mapping</code>. Les documents déjà présents
+     * sont indexés à nouveau.
+     *
+     * @param indexName Nom de l'index, créé s'il n'existe pas.
+     * @param mappings Mapping de chaque champ.
+     */
+    public void setMappings(String indexName, Map<String, FieldMapping> mappings) {
+        createIndex(indexName);
+        indexes.get(indexName).setMappings(mappings);
+    }
+
     public void add(String indexName, Object object) {
         add(indexName, object, gson);
     }
@@ -593,993 +985,6201 @@ public class Notela extends HttpServlet {
     }
 
     public void add(String indexName, String id, JsonObject object) {
-        if (indexes == null) {
-            indexes = new HashMap<>();
-        }
-        Index index = indexes.get(indexName);
-        if (index == null) {
-            index = new Index();
-            index.name = indexName;
-            indexes.put(indexName, index);
-        }
-        index.content.put(id, object);
+        indexes.computeIfAbsent(indexName, this::newIndex).put(id, object);
     }
 
-    public <T> T get(String indexName, String id, Class<T> clazz) {
-        return get(indexName, id, clazz, gson);
+    /**
+     * Applique les opérations d'une requête <code>_bulk</code> lues depuis
+     * le flux donné, encodé en UTF-8.
+     *
+     * @param input Opérations au format NDJSON.
+     * @return La réponse de la requête. Si une ligne est mal formée ou si
+     * le flux ne peut pas être lu, elle contient les résultats des
+     * opérations appliquées avant l'erreur et l'erreur dans
+     * <code>error</code>.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    public JsonObject bulk(InputStream input) throws IOException {
+        return bulk(new InputStreamReader(input, StandardCharsets.UTF_8));
     }
 
-    public <T> T get(String indexName, String id, Class<T> clazz, Gson gson) {
-        if (!indexExists(indexName)) {
-            return null;
+    /**
+     * Donne un lecteur sur le contenu de la requête, en UTF-8.
+     *
+     * @param request Requête HTTP.
+     * @return Lecteur du contenu.
+     */
+    private static Reader contentReader(HttpRequest request) {
+        if (request.getCharset().equals(StandardCharsets.UTF_8)) {
+            return new StringReader(request.getContent());
+        } else {
+            return new InputStreamReader(new ByteArrayInputStream(request.getContent().getBytes(request.getCharset())), StandardCharsets.UTF_8);
         }
-        final Index index = indexes.get(indexName);
-        return Optional.ofNullable(index.content.get(id))
-                .map(json -> gson.fromJson(json, clazz))
-                .orElse(null);
     }
 
-    public <T> List<T> list(String indexName, Class<T> clazz) {
-        return list(indexName, clazz, gson);
-    }
-
-    public <T> List<T> list(String indexName, Class<T> clazz, Gson gson) {
-        if (indexes == null) {
-            return Collections.emptyList();
+    /**
+     * Exécute les recherches d'une requête <code>_msearch</code>.
+     * <p>
+     * Les recherches sont lancées dans <code>SEARCH_POOL</code> au fur et à
+     * mesure de leur lecture, au plus <code>max_concurrent_searches</code>
+     * à la fois. Les réponses sont dans l'ordre de la requête.
+     *
+     * @param input Recherches au format NDJSON.
+     * @param queryParameters Paramètres de la requête.
+     * @return Les réponses des recherches.
+     * @throws IOException En cas d'erreur de lecture.
+     * @throws InterruptedException Si l'attente d'une recherche est
+     * interrompue.
+     */
+    private MultiSearchResponse<JsonObject> multiSearch(Reader input, Map<String, String> queryParameters) throws IOException, InterruptedException {
+        final int maxConcurrentSearches = queryParameters.containsKey("max_concurrent_searches")
+                ? Integer.parseInt(queryParameters.get("max_concurrent_searches"))
+                : DEFAULT_MAX_CONCURRENT_SEARCHES;
+        if (maxConcurrentSearches < 1) {
+            throw new IllegalArgumentException("maxConcurrentSearches must be positive");
         }
-        final Index index = indexes.getOrDefault(indexName, new Index());
-        return index.content.values().stream()
-                .map(entry -> gson.fromJson(entry, clazz))
-                .collect(Collectors.toList());
+        final Semaphore permits = new Semaphore(maxConcurrentSearches);
+        final MultiSearchReader reader = new MultiSearchReader(input);
+        final ArrayList<ForkJoinTask<SearchResponse<JsonObject>>> searches = new ArrayList<>();
+        try {
+            MultiSearchReader.Search search;
+            while ((search = reader.next()) != null) {
+                final String indexName = search.index != null ? search.index : "_all";
+                final ArrayList<Index> searchedIndexes = new ArrayList<>();
+                String missingIndex = null;
+                for (final String expression : indexName.split(",")) {
+                    if ("_all".equals(expression)) {
+                        searchedIndexes.addAll(indexes.values());
+                    } else if (!isIndexPattern(expression) && !indexExists(expression)) {
+                        missingIndex = expression;
+                        break;
+                    } else {
+                        for (final String name : resolveIndexNames(expression)) {
+                            final Index index = indexes.get(name);
+                            if (index != null && !searchedIndexes.contains(index)) {
+                                searchedIndexes.add(index);
+                            }
+                        }
+                    }
+                }
+                if (missingIndex != null) {
+                    final String name = missingIndex;
+                    final ForkJoinTask<SearchResponse<JsonObject>> error = ForkJoinTask.adapt(() -> gson.fromJson("{\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + name + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + name + "\",\"index_uuid\":\"_na_\",\"index\":\"" + name + "\"}],\"type\":\"index_not_found_exception\",\"reason\":\"no such index [" + name + "]\",\"resource.type\":\"index_or_alias\",\"resource.id\":\"" + name + "\",\"index_uuid\":\"_na_\",\"index\":\"" + name + "\"},\"status\":404}", SearchResponse.class));
+                    error.invoke();
+                    searches.add(error);
+                    continue;
+                }
+                final Index[] searchedIndexArray = searchedIndexes.toArray(new Index[searchedIndexes.size()]);
+                final JsonObject body = search.body;
+                permits.acquire();
+                searches.add(SEARCH_POOL.submit(() -> {
+                    try {
+                        return searchInIndexes(searchedIndexArray, "_doc", gson.fromJson(body, Map.class), queryParameters).toSearchResponse();
+                    } catch (IllegalArgumentException e) {
+                        return errorSearchResponse("illegal_argument_exception", e, 400);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Search of _msearch failed: ", e);
+                        return errorSearchResponse("exception", e, 500);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        } finally {
+            // En cas d'erreur de lecture, attend la fin des recherches déjà
+            // lancées.
+            for (final ForkJoinTask<?> search : searches) {
+                search.quietlyJoin();
+            }
+        }
+        final ArrayList<SearchResponse<JsonObject>> searchResponses = new ArrayList<>(searches.size());
+        for (final ForkJoinTask<SearchResponse<JsonObject>> search : searches) {
+            searchResponses.add(search.join());
+        }
+        return new MultiSearchResponse<>(searchResponses);
     }
 
-    public boolean indexExists(String indexName) {
-        return indexes != null && indexes.containsKey(indexName);
+    /**
+     * Crée la réponse d'une recherche de <code>_msearch</code> en erreur :
+     * l'erreur est donnée à la place des résultats, sans faire échouer les
+     * autres recherches.
+     *
+     * @param type Type de l'erreur.
+     * @param e Exception arrivée pendant la recherche.
+     * @param status Code d'état de la recherche.
+     * @return La réponse de la recherche.
+     */
+    private SearchResponse<JsonObject> errorSearchResponse(String type, Exception e, int status) {
+        final JsonObject cause = new JsonObject();
+        cause.addProperty("type", type);
+        cause.addProperty("reason", e.getMessage());
+        final JsonArray rootCause = new JsonArray();
+        rootCause.add(cause);
+        final JsonObject error = new JsonObject();
+        error.add("root_cause", rootCause);
+        error.addProperty("type", type);
+        error.addProperty("reason", e.getMessage());
+        final JsonObject response = new JsonObject();
+        response.add("error", error);
+        response.addProperty("status", status);
+        return gson.fromJson(response, SearchResponse.class);
     }
 
     /**
-     * Supprime le contenu des indexes et remet la version à 7.0.0.
+     * Applique les opérations d'une requête <code>_bulk</code>.
+     * <p>
+     * Les opérations sont lues par lots de <code>BULK_BATCH_SIZE</code> puis
+     * appliquées index par index, dans l'ordre de la requête pour un même
+     * index.
+     * <p>
+     * Une ligne mal formée arrête la lecture : les opérations déjà lues
+     * sont appliquées et la réponse donne leurs résultats dans
+     * <code>items</code>, suivis de l'erreur de lecture dans
+     * <code>error</code>. Les opérations suivantes ne sont pas appliquées.
+     *
+     * @param input Opérations au format NDJSON.
+     * @return La réponse de la requête.
      */
-    public void clear() {
-        version = new VersionNumber("7.0.0");
-        indexes = null;
+    private JsonObject bulk(Reader input) {
+        final BulkReader reader = new BulkReader(input);
+        final JsonArray items = new JsonArray();
+        boolean errors = false;
+        Exception failure = null;
+
+        final ArrayList<BulkReader.Operation> batch = new ArrayList<>(BULK_BATCH_SIZE);
+        BulkReader.Operation operation;
+        do {
+            try {
+                operation = reader.next();
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                operation = null;
+            }
+            if (operation != null) {
+                batch.add(operation);
+            }
+            if (batch.size() == BULK_BATCH_SIZE || (operation == null && !batch.isEmpty())) {
+                errors |= applyBulkBatch(batch, items);
+                batch.clear();
+            }
+        } while (operation != null);
+
+        final JsonObject response = new JsonObject();
+        response.addProperty("took", 0);
+        response.addProperty("errors", errors || failure != null);
+        response.add("items", items);
+        if (failure != null) {
+            final JsonObject error = new JsonObject();
+            error.addProperty("type", failure instanceof IllegalArgumentException ? "illegal_argument_exception" : "parse_exception");
+            error.addProperty("reason", failure.getMessage());
+            response.add("error", error);
+            response.addProperty("status", 400);
+        }
+        return response;
     }
 
     /**
-     * Renvoi la liste des scrolls en cours d'itération.
+     * Applique un lot d'opérations et ajoute leurs résultats à la réponse,
+     * dans l'ordre du lot.
      *
-     * @return Scrolls actifs.
+     * @param batch Opérations lues.
+     * @param items Résultats de la requête.
+     * @return <code>true</code> si une des opérations a échoué.
      */
-    public Set<String> activeScrollIds() {
-        return scrolls.keySet();
+    private boolean applyBulkBatch(List<BulkReader.Operation> batch, JsonArray items) {
+        final JsonObject[] batchItems = new JsonObject[batch.size()];
+        final HashMap<String, List<Integer>> operationsByIndex = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            operationsByIndex.computeIfAbsent(batch.get(i).index, key -> new ArrayList<>()).add(i);
+        }
+        for (final Map.Entry<String, List<Integer>> entry : operationsByIndex.entrySet()) {
+            final Index index = indexes.computeIfAbsent(entry.getKey(), this::newIndex);
+            // Le lot n'est visible des recherches qu'une fois entièrement
+            // appliqué.
+            index.lock();
+            try {
+                for (final int i : entry.getValue()) {
+                    batchItems[i] = applyBulkOperation(index, batch.get(i));
+                }
+            } finally {
+                index.unlock();
+            }
+        }
+        boolean errors = false;
+        for (final JsonObject item : batchItems) {
+            errors |= item.getAsJsonObject(item.keySet().iterator().next()).has("error");
+            items.add(item);
+        }
+        return errors;
     }
 
-    private Index copyIndex(final String name, final Index source) {
-        final Index clone = new Index();
-        clone.name = name;
-        clone.content = new HashMap<>(source.content);
-        if (source.mappings != null) {
-            clone.mappings = new HashMap<>(source.mappings);
+    private JsonObject applyBulkOperation(Index index, BulkReader.Operation operation) {
+        final String id = operation.id != null ? operation.id : generateIdentifier();
+        final boolean exists = index.contains(id);
+        CreateResponse result;
+        String errorType = null;
+        String errorReason = null;
+        try {
+            switch (operation.action) {
+                case BulkReader.INDEX:
+                    index.put(id, operation.source);
+                    result = new CreateResponse(null, index.name, operation.type, id, 1, 1, 0, exists ? "updated" : "created", !exists, exists ? 200 : 201);
+                    break;
+                case BulkReader.CREATE:
+                    if (exists) {
+                        errorType = "version_conflict_engine_exception";
+                        errorReason = "[" + id + "]: version conflict, document already exists (current version [1])";
+                        result = new CreateResponse(null, index.name, operation.type, id, 1, 1, 0, null, null, 409);
+                    } else {
+                        index.put(id, operation.source);
+                        result = new CreateResponse(null, index.name, operation.type, id, 1, 1, 0, "created", Boolean.TRUE, 201);
+                    }
+                    break;
+                case BulkReader.UPDATE:
+                    final JsonObject updated = update(index.get(id), operation.source);
+                    if (updated == null) {
+                        errorType = "document_missing_exception";
+                        errorReason = "[_doc][" + id + "]: document missing";
+                        result = new CreateResponse(null, index.name, operation.type, id, 1, 1, 0, null, null, 404);
+                    } else {
+                        index.put(id, updated);
+                        result = new CreateResponse(null, index.name, operation.type, id, 1, 1, 0, exists ? "updated" : "created", !exists, exists ? 200 : 201);
+                    }
+                    break;
+                case BulkReader.DELETE:
+                    final boolean deleted = index.remove(id);
+                    result = new CreateResponse(null, index.name, operation.type, id, 1, 1, 0, deleted ? "deleted" : "not_found", null, deleted ? 200 : 404);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Malformed action/metadata line, expected one of [create, delete, index, update] but found [" + operation.action + "]");
+            }
+        } catch (IllegalArgumentException | UnsupportedOperationException | JsonParseException | IllegalStateException e) {
+            // L'erreur d'une opération est donnée dans son résultat, les
+            // opérations suivantes sont appliquées.
+            errorType = "illegal_argument_exception";
+            errorReason = e.getMessage();
+            result = new CreateResponse(null, index.name, operation.type, id, 1, 1, 0, null, null, 400);
+        } catch (RuntimeException e) {
+            errorType = "exception";
+            errorReason = e.getMessage();
+            result = new CreateResponse(null, index.name, operation.type, id, 1, 1, 0, null, null, 500);
         }
-        if (source.settings != null) {
-            clone.settings = new HashMap<>(source.settings);
+
+        final JsonObject itemResult = gson.toJsonTree(result).getAsJsonObject();
+        if (errorType != null) {
+            final JsonObject error = new JsonObject();
+            error.addProperty("type", errorType);
+            error.addProperty("reason", errorReason);
+            error.addProperty("index", index.name);
+            itemResult.add("error", error);
         }
-        return clone;
+        final JsonObject item = new JsonObject();
+        item.add(operation.action, itemResult);
+        return item;
     }
 
-    private void searchFromQueryParameters(Map<String, String> queryParameters, Index index, String documentName, HttpResponse response) throws NumberFormatException {
-        final List<SearchResponseHit<JsonObject>> queryResults;
-        final int from = Integer.parseInt(queryParameters.getOrDefault("from", "0"));
-        final int size = Integer.parseInt(queryParameters.getOrDefault("size", "10"));
-        final String scrollDuration = queryParameters.get("scroll");
-        final String queryString = queryParameters.get("q");
-        if (queryString == null || queryString.isEmpty()) {
-            queryResults = index.content.entrySet().stream()
-                    .map(entry -> new SearchResponseHit<>(index.name, documentName, entry.getKey(), 1, entry.getValue()))
-                    .collect(Collectors.toList());
-        } else {
-            response.setStatusCode(500);
-            response.setContent("{\"error\":{\"reason\":\"Queries are not supported yet\"},\"status\":500}");
-            return;
+    /**
+     * Applique le corps d'une opération <code>update</code> sur un document.
+     *
+     * @param current Document actuel ou <code>null</code> s'il n'existe pas.
+     * @param body Corps de l'opération : <code>doc</code>,
+     * <code>doc_as_upsert</code>, <code>upsert</code> ou <code>script</code>.
+     * @return Le nouveau document ou <code>null</code> si le document n'existe
+     * pas et qu'aucun document ne doit être créé.
+     */
+    private JsonObject update(JsonObject current, JsonObject body) {
+        final JsonObject doc = body.has("doc") ? body.getAsJsonObject("doc") : null;
+        if (current == null) {
+            if (body.has("upsert")) {
+                return body.getAsJsonObject("upsert");
+            } else if (doc != null && body.has("doc_as_upsert") && body.get("doc_as_upsert").getAsBoolean()) {
+                return doc;
+            }
+            return null;
         }
-        final String scrollId = startScroll(scrollDuration, queryResults, from, size);
-        final int queryResultCount = queryResults.size();
-        final List<SearchResponseHit<JsonObject>> results = queryResults.subList(Math.min(from, queryResultCount), Math.min(from + size, queryResultCount));
-        final SearchResponse<JsonObject> searchResponse = new SearchResponse<>(42, false, scrollId, new Shards(1, 1, 0, 0), new SearchResponseHits<>(
-                createTotal(queryResultCount, version),
-                1,
-                results
-        ), null, null, null);
-        response.setContent(gson.toJson(searchResponse));
-    }
-
-    private SearchResponse<JsonObject> searchInIndex(final Index index, final String docType, final String requestBody, final Map<String, String> queryParameters) {
-        return searchInIndexes(new Index[] {index}, docType, requestBody, queryParameters);
+        JsonObject updated = current.deepCopy();
+        if (doc != null) {
+            merge(updated, doc);
+        }
+        if (body.has("script")) {
+            final JsonElement scriptElement = body.get("script");
+            // Un script peut être donné directement par sa source.
+            final Map<String, Object> script = scriptElement.isJsonPrimitive()
+                    ? Collections.singletonMap("source", scriptElement.getAsString())
+                    : gson.fromJson(scriptElement, Map.class);
+            if (script.get("lang") != null && !"painless".equals(script.get("lang"))) {
+                throw new IllegalArgumentException("script_lang not supported [" + script.get("lang") + "]");
+            }
+            final Painless painless = Painless.parse((String) script.get("source"), gson);
+            final SearchResponseHit<JsonObject> document = new SearchResponseHit<>(null, null, null, 1, updated);
+            painless.execute(document, (Map<String, Object>) script.get("params"));
+            updated = document.getSource();
+        }
+        return updated;
     }
 
-    private SearchResponse<JsonObject> searchInIndexes(final Index[] indexes, final String docType, final String requestBody, final Map<String, String> queryParameters) {
-        final Map<String, Object> searchRequest = gson.fromJson(requestBody, Map.class);
-        final ArrayList<SearchResponseHit<JsonObject>> queryResults = new ArrayList<>();
-
-        final int from = ((Number) searchRequest.getOrDefault("from", 0)).intValue();
-        final int size = ((Number) searchRequest.getOrDefault("size", 10)).intValue();
-        final String scrollDuration = queryParameters.get("scroll");
-
-        final Map<String, Map<String, Object>> query = (Map<String, Map<String, Object>>) searchRequest.get("query");
-        for (final Index index : indexes) {
-            Stream<SearchResponseHit<JsonObject>> stream;
-            if (query == null || query.isEmpty()) {
-                stream = index.content.entrySet().stream()
-                        .map(entry -> new SearchResponseHit<>(index.name, docType, entry.getKey(), 1, entry.getValue()));
+    /**
+     * Fusionne les champs de <code>changes</code> dans <code>target</code>.
+     * Les objets sont fusionnés récursivement, les autres valeurs
+     * remplacées.
+     */
+    private static void merge(JsonObject target, JsonObject changes) {
+        for (final Map.Entry<String, JsonElement> change : changes.entrySet()) {
+            final JsonElement existing = target.get(change.getKey());
+            if (existing != null && existing.isJsonObject() && change.getValue().isJsonObject()) {
+                merge(existing.getAsJsonObject(), change.getValue().getAsJsonObject());
             } else {
-                stream = index.searchStream(parseQuery(query, index));
+                target.add(change.getKey(), change.getValue());
             }
-            stream.forEach(queryResults::add);
         }
+    }
 
-        final Map<String, Object> aggregations = (Map<String, Object>)searchRequest.getOrDefault("aggregations", (Map<String, Object>)searchRequest.getOrDefault("aggs", Collections.emptyMap()));
-        final HashMap<String, Object> aggregationResult = !aggregations.isEmpty() ? new HashMap<>() : null;
-        for (Map.Entry<String, Object> aggregation : aggregations.entrySet()) {
-            aggregationResult.put(
-                    aggregation.getKey(),
-                    parseAggregation((Map<String, Map<String, Object>>) aggregation.getValue())
-                            .aggregate(queryResults));
-        }
+    public <T> T get(String indexName, String id, Class<T> clazz) {
+        return get(indexName, id, clazz, gson);
+    }
 
-        // Tri des résultats.
-        final List<Map<String, Map<String, String>>> sort = (List<Map<String, Map<String, String>>>) searchRequest.get("sort");
-        if (sort != null) {
-            queryResults.sort(parseSort(sort));
-        } else {
-            // Tri sur le score, du plus grand au plus petit.
-            queryResults.sort((lhs, rhs) -> (int) (100.0 * (rhs.getScore() - lhs.getScore())));
+    public <T> T get(String indexName, String id, Class<T> clazz, Gson gson) {
+        if (!indexExists(indexName)) {
+            return null;
         }
+        final Index index = indexes.get(indexName);
+        return Optional.ofNullable(index.get(id))
+                .map(json -> gson.fromJson(json, clazz))
+                .orElse(null);
+    }
 
-        // Scroll.
-        final String scrollId = startScroll(scrollDuration, queryResults, from, size);
+    public <T> List<T> list(String indexName, Class<T> clazz) {
+        return list(indexName, clazz, gson);
+    }
 
-        // Pagination.
-        final int queryResultCount = queryResults.size();
-        final List<SearchResponseHit<JsonObject>> results = queryResults.subList(Math.min(from, queryResultCount), Math.min(from + size, queryResultCount));
+    public <T> List<T> list(String indexName, Class<T> clazz, Gson gson) {
+        final Index index = indexes.get(indexName);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        final Snapshot snapshot = index.acquireSnapshot();
+        try {
+            return snapshot.liveOrdinals()
+                    .mapToObj(ordinal -> gson.fromJson(snapshot.document(ordinal), clazz))
+                    .collect(Collectors.toList());
+        } finally {
+            snapshot.release();
+        }
+    }
 
-        // Highlight
-        final Map<String, Object> highlight = (Map<String, Object>) searchRequest.get("highlight");
-        if (highlight != null && query != null) {
-            final Map<String, Object> fieldsEntry = (Map<String, Object>) highlight.getOrDefault("fields", Collections.emptyMap());
-            Set<String> fields = Optional.ofNullable(fieldsEntry)
-                    .map(entry -> entry.keySet().stream()
-                        .flatMap(field -> {
-                            if (field.contains("*") || field.contains("?")) {
-                                final Pattern pattern = Pattern.compile(globToPatternString(field));
-                                return Stream.concat(
-                                        indexes[0].mappings.keySet().stream()
-                                                .filter(name -> pattern.matcher(name).matches()),
-                                        indexes[0].copyToFields.keySet().stream()
-                                                .filter(name -> pattern.matcher(name).matches()));
-                            } else {
-                                return Stream.of(field);
-                            }
-                        })
-                        .collect(Collectors.toSet())
-                    )
-                    .orElse(Collections.emptySet());
+    public boolean indexExists(String indexName) {
+        return indexes.containsKey(indexName);
+    }
 
-            // TODO: Supporter le surlignage dans plusieurs index.
-            final Highlighter highlighter = parseHighlighter(fields, query, indexes[0]);
+    private static boolean isIndexPattern(String expression) {
+        return expression.indexOf('*') >= 0 || expression.indexOf('?') >= 0;
+    }
 
-            for (SearchResponseHit<JsonObject> hit : results) {
-                final HashMap<String, List<String>> result = new HashMap<>();
-                final JsonObject source = hit.getSource();
-                mergeLists(result, highlighter.highlight(source));
-                hit.setHighlight(result);
-            }
+    /**
+     * Donne les noms des index désignés par l'expression donnée : un nom
+     * d'index ou un motif comme <code>logs-*</code>. Seuls les index
+     * commençant par la partie fixe du motif sont parcourus.
+     *
+     * @param expression Nom ou motif.
+     * @return Noms des index existants correspondants, triés.
+     */
+    private List<String> resolveIndexNames(String expression) {
+        if (!isIndexPattern(expression)) {
+            return indexes.containsKey(expression)
+                    ? Collections.singletonList(expression)
+                    : Collections.emptyList();
         }
+        int prefixLength = 0;
+        while (expression.charAt(prefixLength) != '*' && expression.charAt(prefixLength) != '?') {
+            prefixLength++;
+        }
+        final String prefix = expression.substring(0, prefixLength);
+        final NavigableMap<String, Index> candidates = prefix.isEmpty()
+                ? indexes
+                : indexes.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        final Pattern pattern = Pattern.compile(globToPatternString(expression));
+        return candidates.keySet().stream()
+                .filter(name -> pattern.matcher(name).matches())
+                .collect(Collectors.toList());
+    }
 
-        // Filtrage de la source
-        final Function<JsonObject, JsonObject> sourceMapper = parseSourceMapper(searchRequest.get("_source"));
-        if (sourceMapper != null) {
-            for (final SearchResponseHit<JsonObject> hit : results) {
-                hit.setSource(sourceMapper.apply(hit.getSource()));
-            }
+    /**
+     * Recherche dans les index désignés, comme
+     * <code>POST /&lt;index&gt;/_doc/_search</code>.
+     *
+     * @param indexNames Noms ou motifs d'index, séparés par des virgules.
+     * @param requestBody Corps JSON de la recherche.
+     * @param queryParameters Paramètres de la requête, par exemple
+     * <code>scroll</code>.
+     * @return La réponse.
+     * @throws IOException En cas d'erreur d'écriture de la réponse.
+     */
+    JsonObject search(String indexNames, String requestBody, Map<String, String> queryParameters) throws IOException {
+        return toJsonObject(searchInIndexes(resolveIndexes(indexNames), "_doc", requestBody, queryParameters));
+    }
+
+    /**
+     * Donne la page suivante d'un scroll, comme
+     * <code>POST /_search/scroll</code>.
+     *
+     * @param scrollId Identifiant donné par la page précédente.
+     * @param keepAlive Nouvelle durée de vie du scroll ou <code>null</code>.
+     * @return La page suivante ou <code>null</code> si le scroll a expiré.
+     * @throws IOException En cas d'erreur d'écriture de la réponse.
+     */
+    JsonObject scroll(String scrollId, String keepAlive) throws IOException {
+        final Scroll scroll = scrolls.get(decodeScrollId(scrollId));
+        if (scroll == null || scroll.isExpired(System.currentTimeMillis())) {
+            return null;
         }
+        if (keepAlive != null) {
+            scroll.setKeepAlive(parseTimeValue(keepAlive, "scroll"));
+        }
+        return toJsonObject(scroll.nextPage(version));
+    }
 
-        return new SearchResponse<>(42, false, scrollId, new Shards(1, 1, 0, 0), new SearchResponseHits<>(
-                createTotal(queryResultCount, version),
-                1,
-                results
-        ), null, 200, aggregationResult);
+    /**
+     * Ouvre un point-in-time sur les index désignés, comme
+     * <code>POST /&lt;index&gt;/_pit</code>.
+     *
+     * @param indexNames Noms ou motifs d'index, séparés par des virgules.
+     * @param keepAlive Durée de vie du point-in-time.
+     * @return Identifiant du point-in-time.
+     */
+    String openPointInTime(String indexNames, String keepAlive) {
+        return openPointInTime(resolveIndexes(indexNames), keepAlive);
     }
 
-    private String startScroll(final String scrollDuration, final List<SearchResponseHit<JsonObject>> queryResults, final int from, final int size) {
-        String scrollId = null;
-        if (scrollDuration != null) {
-            final String node = generateIdentifier();
-            scrollId = encodeScrollId(node);
-            final Scroll scroll = new Scroll();
-            scroll.queryResults = queryResults;
-            scroll.from = from + size;
-            scroll.size = size;
-            scroll.scrollId = scrollId;
-            scrolls.put(node, scroll);
+    private Index[] resolveIndexes(String indexNames) {
+        final LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (final String expression : indexNames.split(",")) {
+            names.addAll(resolveIndexNames(expression));
         }
-        return scrollId;
+        return names.stream()
+                .map(indexes::get)
+                .toArray(Index[]::new);
     }
 
-    private void continueScroll(HttpRequest request, HttpResponse response) {
-        final Map<String, String> body = gson.fromJson(request.getContent(), Map.class);
-        final String scrollId = body.get("scroll_id");
-        if (scrollId == null) {
-            response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"action_request_validation_exception\",\"reason\":\"Validation Failed: 1: scrollId is missing;\"}],\"type\":\"action_request_validation_exception\",\"reason\":\"Validation Failed: 1: scrollId is missing;\"},\"status\":400}");
-            return;
+    private JsonObject toJsonObject(SearchResult result) throws IOException {
+        final StringWriter output = new StringWriter();
+        result.write(gson.newJsonWriter(output), gson);
+        return JsonParser.parseString(output.toString()).getAsJsonObject();
+    }
+
+    /**
+     * Supprime le contenu des indexes et remet la version à 7.0.0. Avec un
+     * dossier des données, les journaux et les fichiers de segment des index
+     * sont aussi supprimés. La mémoire hors du tas des index est rendue.
+     */
+    public void clear() {
+        version = new VersionNumber("7.0.0");
+        Map.Entry<String, Index> entry;
+        while ((entry = indexes.pollFirstEntry()) != null) {
+            entry.getValue().close();
         }
-        final String node = decodeScrollId(scrollId);
-        final Scroll scroll = scrolls.get(node);
-        if (scroll == null) {
-            response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"illegal_state_exception\",\"reason\":\"node [" + node + "] is not available\"}],\"type\":\"search_phase_execution_exception\",\"reason\":\"all shards failed\",\"phase\":\"query\",\"grouped\":true,\"failed_shards\":[{\"shard\":-1,\"index\":null,\"reason\":{\"type\":\"illegal_state_exception\",\"reason\":\"node [" + node + "] is not available\"}}]},\"status\":500}");
-            return;
+        for (final String name : new ArrayList<>(translogs.keySet())) {
+            deletePersistedIndex(name);
         }
-        response.setContent(gson.toJson(scroll.nextPage(version)));
+        searchRequests.clear();
+        queryTemplates.clear();
+        queryPlans.clear();
     }
 
-    private String parseQueryParameters(String target, Map<String, String> queryParameters) throws UnsupportedEncodingException {
-        final int queryStart = target.indexOf('?');
-        if (queryStart < 0) {
-            return target;
+    /**
+     * Change le nombre d'entrées de chaque cache des plans de requêtes.
+     *
+     * @param size Nombre maximal d'entrées, 0 pour désactiver les caches.
+     */
+    public void setQueryPlanCacheSize(int size) {
+        searchRequests.setMaxWeight(size);
+        queryTemplates.setMaxWeight(size);
+        queryPlans.setMaxWeight(size);
+    }
+
+    /**
+     * Change la taille du cache des recherches <code>size: 0</code> de
+     * chaque index.
+     *
+     * @param size Taille maximale en octets, 0 pour désactiver le cache.
+     */
+    public void setRequestCacheSize(long size) {
+        requestCacheSize = size;
+        for (final Index index : indexes.values()) {
+            index.requestCache.setMaxWeight(size);
         }
-        final String queryString = target.substring(queryStart + 1);
-        for (String parameter : queryString.split("&")) {
-            final String[] keyAndValue = parameter.split("=");
-            queryParameters.put(keyAndValue[0], URLDecoder.decode(keyAndValue[1], "utf-8"));
+    }
+
+    /**
+     * Donne l'état des caches.
+     *
+     * @return Statistiques au format de <code>_stats</code>.
+     */
+    private Map<String, Object> stats() {
+        final LinkedHashMap<String, Object> indexStats = new LinkedHashMap<>();
+        long hitCount = 0;
+        long missCount = 0;
+        long evictions = 0;
+        long memorySize = 0;
+        for (final Index index : indexes.values()) {
+            final Map<String, Object> requestCache = index.requestCache.stats();
+            hitCount += (Long) requestCache.get("hit_count");
+            missCount += (Long) requestCache.get("miss_count");
+            evictions += (Long) requestCache.get("evictions");
+            memorySize += (Long) requestCache.get("weight");
+            indexStats.put(index.name, map("total", map("request_cache", requestCache)));
         }
-        return target.substring(0, queryStart);
+        return map(
+                "_all", map("total", map(
+                        "request_cache", map(
+                                "memory_size_in_bytes", memorySize,
+                                "evictions", evictions,
+                                "hit_count", hitCount,
+                                "miss_count", missCount,
+                                "hit_rate", LruCache.hitRate(hitCount, missCount)),
+                        "query_plan_cache", map(
+                                "requests", searchRequests.stats(),
+                                "templates", queryTemplates.stats(),
+                                "plans", queryPlans.stats()))),
+                "indices", indexStats);
     }
 
-    private String trimTarget(String target) {
-        if (target.charAt(0) == '/') {
-            target = target.substring(1);
+    /**
+     * Renvoi la liste des scrolls en cours d'itération.
+     *
+     * @return Scrolls actifs.
+     */
+    public Set<String> activeScrollIds() {
+        return scrolls.keys();
+    }
+
+    /**
+     * Change la taille maximale des curseurs de tous les scrolls. Les
+     * scrolls les moins récemment lus sont retirés pour respecter la
+     * nouvelle taille.
+     *
+     * @param size Taille en octets.
+     */
+    public void setScrollMemoryLimit(long size) {
+        scrollMemoryLimit = size;
+        scrolls.setMaxWeight(size);
+    }
+
+    /**
+     * Déclare un dépôt de snapshots de type <code>fs</code>.
+     *
+     * @param repository Nom du dépôt.
+     * @param location Dossier contenant les snapshots du dépôt.
+     */
+    public void createSnapshotRepository(String repository, Path location) {
+        snapshotRepositories.put(repository, location);
+    }
+
+    private Index copyIndex(final String name, final Index source) {
+        final Index clone = newIndex(name);
+        final Snapshot snapshot = source.acquireSnapshot();
+        clone.lock();
+        try {
+            snapshot.liveOrdinals().forEach(ordinal -> clone.put(snapshot.identifier(ordinal), snapshot.document(ordinal)));
+            if (source.mappings != null) {
+                clone.setMappings(new HashMap<>(source.mappings));
+            }
+            if (source.settings != null) {
+                clone.setSettings(new HashMap<>(source.settings));
+            }
+        } finally {
+            clone.unlock();
+            snapshot.release();
         }
-        if (target.charAt(target.length() - 1) == '/') {
-            target = target.substring(0, target.length() - 1);
+        return clone;
+    }
+
+    /**
+     * Écrit les index donnés dans un dossier de snapshot : un fichier de
+     * segment par index et un fichier <code>snapshot.json</code> décrivant
+     * le snapshot, écrit en dernier.
+     * <p>
+     * Chaque index est écrit depuis un instantané : les écritures
+     * concurrentes ne sont pas bloquées et n'apparaissent pas dans le
+     * snapshot.
+     *
+     * @param directory Dossier du snapshot, créé s'il n'existe pas.
+     * @param indexNames Noms ou motifs des index à écrire, tous les index si
+     * aucun n'est donné.
+     * @return Description du snapshot.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    public Map<String, Object> snapshot(Path directory, String... indexNames) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        final List<String> names = indexNames.length == 0
+                ? new ArrayList<>(indexes.keySet())
+                : resolveSnapshotIndexNames(Arrays.asList(indexNames), indexes.keySet());
+        for (final String name : names) {
+            if (!indexes.containsKey(name)) {
+                throw new IllegalArgumentException("no such index [" + name + "]");
+            }
         }
-        return target;
+        final Path indicesDirectory = directory.resolve(SNAPSHOT_INDICES_DIRECTORY);
+        Files.createDirectories(indicesDirectory);
+        final List<String> written = new ArrayList<>();
+        for (final String name : names) {
+            final Index index = indexes.get(name);
+            if (index == null) {
+                // Supprimé pendant le snapshot.
+                continue;
+            }
+            final Snapshot snapshot = index.acquireSnapshot();
+            try {
+                writeSegment(indicesDirectory.resolve(name + SEGMENT_EXTENSION), segmentHeader(snapshot), snapshot);
+            } finally {
+                snapshot.release();
+            }
+            written.add(name);
+        }
+        final Map<String, Object> info = snapshotInfo(directory.getFileName().toString(), written, startTime, System.currentTimeMillis());
+        final Path infoFile = directory.resolve(SNAPSHOT_INFO_FILE);
+        final Path temporaryFile = directory.resolve(SNAPSHOT_INFO_FILE + ".tmp");
+        Files.write(temporaryFile, gson.toJson(info).getBytes(StandardCharsets.UTF_8));
+        Files.move(temporaryFile, infoFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return info;
     }
 
-    private String generateIdentifier() {
-        final StringBuilder builder = new StringBuilder();
-        final char[] characters = new char[]{
-            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
-            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
-            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-'};
-        for (int index = 0; index < 20; index++) {
-            builder.append(characters[(int) (Math.random() * characters.length)]);
+    /**
+     * Crée l'en-tête du fichier de segment d'un instantané. Les mappings
+     * sont ceux de l'instantané, qui ont servi à construire ses index.
+     */
+    private JsonObject segmentHeader(Snapshot snapshot) {
+        final JsonObject header = new JsonObject();
+        header.addProperty("name", snapshot.name);
+        header.add("settings", gson.toJsonTree(snapshot.index.settings));
+        header.add("mappings", gson.toJsonTree(snapshot.mappings));
+        return header;
+    }
+
+    /**
+     * Écrit les documents puis les index d'un instantané. Le JSON des
+     * documents gardés en octets est recopié sans être relu.
+     */
+    private static void writeSegment(Path file, JsonObject header, Snapshot snapshot) throws IOException {
+        try (final SegmentFile.Writer writer = new SegmentFile.Writer(file, header)) {
+            final PrimitiveIterator.OfInt ordinals = snapshot.liveOrdinals().iterator();
+            while (ordinals.hasNext()) {
+                final int ordinal = ordinals.nextInt();
+                final byte[] source = snapshot.storedSource(ordinal);
+                writer.add(snapshot.identifier(ordinal), source != null
+                        ? source
+                        : snapshot.document(ordinal).toString().getBytes(StandardCharsets.UTF_8));
+            }
+            snapshot.writeIndexes(writer.indexes());
+            writer.commit();
         }
-        return builder.toString();
     }
 
-    private String encodeScrollId(String identifier) {
-        return Base64.getEncoder().encodeToString(("queryAndFetch\u0001\u0000\u0000\u0000\u0000\u0000\u0000\u0000>\u0016" + identifier).getBytes(StandardCharsets.US_ASCII));
+    /**
+     * Restaure les index d'un snapshot écrit par <code>snapshot</code>.
+     *
+     * @param directory Dossier du snapshot.
+     * @param indexNames Noms ou motifs des index à restaurer, tous les index
+     * du snapshot si aucun n'est donné.
+     * @return Noms des index restaurés.
+     * @throws IOException En cas d'erreur de lecture.
+     * @throws IllegalArgumentException Si un index du même nom existe déjà.
+     */
+    public List<String> restore(Path directory, String... indexNames) throws IOException {
+        return restore(directory, Arrays.asList(indexNames), Function.identity());
     }
 
-    private String decodeScrollId(String scrollId) {
-        final String decodedId = new String(Base64.getDecoder().decode(scrollId), StandardCharsets.US_ASCII);
-        return decodedId.substring(23);
+    private List<String> restore(Path directory, List<String> indexNames, Function<String, String> rename) throws IOException {
+        final Map<String, Object> info = readSnapshotInfo(directory);
+        final List<String> available = (List<String>) info.get("indices");
+        final List<String> names = indexNames.isEmpty()
+                ? available
+                : resolveSnapshotIndexNames(indexNames, available);
+        for (final String name : names) {
+            if (!available.contains(name)) {
+                throw new IllegalArgumentException("index [" + name + "] not found in snapshot [" + info.get("snapshot") + "]");
+            }
+            final String target = rename.apply(name);
+            if (indexes.containsKey(target)) {
+                throw new IllegalArgumentException("cannot restore index [" + target + "] because an open index with same name already exists in the cluster");
+            }
+        }
+        final List<String> restored = new ArrayList<>();
+        for (final String name : names) {
+            final String target = rename.apply(name);
+            // Le journal n'est ajouté qu'une fois l'index enregistré : un
+            // index du même nom créé entre temps garde seul son journal.
+            final Index index = new Index(target, requestCacheSize);
+            readSegment(directory.resolve(SNAPSHOT_INDICES_DIRECTORY).resolve(name + SEGMENT_EXTENSION), index);
+            index.lock();
+            try {
+                if (indexes.putIfAbsent(target, index) != null) {
+                    index.close();
+                    throw new IllegalArgumentException("cannot restore index [" + target + "] because an open index with same name already exists in the cluster");
+                }
+                attachTranslog(index);
+            } finally {
+                index.unlock();
+            }
+            // Les documents restaurés ne sont pas dans le journal.
+            flush(index);
+            restored.add(target);
+        }
+        return restored;
     }
 
     /**
-     * Renvoi une erreur en JSON contenant le message de l'exception donnée.
+     * Remplit un index depuis un fichier de segment. Les mappings sont
+     * appliqués d'abord puis les index et les colonnes sont chargés depuis
+     * le fichier projeté en mémoire, qui garde le JSON des documents.
      *
-     * @param statusCode Code d'état HTTP.
-     * @param e Exception arrivée pendant le traitement.
-     * @param response Réponse HTTP où écrire.
+     * @return En-tête du fichier.
      */
-    private void sendError(int statusCode, Exception e, HttpResponse response) {
-        final HashMap<String, Object> content = new HashMap<>();
-        final HashMap<String, Object> error = new HashMap<>();
-        error.put("reason", e.getMessage());
-        content.put("status", statusCode);
-        content.put("error", error);
-        response.setStatusCode(statusCode);
-        response.setContent(gson.toJson(content));
+    private JsonObject readSegment(Path file, Index index) throws IOException {
+        try (final SegmentFile.Reader reader = new SegmentFile.Reader(file)) {
+            final JsonObject header = reader.header();
+            final JsonElement settings = header.get("settings");
+            if (settings != null && settings.isJsonObject()) {
+                index.setSettings(gson.fromJson(settings, Map.class));
+            }
+            index.lock();
+            try {
+                final JsonElement mappings = header.get("mappings");
+                if (mappings != null && mappings.isJsonObject()) {
+                    index.setMappings(gson.fromJson(mappings, new TypeToken<HashMap<String, FieldMapping>>() {}.getType()));
+                }
+                index.load(reader);
+            } finally {
+                index.unlock();
+            }
+            return header;
+        }
     }
 
-    private static SearchResponseHitsTotal createTotal(final long total, VersionNumber version) {
-        if (version.getMajorVersionNumber() >= 7) {
-            return new RelationSearchResponseHitsTotal(total, SearchResponseHitsTotalRelation.EQ);
-        } else {
-            return new LongSearchResponseHitsTotal(total);
+    private Map<String, Object> readSnapshotInfo(Path directory) throws IOException {
+        final Path infoFile = directory.resolve(SNAPSHOT_INFO_FILE);
+        if (!Files.isRegularFile(infoFile)) {
+            throw new NoSuchFileException(infoFile.toString());
         }
+        final Map<String, Object> info;
+        try (final Reader reader = Files.newBufferedReader(infoFile, StandardCharsets.UTF_8)) {
+            info = gson.fromJson(reader, Map.class);
+        }
+        // Gson lit les nombres en double.
+        return snapshotInfo((String) info.get("snapshot"), (List<String>) info.get("indices"),
+                ((Number) info.get("start_time_in_millis")).longValue(),
+                ((Number) info.get("end_time_in_millis")).longValue());
     }
 
-    private static Query parseQuery(Map<String, Map<String, Object>> query, Index index) {
-        final Map.Entry<String, Map<String, Object>> entry = query.entrySet().iterator().next();
-        switch (entry.getKey()) {
-            case "bool":
-                return createBoolQuery(entry.getValue(), index);
-            case "match":
-                return createMatchQuery(entry.getValue(), index);
-            case "wildcard":
-                return createWildcardQuery(entry.getValue(), index);
-            case "term":
-                return createTermQuery(entry.getValue(), index);
-            case "terms":
-                return createTermsQuery(entry.getValue(), index);
-            case "exists":
-                return createExistsQuery(entry.getValue(), index);
-            case "nested":
-                return createNestedQuery(entry.getValue(), index);
-            case "range":
-                return createRangeQuery(entry.getValue(), index);
-            default:
-                LOGGER.warn("Given query is unsupported: ", entry.getKey());
-                return NO_QUERY;
+    private static Map<String, Object> snapshotInfo(String name, List<String> indices, long startTime, long endTime) {
+        final LinkedHashMap<String, Object> info = new LinkedHashMap<>();
+        info.put("snapshot", name);
+        info.put("indices", indices);
+        info.put("state", "SUCCESS");
+        info.put("start_time_in_millis", startTime);
+        info.put("end_time_in_millis", endTime);
+        info.put("duration_in_millis", endTime - startTime);
+        final LinkedHashMap<String, Object> shards = new LinkedHashMap<>();
+        shards.put("total", indices.size());
+        shards.put("failed", 0);
+        shards.put("successful", indices.size());
+        info.put("shards", shards);
+        return info;
+    }
+
+    private static List<String> resolveSnapshotIndexNames(List<String> expressions, Collection<String> available) {
+        final ArrayList<String> names = new ArrayList<>();
+        for (final String expression : expressions) {
+            if ("_all".equals(expression) || isIndexPattern(expression)) {
+                final Pattern pattern = Pattern.compile("_all".equals(expression) ? ".*" : globToPatternString(expression));
+                for (final String name : available) {
+                    if (pattern.matcher(name).matches() && !names.contains(name)) {
+                        names.add(name);
+                    }
+                }
+            } else if (!names.contains(expression)) {
+                names.add(expression);
+            }
         }
+        return names;
     }
 
-    private static Query createBoolQuery(final Map<String, Object> bool, final Index index) {
-        final List<Map<String, Map<String, Object>>> must = (List<Map<String, Map<String, Object>>>) bool.get("must");
-        final List<Map<String, Map<String, Object>>> mustNot = (List<Map<String, Map<String, Object>>>) bool.get("must_not");
-        final List<Map<String, Map<String, Object>>> should = (List<Map<String, Map<String, Object>>>) bool.get("should");
+    /**
+     * Rend les index durables dans le dossier donné : les index qui y ont
+     * été écrits sont rechargés depuis leur dernier fichier de segment puis
+     * les opérations de leur journal sont rejouées. Chaque écriture est
+     * ensuite ajoutée au journal de son index.
+     * <p>
+     * Le paramètre d'index <code>index.translog.durability</code> choisit
+     * quand le journal est synchronisé sur disque : à la fin de chaque
+     * requête d'écriture avec <code>request</code>, par défaut, ou
+     * périodiquement avec <code>async</code>.
+     *
+     * @param path Dossier des données, créé s'il n'existe pas.
+     * @throws IOException En cas d'erreur de lecture.
+     * @throws IllegalStateException Si des index existent déjà.
+     */
+    public synchronized void setDataPath(Path path) throws IOException {
+        if (dataPath != null || !indexes.isEmpty()) {
+            throw new IllegalStateException("Data path must be set once, before creating any index");
+        }
+        final Path indicesDirectory = path.resolve(SNAPSHOT_INDICES_DIRECTORY);
+        final Path translogDirectory = path.resolve(TRANSLOG_DIRECTORY);
+        Files.createDirectories(indicesDirectory);
+        Files.createDirectories(translogDirectory);
+        final TreeSet<String> names = new TreeSet<>();
+        try (final Stream<Path> files = Files.list(indicesDirectory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_EXTENSION))
+                    .forEach(name -> names.add(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+        }
+        try (final Stream<Path> files = Files.list(translogDirectory)) {
+            files.filter(Files::isDirectory)
+                    .forEach(directory -> names.add(directory.getFileName().toString()));
+        }
+        for (final String name : names) {
+            final Index index = new Index(name, requestCacheSize);
+            final Path segment = indicesDirectory.resolve(name + SEGMENT_EXTENSION);
+            long generation = 0;
+            if (Files.isRegularFile(segment)) {
+                final JsonElement translogGeneration = readSegment(segment, index).get("translog_generation");
+                if (translogGeneration != null) {
+                    generation = translogGeneration.getAsLong();
+                }
+            }
+            index.lock();
+            try {
+                Translog.replay(translogDirectory.resolve(name), generation, new Translog.Replayer() {
+                    @Override
+                    public void index(String id, JsonObject document) {
+                        index.put(id, document);
+                    }
+
+                    @Override
+                    public void delete(String id) {
+                        index.remove(id);
+                    }
+
+                    @Override
+                    public void mappings(String mappings) {
+                        index.setMappings(gson.fromJson(mappings, new TypeToken<HashMap<String, FieldMapping>>() {}.getType()));
+                    }
 
-        final List<Query> mustQueries = must != null ? must.stream().map(query -> parseQuery(query, index)).collect(Collectors.toList()) : Collections.emptyList();
-        final List<Query> mustNotQueries = mustNot != null ? mustNot.stream().map(query -> parseQuery(query, index)).collect(Collectors.toList()) : Collections.emptyList();
-        final List<Query> shouldQueries = should != null ? should.stream().map(query -> parseQuery(query, index)).collect(Collectors.toList()) : Collections.emptyList();
+                    @Override
+                    public void settings(Map<String, Object> settings) {
+                        index.setSettings(settings);
+                    }
+                });
+            } finally {
+                index.unlock();
+            }
+            final Translog translog = new Translog(translogDirectory.resolve(name));
+            translog.trim(generation);
+            translogs.put(name, translog);
+            index.translog = translog;
+            indexes.put(name, index);
+        }
+        dataPath = path;
+        syncTranslogs(new WeakReference<>(this));
+    }
+
+    /**
+     * Écrit un fichier de segment pour chaque index du dossier des données
+     * puis supprime les générations du journal qu'il contient. Les
+     * écritures concurrentes ne sont bloquées que le temps de commencer une
+     * nouvelle génération du journal.
+     *
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    public void flush() throws IOException {
+        for (final Index index : indexes.values()) {
+            flush(index);
+        }
+    }
+
+    private void flush(Index index) throws IOException {
+        final Path dataPath = this.dataPath;
+        final Translog translog = index.translog;
+        if (dataPath == null || translog == null) {
+            return;
+        }
+        final Snapshot snapshot;
+        final long generation;
+        index.lock();
+        try {
+            generation = translog.roll();
+            snapshot = index.acquireSnapshot();
+        } finally {
+            index.unlock();
+        }
+        try {
+            final JsonObject header = segmentHeader(snapshot);
+            header.addProperty("translog_generation", generation);
+            writeSegment(dataPath.resolve(SNAPSHOT_INDICES_DIRECTORY).resolve(index.name + SEGMENT_EXTENSION), header, snapshot);
+        } finally {
+            snapshot.release();
+        }
+        translog.trim(generation);
+    }
+
+    /**
+     * Supprime le journal et le fichier de segment de l'index donné.
+     *
+     * @param name Nom de l'index.
+     */
+    private void deletePersistedIndex(String name) {
+        final Path dataPath = this.dataPath;
+        if (dataPath == null) {
+            return;
+        }
+        try {
+            final Translog translog = translogs.remove(name);
+            if (translog != null) {
+                translog.delete();
+            }
+            Files.deleteIfExists(dataPath.resolve(SNAPSHOT_INDICES_DIRECTORY).resolve(name + SEGMENT_EXTENSION));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Synchronise sur disque les journaux des index en durabilité
+     * <code>async</code> puis planifie la prochaine synchronisation, tant
+     * que l'instance existe.
+     *
+     * @param reference Instance dont les journaux sont synchronisés.
+     */
+    private static void syncTranslogs(final WeakReference<Notela> reference) {
+        final Notela notela = reference.get();
+        if (notela == null) {
+            return;
+        }
+        for (final Translog translog : notela.translogs.values()) {
+            try {
+                translog.sync(translog.position());
+            } catch (IOException e) {
+                LOGGER.error("Unable to sync translog: ", e);
+            }
+        }
+        TRANSLOG_SYNCER.schedule(() -> syncTranslogs(reference), TRANSLOG_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void searchFromQueryParameters(Map<String, String> queryParameters, Index index, String documentName, HttpResponse response) throws IOException {
+        final int from = Integer.parseInt(queryParameters.getOrDefault("from", "0"));
+        final int size = Integer.parseInt(queryParameters.getOrDefault("size", "10"));
+        final String scrollDuration = queryParameters.get("scroll");
+        final int window = resultWindow(from, size, scrollDuration != null, index.maxResultWindow());
+        final String queryString = queryParameters.get("q");
+        if (queryString != null && !queryString.isEmpty()) {
+            response.setStatusCode(500);
+            response.setContent("{\"error\":{\"reason\":\"Queries are not supported yet\"},\"status\":500}");
+            return;
+        }
+        if (scrollDuration != null) {
+            // Les documents sont parcourus dans l'ordre des ordinaux : le
+            // scroll ne garde que sa position.
+            final String node = generateIdentifier();
+            final long keepAlive = parseTimeValue(scrollDuration, "scroll");
+            final Snapshot snapshot = index.acquireSnapshot();
+            final Scroll scroll;
+            try {
+                scroll = new Scroll(encodeScrollId(node), documentName, size, keepAlive, snapshot, from);
+            } finally {
+                snapshot.release();
+            }
+            registerScroll(node, scroll);
+            sendSearchResult(scroll.nextPage(version), response);
+            return;
+        }
+        final Snapshot[] snapshot = {index.acquireSnapshot()};
+        final SearchResult result;
+        try {
+            final TopHits topHits = snapshot[0].search(NO_QUERY, 0, index.parallelism(),
+                    () -> new TopHits(Hit.DOCUMENT_ORDER, window, false));
+            final List<Hit> queryResults = topHits.sortedHits();
+            final int queryResultCount = topHits.total;
+            result = new SearchResult(null, null, createTotal(queryResultCount, version),
+                    queryResults.subList(Math.min(from, queryResults.size()), Math.min(window, queryResults.size())),
+                    documentName, null, null, null);
+        } catch (RuntimeException | Error e) {
+            Snapshot.release(snapshot);
+            throw e;
+        }
+        sendSearchResult(result.retaining(snapshot), response);
+    }
+
+    /**
+     * Vérifie les paramètres <code>from</code> et <code>size</code> d'une
+     * recherche avec les mêmes règles qu'Elasticsearch.
+     *
+     * @param from Position du premier résultat.
+     * @param size Nombre de résultats par page.
+     * @param scroll <code>true</code> pour la première page d'un scroll.
+     * @param maxResultWindow Valeur de <code>index.max_result_window</code>.
+     * @return Nombre de résultats à conserver : from + size.
+     * @throws IllegalArgumentException Si un paramètre est négatif ou si la
+     * fenêtre de résultats dépasse la limite.
+     */
+    private static int resultWindow(int from, int size, boolean scroll, int maxResultWindow) {
+        if (from < 0) {
+            throw new IllegalArgumentException("[from] parameter cannot be negative");
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("[size] parameter cannot be negative, found [" + size + "]");
+        }
+        final long window = (long) from + size;
+        if (scroll && size > maxResultWindow) {
+            throw new IllegalArgumentException("Batch size is too large, size must be less than or equal to: [" + maxResultWindow + "] but was [" + size + "]. "
+                    + "Scroll batch sizes cost as much memory as result windows so they are controlled by the [" + MAX_RESULT_WINDOW_SETTING + "] index level setting.");
+        }
+        if ((!scroll && window > maxResultWindow) || window > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Result window is too large, from + size must be less than or equal to: [" + maxResultWindow + "] but was [" + window + "]. "
+                    + "See the scroll api for a more efficient way to request large data sets. "
+                    + "This limit can be set by changing the [" + MAX_RESULT_WINDOW_SETTING + "] index level setting.");
+        }
+        return (int) window;
+    }
+
+    private SearchResult searchInIndexes(final Index[] searchedIndexes, final String docType, final String requestBody, final Map<String, String> queryParameters) {
+        ParsedSearch search = searchRequests.get(requestBody);
+        if (search == null) {
+            search = new ParsedSearch(gson.fromJson(requestBody, Map.class));
+            searchRequests.put(requestBody, search);
+        }
+        return searchInIndexes(searchedIndexes, docType, search, queryParameters);
+    }
+
+    private SearchResult searchInIndexes(final Index[] searchedIndexes, final String docType, final Map<String, Object> searchRequest, final Map<String, String> queryParameters) {
+        return searchInIndexes(searchedIndexes, docType, new ParsedSearch(searchRequest), queryParameters);
+    }
+
+    private SearchResult searchInIndexes(final Index[] searchedIndexes, final String docType, final ParsedSearch search, final Map<String, String> queryParameters) {
+        // Un point-in-time donne les instantanés à interroger.
+        final Map<String, Object> pit = (Map<String, Object>) search.request.get("pit");
+        final String pitId;
+        final Snapshot[] indexes;
+        if (pit != null) {
+            pitId = (String) pit.get("id");
+            final PointInTime pointInTime = pitId != null ? pointInTimes.get(pitId) : null;
+            if (pointInTime == null || pointInTime.isExpired(System.currentTimeMillis())) {
+                throw new IllegalArgumentException("No search context found for id [" + pitId + "]");
+            }
+            final Object keepAlive = pit.get("keep_alive");
+            if (keepAlive != null) {
+                pointInTime.setKeepAlive(parseTimeValue((String) keepAlive, "keep_alive"));
+            }
+            if (!pointInTime.retain()) {
+                throw new IllegalArgumentException("No search context found for id [" + pitId + "]");
+            }
+            indexes = pointInTime.indexes;
+        } else {
+            pitId = null;
+            indexes = new Snapshot[searchedIndexes.length];
+            for (int shard = 0; shard < indexes.length; shard++) {
+                indexes[shard] = searchedIndexes[shard].acquireSnapshot();
+            }
+        }
+        // Les instantanés restent retenus jusqu'à l'écriture de la réponse.
+        try {
+            return searchInSnapshots(indexes, pitId, docType, search, queryParameters).retaining(indexes);
+        } catch (RuntimeException | Error e) {
+            Snapshot.release(indexes);
+            throw e;
+        }
+    }
+
+    private SearchResult searchInSnapshots(final Snapshot[] indexes, final String pitId, final String docType, final ParsedSearch search, final Map<String, String> queryParameters) {
+        final Map<String, Object> searchRequest = search.request;
+        final boolean pit = pitId != null;
+
+        final int from = ((Number) searchRequest.getOrDefault("from", 0)).intValue();
+        final int size = ((Number) searchRequest.getOrDefault("size", 10)).intValue();
+        final String scrollDuration = queryParameters.get("scroll");
+        final Map<String, Object> aggregations = (Map<String, Object>)searchRequest.getOrDefault("aggregations", (Map<String, Object>)searchRequest.getOrDefault("aggs", Collections.emptyMap()));
+
+        final List<Object> searchAfter = (List<Object>) searchRequest.get("search_after");
+        if (searchAfter != null && scrollDuration != null) {
+            throw new IllegalArgumentException("`search_after` cannot be used in a scroll context.");
+        }
+        if (searchAfter != null && from > 0) {
+            throw new IllegalArgumentException("`from` parameter must be set to 0 when `search_after` is used.");
+        }
+        final int window = resultWindow(from, size, scrollDuration != null, Arrays.stream(indexes)
+                .mapToInt(index -> index.index.maxResultWindow())
+                .min()
+                .orElse(DEFAULT_MAX_RESULT_WINDOW));
+        final Map<String, Object> sliceRequest = (Map<String, Object>) searchRequest.get("slice");
+        if (sliceRequest != null && !pit && scrollDuration == null) {
+            throw new IllegalArgumentException("[slice] can only be used with [scroll] or [point-in-time] requests");
+        }
+        final Slice slice = sliceRequest != null ? new Slice(sliceRequest, pit) : null;
+
+        // Une recherche sans résultat peut être lue depuis le cache du
+        // premier index tant qu'aucun des index interrogés n'a été modifié :
+        // la clé donne la génération et la version des mappings de chacun.
+        List<Object> requestCacheKey = null;
+        if (search.requestKey != null
+                && indexes.length > 0
+                && scrollDuration == null
+                && !"false".equals(queryParameters.get("request_cache"))
+                && Arrays.stream(indexes).allMatch(index -> index.index.isRequestCacheEnabled())) {
+            requestCacheKey = new ArrayList<>(3 * indexes.length + 1);
+            for (final Snapshot index : indexes) {
+                requestCacheKey.add(index.name);
+                requestCacheKey.add(index.writeGeneration);
+                requestCacheKey.add(index.mappingVersion);
+            }
+            requestCacheKey.add(search.requestKey);
+        }
+        if (requestCacheKey != null) {
+            final CachedResponse cachedResponse = indexes[0].index.requestCache.get(requestCacheKey);
+            if (cachedResponse != null) {
+                return new SearchResult(pitId, null, createTotal(cachedResponse.total, version), Collections.emptyList(), docType, null, cachedResponse.aggregations(), 200);
+            }
+        }
+
+        // Tri des résultats. Une recherche dans un point-in-time est
+        // départagée par la position des documents pour pouvoir être
+        // reprise avec search_after.
+        final List<Map<String, Map<String, String>>> sort = (List<Map<String, Map<String, String>>>) searchRequest.get("sort");
+        final HitSort hitSort = sort != null || pit || searchAfter != null
+                ? new HitSort(sort, indexes, pit)
+                : null;
+        final Comparator<Hit> order = hitSort != null ? hitSort : Hit.SCORE_ORDER;
+        final Object[] after = searchAfter != null ? hitSort.parseSearchAfter(searchAfter) : null;
+
+        // Sans total ni agrégation, un tri sur un seul champ parcourt les
+        // documents dans l'ordre de ses valeurs à partir de search_after et
+        // s'arrête dès que la page est remplie.
+        final boolean trackTotalHits = !Boolean.FALSE.equals(searchRequest.get("track_total_hits"));
+        final boolean seek = hitSort != null && hitSort.isSeekable()
+                && !trackTotalHits
+                && aggregations.isEmpty()
+                && scrollDuration == null;
+
+        // Un scroll a besoin de tous les résultats triés, sinon seuls les
+        // from + size premiers sont conservés.
+        final int capacity = scrollDuration != null ? -1 : window;
+
+        // Les agrégations qui n'ont pas besoin de la liste des documents
+        // trouvés sont calculées segment par segment puis fusionnées.
+        final LinkedHashMap<String, Aggregation> parsedAggregations = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> aggregation : aggregations.entrySet()) {
+            parsedAggregations.put(aggregation.getKey(), parseAggregation((Map<String, Map<String, Object>>) aggregation.getValue()));
+        }
+        final boolean collected = parsedAggregations.values().stream().allMatch(CollectedAggregation.class::isInstance);
+        final boolean keepAll = !aggregations.isEmpty() && !collected;
+        final List<CollectedAggregation> collectedAggregations = collected
+                ? parsedAggregations.values().stream().map(CollectedAggregation.class::cast).collect(Collectors.toList())
+                : Collections.emptyList();
+        final Supplier<TopHits> collectors = () -> new TopHits(order, capacity, keepAll,
+                after != null ? hit -> hitSort.compareToSearchAfter(hit, after) > 0 : null,
+                collectedAggregations);
+
+        // Recherche simultanée dans chaque index.
+        final Map<String, Map<String, Object>> query = (Map<String, Map<String, Object>>) searchRequest.get("query");
+        final List<ForkJoinTask<TopHits>> searches = new ArrayList<>(indexes.length);
+        for (int shard = 0; shard < indexes.length; shard++) {
+            final Snapshot index = indexes[shard];
+            final int parallelism = index.index.parallelism();
+            final int indexShard = shard;
+            final Callable<TopHits> indexSearch = () -> {
+                Query parsedQuery = search.query == null
+                        ? NO_QUERY
+                        : queryPlan(search, index).bind(index);
+                if (slice != null) {
+                    parsedQuery = slice.filter(index, parsedQuery);
+                }
+                if (seek) {
+                    final TopHits topHits = new TopHits(order, capacity, false);
+                    hitSort.seek(index, indexShard, parsedQuery, after, topHits);
+                    return topHits;
+                }
+                return index.search(parsedQuery, indexShard, parallelism, collectors);
+            };
+            searches.add(indexes.length > 1 ? SEARCH_POOL.submit(indexSearch) : ForkJoinTask.adapt(indexSearch));
+        }
+        final List<TopHits> indexHits = new ArrayList<>(indexes.length);
+        for (final ForkJoinTask<TopHits> task : searches) {
+            indexHits.add(indexes.length > 1 ? task.join() : task.invoke());
+        }
+
+        int queryResultCount = 0;
+        final List<List<Hit>> sortedIndexHits = new ArrayList<>(indexHits.size());
+        final List<Hit> allHits = new ArrayList<>();
+        AggregationCollector[] aggregationCollectors = null;
+        for (final TopHits hits : indexHits) {
+            queryResultCount += hits.total;
+            sortedIndexHits.add(hits.sortedHits());
+            if (keepAll) {
+                allHits.addAll(hits.allHits);
+            } else if (aggregationCollectors == null) {
+                aggregationCollectors = hits.aggregations;
+            } else {
+                for (int index = 0; index < aggregationCollectors.length; index++) {
+                    aggregationCollectors[index].merge(hits.aggregations[index]);
+                }
+            }
+        }
+        final List<Hit> queryResults = TopHits.mergeSorted(sortedIndexHits, order, capacity);
+
+        final HashMap<String, Object> aggregationResult = !aggregations.isEmpty() ? new HashMap<>() : null;
+        int aggregationIndex = 0;
+        for (Map.Entry<String, Aggregation> aggregation : parsedAggregations.entrySet()) {
+            aggregationResult.put(aggregation.getKey(), keepAll
+                    ? aggregation.getValue().aggregate(allHits)
+                    : aggregationCollectors != null
+                            ? aggregationCollectors[aggregationIndex].result()
+                            : aggregation.getValue().aggregate(Collections.emptyList()));
+            aggregationIndex++;
+        }
+        if (requestCacheKey != null) {
+            indexes[0].index.requestCache.put(requestCacheKey, new CachedResponse(
+                    queryResultCount,
+                    aggregationResult != null ? gson.toJson(aggregationResult) : null,
+                    requestCacheKey));
+        }
+
+        // Surlignage et filtrage de la source, appliqués à chaque page, y
+        // compris aux pages suivantes d'un scroll.
+        final Map<String, Object> highlight = (Map<String, Object>) searchRequest.get("highlight");
+        final Highlighter highlighter = highlight != null && query != null && indexes.length > 0
+                ? createHighlighter(highlight, query, indexes[0])
+                : null;
+        final Function<JsonObject, JsonObject> sourceMapper = parseSourceMapper(searchRequest.get("_source"));
+
+        // Scroll.
+        final String scrollId = startScroll(scrollDuration, queryResults, docType, from, size, hitSort, sourceMapper, highlighter);
+
+        // Pagination.
+        final SearchResult result = new SearchResult(pitId, scrollId, seek ? null : createTotal(queryResultCount, version),
+                queryResults.subList(Math.min(from, queryResults.size()), Math.min(window, queryResults.size())),
+                docType, hitSort, aggregationResult, 200);
+        if (highlighter != null) {
+            highlight(result, highlighter, indexes[0].index.parallelism());
+        }
+        result.sourceMapper = sourceMapper;
+        return result;
+    }
+
+    /**
+     * Crée le surlignage demandé par une recherche.
+     *
+     * @param highlight Paramètres du surlignage.
+     * @param query Requête de la recherche.
+     * @param index Instantané dont les mappings donnent les champs
+     * correspondant aux motifs.
+     * @return Le surlignage des résultats.
+     */
+    private static Highlighter createHighlighter(final Map<String, Object> highlight, final Map<String, Map<String, Object>> query, final Snapshot index) {
+        final Map<String, Object> fieldsEntry = (Map<String, Object>) highlight.getOrDefault("fields", Collections.emptyMap());
+        Set<String> fields = Optional.ofNullable(fieldsEntry)
+                .map(entry -> entry.keySet().stream()
+                    .flatMap(field -> {
+                        if (field.contains("*") || field.contains("?")) {
+                            final Pattern pattern = Pattern.compile(globToPatternString(field));
+                            return Stream.concat(
+                                    index.mappings.keySet().stream()
+                                            .filter(name -> pattern.matcher(name).matches()),
+                                    index.copyToFields.keySet().stream()
+                                            .filter(name -> pattern.matcher(name).matches()));
+                        } else {
+                            return Stream.of(field);
+                        }
+                    })
+                    .collect(Collectors.toSet())
+                )
+                .orElse(Collections.emptySet());
+
+        // TODO: Supporter le surlignage dans plusieurs index.
+        return parseHighlighter(fields, query, index);
+    }
+
+    /**
+     * Surligne les résultats d'une page.
+     *
+     * @param result Page de résultats.
+     * @param highlighter Surlignage à appliquer.
+     * @param parallelism Nombre de tâches pouvant surligner en même temps.
+     */
+    private static void highlight(final SearchResult result, final Highlighter highlighter, final int parallelism) {
+        final List<Hit> results = result.hits;
+        // Chaque tâche ne remplace que l'élément de son résultat.
+        final List<Map<String, List<String>>> highlights = new ArrayList<>(Collections.nCopies(results.size(), (Map<String, List<String>>) null));
+        final IntConsumer highlightHit = position -> {
+            final HashMap<String, List<String>> highlighted = new HashMap<>();
+            mergeLists(highlighted, highlighter.highlight(results.get(position).source()));
+            highlights.set(position, highlighted);
+        };
+        if (parallelism > 1 && results.size() > 1) {
+            SEARCH_POOL.submit(() -> IntStream.range(0, results.size()).parallel().forEach(highlightHit)).join();
+        } else {
+            IntStream.range(0, results.size()).forEach(highlightHit);
+        }
+        result.highlights = highlights;
+    }
+
+    private static SearchResponse<JsonObject> createSearchResponse(final String pitId, final String scrollId, final SearchResponseHitsTotal total, final List<SearchResponseHit<JsonObject>> results, final Map<String, Object> aggregations) {
+        final SearchResponseHits<JsonObject> hits = new SearchResponseHits<>(total, 1, results);
+        return pitId != null
+                ? new PointInTimeSearchResponse(pitId, scrollId, hits, aggregations)
+                : new SearchResponse<>(42, false, scrollId, new Shards(1, 1, 0, 0), hits, null, 200, aggregations);
+    }
+
+    /**
+     * Ouvre un point-in-time sur les index donnés.
+     *
+     * @param searchedIndexes Index à figer.
+     * @param keepAlive Durée de vie du point-in-time, comme <code>1m</code>.
+     * @return Identifiant du point-in-time.
+     */
+    private String openPointInTime(final Index[] searchedIndexes, final String keepAlive) {
+        if (keepAlive == null) {
+            throw new IllegalArgumentException("[keep_alive] is required");
+        }
+        final long duration = parseTimeValue(keepAlive, "keep_alive");
+        final Snapshot[] snapshots = new Snapshot[searchedIndexes.length];
+        for (int shard = 0; shard < snapshots.length; shard++) {
+            snapshots[shard] = searchedIndexes[shard].acquireSnapshot();
+        }
+        final String id = Base64.getUrlEncoder().withoutPadding().encodeToString(generateIdentifier().getBytes(StandardCharsets.US_ASCII));
+        startReaper();
+        pointInTimes.put(id, new PointInTime(snapshots, duration));
+        return id;
+    }
+
+    private String startScroll(final String scrollDuration, final List<Hit> queryResults, final String docType, final int from, final int size,
+            final HitSort sort, final Function<JsonObject, JsonObject> sourceMapper, final Highlighter highlighter) {
+        if (scrollDuration == null) {
+            return null;
+        }
+        final long keepAlive = parseTimeValue(scrollDuration, "scroll");
+        final String node = generateIdentifier();
+        final String scrollId = encodeScrollId(node);
+        registerScroll(node, new Scroll(scrollId, docType, size, keepAlive, queryResults, from + size, sort, sourceMapper, highlighter));
+        return scrollId;
+    }
+
+    private void registerScroll(final String node, final Scroll scroll) {
+        if (scroll.weight > scrollMemoryLimit) {
+            scroll.release();
+            throw new IllegalStateException("Trying to create a scroll of [" + scroll.weight + "] bytes, over the scroll memory limit of [" + scrollMemoryLimit + "] bytes");
+        }
+        startReaper();
+        scrolls.put(node, scroll);
+    }
+
+    private void startReaper() {
+        if (reaperStarted.compareAndSet(false, true)) {
+            reapExpiredContexts(new WeakReference<>(this));
+        }
+    }
+
+    /**
+     * Retire les scrolls et les point-in-time expirés puis planifie le
+     * prochain retrait, tant que l'instance existe.
+     *
+     * @param reference Instance dont les contextes sont retirés.
+     */
+    private static void reapExpiredContexts(final WeakReference<Notela> reference) {
+        final Notela notela = reference.get();
+        if (notela == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        notela.scrolls.removeIf(scroll -> scroll.isExpired(now));
+        notela.pointInTimes.removeIf(pointInTime -> pointInTime.isExpired(now));
+        SEARCH_CONTEXT_REAPER.schedule(() -> reapExpiredContexts(reference), SEARCH_CONTEXT_REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Lit une durée au format d'Elasticsearch.
+     *
+     * @param value Durée, comme <code>5m</code> ou <code>30s</code>.
+     * @param settingName Nom du paramètre, pour le message d'erreur.
+     * @return La durée en millisecondes.
+     * @throws IllegalArgumentException Si l'unité est absente ou inconnue.
+     */
+    private static long parseTimeValue(final String value, final String settingName) {
+        final Matcher matcher = TIME_VALUE.matcher(value.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("failed to parse setting [" + settingName + "] with value [" + value + "] as a time value: unit is missing or unrecognized");
+        }
+        final long amount = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "nanos":
+                return TimeUnit.NANOSECONDS.toMillis(amount);
+            case "micros":
+                return TimeUnit.MICROSECONDS.toMillis(amount);
+            case "ms":
+                return amount;
+            case "s":
+                return TimeUnit.SECONDS.toMillis(amount);
+            case "m":
+                return TimeUnit.MINUTES.toMillis(amount);
+            case "h":
+                return TimeUnit.HOURS.toMillis(amount);
+            default:
+                return TimeUnit.DAYS.toMillis(amount);
+        }
+    }
+
+    private void continueScroll(HttpRequest request, HttpResponse response) throws IOException {
+        final Map<String, String> body = gson.fromJson(request.getContent(), Map.class);
+        final String scrollId = body.get("scroll_id");
+        if (scrollId == null) {
+            response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"action_request_validation_exception\",\"reason\":\"Validation Failed: 1: scrollId is missing;\"}],\"type\":\"action_request_validation_exception\",\"reason\":\"Validation Failed: 1: scrollId is missing;\"},\"status\":400}");
+            return;
+        }
+        final String node = decodeScrollId(scrollId);
+        final Scroll scroll = scrolls.get(node);
+        if (scroll == null || scroll.isExpired(System.currentTimeMillis())) {
+            response.setContent("{\"error\":{\"root_cause\":[{\"type\":\"illegal_state_exception\",\"reason\":\"node [" + node + "] is not available\"}],\"type\":\"search_phase_execution_exception\",\"reason\":\"all shards failed\",\"phase\":\"query\",\"grouped\":true,\"failed_shards\":[{\"shard\":-1,\"index\":null,\"reason\":{\"type\":\"illegal_state_exception\",\"reason\":\"node [" + node + "] is not available\"}}]},\"status\":500}");
+            return;
+        }
+        final String keepAlive = body.get("scroll");
+        if (keepAlive != null) {
+            scroll.setKeepAlive(parseTimeValue(keepAlive, "scroll"));
+        }
+        sendSearchResult(scroll.nextPage(version), response);
+    }
+
+    private String parseQueryParameters(String target, Map<String, String> queryParameters) throws UnsupportedEncodingException {
+        final int queryStart = target.indexOf('?');
+        if (queryStart < 0) {
+            return target;
+        }
+        final String queryString = target.substring(queryStart + 1);
+        for (String parameter : queryString.split("&")) {
+            final String[] keyAndValue = parameter.split("=");
+            queryParameters.put(keyAndValue[0], URLDecoder.decode(keyAndValue[1], "utf-8"));
+        }
+        return target.substring(0, queryStart);
+    }
+
+    private String trimTarget(String target) {
+        if (target.charAt(0) == '/') {
+            target = target.substring(1);
+        }
+        if (target.charAt(target.length() - 1) == '/') {
+            target = target.substring(0, target.length() - 1);
+        }
+        return target;
+    }
+
+    private String generateIdentifier() {
+        final StringBuilder builder = new StringBuilder();
+        final char[] characters = new char[]{
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-'};
+        for (int index = 0; index < 20; index++) {
+            builder.append(characters[(int) (Math.random() * characters.length)]);
+        }
+        return builder.toString();
+    }
+
+    private String encodeScrollId(String identifier) {
+        return Base64.getEncoder().encodeToString(("queryAndFetch\u0001\u0000\u0000\u0000\u0000\u0000\u0000\u0000>\u0016" + identifier).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String decodeScrollId(String scrollId) {
+        final String decodedId = new String(Base64.getDecoder().decode(scrollId), StandardCharsets.US_ASCII);
+        return decodedId.substring(23);
+    }
+
+    /**
+     * Traite les requêtes <code>/_snapshot</code> : déclaration des dépôts
+     * de type <code>fs</code>, création, lecture, suppression et
+     * restauration des snapshots. Un snapshot est écrit dans le dossier
+     * <code>location/nom du snapshot</code>.
+     */
+    private void handleSnapshotRequest(String method, String target, Map<String, String> queryParameters, HttpRequest request, HttpResponse response) throws IOException {
+        final String[] parts = trimTarget(target).split("/");
+        final String repositoryName = parts[1];
+        final Path location = snapshotRepositories.get(repositoryName);
+        if (parts.length == 2 && "PUT".equals(method)) {
+            final Map<String, Object> body = gson.fromJson(request.getContent(), Map.class);
+            if (body == null || !"fs".equals(body.get("type"))) {
+                throw new IllegalArgumentException("repository type [" + (body != null ? body.get("type") : null) + "] does not exist");
+            }
+            final Map<String, Object> settings = (Map<String, Object>) body.get("settings");
+            final Object directory = settings != null ? settings.get("location") : null;
+            if (!(directory instanceof String)) {
+                throw new IllegalArgumentException("[" + repositoryName + "] missing location");
+            }
+            createSnapshotRepository(repositoryName, Paths.get((String) directory));
+            response.setContent("{\"acknowledged\":true}");
+            return;
+        }
+        if (location == null) {
+            sendError(404, new NoSuchFileException("[" + repositoryName + "] missing"), response);
+            return;
+        }
+        if (parts.length == 2) {
+            if ("GET".equals(method)) {
+                response.setContent(gson.toJson(map(repositoryName, map("type", "fs", "settings", map("location", location.toString())))));
+            } else if ("DELETE".equals(method)) {
+                snapshotRepositories.remove(repositoryName);
+                response.setContent("{\"acknowledged\":true}");
+            }
+            return;
+        }
+        final String snapshotName = parts[2];
+        final Path directory = location.resolve(snapshotName);
+        final Map<String, Object> body = request.getContent() != null && !request.getContent().isEmpty()
+                ? gson.fromJson(request.getContent(), Map.class)
+                : null;
+        final boolean waitForCompletion = Boolean.parseBoolean(queryParameters.getOrDefault("wait_for_completion", "false"));
+        try {
+            if (parts.length == 4 && "_restore".equals(parts[3]) && "POST".equals(method)) {
+                final List<String> indexNames = snapshotIndexNames(body);
+                final Object pattern = body != null ? body.get("rename_pattern") : null;
+                final Object replacement = body != null ? body.get("rename_replacement") : null;
+                final Function<String, String> rename = pattern instanceof String && replacement instanceof String
+                        ? name -> name.replaceAll((String) pattern, (String) replacement)
+                        : Function.identity();
+                final List<String> restored = restore(directory, indexNames, rename);
+                response.setContent(waitForCompletion
+                        ? gson.toJson(map("snapshot", map("snapshot", snapshotName, "indices", restored, "shards", map("total", restored.size(), "failed", 0, "successful", restored.size()))))
+                        : "{\"accepted\":true}");
+            } else if (parts.length == 3 && ("PUT".equals(method) || "POST".equals(method))) {
+                if (Files.exists(directory.resolve(SNAPSHOT_INFO_FILE))) {
+                    throw new IllegalArgumentException("[" + repositoryName + ":" + snapshotName + "] Invalid snapshot name [" + snapshotName + "], snapshot with the same name already exists");
+                }
+                final List<String> indexNames = snapshotIndexNames(body);
+                final Map<String, Object> info = snapshot(directory, indexNames.toArray(new String[0]));
+                response.setContent(waitForCompletion ? gson.toJson(map("snapshot", info)) : "{\"accepted\":true}");
+            } else if (parts.length == 3 && "GET".equals(method)) {
+                final List<Map<String, Object>> snapshots = new ArrayList<>();
+                if ("_all".equals(snapshotName) || "*".equals(snapshotName)) {
+                    if (Files.isDirectory(location)) {
+                        try (final Stream<Path> directories = Files.list(location)) {
+                            for (final Path candidate : directories.sorted().collect(Collectors.toList())) {
+                                if (Files.isRegularFile(candidate.resolve(SNAPSHOT_INFO_FILE))) {
+                                    snapshots.add(readSnapshotInfo(candidate));
+                                }
+                            }
+                        }
+                    }
+                } else {
+                    snapshots.add(readSnapshotInfo(directory));
+                }
+                response.setContent(gson.toJson(map("snapshots", snapshots)));
+            } else if (parts.length == 3 && "DELETE".equals(method)) {
+                readSnapshotInfo(directory);
+                try (final Stream<Path> files = Files.walk(directory)) {
+                    for (final Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                        Files.delete(file);
+                    }
+                }
+                response.setContent("{\"acknowledged\":true}");
+            }
+        } catch (NoSuchFileException e) {
+            sendError(404, new NoSuchFileException("[" + repositoryName + ":" + snapshotName + "] is missing"), response);
+        }
+    }
+
+    private static List<String> snapshotIndexNames(Map<String, Object> body) {
+        final Object indices = body != null ? body.get("indices") : null;
+        if (indices instanceof String) {
+            return Arrays.asList(((String) indices).split(","));
+        } else if (indices instanceof List) {
+            return (List<String>) indices;
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Écrit la réponse d'une recherche dans un seul tampon, sans créer les
+     * objets de la réponse.
+     *
+     * @param result Résultat de la recherche.
+     * @param response Réponse HTTP.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    private void sendSearchResult(SearchResult result, HttpResponse response) throws IOException {
+        final StringWriter output = new StringWriter();
+        result.write(gson.newJsonWriter(output), gson);
+        response.setContent(output.toString());
+    }
+
+    /**
+     * Recopie le JSON stocké d'un document dans une réponse. Les caractères
+     * que GSON échappe pour le HTML le sont aussi ici : la réponse ne
+     * dépend pas du mode de stockage des sources.
+     *
+     * @param out Destination du JSON.
+     * @param source Octets UTF-8 du JSON, écrit par <code>toString</code>.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    private static void writeStoredSource(JsonWriter out, byte[] source) throws IOException {
+        final String json = new String(source, StandardCharsets.UTF_8);
+        if (!out.isHtmlSafe()) {
+            out.jsonValue(json);
+            return;
+        }
+        // Ces caractères ne peuvent apparaître que dans des chaînes.
+        StringBuilder escaped = null;
+        int start = 0;
+        for (int index = 0; index < json.length(); index++) {
+            final char c = json.charAt(index);
+            if (c == '<' || c == '>' || c == '&' || c == '=' || c == '\'') {
+                if (escaped == null) {
+                    escaped = new StringBuilder(json.length() + 16);
+                }
+                escaped.append(json, start, index).append("\\u00")
+                        .append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                start = index + 1;
+            }
+        }
+        out.jsonValue(escaped != null ? escaped.append(json, start, json.length()).toString() : json);
+    }
+
+    /**
+     * Renvoi une erreur en JSON contenant le message de l'exception donnée.
+     *
+     * @param statusCode Code d'état HTTP.
+     * @param e Exception arrivée pendant le traitement.
+     * @param response Réponse HTTP où écrire.
+     */
+    private void sendError(int statusCode, Exception e, HttpResponse response) {
+        final HashMap<String, Object> content = new HashMap<>();
+        final HashMap<String, Object> error = new HashMap<>();
+        if (e instanceof IllegalArgumentException) {
+            final HashMap<String, Object> rootCause = new HashMap<>();
+            rootCause.put("type", "illegal_argument_exception");
+            rootCause.put("reason", e.getMessage());
+            error.put("root_cause", Collections.singletonList(rootCause));
+            error.put("type", "illegal_argument_exception");
+        }
+        error.put("reason", e.getMessage());
+        content.put("status", statusCode);
+        content.put("error", error);
+        response.setStatusCode(statusCode);
+        response.setContent(gson.toJson(content));
+    }
+
+    private static SearchResponseHitsTotal createTotal(final long total, VersionNumber version) {
+        if (version.getMajorVersionNumber() >= 7) {
+            return new RelationSearchResponseHitsTotal(total, SearchResponseHitsTotalRelation.EQ);
+        } else {
+            return new LongSearchResponseHitsTotal(total);
+        }
+    }
+
+    /**
+     * Donne le plan de la requête d'une recherche pour l'instantané donné,
+     * depuis le cache si la même requête ou une requête de même forme a déjà
+     * été compilée pour les mêmes mappings.
+     *
+     * @param search Recherche.
+     * @param index Instantané interrogé.
+     * @return Le plan de la requête.
+     */
+    private QueryPlan queryPlan(ParsedSearch search, Snapshot index) {
+        final List<Object> planKey = Arrays.asList(index.name, index.mappingVersion, search.shape, search.parameterValues);
+        QueryPlan plan = queryPlans.get(planKey);
+        if (plan == null) {
+            final List<Object> templateKey = Arrays.asList(index.name, index.mappingVersion, search.shape);
+            QueryTemplate template = queryTemplates.get(templateKey);
+            if (template == null) {
+                template = compileQuery(search.query, index);
+                queryTemplates.put(templateKey, template);
+            }
+            plan = template.plan(search.parameters);
+            queryPlans.put(planKey, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Remplace les valeurs littérales d'une requête par des
+     * <code>Parameter</code> : deux requêtes ne différant que par ces
+     * valeurs ont la même forme. Les clés sont parcourues dans l'ordre
+     * alphabétique pour que les paramètres soient numérotés de la même façon
+     * quel que soit l'ordre des clés de la requête.
+     *
+     * @param query Requête.
+     * @param parameters Valeurs des paramètres, complétées dans l'ordre de
+     * leurs positions.
+     * @return La forme de la requête.
+     */
+    private static Map<String, Map<String, Object>> parameterize(Map<String, Map<String, Object>> query, List<Object> parameters) {
+        final Map.Entry<String, Map<String, Object>> entry = query.entrySet().iterator().next();
+        final Map<String, Object> clause = entry.getValue();
+        if (!(clause instanceof Map)) {
+            return query;
+        }
+        final TreeMap<String, Object> result = new TreeMap<>(clause);
+        switch (entry.getKey()) {
+            case "bool":
+                for (final Map.Entry<String, Object> occurrence : result.entrySet()) {
+                    if (occurrence.getValue() instanceof List) {
+                        occurrence.setValue(((List<Map<String, Map<String, Object>>>) occurrence.getValue()).stream()
+                                .map(subQuery -> parameterize(subQuery, parameters))
+                                .collect(Collectors.toList()));
+                    }
+                }
+                break;
+            case "nested":
+                if (result.get("query") instanceof Map) {
+                    result.put("query", parameterize((Map<String, Map<String, Object>>) result.get("query"), parameters));
+                }
+                break;
+            case "match":
+                parameterizeFields(result, parameters, "query");
+                break;
+            case "wildcard":
+                parameterizeFields(result, parameters, "value");
+                break;
+            case "term":
+                parameterizeFields(result, parameters, "value", "boost");
+                break;
+            case "terms":
+                for (final Map.Entry<String, Object> field : result.entrySet()) {
+                    field.setValue(new Parameter(parameters, field.getValue()));
+                }
+                break;
+            case "range":
+                parameterizeFields(result, parameters, "gte", "gt", "lte", "lt");
+                break;
+            default:
+                // Requête non gérée : toutes ses valeurs font partie de sa
+                // forme.
+                break;
+        }
+        return Collections.singletonMap(entry.getKey(), result);
+    }
+
+    /**
+     * Remplace par des <code>Parameter</code> les valeurs des champs d'une
+     * clause, données directement ou sous les clés données.
+     */
+    private static void parameterizeFields(Map<String, Object> clause, List<Object> parameters, String... keys) {
+        for (final Map.Entry<String, Object> field : clause.entrySet()) {
+            if (field.getValue() instanceof Map) {
+                final TreeMap<String, Object> options = new TreeMap<>((Map<String, Object>) field.getValue());
+                for (final String key : keys) {
+                    if (options.containsKey(key)) {
+                        options.put(key, new Parameter(parameters, options.get(key)));
+                    }
+                }
+                field.setValue(options);
+            } else {
+                field.setValue(new Parameter(parameters, field.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Écrit la forme d'une requête en JSON, clés triées et paramètres
+     * remplacés par <code>?</code>.
+     */
+    private static void appendShape(StringBuilder shape, Object value) {
+        if (value instanceof Parameter) {
+            shape.append('?');
+        } else if (value instanceof Map) {
+            shape.append('{');
+            boolean first = true;
+            for (final Map.Entry<String, Object> entry : new TreeMap<>((Map<String, Object>) value).entrySet()) {
+                if (!first) {
+                    shape.append(',');
+                }
+                first = false;
+                appendShape(shape, entry.getKey());
+                shape.append(':');
+                appendShape(shape, entry.getValue());
+            }
+            shape.append('}');
+        } else if (value instanceof List) {
+            shape.append('[');
+            boolean first = true;
+            for (final Object element : (List<Object>) value) {
+                if (!first) {
+                    shape.append(',');
+                }
+                first = false;
+                appendShape(shape, element);
+            }
+            shape.append(']');
+        } else if (value instanceof String) {
+            shape.append(new JsonPrimitive((String) value));
+        } else {
+            shape.append(value);
+        }
+    }
+
+    /**
+     * Analyse une requête pour un seul instantané, sans passer par le cache
+     * des plans.
+     *
+     * @param query Requête.
+     * @param index Instantané interrogé.
+     * @return La requête prête à être exécutée sur cet instantané.
+     */
+    private static Query parseQuery(Map<String, Map<String, Object>> query, Snapshot index) {
+        return compileQuery(query, index).plan(NO_PARAMETERS).bind(index);
+    }
+
+    /**
+     * Compile une requête en modèle, à partir des mappings de l'index
+     * donné. Les valeurs de la requête peuvent être des
+     * <code>Parameter</code>, lus seulement à la création du plan.
+     *
+     * @param query Requête, avec ou sans paramètres.
+     * @param index Instantané dont les mappings, les champs "copy to" et
+     * l'analyseur sont utilisés.
+     * @return Le modèle de la requête.
+     */
+    private static QueryTemplate compileQuery(Map<String, Map<String, Object>> query, Snapshot index) {
+        final Map.Entry<String, Map<String, Object>> entry = query.entrySet().iterator().next();
+        switch (entry.getKey()) {
+            case "bool":
+                return createBoolQuery(entry.getValue(), index);
+            case "match":
+                return createMatchQuery(entry.getValue(), index);
+            case "wildcard":
+                return createWildcardQuery(entry.getValue(), index);
+            case "term":
+                return createTermQuery(entry.getValue(), index);
+            case "terms":
+                return createTermsQuery(entry.getValue(), index);
+            case "exists":
+                return createExistsQuery(entry.getValue(), index);
+            case "nested":
+                return createNestedQuery(entry.getValue(), index);
+            case "range":
+                return createRangeQuery(entry.getValue(), index);
+            default:
+                LOGGER.warn("Given query is unsupported: ", entry.getKey());
+                return NO_QUERY_TEMPLATE;
+        }
+    }
+
+    private static List<QueryTemplate> compileQueries(List<Map<String, Map<String, Object>>> queries, Snapshot index) {
+        return queries != null
+                ? queries.stream().map(query -> compileQuery(query, index)).collect(Collectors.toList())
+                : Collections.emptyList();
+    }
+
+    private static QueryTemplate createBoolQuery(final Map<String, Object> bool, final Snapshot index) {
+        final List<QueryTemplate> must = compileQueries((List<Map<String, Map<String, Object>>>) bool.get("must"), index);
+        final List<QueryTemplate> mustNot = compileQueries((List<Map<String, Map<String, Object>>>) bool.get("must_not"), index);
+        final List<QueryTemplate> should = compileQueries((List<Map<String, Map<String, Object>>>) bool.get("should"), index);
+
+        return parameters -> {
+            final List<QueryPlan> mustPlans = plan(must, parameters);
+            final List<QueryPlan> mustNotPlans = plan(mustNot, parameters);
+            final List<QueryPlan> shouldPlans = plan(should, parameters);
+            return snapshot -> {
+                final List<Query> mustQueries = bind(mustPlans, snapshot);
+                final List<Query> mustNotQueries = bind(mustNotPlans, snapshot);
+                final List<Query> shouldQueries = bind(shouldPlans, snapshot);
+                return new Query() {
+                    @Override
+                    public double rate(int ordinal, JsonObject object) {
+                        double score = shouldQueries.isEmpty() ? 1.0 : 0.0;
+                        for (final Query subQuery : mustQueries) {
+                            final double subScore = subQuery.rate(ordinal, object);
+                            if (subScore <= 0.0) {
+                                return 0.0;
+                            }
+                            score += subScore;
+                        }
+                        for (final Query subQuery : mustNotQueries) {
+                            final double subScore = subQuery.rate(ordinal, object);
+                            if (subScore > 0.0) {
+                                return 0.0;
+                            }
+                            score += subScore;
+                        }
+                        for (final Query subQuery : shouldQueries) {
+                            score += subQuery.rate(ordinal, object);
+                        }
+                        return score;
+                    }
+
+                    @Override
+                    public BitSet candidates(Snapshot searchedIndex) {
+                        if (!mustQueries.isEmpty()) {
+                            // Intersection des clauses must pouvant être restreintes.
+                            BitSet result = null;
+                            for (final Query subQuery : mustQueries) {
+                                final BitSet subCandidates = subQuery.candidates(searchedIndex);
+                                if (subCandidates != null) {
+                                    if (result == null) {
+                                        result = subCandidates;
+                                    } else {
+                                        result.and(subCandidates);
+                                    }
+                                }
+                            }
+                            return result;
+                        }
+                        if (shouldQueries.isEmpty()) {
+                            return null;
+                        }
+                        // Sans must, au moins une clause should doit correspondre.
+                        final BitSet result = new BitSet();
+                        for (final Query subQuery : shouldQueries) {
+                            final BitSet subCandidates = subQuery.candidates(searchedIndex);
+                            if (subCandidates == null) {
+                                return null;
+                            }
+                            result.or(subCandidates);
+                        }
+                        return result;
+                    }
+                };
+            };
+        };
+    }
+
+    private static QueryTemplate createMatchQuery(final Map<String, Object> match, final Snapshot index) {
+        final Map.Entry<String, Object> entry = match.entrySet().iterator().next();
+        final String path = entry.getKey();
+        final Object queryValue = entry.getValue() instanceof Map
+                ? ((Map<String, Object>) entry.getValue()).get("query")
+                : entry.getValue();
+        final Analyzer analyzer = index.analyzer;
+        final Collection<String> fields = index.resolveFields(path);
+        final boolean analyzed = fields.stream().allMatch(index::isAnalyzed);
+        final FieldPath fieldPath = index.fieldPath(path);
+
+        return parameters -> {
+            final Object value = parameter(queryValue, parameters);
+            final String queryString = value instanceof String ? (String) value : null;
+            final String[] query = queryString != null
+                    ? analyzer.analyze(queryString)
+                    : new String[0];
+            return snapshot -> {
+                // Listes de positions de chaque terme de la requête, par champ.
+                final PositionalIndex.Postings[][] postings = new PositionalIndex.Postings[query.length][];
+                if (analyzed) {
+                    for (int part = 0; part < query.length; part++) {
+                        final String term = query[part];
+                        postings[part] = fields.stream()
+                                .map(field -> snapshot.text.get(field, term))
+                                .filter(Objects::nonNull)
+                                .toArray(PositionalIndex.Postings[]::new);
+                    }
+                }
+                return new Query() {
+                    private final ToDoubleFunction<JsonPrimitive> ratePrimitive = this::ratePrimitive;
+
+                    @Override
+                    public double rate(int ordinal, JsonObject object) {
+                        if (queryString == null || queryString.isEmpty()) {
+                            return 0.0;
+                        }
+                        if (analyzed && snapshot.isDocumentAt(ordinal, object)) {
+                            return rateFromPostings(ordinal);
+                        }
+                        return fieldPath.sum(snapshot.source(ordinal, object), ratePrimitive);
+                    }
+
+                    private double ratePrimitive(JsonPrimitive primitive) {
+                        final String primitiveValue = analyzableValue(primitive);
+                        if (primitiveValue == null) {
+                            return 0.0;
+                        }
+                        final String[] fieldValues = analyzer.analyze(primitiveValue);
+
+                        double score = 0.0;
+                        double term = 1.0;
+                        for (final String part : query) {
+                            double distance = term;
+                            for (final String fieldValue : fieldValues) {
+                                if (fieldValue.equals(part)) {
+                                    score += distance;
+                                }
+                                distance = distance * 0.9;
+                            }
+                            term = term * 0.9;
+                        }
+                        return score;
+                    }
+
+                    /**
+                     * Calcule le même score qu'en parcourant le document, à
+                     * partir des positions enregistrées à l'indexation :
+                     * chaque occurrence vaut 0.9^(rang du terme dans la
+                     * requête + position).
+                     */
+                    private double rateFromPostings(int ordinal) {
+                        double score = 0.0;
+                        double term = 1.0;
+                        for (final PositionalIndex.Postings[] partPostings : postings) {
+                            for (final PositionalIndex.Postings fieldPostings : partPostings) {
+                                final int entry = fieldPostings.find(ordinal);
+                                if (entry < 0) {
+                                    continue;
+                                }
+                                final int end = fieldPostings.positionEnd(entry);
+                                for (int position = fieldPostings.positionStart(entry); position < end; position++) {
+                                    score += term * Math.pow(0.9, fieldPostings.positions.get(position));
+                                }
+                            }
+                            term = term * 0.9;
+                        }
+                        return score;
+                    }
+
+                    @Override
+                    public BitSet candidates(Snapshot searchedIndex) {
+                        if (searchedIndex != snapshot || !analyzed) {
+                            return null;
+                        }
+                        if (queryString == null || queryString.isEmpty()) {
+                            return new BitSet();
+                        }
+                        final BitSet result = new BitSet();
+                        for (final PositionalIndex.Postings[] partPostings : postings) {
+                            for (final PositionalIndex.Postings fieldPostings : partPostings) {
+                                fieldPostings.ordinals.addTo(result);
+                            }
+                        }
+                        return result;
+                    }
+                };
+            };
+        };
+    }
+
+    private static QueryTemplate createWildcardQuery(final Map<String, Object> wildcard, final Snapshot index) {
+        final Map.Entry<String, Object> entry = wildcard.entrySet().iterator().next();
+        final String path = entry.getKey();
+        final Object queryValue = entry.getValue() instanceof Map
+                ? ((Map<String, Object>) entry.getValue()).get("value")
+                : entry.getValue();
+        final FieldPath fieldPath = index.fieldPath(path);
+        return parameters -> {
+            final Object value = parameter(queryValue, parameters);
+            final String queryString = value instanceof String ? (String) value : "";
+            final Pattern pattern = Pattern.compile(globToPatternString(queryString));
+            final ToDoubleFunction<JsonPrimitive> ratePrimitive = primitive -> primitive.isString()
+                    && pattern.matcher(primitive.getAsString().toLowerCase()).matches() ? 1.0 : 0.0;
+            return snapshot -> (ordinal, object) -> fieldPath.sum(snapshot.source(ordinal, object), ratePrimitive);
+        };
+    }
+
+    private static QueryTemplate createTermQuery(final Map<String, Object> term, final Snapshot index) {
+        final Map.Entry<String, Object> entry = term.entrySet().iterator().next();
+        final Object queryValue;
+        final Object boostValue;
+        if (entry.getValue() instanceof Map) {
+            final Map<String, Object> value = (Map<String, Object>) entry.getValue();
+            queryValue = value.get("value");
+            boostValue = value.getOrDefault("boost", 1);
+        } else {
+            queryValue = entry.getValue();
+            boostValue = 1;
+        }
+        final String field = entry.getKey();
+        final FieldPath fieldPath = index.fieldPath(field);
+        return parameters -> {
+            final Object query = parameter(queryValue, parameters);
+            final double boost = ((Number) parameter(boostValue, parameters)).doubleValue();
+            final String queryAsString = stringValueFor(query);
+            return snapshot -> new Query() {
+                private final ToDoubleFunction<JsonPrimitive> ratePrimitive = this::ratePrimitive;
+
+                @Override
+                public double rate(int ordinal, JsonObject object) {
+                    if (query == null) {
+                        return 0.0;
+                    }
+                    return fieldPath.sum(snapshot.source(ordinal, object), ratePrimitive) * boost;
+                }
+
+                private double ratePrimitive(JsonPrimitive primitive) {
+                    final Object fieldValue = getPrimitiveValue(primitive);
+                    if (fieldValue.equals(query)) {
+                        return 1.0;
+                    } else if (stringValueFor(fieldValue).equals(queryAsString)) {
+                        return 0.8;
+                    } else {
+                        return 0.0;
+                    }
+                }
+
+                @Override
+                public BitSet candidates(Snapshot searchedIndex) {
+                    if (searchedIndex != snapshot) {
+                        return null;
+                    }
+                    if (query == null) {
+                        return new BitSet();
+                    }
+                    return snapshot.termCandidates(field, Collections.singleton(queryAsString));
+                }
+            };
+        };
+    }
+
+    private static QueryTemplate createTermsQuery(final Map<String, Object> terms, final Snapshot index) {
+        final Object boostValue = terms.get("boost");
+        final Map.Entry<String, Object> entry = terms.entrySet().stream()
+                .filter(term -> !"boost".equals(term.getKey()))
+                .findFirst()
+                .get();
+        final String field = entry.getKey();
+        final Object queriesValue = entry.getValue();
+        final FieldPath fieldPath = index.fieldPath(field);
+        return parameters -> {
+            final Object boostParameter = parameter(boostValue, parameters);
+            final double boost = boostParameter instanceof Number ? ((Number)boostParameter).doubleValue() : 1.0;
+            final List<Object> queries = Optional.ofNullable((List<Object>) parameter(queriesValue, parameters)).orElse(Collections.emptyList());
+            final List<String> stringQueries = queries.stream()
+                    .map(Notela::stringValueFor)
+                    .collect(Collectors.toList());
+            return snapshot -> new Query() {
+                private final ToDoubleFunction<JsonPrimitive> ratePrimitive = this::ratePrimitive;
+
+                @Override
+                public double rate(int ordinal, JsonObject object) {
+                    if (queries.isEmpty()) {
+                        return 0.0;
+                    }
+                    return fieldPath.sum(snapshot.source(ordinal, object), ratePrimitive) * boost;
+                }
+
+                private double ratePrimitive(JsonPrimitive primitive) {
+                    final Object fieldValue = getPrimitiveValue(primitive);
+                    double score = 0.0;
+                    for (int i = 0; i < queries.size(); i++) {
+                        final Object query = queries.get(i);
+                        final String queryAsString = stringQueries.get(i);
+                        if (fieldValue.equals(query)) {
+                            score += 1.0;
+                        } else if (stringValueFor(fieldValue).equals(queryAsString)) {
+                            score += 0.8;
+                        }
+                    }
+                    return score;
+                }
+
+                @Override
+                public BitSet candidates(Snapshot searchedIndex) {
+                    if (searchedIndex != snapshot) {
+                        return null;
+                    }
+                    return snapshot.termCandidates(field, stringQueries);
+                }
+            };
+        };
+    }
+
+    private static QueryTemplate createExistsQuery(final Map<String, Object> exists, final Snapshot index) {
+        final String path = (String)exists.get("field");
+        if (path == null) {
+            throw new IllegalArgumentException("[exists] requires 'field' field");
+        }
+        final FieldMapping mapping = index.mappings.get(path);
+        if (mapping != null && FieldMapping.TYPE_NESTED.equals(mapping.getType())) {
+            final Query query = (ordinal, object) -> 0.0;
+            return parameters -> snapshot -> query;
+        }
+        if (mapping == null) {
+            LOGGER.warn("Mapping for field '", path, "' of index '", index.name, "' has not been found, exists query may be incoherent with Elasticsearch.");
+        }
+        final FieldPath fieldPath = FieldPath.compile(path);
+        return parameters -> snapshot -> (ordinal, object) -> fieldPath.count(snapshot.source(ordinal, object));
+    }
+
+    private static QueryTemplate createNestedQuery(final Map<String, Object> nested, final Snapshot index) {
+        final String path = (String) nested.get("path");
+        if (path == null) {
+            throw new IllegalArgumentException("[nested] requires 'path' field");
+        }
+        final Map<String, Map<String, Object>> query = (Map<String, Map<String, Object>>) nested.get("query");
+        if (query == null) {
+            throw new IllegalArgumentException("[nested] requires 'query' field");
+        }
+        final FieldMapping mapping = index.mappings.get(path);
+        if (mapping != null) {
+            if (!FieldMapping.TYPE_NESTED.equals(mapping.getType())) {
+                throw new IllegalArgumentException("[nested] failed to find nested object under path [" + path + "]");
+            }
+        } else {
+            LOGGER.warn("Mapping for path '", path, "' of index '", index.name, "' has not been found missing, nested query may be incoherent with Elasticsearch.");
+        }
+        final Index nestedIndex = new Index(index.name, 0);
+        nestedIndex.mappings = new HashMap<>(index.mappings);
+        nestedIndex.mappings.put(path, FieldMapping.ofType("inside"));
+        final Snapshot nestedSnapshot = new Snapshot(nestedIndex);
+        final QueryTemplate template = compileQuery(query, nestedSnapshot);
+        return parameters -> {
+            final QueryPlan plan = template.plan(parameters);
+            return snapshot -> {
+                final Query nestedQuery = plan.bind(nestedSnapshot);
+                return new Query() {
+                    @Override
+                    public double rate(int ordinal, JsonObject object) {
+                        // Les documents imbriqués sont lus dans le document.
+                        return nestedQuery.rate(ordinal, snapshot.source(ordinal, object));
+                    }
+
+                    @Override
+                    public BitSet candidates(Snapshot index) {
+                        return nestedQuery.candidates(index);
+                    }
+                };
+            };
+        };
+    }
+
+    private static QueryTemplate createRangeQuery(final Map<String, Object> range, final Snapshot index) {
+        final Map.Entry<String, Object> entry = range.entrySet().iterator().next();
+        final Map<String, Object> bounds = ((Map<String, Object>) entry.getValue());
+        final Collection<String> fields = index.resolveFields(entry.getKey());
+        final String docValuesField = fields.size() == 1
+                ? fields.iterator().next()
+                : null;
+        final FieldPath fieldPath = index.fieldPath(entry.getKey());
+
+        return parameters -> {
+            final Object greaterThanOrEquals = parameter(bounds.get("gte"), parameters);
+            final Object greaterThan = parameter(bounds.get("gt"), parameters);
+            final Object lessThanOrEquals = parameter(bounds.get("lte"), parameters);
+            final Object lessThan = parameter(bounds.get("lt"), parameters);
+
+            // Bornes les plus restrictives, pour la recherche dans les valeurs triées.
+            double min = Double.NEGATIVE_INFINITY;
+            boolean minInclusive = true;
+            if (greaterThanOrEquals instanceof Number) {
+                min = ((Number) greaterThanOrEquals).doubleValue();
+            }
+            if (greaterThan instanceof Number && ((Number) greaterThan).doubleValue() >= min) {
+                min = ((Number) greaterThan).doubleValue();
+                minInclusive = false;
+            }
+            double max = Double.POSITIVE_INFINITY;
+            boolean maxInclusive = true;
+            if (lessThanOrEquals instanceof Number) {
+                max = ((Number) lessThanOrEquals).doubleValue();
+            }
+            if (lessThan instanceof Number && ((Number) lessThan).doubleValue() <= max) {
+                max = ((Number) lessThan).doubleValue();
+                maxInclusive = false;
+            }
+            final double lowerBound = min;
+            final boolean lowerBoundIncluded = minInclusive;
+            final double upperBound = max;
+            final boolean upperBoundIncluded = maxInclusive;
+
+            return snapshot -> {
+                final NumericDocValues docValues = docValuesField != null
+                        ? snapshot.numerics.get(docValuesField)
+                        : null;
+                return new Query() {
+                    private final ToDoubleFunction<JsonPrimitive> ratePrimitive = this::ratePrimitive;
+
+                    @Override
+                    public double rate(int ordinal, JsonObject object) {
+                        if (docValues != null && snapshot.isDocumentAt(ordinal, object) && !docValues.isIrregular(ordinal)) {
+                            final double value = docValues.get(ordinal);
+                            return !Double.isNaN(value) && isInRange(value) ? 1.0 : 0.0;
+                        }
+                        return fieldPath.sum(snapshot.source(ordinal, object), ratePrimitive);
+                    }
+
+                    private double ratePrimitive(JsonPrimitive primitive) {
+                        if (primitive.isNumber()) {
+                            return isInRange(primitive.getAsNumber().doubleValue()) ? 1.0 : 0.0;
+                        }
+                        else if (primitive.isString()) {
+                            LOGGER.warn("Range sur les dates pas encore supporté");
+                        }
+                        return 0.0;
+                    }
+
+                    private boolean isInRange(double value) {
+                        return (lowerBoundIncluded ? value >= lowerBound : value > lowerBound)
+                                && (upperBoundIncluded ? value <= upperBound : value < upperBound);
+                    }
+
+                    @Override
+                    public BitSet candidates(Snapshot searchedIndex) {
+                        if (searchedIndex != snapshot || docValues == null) {
+                            return null;
+                        }
+                        return docValues.range(lowerBound, lowerBoundIncluded, upperBound, upperBoundIncluded);
+                    }
+                };
+            };
+        };
+    }
+
+    private static List<QueryPlan> plan(List<QueryTemplate> templates, Object[] parameters) {
+        final ArrayList<QueryPlan> plans = new ArrayList<>(templates.size());
+        for (final QueryTemplate template : templates) {
+            plans.add(template.plan(parameters));
+        }
+        return plans;
+    }
+
+    private static List<Query> bind(List<QueryPlan> plans, Snapshot snapshot) {
+        final ArrayList<Query> queries = new ArrayList<>(plans.size());
+        for (final QueryPlan plan : plans) {
+            queries.add(plan.bind(snapshot));
+        }
+        return queries;
+    }
+
+    /**
+     * Donne la valeur d'un paramètre.
+     *
+     * @param value Valeur lue dans la requête, <code>Parameter</code> ou
+     * littérale.
+     * @param parameters Valeurs des paramètres.
+     * @return La valeur du paramètre ou la valeur littérale.
+     */
+    private static Object parameter(Object value, Object[] parameters) {
+        return value instanceof Parameter ? parameters[((Parameter) value).position] : value;
+    }
+
+    private static Aggregation parseAggregation(Map<String, Map<String, Object>> aggregation) {
+        Map.Entry<String, Map<String, Object>> entry = null;
+        for (final Map.Entry<String, Map<String, Object>> candidate : aggregation.entrySet()) {
+            if (!"aggs".equals(candidate.getKey()) && !"aggregations".equals(candidate.getKey()) && !"meta".equals(candidate.getKey())) {
+                entry = candidate;
+                break;
+            }
+        }
+        if (entry == null) {
+            throw new IllegalArgumentException("Missing definition for aggregation");
+        }
+        final Map<String, Aggregation> subAggregations = parseSubAggregations(aggregation);
+        switch (entry.getKey()) {
+            case "terms":
+                return createTermsAggregation(entry.getValue(), subAggregations);
+            case "composite":
+                return createCompositeAggregation(entry.getValue(), subAggregations);
+            case "histogram":
+                return createHistogramAggregation(entry.getValue(), subAggregations);
+            case "date_histogram":
+                return createDateHistogramAggregation(entry.getValue(), subAggregations);
+            case "cardinality":
+                return createCardinalityAggregation(entry.getValue());
+            case "sum":
+            case "avg":
+            case "min":
+            case "max":
+            case "stats":
+                return createStatsAggregation(entry.getKey(), entry.getValue());
+            case "percentiles":
+                return createPercentilesAggregation(entry.getValue());
+            default:
+                LOGGER.warn("Given aggregation is unsupported: ", entry.getKey());
+                return hits -> Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Lit les sous-agrégations d'une agrégation.
+     *
+     * @param aggregation Définition de l'agrégation.
+     * @return Les sous-agrégations par nom, vide s'il n'y en a pas.
+     */
+    private static Map<String, Aggregation> parseSubAggregations(Map<String, ? extends Object> aggregation) {
+        Object definitions = aggregation.get("aggs");
+        if (definitions == null) {
+            definitions = aggregation.get("aggregations");
+        }
+        if (!(definitions instanceof Map)) {
+            return Collections.emptyMap();
+        }
+        final LinkedHashMap<String, Aggregation> subAggregations = new LinkedHashMap<>();
+        for (final Map.Entry<String, Object> definition : ((Map<String, Object>) definitions).entrySet()) {
+            subAggregations.put(definition.getKey(), parseAggregation((Map<String, Map<String, Object>>) definition.getValue()));
+        }
+        return subAggregations;
+    }
+
+    /**
+     * Crée un seau et y ajoute les résultats des sous-agrégations.
+     *
+     * @param key Clé du seau.
+     * @param docCount Nombre de documents du seau.
+     * @param subAggregations Sous-agrégations.
+     * @param hits Documents du seau, <code>null</code> s'il n'y a pas de
+     * sous-agrégation.
+     * @return Le seau.
+     */
+    private static Map<String, Object> bucket(Object key, long docCount, Map<String, Aggregation> subAggregations, List<Hit> hits) {
+        final LinkedHashMap<String, Object> bucket = new LinkedHashMap<>();
+        bucket.put("key", key);
+        bucket.put("doc_count", docCount);
+        for (final Map.Entry<String, Aggregation> subAggregation : subAggregations.entrySet()) {
+            bucket.put(subAggregation.getKey(), subAggregation.getValue().aggregate(hits));
+        }
+        return bucket;
+    }
+
+    /**
+     * Crée une agrégation par termes.
+     * <p>
+     * Les documents de chaque index sont comptés dans un tableau indexé par
+     * ordinal de terme, lu depuis la colonne <code>KeywordDocValues</code>
+     * du champ. Les compteurs de plusieurs index sont fusionnés par terme
+     * puis les <code>size</code> meilleurs seaux sont choisis avec un tas.
+     * Les comptes étant exacts, l'erreur maximale est toujours nulle et
+     * <code>sum_other_doc_count</code> donne le nombre de valeurs des seaux
+     * écartés. Les documents ne sont répartis entre les seaux choisis que
+     * s'il y a des sous-agrégations.
+     *
+     * @param terms Paramètres de l'agrégation.
+     * @param subAggregations Sous-agrégations de chaque seau.
+     * @return L'agrégation.
+     */
+    private static Aggregation createTermsAggregation(Map<String, Object> terms, Map<String, Aggregation> subAggregations) {
+        final String field = (String)terms.get("field");
+        final int size = ((Number)terms.getOrDefault("size", 10)).intValue();
+        final String path = FieldPath.forField(field).getPath();
+        if (subAggregations.isEmpty()) {
+            return new CollectedAggregation(() -> new TermsCollector(field, path, size, subAggregations));
+        }
+        // Les documents des seaux sont nécessaires aux sous-agrégations.
+        return hits -> {
+            final TermsCollector collector = new TermsCollector(field, path, size, subAggregations);
+            for (final Hit hit : hits) {
+                collector.collect(hit);
+            }
+            return collector.result(hits);
+        };
+    }
+
+    /**
+     * Nombre de documents de chaque terme d'un champ, compté par index dans
+     * un tableau indexé par ordinal de terme.
+     * <p>
+     * Les ordinaux de termes sont ceux de la colonne
+     * <code>KeywordDocValues</code> de chaque index et non d'un segment :
+     * tous les segments d'un index partagent la même colonne, et les
+     * compteurs sont rangés par index (<code>Hit.shard</code>). Les termes
+     * de plusieurs index ne sont rapprochés par leur valeur qu'au moment du
+     * résultat.
+     */
+    private static final class TermsCollector implements AggregationCollector {
+        private final String field;
+        private final String path;
+        private final int size;
+        private final Map<String, Aggregation> subAggregations;
+
+        /**
+         * Documents par index, pour le champ <code>_index</code>.
+         */
+        private final LinkedHashMap<String, Integer> indexCounts = new LinkedHashMap<>();
+
+        /**
+         * Colonne des termes et compteurs par ordinal de terme, par index.
+         */
+        private final ArrayList<KeywordDocValues> columns = new ArrayList<>();
+        private final ArrayList<int[]> shardCounts = new ArrayList<>();
+
+        TermsCollector(String field, String path, int size, Map<String, Aggregation> subAggregations) {
+            this.field = field;
+            this.path = path;
+            this.size = size;
+            this.subAggregations = subAggregations;
+        }
+
+        @Override
+        public void collect(Hit hit) {
+            if ("_index".equals(field)) {
+                indexCounts.merge(hit.index.name, 1, Integer::sum);
+                return;
+            }
+            while (shardCounts.size() <= hit.shard) {
+                columns.add(null);
+                shardCounts.add(null);
+            }
+            int[] hitCounts = shardCounts.get(hit.shard);
+            if (hitCounts == null) {
+                final KeywordDocValues column = hit.index.keywordValues(path);
+                hitCounts = new int[column.termCount()];
+                columns.set(hit.shard, column);
+                shardCounts.set(hit.shard, hitCounts);
+            }
+            columns.get(hit.shard).count(hit.ordinal, hitCounts);
+        }
+
+        @Override
+        public void merge(AggregationCollector other) {
+            final TermsCollector terms = (TermsCollector) other;
+            for (final Map.Entry<String, Integer> indexCount : terms.indexCounts.entrySet()) {
+                indexCounts.merge(indexCount.getKey(), indexCount.getValue(), Integer::sum);
+            }
+            for (int shard = 0; shard < terms.shardCounts.size(); shard++) {
+                final int[] otherCounts = terms.shardCounts.get(shard);
+                if (otherCounts == null) {
+                    continue;
+                }
+                while (shardCounts.size() <= shard) {
+                    columns.add(null);
+                    shardCounts.add(null);
+                }
+                int[] counts = shardCounts.get(shard);
+                if (counts == null) {
+                    columns.set(shard, terms.columns.get(shard));
+                    shardCounts.set(shard, otherCounts);
+                    continue;
+                }
+                // Le nombre de termes lu par chaque collecteur peut
+                // différer : les compteurs sont alignés sur le plus grand.
+                if (counts.length < otherCounts.length) {
+                    counts = Arrays.copyOf(counts, otherCounts.length);
+                    columns.set(shard, terms.columns.get(shard));
+                    shardCounts.set(shard, counts);
+                }
+                for (int term = 0; term < otherCounts.length; term++) {
+                    counts[term] += otherCounts[term];
+                }
+            }
+        }
+
+        @Override
+        public Map<String, Object> result() {
+            return result(null);
+        }
+
+        /**
+         * Choisit les meilleurs seaux.
+         *
+         * @param hits Documents agrégés, répartis entre les seaux s'il y a
+         * des sous-agrégations.
+         * @return Le résultat de l'agrégation.
+         */
+        Map<String, Object> result(List<Hit> hits) {
+            final String[] keys;
+            final int[] counts;
+            if ("_index".equals(field)) {
+                keys = indexCounts.keySet().toArray(new String[indexCounts.size()]);
+                counts = indexCounts.values().stream().mapToInt(Integer::intValue).toArray();
+            } else if (shardCounts.size() == 1) {
+                final KeywordDocValues column = columns.get(0);
+                counts = shardCounts.get(0);
+                keys = new String[counts.length];
+                for (int term = 0; term < counts.length; term++) {
+                    keys[term] = column.term(term);
+                }
+            } else {
+                final HashMap<String, Integer> merged = new HashMap<>();
+                for (int shard = 0; shard < shardCounts.size(); shard++) {
+                    final int[] shardCount = shardCounts.get(shard);
+                    for (int term = 0; shardCount != null && term < shardCount.length; term++) {
+                        if (shardCount[term] > 0) {
+                            merged.merge(columns.get(shard).term(term), shardCount[term], Integer::sum);
+                        }
+                    }
+                }
+                keys = merged.keySet().toArray(new String[merged.size()]);
+                counts = merged.values().stream().mapToInt(Integer::intValue).toArray();
+            }
+
+            final int[] top = topTerms(keys, counts, size);
+            long otherDocCount = 0;
+            for (final int count : counts) {
+                otherDocCount += count;
+            }
+            final List<List<Hit>> bucketHits = subAggregations.isEmpty() ? null : termsBucketHits(hits, field, columns, keys, top);
+            final ArrayList<Map<String, Object>> buckets = new ArrayList<>(top.length);
+            for (int position = 0; position < top.length; position++) {
+                otherDocCount -= counts[top[position]];
+                buckets.add(bucket(keys[top[position]], counts[top[position]], subAggregations,
+                        bucketHits != null ? bucketHits.get(position) : null));
+            }
+            final HashMap<String, Object> result = new HashMap<>();
+            result.put("doc_count_error_upper_bound", 0);
+            result.put("sum_other_doc_count", otherDocCount);
+            result.put("buckets", buckets);
+            return result;
+        }
+    }
+
+    /**
+     * Choisit les termes ayant le plus de documents, à égalité par ordre
+     * croissant des termes.
+     *
+     * @param keys Termes.
+     * @param counts Nombre de documents de chaque terme, 0 pour les termes
+     * absents des résultats.
+     * @param size Nombre maximal de termes.
+     * @return Les positions des termes choisis, du meilleur au moins bon.
+     */
+    private static int[] topTerms(String[] keys, int[] counts, int size) {
+        // Le pire terme gardé est en tête du tas.
+        final Comparator<Integer> worstFirst = (lhs, rhs) -> counts[lhs] != counts[rhs]
+                ? Integer.compare(counts[lhs], counts[rhs])
+                : keys[rhs].compareTo(keys[lhs]);
+        final PriorityQueue<Integer> best = new PriorityQueue<>(Math.max(1, Math.min(size, counts.length)), worstFirst);
+        for (int term = 0; term < counts.length; term++) {
+            if (counts[term] == 0) {
+                continue;
+            }
+            if (best.size() < size) {
+                best.add(term);
+            } else if (size > 0 && worstFirst.compare(term, best.peek()) > 0) {
+                best.poll();
+                best.add(term);
+            }
+        }
+        final int[] top = new int[best.size()];
+        for (int position = top.length - 1; position >= 0; position--) {
+            top[position] = best.poll();
+        }
+        return top;
+    }
+
+    /**
+     * Répartit les documents entre les seaux choisis d'une agrégation par
+     * termes.
+     *
+     * @param hits Documents agrégés.
+     * @param field Champ agrégé.
+     * @param columns Colonne des termes de chaque index.
+     * @param keys Termes.
+     * @param top Positions des termes des seaux.
+     * @return Les documents de chaque seau.
+     */
+    private static List<List<Hit>> termsBucketHits(List<Hit> hits, String field, List<KeywordDocValues> columns, String[] keys, int[] top) {
+        final HashMap<String, Integer> bucketOfKey = new HashMap<>();
+        final ArrayList<List<Hit>> bucketHits = new ArrayList<>(top.length);
+        for (int position = 0; position < top.length; position++) {
+            bucketOfKey.put(keys[top[position]], position);
+            bucketHits.add(new ArrayList<>());
+        }
+        // Seau + 1 de chaque ordinal de terme par index, -1 hors des seaux.
+        final ArrayList<int[]> shardBuckets = new ArrayList<>();
+        for (final Hit hit : hits) {
+            if ("_index".equals(field)) {
+                final Integer position = bucketOfKey.get(hit.index.name);
+                if (position != null) {
+                    bucketHits.get(position).add(hit);
+                }
+                continue;
+            }
+            while (shardBuckets.size() <= hit.shard) {
+                shardBuckets.add(null);
+            }
+            final KeywordDocValues column = columns.get(hit.shard);
+            int[] buckets = shardBuckets.get(hit.shard);
+            if (buckets == null) {
+                buckets = new int[column.termCount()];
+                shardBuckets.set(hit.shard, buckets);
+            }
+            for (final int term : column.terms(hit.ordinal)) {
+                if (buckets[term] == 0) {
+                    final Integer position = bucketOfKey.get(column.term(term));
+                    buckets[term] = position != null ? position + 1 : -1;
+                }
+                if (buckets[term] > 0) {
+                    bucketHits.get(buckets[term] - 1).add(hit);
+                }
+            }
+        }
+        return bucketHits;
+    }
+
+    /**
+     * Valeurs numériques lues pour une agrégation, avec la position dans la
+     * liste des documents du document qui les porte.
+     */
+    private static final class AggregatedValues {
+        double[] values = new double[64];
+        int[] hits = new int[64];
+        int size;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value, int hit) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                hits = Arrays.copyOf(hits, size * 2);
+            }
+            values[size] = value;
+            this.hits[size] = hit;
+            size++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+    }
+
+    /**
+     * Vérifie que le nombre de seaux d'un histogramme ne dépasse pas
+     * <code>MAX_BUCKETS</code>.
+     *
+     * @param count Nombre de seaux.
+     */
+    private static void checkBucketCount(long count) {
+        if (count > MAX_BUCKETS) {
+            throw new IllegalArgumentException("Trying to create too many buckets. Must be less than or equal to: [" + MAX_BUCKETS + "] but was [" + count + "]. This limit can be set by changing the [search.max_buckets] cluster level setting.");
+        }
+    }
+
+    /**
+     * Compte les documents de chaque seau d'un histogramme, chaque document
+     * une seule fois par seau.
+     *
+     * @param values Valeurs lues.
+     * @param bucketOfValue Seau de chaque valeur.
+     * @param bucketCount Nombre de seaux.
+     * @param hits Documents agrégés.
+     * @param bucketHits Documents de chaque seau, <code>null</code> pour
+     * un seau vide, rempli si non <code>null</code>.
+     * @return Nombre de documents par seau.
+     */
+    private static int[] countBuckets(AggregatedValues values, int[] bucketOfValue, int bucketCount, List<Hit> hits, List<List<Hit>> bucketHits) {
+        final int[] counts = new int[bucketCount];
+        final int[] lastHits = new int[bucketCount];
+        Arrays.fill(lastHits, -1);
+        for (int index = 0; index < values.size; index++) {
+            final int bucket = bucketOfValue[index];
+            final int hit = values.hits[index];
+            if (lastHits[bucket] != hit) {
+                lastHits[bucket] = hit;
+                counts[bucket]++;
+                if (bucketHits != null) {
+                    if (bucketHits.get(bucket) == null) {
+                        bucketHits.set(bucket, new ArrayList<>());
+                    }
+                    bucketHits.get(bucket).add(hits.get(hit));
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Crée une agrégation <code>histogram</code> : les valeurs numériques
+     * sont réparties en intervalles de largeur fixe, vides compris entre la
+     * plus petite et la plus grande valeur.
+     *
+     * @param histogram Paramètres de l'agrégation.
+     * @param subAggregations Sous-agrégations de chaque seau.
+     * @return L'agrégation.
+     */
+    private static Aggregation createHistogramAggregation(Map<String, Object> histogram, Map<String, Aggregation> subAggregations) {
+        final FieldPath path = FieldPath.forField(requiredField(histogram));
+        final Object intervalValue = histogram.get("interval");
+        if (!(intervalValue instanceof Number) || ((Number) intervalValue).doubleValue() <= 0) {
+            throw new IllegalArgumentException("[interval] must be >0 for histogram aggregation");
+        }
+        final double interval = ((Number) intervalValue).doubleValue();
+        final double offset = ((Number) histogram.getOrDefault("offset", 0)).doubleValue();
+        final long minDocCount = ((Number) histogram.getOrDefault("min_doc_count", 0)).longValue();
+        return hits -> {
+            final AggregatedValues values = numericValues(hits, path);
+            final ArrayList<Map<String, Object>> buckets = new ArrayList<>();
+            if (values.size > 0) {
+                final long first = (long) Math.floor((values.min - offset) / interval);
+                final long last = (long) Math.floor((values.max - offset) / interval);
+                checkBucketCount(last - first + 1);
+                final int[] bucketOfValue = new int[values.size];
+                for (int index = 0; index < values.size; index++) {
+                    bucketOfValue[index] = (int) ((long) Math.floor((values.values[index] - offset) / interval) - first);
+                }
+                final int bucketCount = (int) (last - first + 1);
+                final List<List<Hit>> bucketHits = subAggregations.isEmpty() ? null : new ArrayList<>(Collections.nCopies(bucketCount, (List<Hit>) null));
+                final int[] counts = countBuckets(values, bucketOfValue, bucketCount, hits, bucketHits);
+                for (int bucket = 0; bucket < bucketCount; bucket++) {
+                    if (counts[bucket] >= minDocCount) {
+                        buckets.add(bucket((first + bucket) * interval + offset, counts[bucket], subAggregations,
+                                bucketHits != null ? hitsOrEmpty(bucketHits.get(bucket)) : null));
+                    }
+                }
+            }
+            return map("buckets", buckets);
+        };
+    }
+
+    /**
+     * Crée une agrégation <code>date_histogram</code> : les dates sont
+     * réparties en intervalles calendaires ou fixes, vides compris entre la
+     * plus petite et la plus grande date.
+     *
+     * @param dateHistogram Paramètres de l'agrégation.
+     * @param subAggregations Sous-agrégations de chaque seau.
+     * @return L'agrégation.
+     */
+    private static Aggregation createDateHistogramAggregation(Map<String, Object> dateHistogram, Map<String, Aggregation> subAggregations) {
+        final FieldPath path = FieldPath.forField(requiredField(dateHistogram));
+        final DateRounding rounding = DateRounding.parse(dateHistogram);
+        final long minDocCount = ((Number) dateHistogram.getOrDefault("min_doc_count", 0)).longValue();
+        return hits -> {
+            final AggregatedValues values = new AggregatedValues();
+            for (int index = 0; index < hits.size(); index++) {
+                final int hit = index;
+                forEachDate(hits.get(index), path, millis -> values.add(millis, hit));
+            }
+            final ArrayList<Map<String, Object>> buckets = new ArrayList<>();
+            if (values.size > 0) {
+                long[] starts = new long[16];
+                int bucketCount = 0;
+                for (long start = rounding.round((long) values.min); start <= values.max; start = rounding.next(start)) {
+                    checkBucketCount(bucketCount + 1);
+                    if (bucketCount == starts.length) {
+                        starts = Arrays.copyOf(starts, bucketCount * 2);
+                    }
+                    starts[bucketCount++] = start;
+                }
+                final int[] bucketOfValue = new int[values.size];
+                for (int index = 0; index < values.size; index++) {
+                    final int position = Arrays.binarySearch(starts, 0, bucketCount, (long) values.values[index]);
+                    bucketOfValue[index] = position >= 0 ? position : -position - 2;
+                }
+                final List<List<Hit>> bucketHits = subAggregations.isEmpty() ? null : new ArrayList<>(Collections.nCopies(bucketCount, (List<Hit>) null));
+                final int[] counts = countBuckets(values, bucketOfValue, bucketCount, hits, bucketHits);
+                for (int bucket = 0; bucket < bucketCount; bucket++) {
+                    if (counts[bucket] >= minDocCount) {
+                        final Map<String, Object> result = bucket(starts[bucket], counts[bucket], subAggregations,
+                                bucketHits != null ? hitsOrEmpty(bucketHits.get(bucket)) : null);
+                        final LinkedHashMap<String, Object> withDate = new LinkedHashMap<>();
+                        withDate.put("key_as_string", rounding.format(starts[bucket]));
+                        withDate.putAll(result);
+                        buckets.add(withDate);
+                    }
+                }
+            }
+            return map("buckets", buckets);
+        };
+    }
+
+    private static List<Hit> hitsOrEmpty(List<Hit> hits) {
+        return hits != null ? hits : Collections.<Hit>emptyList();
+    }
+
+    private static String requiredField(Map<String, Object> parameters) {
+        final Object field = parameters.get("field");
+        if (!(field instanceof String)) {
+            throw new IllegalArgumentException("Required one of fields [field, script], but none were specified.");
+        }
+        return (String) field;
+    }
+
+    /**
+     * Lit les valeurs numériques d'un champ pour tous les documents donnés.
+     *
+     * @param hits Documents.
+     * @param path Chemin du champ.
+     * @return Les valeurs lues.
+     */
+    private static AggregatedValues numericValues(List<Hit> hits, FieldPath path) {
+        final AggregatedValues values = new AggregatedValues();
+        for (int index = 0; index < hits.size(); index++) {
+            final int hit = index;
+            forEachNumber(hits.get(index), path, value -> values.add(value, hit));
+        }
+        return values;
+    }
+
+    /**
+     * Crée une agrégation de métrique simple : <code>sum</code>,
+     * <code>avg</code>, <code>min</code>, <code>max</code> ou
+     * <code>stats</code> qui les donne toutes avec le nombre de valeurs.
+     * Les valeurs sont lues dans la colonne numérique du champ quand elle
+     * existe.
+     *
+     * @param type Type de l'agrégation.
+     * @param metric Paramètres de l'agrégation.
+     * @return L'agrégation.
+     */
+    private static Aggregation createStatsAggregation(String type, Map<String, Object> metric) {
+        final FieldPath path = FieldPath.forField(requiredField(metric));
+        return new CollectedAggregation(() -> new StatsCollector(type, path));
+    }
+
+    /**
+     * Nombre, somme, minimum et maximum des valeurs d'un champ.
+     */
+    private static final class StatsCollector implements AggregationCollector {
+        private final String type;
+        private final FieldPath path;
+        private long count;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private final DoubleConsumer accumulator = value -> {
+            count++;
+            sum += value;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        };
+
+        StatsCollector(String type, FieldPath path) {
+            this.type = type;
+            this.path = path;
+        }
+
+        @Override
+        public void collect(Hit hit) {
+            forEachNumber(hit, path, accumulator);
+        }
+
+        @Override
+        public void merge(AggregationCollector other) {
+            final StatsCollector stats = (StatsCollector) other;
+            count += stats.count;
+            sum += stats.sum;
+            min = Math.min(min, stats.min);
+            max = Math.max(max, stats.max);
+        }
+
+        @Override
+        public Map<String, Object> result() {
+            final Double avg = count > 0 ? sum / count : null;
+            final Double min = count > 0 ? this.min : null;
+            final Double max = count > 0 ? this.max : null;
+            switch (type) {
+                case "sum":
+                    return map("value", sum);
+                case "avg":
+                    return map("value", avg);
+                case "min":
+                    return map("value", min);
+                case "max":
+                    return map("value", max);
+                default:
+                    final LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+                    result.put("count", count);
+                    result.put("min", min);
+                    result.put("max", max);
+                    result.put("avg", avg);
+                    result.put("sum", sum);
+                    return result;
+            }
+        }
+    }
+
+    /**
+     * Crée une agrégation <code>percentiles</code>, estimée par t-digest
+     * pour chaque index puis fusionnée.
+     *
+     * @param percentiles Paramètres de l'agrégation : <code>percents</code>,
+     * <code>keyed</code> et <code>tdigest.compression</code>.
+     * @return L'agrégation.
+     */
+    private static Aggregation createPercentilesAggregation(Map<String, Object> percentiles) {
+        final FieldPath path = FieldPath.forField(requiredField(percentiles));
+        final List<Number> percents = (List<Number>) percentiles.getOrDefault("percents", DEFAULT_PERCENTS);
+        final boolean keyed = !Boolean.FALSE.equals(percentiles.get("keyed"));
+        final Map<String, Object> tdigest = (Map<String, Object>) percentiles.getOrDefault("tdigest", Collections.emptyMap());
+        final double compression = ((Number) tdigest.getOrDefault("compression", TDigest.DEFAULT_COMPRESSION)).doubleValue();
+        for (final Number percent : percents) {
+            if (percent.doubleValue() < 0.0 || percent.doubleValue() > 100.0) {
+                throw new IllegalArgumentException("percent must be in [0,100], got [" + percent + "]");
+            }
+        }
+        return new CollectedAggregation(() -> new PercentilesCollector(path, percents, keyed, compression));
+    }
+
+    /**
+     * Estimation t-digest des valeurs d'un champ. Les estimations des
+     * segments sont fusionnées.
+     */
+    private static final class PercentilesCollector implements AggregationCollector {
+        private final FieldPath path;
+        private final List<Number> percents;
+        private final boolean keyed;
+        private final TDigest digest;
+
+        PercentilesCollector(FieldPath path, List<Number> percents, boolean keyed, double compression) {
+            this.path = path;
+            this.percents = percents;
+            this.keyed = keyed;
+            this.digest = new TDigest(compression);
+        }
+
+        @Override
+        public void collect(Hit hit) {
+            forEachNumber(hit, path, digest::add);
+        }
+
+        @Override
+        public void merge(AggregationCollector other) {
+            digest.merge(((PercentilesCollector) other).digest);
+        }
+
+        @Override
+        public Map<String, Object> result() {
+            final LinkedHashMap<String, Object> keyedValues = new LinkedHashMap<>();
+            final ArrayList<Map<String, Object>> values = new ArrayList<>();
+            for (final Number percent : percents) {
+                final double value = digest.percentile(percent.doubleValue());
+                final Double result = Double.isNaN(value) ? null : value;
+                if (keyed) {
+                    keyedValues.put(String.valueOf(percent.doubleValue()), result);
+                } else {
+                    final LinkedHashMap<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("key", percent.doubleValue());
+                    entry.put("value", result);
+                    values.add(entry);
+                }
+            }
+            return map("values", keyed ? keyedValues : values);
+        }
+    }
+
+    /**
+     * Crée une agrégation estimant le nombre de valeurs distinctes d'un
+     * champ.
+     * <p>
+     * Chaque index alimente sa propre estimation HyperLogLog++ puis les
+     * estimations sont fusionnées. Les champs numériques déclarés sont lus
+     * dans leur colonne, les autres dans la colonne de leurs termes : le
+     * hash de chaque terme n'est calculé qu'une fois par index. Les
+     * documents sans terme sont relus pour y chercher des nombres.
+     *
+     * @param cardinality Paramètres de l'agrégation.
+     * @return L'agrégation.
+     */
+    private static Aggregation createCardinalityAggregation(Map<String, Object> cardinality) {
+        final String field = (String) cardinality.get("field");
+        if (field == null) {
+            throw new IllegalArgumentException("Required one of fields [field, script], but none were specified.");
+        }
+        final long precisionThreshold = ((Number) cardinality.getOrDefault("precision_threshold", HyperLogLog.DEFAULT_PRECISION_THRESHOLD)).longValue();
+        final FieldPath path = FieldPath.forField(field);
+        return new CollectedAggregation(() -> new CardinalityCollector(path, precisionThreshold));
+    }
+
+    /**
+     * Estimation HyperLogLog++ du nombre de valeurs distinctes d'un champ.
+     * Les estimations des segments sont fusionnées.
+     */
+    private static final class CardinalityCollector implements AggregationCollector {
+        private final FieldPath path;
+        private final HyperLogLog sketch;
+
+        /**
+         * Colonne des termes de chaque index, <code>null</code> pour un
+         * champ numérique déclaré, et hash de chaque terme déjà lu.
+         */
+        private final ArrayList<KeywordDocValues> columns = new ArrayList<>();
+        private final ArrayList<long[]> termHashes = new ArrayList<>();
+        private final DoubleConsumer numbers;
+
+        CardinalityCollector(FieldPath path, long precisionThreshold) {
+            this.path = path;
+            this.sketch = new HyperLogLog(precisionThreshold);
+            this.numbers = value -> sketch.add(HyperLogLog.hash(value));
+        }
+
+        @Override
+        public void collect(Hit hit) {
+            while (termHashes.size() <= hit.shard) {
+                columns.add(null);
+                termHashes.add(null);
+            }
+            if (termHashes.get(hit.shard) == null) {
+                if (!hit.index.numerics.containsKey(path.getPath())) {
+                    final KeywordDocValues column = hit.index.keywordValues(path.getPath());
+                    columns.set(hit.shard, column);
+                    termHashes.set(hit.shard, new long[column.termCount()]);
+                } else {
+                    termHashes.set(hit.shard, new long[0]);
+                }
+            }
+            final KeywordDocValues column = columns.get(hit.shard);
+            if (column == null) {
+                forEachNumber(hit, path, numbers);
+                return;
+            }
+            final int[] terms = column.terms(hit.ordinal);
+            if (terms.length == 0) {
+                // Nombres d'un champ non déclaré.
+                forEachNumber(hit, path, numbers);
+                return;
+            }
+            final long[] hashes = termHashes.get(hit.shard);
+            for (final int term : terms) {
+                if (hashes[term] == 0L) {
+                    hashes[term] = HyperLogLog.hash(column.term(term));
+                }
+                sketch.add(hashes[term]);
+            }
+        }
+
+        @Override
+        public void merge(AggregationCollector other) {
+            sketch.merge(((CardinalityCollector) other).sketch);
+        }
+
+        @Override
+        public Map<String, Object> result() {
+            return map("value", sketch.cardinality());
+        }
+    }
+
+    /**
+     * Crée une agrégation composite.
+     * <p>
+     * La clé d'un seau est un tuple de valeurs codées en <code>long</code>,
+     * une par source : ordinal global de terme, bits d'un intervalle
+     * d'histogramme ou début d'un intervalle de dates. Seules les
+     * <code>size</code> plus petites clés situées après <code>after</code>
+     * sont gardées dans une table triée bornée : parcourir toutes les pages
+     * n'utilise qu'une mémoire proportionnelle à la taille d'une page.
+     *
+     * @param composite Paramètres de l'agrégation.
+     * @param subAggregations Sous-agrégations de chaque seau.
+     * @return L'agrégation.
+     */
+    private static Aggregation createCompositeAggregation(Map<String, Object> composite, Map<String, Aggregation> subAggregations) {
+        final int size = ((Number)composite.getOrDefault("size", 10)).intValue();
+        final List<CompositeSource> sources = CompositeSource.from((List<Map<String, Map<String, Map<String, Object>>>>) composite.get("sources"));
+        final Map<String, Object> after = (Map<String, Object>)composite.get("after");
+        if (after != null) {
+            for (final CompositeSource source : sources) {
+                if (!after.containsKey(source.name)) {
+                    throw new IllegalArgumentException("[after] has " + after.size() + " value(s) but [sources] has " + sources.size());
+                }
+            }
+        }
+        return hits -> {
+            final CompositeValues[] values = new CompositeValues[sources.size()];
+            for (int index = 0; index < values.length; index++) {
+                values[index] = sources.get(index).values();
+            }
+            final Comparator<long[]> keyOrder = (lhs, rhs) -> {
+                for (int index = 0; index < values.length; index++) {
+                    final int order = values[index].compare(lhs[index], rhs[index]);
+                    if (order != 0) {
+                        return order * values[index].source.order;
+                    }
+                }
+                return 0;
+            };
+            long[] afterKey = null;
+            if (after != null) {
+                afterKey = new long[values.length];
+                for (int index = 0; index < values.length; index++) {
+                    afterKey[index] = values[index].encode(after.get(values[index].source.name));
+                }
+            }
+
+            final TreeMap<long[], CompositeBucket> buckets = new TreeMap<>(keyOrder);
+            final boolean withHits = !subAggregations.isEmpty();
+            boolean hasMore = false;
+            final long[] key = new long[values.length];
+            final int[] positions = new int[values.length];
+            for (final Hit hit : hits) {
+                boolean empty = false;
+                for (final CompositeValues sourceValues : values) {
+                    sourceValues.read(hit);
+                    empty |= sourceValues.count == 0;
+                }
+                if (empty) {
+                    continue;
+                }
+                // Parcourt toutes les combinaisons des valeurs du document.
+                Arrays.fill(positions, 0);
+                int source;
+                do {
+                    for (int index = 0; index < values.length; index++) {
+                        key[index] = values[index].values[positions[index]];
+                    }
+                    if (afterKey == null || keyOrder.compare(key, afterKey) > 0) {
+                        final CompositeBucket bucket = buckets.get(key);
+                        if (bucket != null) {
+                            bucket.add(hit);
+                        } else if (buckets.size() < size) {
+                            buckets.put(key.clone(), new CompositeBucket(hit, withHits));
+                        } else if (size > 0 && keyOrder.compare(key, buckets.lastKey()) < 0) {
+                            buckets.pollLastEntry();
+                            buckets.put(key.clone(), new CompositeBucket(hit, withHits));
+                            hasMore = true;
+                        } else {
+                            hasMore = true;
+                        }
+                    }
+                    source = values.length - 1;
+                    while (source >= 0 && ++positions[source] == values[source].count) {
+                        positions[source] = 0;
+                        source--;
+                    }
+                } while (source >= 0);
+            }
+
+            final ArrayList<Map<String, Object>> bucketList = new ArrayList<>(buckets.size());
+            for (final Map.Entry<long[], CompositeBucket> bucket : buckets.entrySet()) {
+                bucketList.add(bucket(compositeKey(values, bucket.getKey()), bucket.getValue().docCount,
+                        subAggregations, bucket.getValue().hits));
+            }
+            final HashMap<String, Object> resultMap = new HashMap<>();
+            resultMap.put("buckets", bucketList);
+            if (hasMore && !bucketList.isEmpty()) {
+                resultMap.put("after_key", bucketList.get(bucketList.size() - 1).get("key"));
+            }
+            return resultMap;
+        };
+    }
+
+    /**
+     * Seau gardé par une agrégation composite.
+     */
+    private static final class CompositeBucket {
+        int docCount;
+        /**
+         * Documents du seau, <code>null</code> s'il n'y a pas de
+         * sous-agrégation.
+         */
+        final List<Hit> hits;
+
+        CompositeBucket(Hit hit, boolean withHits) {
+            this.hits = withHits ? new ArrayList<>() : null;
+            add(hit);
+        }
+
+        void add(Hit hit) {
+            docCount++;
+            if (hits != null) {
+                hits.add(hit);
+            }
+        }
+    }
+
+    private static Map<String, Object> compositeKey(CompositeValues[] values, long[] key) {
+        final LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+        for (int index = 0; index < values.length; index++) {
+            result.put(values[index].source.name, values[index].decode(key[index]));
+        }
+        return result;
+    }
+
+    private static Function<JsonObject, JsonObject> parseSourceMapper(Object source) {
+        if (source instanceof Boolean) {
+            if (!(Boolean)source) {
+                return hit -> null;
+            }
+        } else if (source instanceof List) {
+            final List<String> fieldsToInclude = (List<String>)source;
+            return hit -> {
+                final JsonObject filtered  = new JsonObject();
+                for (final String fieldToInclude : fieldsToInclude) {
+                    final JsonElement value = hit.get(fieldToInclude);
+                    if (value != null) {
+                        filtered.add(fieldToInclude, value);
+                    }
+                }
+                return filtered;
+            };
+        }
+        return null;
+    }
+
+    /**
+     * Récupère la valeur de l'objet JSON s'il s'agit d'une primitive.
+     *
+     * @param element Élément JSON.
+     * @return Valeur en <code>Boolean</code>, <code>Number</code>,
+     * <code>String</code> ou <code>null</code>.
+     */
+    private static Object getPrimitiveValue(JsonElement element) {
+        if (element != null && element.isJsonPrimitive()) {
+            final JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                return primitive.getAsBoolean();
+            }
+            if (primitive.isNumber()) {
+                // GSON converti tous les nombres en Double par défaut, donc
+                // renvoi d'un double pour que les comparaisons fonctionnent.
+                return primitive.getAsNumber().doubleValue();
+            }
+            if (primitive.isString()) {
+                return primitive.getAsString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Créé une nouvelle table en alternant la clef et la valeur.
+     *
+     * @param arguments Alternance de clefs et de valeurs.
+     * @return Une nouvelle table avec le contenu donné.
+     */
+    private static <K, V> Map<K, V> map(final K key, final V value) {
+        final HashMap<K, V> map = new HashMap<>();
+        map.put(key, value);
+        return map;
+    }
+
+    /**
+     * Créé une nouvelle table en alternant la clef et la valeur.
+     *
+     * @param arguments Alternance de clefs et de valeurs.
+     * @return Une nouvelle table avec le contenu donné.
+     */
+    private static Map<String, Object> map(final Object... arguments) {
+        final HashMap<String, Object> map = new HashMap<>();
+        for (int index = 0; index < arguments.length; index += 2) {
+            map.put(arguments[index].toString(), arguments[index + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * Donne la valeur textuelle à analyser pour une requête match.
+     *
+     * @param primitive Valeur primitive.
+     * @return La chaîne pour une chaîne ou un nombre, <code>null</code>
+     * sinon.
+     */
+    private static String analyzableValue(JsonPrimitive primitive) {
+        if (primitive.isString()) {
+            return primitive.getAsString();
+        } else if (primitive.isNumber()) {
+            return stringValueForNumber(primitive.getAsNumber());
+        } else {
+            return null;
+        }
+    }
+
+    private static String stringValueFor(Object value) {
+        if (value instanceof Number) {
+            return stringValueForNumber((Number)value);
+        } else {
+            return value != null ? value.toString() : "";
+        }
+    }
+
+    private static String stringValueForNumber(Number number) {
+        final double value = number.doubleValue();
+        if (Math.floor(value) == Math.ceil(value)) {
+            return Long.toString((long)value);
+        } else {
+            return Double.toString((long)value);
+        }
+    }
+
+    private static String globToPatternString(final String queryString) {
+        return queryString
+                .replace(".", "\\.")
+                .replace("[", "\\[")
+                .replace("(", "\\(")
+                .replace("?", ".")
+                .replace("*", ".*");
+    }
+
+    private static void mergeLists(final HashMap<String, List<String>> currentResults, final Map<String, List<String>> newResults) {
+        for (Map.Entry<String, List<String>> entry : newResults.entrySet()) {
+            final List<String> currentValue = currentResults.get(entry.getKey());
+            if (currentValue != null) {
+                currentValue.addAll(entry.getValue());
+            } else {
+                currentResults.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Écriture d'une opération dans un journal.
+     */
+    private static interface TranslogOperation {
+        void writeTo(Translog translog) throws IOException;
+    }
+
+    /**
+     * Index de documents.
+     * <p>
+     * Les écritures sont faites sous <code>writeLock</code>, par un seul
+     * thread à la fois. Les ordinaux sont attribués de manière croissante et
+     * un document n'est jamais modifié : un remplacement ajoute un nouvel
+     * ordinal. Les recherches lisent un <code>Snapshot</code>, publié à la
+     * fin de chaque écriture, et ne prennent jamais le verrou.
+     */
+    private static class Index {
+        final String name;
+        volatile Map<String, FieldMapping> mappings = new HashMap<>();
+        volatile Map<String, Object> settings = new HashMap<>();
+        volatile Map<String, List<String>> copyToFields = new HashMap<>();
+
+        /**
+         * Verrou des écritures. Un lot d'écritures pris avec
+         * <code>lock</code> n'est visible qu'une fois <code>unlock</code>
+         * appelé.
+         */
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        /**
+         * Ordinal des documents actifs, par identifiant. Tenu à jour à chaque
+         * écriture pour la lecture d'un document par son identifiant.
+         */
+        final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+
+        /**
+         * Identifiants des documents, par ordinal.
+         */
+        private volatile String[] identifiers = new String[16];
+
+        /**
+         * Documents, par ordinal. Les documents supprimés ne sont retirés
+         * qu'au compactage, dans un nouveau tableau, les instantanés
+         * existants gardant l'ancien tableau.
+         */
+        private volatile JsonObject[] documents = new JsonObject[16];
+
+        /**
+         * JSON en UTF-8 des documents stockés en mode
+         * <code>compact</code>, par ordinal. La case de
+         * <code>documents</code> d'un tel document est vide.
+         */
+        private volatile byte[][] sources = new byte[16][];
+
+        /**
+         * Adresse plus 1 dans <code>offHeap</code> des documents stockés en
+         * mode <code>off_heap</code>, par ordinal. 0 pour les autres
+         * documents.
+         */
+        private volatile long[] offHeapSources = new long[16];
+
+        /**
+         * Sources stockées hors du tas, créé au premier document stocké en
+         * mode <code>off_heap</code>.
+         */
+        private volatile OffHeapStore offHeap;
+
+        /**
+         * Stockages remplacés par un compactage et encore retenus par un
+         * instantané. Chacun est fermé par son dernier détenteur, ou par
+         * <code>close</code> à la suppression de l'index.
+         */
+        private final Set<OffHeapStore> retiredOffHeaps = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Nombre d'ordinaux attribués. Les ordinaux sont regroupés en
+         * segments de <code>SEGMENT_SIZE</code> documents : seul le dernier
+         * segment reçoit encore des documents, les autres ne changent plus
+         * qu'au travers des suppressions et des compactages.
+         */
+        private int documentCount;
+
+        /**
+         * Ordinaux des documents supprimés ou remplacés. Copié avant la
+         * première modification qui suit la publication d'un instantané.
+         */
+        private BitSet deleted = new BitSet();
+        private boolean deletedShared = true;
+        private int deletedSinceCompaction;
+
+        /**
+         * Nombre de compactages commencés et terminés, impair pendant un
+         * compactage. Une lecture par identifiant, faite sans verrou,
+         * vérifie qu'aucun compactage n'a changé les ordinaux pendant
+         * qu'elle lisait.
+         */
+        private volatile int compactions;
+
+        /**
+         * Termes exacts de chaque champ, pour les requêtes term et terms.
+         */
+        InvertedIndex terms = new InvertedIndex();
+
+        /**
+         * Analyse des champs texte.
+         */
+        Analyzer analyzer = Analyzer.STANDARD;
+
+        /**
+         * Version des mappings et de l'analyseur, changée à chaque
+         * modification de l'un ou de l'autre.
+         */
+        volatile long mappingVersion = MAPPING_VERSIONS.incrementAndGet();
+
+        /**
+         * Termes analysés et leurs positions, pour les requêtes match.
+         */
+        PositionalIndex text = new PositionalIndex();
+
+        /**
+         * Valeurs des champs numériques déclarés dans les mappings.
+         */
+        Map<String, NumericDocValues> numerics = new HashMap<>();
+
+        /**
+         * Valeurs des champs triables, par chemin. Remplacé par des colonnes
+         * renumérotées à chaque compactage.
+         */
+        volatile Map<String, SortedDocValues> sortColumns = new ConcurrentHashMap<>();
+
+        /**
+         * Ordinaux des termes des champs agrégés, par chemin. Remplacé par
+         * des colonnes renumérotées à chaque compactage.
+         */
+        volatile Map<String, KeywordDocValues> keywordColumns = new ConcurrentHashMap<>();
+
+        /**
+         * Génération des documents, augmentée à chaque ajout, remplacement
+         * ou suppression.
+         */
+        private long writeGeneration;
+
+        /**
+         * Réponses des recherches sans résultat, par génération, version
+         * des mappings et forme de la recherche. Vidé à la publication d'un
+         * instantané dont les documents ou les mappings ont changé.
+         */
+        final LruCache<List<Object>, CachedResponse> requestCache;
+
+        private volatile Snapshot snapshot;
+
+        /**
+         * Journal des écritures, ou <code>null</code> si l'index n'est
+         * gardé qu'en mémoire.
+         */
+        volatile Translog translog;
+
+        Index(String name, long requestCacheSize) {
+            this.name = name;
+            this.requestCache = new LruCache<>(requestCacheSize, response -> response.weight);
+            this.snapshot = new Snapshot(this);
+        }
+
+        /**
+         * Donne le dernier instantané publié.
+         *
+         * @return Instantané de l'index.
+         */
+        Snapshot snapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Donne le dernier instantané publié en retenant ses sources hors du
+         * tas : elles restent lisibles après un compactage jusqu'à l'appel
+         * de <code>Snapshot.release</code>.
+         *
+         * @return L'instantané retenu.
+         */
+        Snapshot acquireSnapshot() {
+            while (true) {
+                final Snapshot snapshot = this.snapshot;
+                if (snapshot.retain()) {
+                    return snapshot;
+                }
+                // Stockage abandonné par un compactage : le nouvel
+                // instantané est déjà publié.
+            }
+        }
+
+        /**
+         * Commence un lot d'écritures.
+         */
+        void lock() {
+            writeLock.lock();
+        }
+
+        /**
+         * Termine un lot d'écritures et publie un nouvel instantané si le lot
+         * n'est pas imbriqué dans un autre.
+         * <p>
+         * Avec la durabilité <code>request</code>, les écritures du lot sont
+         * ensuite synchronisées sur disque, hors du verrou pour que les
+         * lots des autres threads partagent la même synchronisation.
+         * <p>
+         * L'instantané est publié avant la synchronisation, comme un
+         * refresh d'Elasticsearch : une recherche concurrente peut voir une
+         * écriture qui n'est pas encore sur disque et qui serait perdue
+         * par un arrêt brutal. L'écrivain, lui, ne rend la main qu'une fois
+         * son écriture synchronisée.
+         */
+        void unlock() {
+            final boolean outermost = writeLock.getHoldCount() == 1;
+            final Translog translog = this.translog;
+            long position = 0;
+            try {
+                if (outermost) {
+                    publish();
+                    if (translog != null) {
+                        position = translog.position();
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            if (outermost && translog != null && !"async".equals(setting(TRANSLOG_DURABILITY))) {
+                try {
+                    translog.sync(position);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * Écrit une opération dans le journal, si l'index en a un. Doit être
+         * appelé pendant une écriture.
+         *
+         * @param operation Écriture de l'opération.
+         */
+        private void log(TranslogOperation operation) {
+            final Translog translog = this.translog;
+            if (translog != null) {
+                try {
+                    operation.writeTo(translog);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void publish() {
+            final OffHeapStore previousOffHeap = offHeap;
+            if (deletedSinceCompaction > documentCount / 4 + 64) {
+                compact();
+            }
+            deletedShared = true;
+            final Snapshot previous = snapshot;
+            snapshot = new Snapshot(this);
+            if (previousOffHeap != null && previousOffHeap != offHeap) {
+                // L'index abandonne l'ancien stockage une fois le nouvel
+                // instantané publié : seuls les instantanés qui le
+                // retiennent encore le gardent ouvert.
+                retiredOffHeaps.add(previousOffHeap);
+                if (previousOffHeap.abandon()) {
+                    retiredOffHeaps.remove(previousOffHeap);
+                }
+            }
+            if (previous.writeGeneration != writeGeneration || previous.mappingVersion != mappingVersion) {
+                requestCache.clear();
+            }
+        }
+
+        /**
+         * Renumérote les documents actifs pour libérer la place des
+         * documents supprimés ou remplacés : les documents, leurs sources,
+         * les index et les colonnes sont recopiés sans eux, en gardant
+         * l'ordre des ordinaux. Doit être appelé pendant une écriture, avant
+         * la publication d'un instantané.
+         * <p>
+         * Les instantanés existants gardent les anciens tableaux et l'ancien
+         * stockage hors du tas. Ce dernier est fermé par
+         * <code>publish</code> ou par le dernier instantané qui le retient.
+         */
+        private void compact() {
+            final int[] newOrdinals = new int[documentCount];
+            int count = 0;
+            for (int ordinal = 0; ordinal < documentCount; ordinal++) {
+                newOrdinals[ordinal] = deleted.get(ordinal) ? -1 : count++;
+            }
+            final int capacity = Math.max(count + (count >> 1), 16);
+            final JsonObject[] compactedDocuments = new JsonObject[capacity];
+            final byte[][] compactedSources = new byte[capacity][];
+            final long[] compactedOffHeapSources = new long[capacity];
+            final String[] compactedIdentifiers = new String[capacity];
+            OffHeapStore compactedOffHeap = null;
+            for (int ordinal = 0; ordinal < documentCount; ordinal++) {
+                final int newOrdinal = newOrdinals[ordinal];
+                if (newOrdinal < 0) {
+                    continue;
+                }
+                compactedDocuments[newOrdinal] = documents[ordinal];
+                compactedSources[newOrdinal] = sources[ordinal];
+                compactedIdentifiers[newOrdinal] = identifiers[ordinal];
+                if (offHeapSources[ordinal] != 0) {
+                    if (compactedOffHeap == null) {
+                        compactedOffHeap = new OffHeapStore();
+                    }
+                    compactedOffHeapSources[newOrdinal] = compactedOffHeap.add(offHeap.get(offHeapSources[ordinal] - 1)) + 1;
+                }
+            }
+            final Map<String, NumericDocValues> compactedNumerics = new HashMap<>();
+            for (final Map.Entry<String, NumericDocValues> column : numerics.entrySet()) {
+                compactedNumerics.put(column.getKey(), column.getValue().compact(newOrdinals));
+            }
+            final Map<String, SortedDocValues> compactedSortColumns = new ConcurrentHashMap<>();
+            for (final Map.Entry<String, SortedDocValues> column : sortColumns.entrySet()) {
+                compactedSortColumns.put(column.getKey(), column.getValue().compact(newOrdinals));
+            }
+            final Map<String, KeywordDocValues> compactedKeywordColumns = new ConcurrentHashMap<>();
+            for (final Map.Entry<String, KeywordDocValues> column : keywordColumns.entrySet()) {
+                compactedKeywordColumns.put(column.getKey(), column.getValue().compact(newOrdinals));
+            }
+            final InvertedIndex compactedTerms = terms.compact(newOrdinals);
+            final PositionalIndex compactedText = text.compact(newOrdinals);
+
+            compactions++;
+            try {
+                for (int ordinal = 0; ordinal < count; ordinal++) {
+                    ordinals.put(compactedIdentifiers[ordinal], ordinal);
+                }
+                documents = compactedDocuments;
+                sources = compactedSources;
+                offHeapSources = compactedOffHeapSources;
+                offHeap = compactedOffHeap;
+                identifiers = compactedIdentifiers;
+                numerics = compactedNumerics;
+                sortColumns = compactedSortColumns;
+                keywordColumns = compactedKeywordColumns;
+                terms = compactedTerms;
+                text = compactedText;
+                documentCount = count;
+                deleted = new BitSet();
+                deletedSinceCompaction = 0;
+            } finally {
+                compactions++;
+            }
+        }
+
+        /**
+         * Lit le dernier état du document donné, y compris pendant un lot
+         * d'écritures.
+         *
+         * @param id Identifiant du document.
+         * @return Le document ou <code>null</code> s'il n'existe pas.
+         */
+        JsonObject get(String id) {
+            return readLatest(id, this::read, Snapshot::document);
+        }
+
+        /**
+         * Lit un document sans prendre le verrou d'écriture.
+         * <p>
+         * Si un compactage renumérote les ordinaux pendant la lecture, le
+         * document est relu dans le dernier instantané publié, dont les
+         * tableaux ne changent pas. Tant que l'ordinal donné par
+         * <code>ordinals</code> ne désigne pas ce document dans
+         * l'instantané, la lecture est refaite : l'attente est bornée par
+         * la durée du compactage et non par celle du lot d'écritures
+         * suivant.
+         *
+         * @param id Identifiant du document.
+         * @param read Lecture depuis l'état courant de l'index.
+         * @param readSnapshot Lecture depuis un instantané, par ordinal.
+         * @return Le résultat de la lecture ou <code>null</code> si le
+         * document n'existe pas.
+         */
+        private <T> T readLatest(String id, Function<String, T> read, BiFunction<Snapshot, Integer, T> readSnapshot) {
+            while (true) {
+                final int compactions = this.compactions;
+                if ((compactions & 1) == 0) {
+                    try {
+                        final T result = read.apply(id);
+                        if (compactions == this.compactions) {
+                            return result;
+                        }
+                    } catch (IllegalStateException e) {
+                        // Stockage hors du tas fermé par le compactage.
+                        if (compactions == this.compactions) {
+                            throw e;
+                        }
+                    }
+                }
+                final Snapshot snapshot = acquireSnapshot();
+                try {
+                    final Integer ordinal = ordinals.get(id);
+                    if (ordinal == null) {
+                        return null;
+                    }
+                    if (snapshot.isIdentifierAt(ordinal, id)) {
+                        return readSnapshot.apply(snapshot, ordinal);
+                    }
+                } finally {
+                    snapshot.release();
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        private JsonObject read(String id) {
+            final Integer ordinal = ordinals.get(id);
+            if (ordinal == null) {
+                return null;
+            }
+            final JsonObject[] documents = this.documents;
+            final byte[][] sources = this.sources;
+            final long[] offHeapSources = this.offHeapSources;
+            return ordinal < documents.length && ordinal < sources.length && ordinal < offHeapSources.length
+                    ? documentOf(documents[ordinal], sources[ordinal], offHeap, offHeapSources[ordinal])
+                    : null;
+        }
+
+        /**
+         * Lit le document à l'ordinal donné. Doit être appelé pendant une
+         * écriture.
+         *
+         * @param ordinal Ordinal du document.
+         * @return Le document, lu depuis son JSON s'il est stocké en mode
+         * <code>compact</code>.
+         */
+        private JsonObject document(int ordinal) {
+            return documentOf(documents[ordinal], sources[ordinal], offHeap, offHeapSources[ordinal]);
+        }
+
+        static JsonObject documentOf(JsonObject document, byte[] source, OffHeapStore offHeap, long offHeapSource) {
+            if (document != null) {
+                return document;
+            }
+            source = sourceOf(source, offHeap, offHeapSource);
+            return source != null
+                    ? JsonParser.parseString(new String(source, StandardCharsets.UTF_8)).getAsJsonObject()
+                    : null;
+        }
+
+        static byte[] sourceOf(byte[] source, OffHeapStore offHeap, long offHeapSource) {
+            return source == null && offHeapSource != 0 ? offHeap.get(offHeapSource - 1) : source;
+        }
+
+        /**
+         * Indique si le document donné existe, sans le lire.
+         *
+         * @param id Identifiant du document.
+         * @return <code>true</code> si le document existe.
+         */
+        boolean contains(String id) {
+            return ordinals.containsKey(id);
+        }
+
+        /**
+         * Lit le JSON du document donné tel qu'il est stocké, sans le
+         * relire, pour le recopier dans une réponse.
+         *
+         * @param id Identifiant du document.
+         * @return Les octets UTF-8 du JSON ou <code>null</code> si le
+         * document n'existe pas ou s'il est gardé en objet.
+         */
+        byte[] storedSource(String id) {
+            return readLatest(id, this::readStoredSource, Snapshot::storedSource);
+        }
+
+        private byte[] readStoredSource(String id) {
+            final Integer ordinal = ordinals.get(id);
+            if (ordinal == null) {
+                return null;
+            }
+            final byte[][] sources = this.sources;
+            final long[] offHeapSources = this.offHeapSources;
+            return ordinal < sources.length && ordinal < offHeapSources.length
+                    ? sourceOf(sources[ordinal], offHeap, offHeapSources[ordinal])
+                    : null;
+        }
+
+        /**
+         * Libère les sources stockées hors du tas. Appelé à la suppression
+         * de l'index.
+         */
+        void close() {
+            final OffHeapStore offHeap = this.offHeap;
+            if (offHeap != null) {
+                offHeap.close();
+            }
+            for (final OffHeapStore retired : retiredOffHeaps) {
+                retired.close();
+            }
+            retiredOffHeaps.clear();
+        }
+
+        /**
+         * Ajoute ou remplace le document donné.
+         * <p>
+         * Un remplacement supprime l'ancien document et ajoute le nouveau avec
+         * un nouvel ordinal pour que les listes de l'index inversé restent
+         * triées. La place de l'ancien document est rendue au prochain
+         * compactage.
+         *
+         * @param id Identifiant du document.
+         * @param document Contenu du document.
+         */
+        void put(String id, JsonObject document) {
+            lock();
+            try {
+                log(translog -> translog.index(id, document));
+                delete(id);
+                final int ordinal = documentCount;
+                if (ordinal == documents.length) {
+                    documents = Arrays.copyOf(documents, ordinal + (ordinal >> 1));
+                    sources = Arrays.copyOf(sources, ordinal + (ordinal >> 1));
+                    offHeapSources = Arrays.copyOf(offHeapSources, ordinal + (ordinal >> 1));
+                    identifiers = Arrays.copyOf(identifiers, ordinal + (ordinal >> 1));
+                }
+                // Avec les modes compact et off_heap, seul le JSON est
+                // gardé : les valeurs des champs sont extraites ci-dessous
+                // dans les index et les colonnes.
+                final Object mode = setting(SOURCE_MODE);
+                if (SOURCE_MODE_COMPACT.equals(mode)) {
+                    sources[ordinal] = document.toString().getBytes(StandardCharsets.UTF_8);
+                } else if (SOURCE_MODE_OFF_HEAP.equals(mode)) {
+                    if (offHeap == null) {
+                        offHeap = new OffHeapStore();
+                    }
+                    offHeapSources[ordinal] = offHeap.add(document.toString().getBytes(StandardCharsets.UTF_8)) + 1;
+                } else {
+                    documents[ordinal] = document;
+                }
+                identifiers[ordinal] = id;
+                documentCount = ordinal + 1;
+                indexDocument(ordinal, document, true);
+                indexNumerics(ordinal, document);
+                for (final Map.Entry<String, SortedDocValues> column : sortColumns.entrySet()) {
+                    column.getValue().set(ordinal, sortValueOf(column.getValue().path(), document));
+                }
+                for (final KeywordDocValues column : keywordColumns.values()) {
+                    column.add(ordinal, document);
+                }
+                ordinals.put(id, ordinal);
+                writeGeneration++;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Remplit l'index, vide, depuis un fichier de segment. Les index et
+         * les colonnes sont lus dans la section des index du fichier, sans
+         * analyser les documents. Leur JSON reste dans le fichier projeté en
+         * mémoire et n'est lu qu'à la demande, comme celui d'un document
+         * stocké en mode <code>off_heap</code> : le premier compactage le
+         * recopie hors du tas.
+         * <p>
+         * Les fichiers sans section des index sont indexés document par
+         * document, comme l'index positionnel écrit avec un autre
+         * analyseur que celui par défaut.
+         *
+         * @param reader Fichier de segment dont les mappings ont été
+         * appliqués à l'index.
+         * @throws IOException En cas d'erreur de lecture.
+         */
+        void load(SegmentFile.Reader reader) throws IOException {
+            lock();
+            try {
+                if (documentCount != 0) {
+                    throw new IllegalStateException("Index [" + name + "] is not empty");
+                }
+                final SegmentFile.Input input = reader.indexes();
+                if (input == null) {
+                    for (int document = 0; document < reader.documentCount(); document++) {
+                        put(reader.id(document), reader.document(document));
+                    }
+                    return;
+                }
+                final int count = reader.documentCount();
+                final int capacity = Math.max(count + (count >> 1), 16);
+                final String[] loadedIdentifiers = new String[capacity];
+                final long[] loadedOffHeapSources = new long[capacity];
+                final OffHeapStore store = new OffHeapStore();
+                final InvertedIndex loadedTerms;
+                final PositionalIndex loadedText;
+                final Map<String, NumericDocValues> loadedNumerics = new HashMap<>();
+                final Map<String, SortedDocValues> loadedSortColumns = new ConcurrentHashMap<>();
+                final Map<String, KeywordDocValues> loadedKeywordColumns = new ConcurrentHashMap<>();
+                try {
+                    final long[] addresses = reader.mapSources(store);
+                    for (int document = 0; document < count; document++) {
+                        loadedIdentifiers[document] = reader.id(document);
+                        loadedOffHeapSources[document] = addresses[document] + 1;
+                    }
+                    loadedTerms = InvertedIndex.readFrom(input);
+                    loadedText = input.readBoolean() ? PositionalIndex.readFrom(input) : null;
+                    for (int column = input.readLength(); column > 0; column--) {
+                        final String field = input.readString();
+                        loadedNumerics.put(field, NumericDocValues.readFrom(input, FieldPath.forField(field)));
+                    }
+                    for (int column = input.readLength(); column > 0; column--) {
+                        final String field = input.readString();
+                        loadedSortColumns.put(field, SortedDocValues.readFrom(input, FieldPath.forField(field)));
+                    }
+                    for (int column = input.readLength(); column > 0; column--) {
+                        final String field = input.readString();
+                        loadedKeywordColumns.put(field, KeywordDocValues.readFrom(input, FieldPath.forField(field)));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    store.close();
+                    throw e;
+                }
+                identifiers = loadedIdentifiers;
+                documents = new JsonObject[capacity];
+                sources = new byte[capacity][];
+                offHeapSources = loadedOffHeapSources;
+                offHeap = store;
+                terms = loadedTerms;
+                text = loadedText != null ? loadedText : new PositionalIndex();
+                numerics = loadedNumerics;
+                sortColumns = loadedSortColumns;
+                keywordColumns = loadedKeywordColumns;
+                for (int ordinal = 0; ordinal < count; ordinal++) {
+                    ordinals.put(loadedIdentifiers[ordinal], ordinal);
+                }
+                documentCount = count;
+                writeGeneration++;
+                if (loadedText == null) {
+                    liveOrdinals().forEach(ordinal -> indexDocument(ordinal, document(ordinal), false));
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Supprime le document donné.
+         *
+         * @param id Identifiant du document.
+         * @return <code>true</code> si le document existait.
+         */
+        boolean remove(String id) {
+            lock();
+            try {
+                if (ordinals.containsKey(id)) {
+                    log(translog -> translog.delete(id));
+                }
+                return delete(id);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Marque le document donné comme supprimé, sans le lire.
+         *
+         * @param id Identifiant du document.
+         * @return <code>true</code> si le document existait.
+         */
+        private boolean delete(String id) {
+            lock();
+            try {
+                final Integer ordinal = ordinals.remove(id);
+                if (ordinal == null) {
+                    return false;
+                }
+                if (deletedShared) {
+                    deleted = (BitSet) deleted.clone();
+                    deletedShared = false;
+                }
+                deleted.set(ordinal);
+                deletedSinceCompaction++;
+                writeGeneration++;
+                return true;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Parcours les documents actifs dans l'ordre des ordinaux. Doit être
+         * appelé pendant une écriture.
+         *
+         * @return Les ordinaux des documents actifs.
+         */
+        private IntStream liveOrdinals() {
+            return IntStream.range(0, documentCount)
+                    .filter(ordinal -> !deleted.get(ordinal));
+        }
+
+        /**
+         * Ajoute au registre la colonne de tri créée par un lecteur, si
+         * aucune écriture n'est en cours. La colonne est d'abord complétée
+         * avec les documents ajoutés depuis l'instantané du lecteur.
+         *
+         * @param columns Colonnes de l'instantané du lecteur. La colonne
+         * n'est pas ajoutée si un compactage les a remplacées.
+         * @param field Chemin du champ.
+         * @param column Colonne remplie jusqu'à l'ordinal <code>from</code>.
+         * @param from Premier ordinal absent de la colonne.
+         */
+        void registerSortColumn(Map<String, SortedDocValues> columns, String field, SortedDocValues column, int from) {
+            if (!writeLock.tryLock()) {
+                return;
+            }
+            try {
+                if (columns != sortColumns) {
+                    return;
+                }
+                for (int ordinal = from; ordinal < documentCount; ordinal++) {
+                    if (!deleted.get(ordinal)) {
+                        column.set(ordinal, sortValueOf(column.path(), document(ordinal)));
+                    }
+                }
+                sortColumns.putIfAbsent(field, column);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Ajoute au registre la colonne de termes créée par un lecteur, si
+         * aucune écriture n'est en cours. La colonne est d'abord complétée
+         * avec les documents ajoutés depuis l'instantané du lecteur.
+         *
+         * @param columns Colonnes de l'instantané du lecteur. La colonne
+         * n'est pas ajoutée si un compactage les a remplacées.
+         * @param field Chemin du champ.
+         * @param column Colonne remplie jusqu'à l'ordinal <code>from</code>.
+         * @param from Premier ordinal absent de la colonne.
+         */
+        void registerKeywordColumn(Map<String, KeywordDocValues> columns, String field, KeywordDocValues column, int from) {
+            if (!writeLock.tryLock()) {
+                return;
+            }
+            try {
+                if (columns != keywordColumns) {
+                    return;
+                }
+                for (int ordinal = from; ordinal < documentCount; ordinal++) {
+                    if (!deleted.get(ordinal)) {
+                        column.add(ordinal, document(ordinal));
+                    }
+                }
+                keywordColumns.putIfAbsent(field, column);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private SortedDocValues createSortColumn(String field) {
+            final SortedDocValues column = new SortedDocValues(FieldPath.forField(field));
+            liveOrdinals().forEach(ordinal -> column.set(ordinal, sortValueOf(column.path(), document(ordinal))));
+            return column;
+        }
+
+        /**
+         * Donne la valeur utilisée pour trier sur le champ donné.
+         *
+         * @param field Chemin du champ.
+         * @param document Document.
+         * @return La valeur si le champ a exactement une valeur primitive,
+         * <code>null</code> sinon.
+         */
+        private static Object sortValueOf(FieldPath field, JsonObject document) {
+            final JsonPrimitive value = field.single(document);
+            return value != null ? getPrimitiveValue(value) : null;
+        }
+
+        /**
+         * Indique si les valeurs du champ donné sont analysées à
+         * l'indexation. C'est le cas des champs de type "text" et des champs
+         * sans mapping.
+         *
+         * @param path Chemin du champ.
+         * @return <code>true</code> si le champ est présent dans
+         * <code>text</code>.
+         */
+        boolean isAnalyzed(String path) {
+            return Snapshot.isAnalyzed(mappings, path);
+        }
+
+        void setAnalyzer(Analyzer analyzer) {
+            lock();
+            try {
+                this.analyzer = analyzer;
+                reindexMappedFields();
+            } finally {
+                unlock();
+            }
+        }
+
+        void setSettings(Map<String, Object> settings) {
+            lock();
+            try {
+                log(translog -> translog.settings(settings));
+                this.settings = settings;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Lit un paramètre de l'index, écrit à plat
+         * (<code>"index.search.parallelism"</code>), sans le préfixe
+         * <code>"index."</code> ou en objets imbriqués.
+         *
+         * @param key Nom complet du paramètre.
+         * @return Valeur du paramètre ou <code>null</code> s'il est absent.
+         */
+        Object setting(String key) {
+            final Map<String, Object> settings = this.settings;
+            if (settings == null) {
+                return null;
+            }
+            for (final String name : new String[] {key, key.substring(key.indexOf('.') + 1)}) {
+                Object value = settings.get(name);
+                if (value != null) {
+                    return value;
+                }
+                value = settings;
+                for (final String part : name.split(Pattern.quote("."))) {
+                    value = value instanceof Map ? ((Map<String, Object>) value).get(part) : null;
+                }
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Donne le nombre maximal de tâches utilisées par une recherche,
+         * configuré par le paramètre <code>index.search.parallelism</code>.
+         * Par défaut, tout le parallélisme de <code>SEARCH_POOL</code>.
+         *
+         * @return Nombre de tâches.
+         */
+        int parallelism() {
+            final Object value = setting(PARALLELISM_SETTING);
+            if (value instanceof Number) {
+                return Math.max(1, ((Number) value).intValue());
+            } else if (value instanceof String) {
+                return Math.max(1, Integer.parseInt((String) value));
+            }
+            return SEARCH_POOL.getParallelism();
+        }
+
+        /**
+         * Donne la fenêtre de résultats maximale des recherches sur cet index,
+         * d'après le paramètre <code>index.max_result_window</code>.
+         *
+         * @return La plus grande valeur autorisée de from + size.
+         */
+        int maxResultWindow() {
+            final Object value = setting(MAX_RESULT_WINDOW_SETTING);
+            if (value instanceof Number) {
+                return ((Number) value).intValue();
+            } else if (value instanceof String) {
+                return Integer.parseInt((String) value);
+            }
+            return DEFAULT_MAX_RESULT_WINDOW;
+        }
+
+        /**
+         * Indique si les recherches peuvent utiliser le cache de l'index,
+         * d'après le paramètre <code>index.requests.cache.enable</code>.
+         *
+         * @return <code>true</code> sauf si le paramètre vaut
+         * <code>false</code>.
+         */
+        boolean isRequestCacheEnabled() {
+            final Object value = setting(REQUEST_CACHE_SETTING);
+            return !(Boolean.FALSE.equals(value) || "false".equals(value));
+        }
+
+        /**
+         * Reconstruit les index qui dépendent des mappings ou de l'analyseur
+         * à partir des documents actifs.
+         */
+        private void reindexMappedFields() {
+            mappingVersion = MAPPING_VERSIONS.incrementAndGet();
+            text = new PositionalIndex();
+            final HashMap<String, NumericDocValues> numerics = new HashMap<>();
+            for (final Map.Entry<String, FieldMapping> mapping : mappings.entrySet()) {
+                if (NUMERIC_TYPES.contains(mapping.getValue().getType())) {
+                    numerics.put(mapping.getKey(), new NumericDocValues(FieldPath.forField(mapping.getKey())));
+                }
+            }
+            this.numerics = numerics;
+            for (final Map.Entry<String, FieldMapping> mapping : mappings.entrySet()) {
+                if (SORTABLE_TYPES.contains(mapping.getValue().getType()) && !sortColumns.containsKey(mapping.getKey())) {
+                    sortColumns.put(mapping.getKey(), createSortColumn(mapping.getKey()));
+                }
+                if ("keyword".equals(mapping.getValue().getType()) && !keywordColumns.containsKey(mapping.getKey())) {
+                    final KeywordDocValues column = new KeywordDocValues(FieldPath.forField(mapping.getKey()));
+                    liveOrdinals().forEach(ordinal -> column.add(ordinal, document(ordinal)));
+                    keywordColumns.put(mapping.getKey(), column);
+                }
+            }
+            liveOrdinals().forEach(ordinal -> {
+                final JsonObject document = document(ordinal);
+                indexDocument(ordinal, document, false);
+                indexNumerics(ordinal, document);
+            });
+        }
+
+        private void indexNumerics(int ordinal, JsonObject document) {
+            for (final NumericDocValues column : numerics.values()) {
+                final double[] values = new double[(int) column.path().sum(document, primitive -> 1.0)];
+                final int[] count = new int[1];
+                column.path().forEach(document, primitive -> {
+                    if (primitive.isNumber()) {
+                        values[count[0]++] = primitive.getAsNumber().doubleValue();
+                    }
+                });
+                column.add(ordinal, count[0] == values.length ? values : Arrays.copyOf(values, count[0]), count[0] == values.length);
+            }
+        }
+
+        /**
+         * Indexe les valeurs primitives du document en suivant les mêmes
+         * règles de parcours que <code>FieldPath</code>.
+         * <p>
+         * Les positions des termes sont regroupées par champ et par terme
+         * avant d'être ajoutées à l'index positionnel, en une fois par
+         * terme.
+         *
+         * @param ordinal Ordinal du document.
+         * @param document Document à indexer.
+         * @param withTerms <code>true</code> pour alimenter aussi
+         * l'index des termes exacts.
+         */
+        private void indexDocument(int ordinal, JsonObject document, boolean withTerms) {
+            final Map<String, Map<String, IntList>> positions = new HashMap<>();
+            indexObject(ordinal, "", document, withTerms, positions);
+            for (final Map.Entry<String, Map<String, IntList>> field : positions.entrySet()) {
+                for (final Map.Entry<String, IntList> term : field.getValue().entrySet()) {
+                    text.add(field.getKey(), term.getKey(), ordinal, term.getValue());
+                }
+            }
+        }
+
+        /**
+         * Indexe les valeurs primitives d'un objet du document.
+         *
+         * @param ordinal Ordinal du document.
+         * @param prefix Chemin de l'objet parcouru, suivi d'un point.
+         * @param object Objet parcouru.
+         * @param withTerms <code>true</code> pour alimenter aussi
+         * l'index des termes exacts.
+         * @param positions Positions des termes analysés, par champ et par
+         * terme.
+         */
+        private void indexObject(int ordinal, String prefix, JsonObject object, boolean withTerms, Map<String, Map<String, IntList>> positions) {
+            for (final Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                final String path = prefix + entry.getKey();
+                final JsonElement value = entry.getValue();
+                if (value.isJsonPrimitive()) {
+                    if (withTerms) {
+                        terms.add(path, stringValueFor(getPrimitiveValue(value)), ordinal);
+                    }
+                    final String analyzable = analyzableValue(value.getAsJsonPrimitive());
+                    if (analyzable != null && isAnalyzed(path)) {
+                        final String[] tokens = analyzer.analyze(analyzable);
+                        final Map<String, IntList> fieldPositions = positions.computeIfAbsent(path, key -> new HashMap<>());
+                        for (int position = 0; position < tokens.length; position++) {
+                            fieldPositions.computeIfAbsent(tokens[position], key -> new IntList()).add(position);
+                        }
+                    }
+                } else if (value.isJsonObject()) {
+                    indexObject(ordinal, path + '.', value.getAsJsonObject(), withTerms, positions);
+                } else if (value.isJsonArray()) {
+                    for (final JsonElement arrayEntry : value.getAsJsonArray()) {
+                        if (arrayEntry != null && arrayEntry.isJsonObject()) {
+                            indexObject(ordinal, path + '.', arrayEntry.getAsJsonObject(), withTerms, positions);
+                        }
+                    }
+                }
+            }
+        }
+
+        public void setMappings(Map<String, FieldMapping> mappings) {
+            lock();
+            try {
+                log(translog -> translog.mappings(mappings));
+                this.mappings = mappings;
+
+                final HashMap<String, List<String>> map = new HashMap<>();
+                for (Map.Entry<String, FieldMapping> mapping : mappings.entrySet()) {
+                    for (final String field : mapping.getValue().copyToFields()) {
+                        List<String> sources = map.get(field);
+                        if (sources == null) {
+                            sources = new ArrayList<>();
+                            map.put(field, sources);
+                        }
+                        sources.add(mapping.getKey());
+                    }
+                }
+                this.copyToFields = map;
+                reindexMappedFields();
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    /**
+     * État d'un index à un instant donné. Les documents ajoutés ou supprimés
+     * après sa création n'y sont pas visibles.
+     */
+    private static final class Snapshot {
+        final Index index;
+        final String name;
+        final Map<String, FieldMapping> mappings;
+        final Map<String, List<String>> copyToFields;
+        final Analyzer analyzer;
+        final long mappingVersion;
+        final long writeGeneration;
+        final InvertedIndex terms;
+        final PositionalIndex text;
+        final Map<String, NumericDocValues> numerics;
+        private final Map<String, SortedDocValues> sortColumns;
+        private final Map<String, KeywordDocValues> keywordColumns;
+
+        private final JsonObject[] documents;
+        private final byte[][] sources;
+        private final long[] offHeapSources;
+        private final OffHeapStore offHeap;
+        private final String[] identifiers;
+        /**
+         * Nombre d'ordinaux visibles.
+         */
+        final int maxOrdinal;
+        private final BitSet deleted;
+        private final int liveCount;
+
+        Snapshot(Index index) {
+            this.index = index;
+            this.name = index.name;
+            this.mappings = index.mappings;
+            this.copyToFields = index.copyToFields;
+            this.analyzer = index.analyzer;
+            this.mappingVersion = index.mappingVersion;
+            this.writeGeneration = index.writeGeneration;
+            this.terms = index.terms;
+            this.text = index.text;
+            this.numerics = index.numerics;
+            this.sortColumns = index.sortColumns;
+            this.keywordColumns = index.keywordColumns;
+            this.documents = index.documents;
+            this.sources = index.sources;
+            this.offHeapSources = index.offHeapSources;
+            this.offHeap = index.offHeap;
+            this.identifiers = index.identifiers;
+            this.maxOrdinal = index.documentCount;
+            this.deleted = index.deleted;
+            this.liveCount = index.ordinals.size();
+        }
+
+        /**
+         * Indique si le document donné est celui stocké à l'ordinal donné.
+         *
+         * @param ordinal Ordinal à vérifier.
+         * @param object Document noté, <code>null</code> pour un document
+         * de cet instantané stocké en mode <code>compact</code>.
+         * @return <code>true</code> si les index de cet instantané décrivent
+         * ce document.
+         */
+        boolean isDocumentAt(int ordinal, JsonObject object) {
+            return ordinal < maxOrdinal && documents[ordinal] == object;
+        }
+
+        /**
+         * Donne le document à noter à l'ordinal donné sans lire le JSON des
+         * documents stockés en mode <code>compact</code>.
+         *
+         * @param ordinal Ordinal du document.
+         * @return Le document, ou <code>null</code> s'il n'est gardé qu'en
+         * JSON : les requêtes le lisent alors avec <code>source</code>
+         * seulement si leurs index ne suffisent pas.
+         */
+        JsonObject storedDocument(int ordinal) {
+            return documents[ordinal];
+        }
+
+        /**
+         * Donne le document noté, en le lisant depuis son JSON s'il n'a été
+         * donné que par son ordinal.
+         *
+         * @param ordinal Ordinal du document.
+         * @param object Document donné à la requête.
+         * @return Le document.
+         */
+        JsonObject source(int ordinal, JsonObject object) {
+            return object != null ? object : document(ordinal);
+        }
+
+        boolean isLive(int ordinal) {
+            return ordinal < maxOrdinal && !deleted.get(ordinal);
+        }
+
+        /**
+         * Retient le stockage hors du tas de cet instantané pour pouvoir
+         * lire ses sources après un compactage.
+         *
+         * @return <code>false</code> si le stockage a déjà été fermé.
+         */
+        boolean retain() {
+            return offHeap == null || offHeap.retain();
+        }
+
+        /**
+         * Relâche le stockage retenu par <code>retain</code>.
+         */
+        void release() {
+            if (offHeap != null && offHeap.abandon()) {
+                index.retiredOffHeaps.remove(offHeap);
+            }
+        }
+
+        /**
+         * Relâche les instantanés donnés.
+         *
+         * @param snapshots Instantanés retenus, éventuellement
+         * <code>null</code>.
+         */
+        static void release(Snapshot[] snapshots) {
+            for (final Snapshot snapshot : snapshots) {
+                if (snapshot != null) {
+                    snapshot.release();
+                }
+            }
+        }
+
+        /**
+         * Indique si le document actif à l'ordinal donné a l'identifiant
+         * donné.
+         *
+         * @param ordinal Ordinal à vérifier.
+         * @param id Identifiant du document.
+         * @return <code>true</code> si l'ordinal désigne ce document dans
+         * cet instantané.
+         */
+        boolean isIdentifierAt(int ordinal, String id) {
+            return isLive(ordinal) && id.equals(identifiers[ordinal]);
+        }
+
+        JsonObject document(int ordinal) {
+            return Index.documentOf(documents[ordinal], sources[ordinal], offHeap, offHeapSources[ordinal]);
+        }
+
+        /**
+         * Donne le JSON du document tel qu'il est stocké, sans le relire.
+         *
+         * @param ordinal Ordinal du document.
+         * @return Les octets UTF-8 du JSON ou <code>null</code> si le
+         * document est gardé en objet.
+         */
+        byte[] storedSource(int ordinal) {
+            return Index.sourceOf(sources[ordinal], offHeap, offHeapSources[ordinal]);
+        }
+
+        String identifier(int ordinal) {
+            return identifiers[ordinal];
+        }
+
+        int size() {
+            return liveCount;
+        }
+
+        /**
+         * Parcours les documents actifs dans l'ordre des ordinaux.
+         *
+         * @return Les ordinaux des documents actifs.
+         */
+        IntStream liveOrdinals() {
+            return IntStream.range(0, maxOrdinal)
+                    .filter(ordinal -> !deleted.get(ordinal));
+        }
+
+        /**
+         * Écrit les index et les colonnes de cet instantané dans un fichier
+         * de segment. Les documents actifs y sont renumérotés dans l'ordre
+         * des ordinaux, comme dans la table des documents du fichier.
+         * <p>
+         * L'index positionnel n'est écrit qu'avec l'analyseur par défaut,
+         * le seul qu'un index relu depuis le fichier connaisse.
+         *
+         * @param output Section des index du fichier.
+         * @throws IOException En cas d'erreur d'écriture.
+         */
+        void writeIndexes(DataOutput output) throws IOException {
+            final int[] newOrdinals = new int[maxOrdinal];
+            int count = 0;
+            for (int ordinal = 0; ordinal < maxOrdinal; ordinal++) {
+                newOrdinals[ordinal] = deleted.get(ordinal) ? -1 : count++;
+            }
+            terms.writeTo(output, newOrdinals);
+            final boolean withText = analyzer == Analyzer.STANDARD;
+            output.writeBoolean(withText);
+            if (withText) {
+                text.writeTo(output, newOrdinals);
+            }
+            output.writeInt(numerics.size());
+            for (final Map.Entry<String, NumericDocValues> column : numerics.entrySet()) {
+                SegmentFile.writeString(output, column.getKey());
+                column.getValue().writeTo(output, newOrdinals);
+            }
+            // Les colonnes de tri et de termes peuvent être ajoutées par un
+            // lecteur pendant l'écriture.
+            final List<Map.Entry<String, SortedDocValues>> sortColumns = new ArrayList<>(this.sortColumns.entrySet());
+            output.writeInt(sortColumns.size());
+            for (final Map.Entry<String, SortedDocValues> column : sortColumns) {
+                SegmentFile.writeString(output, column.getKey());
+                column.getValue().writeTo(output, newOrdinals);
+            }
+            final List<Map.Entry<String, KeywordDocValues>> keywordColumns = new ArrayList<>(this.keywordColumns.entrySet());
+            output.writeInt(keywordColumns.size());
+            for (final Map.Entry<String, KeywordDocValues> column : keywordColumns) {
+                SegmentFile.writeString(output, column.getKey());
+                column.getValue().writeTo(output, newOrdinals);
+            }
+        }
+
+        int segmentCount() {
+            return (maxOrdinal + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        }
+
+        /**
+         * Recherche les documents correspondant à la requête.
+         * <p>
+         * Les segments sont répartis entre au plus <code>parallelism</code>
+         * tâches exécutées dans <code>SEARCH_POOL</code>. Chaque tâche collecte
+         * ses meilleurs résultats puis les collecteurs sont fusionnés.
+         *
+         * @param query Requête analysée pour cet instantané.
+         * @param shard Position de l'index parmi les index de la recherche.
+         * @param parallelism Nombre maximal de tâches.
+         * @param collectors Création d'un collecteur vide.
+         * @return Les résultats collectés.
+         */
+        TopHits search(Query query, int shard, int parallelism, Supplier<TopHits> collectors) {
+            final BitSet candidates = query.candidates(this);
+            final int segmentCount = segmentCount();
+            if (parallelism <= 1 || segmentCount <= 1) {
+                final TopHits topHits = collectors.get();
+                searchSegments(query, candidates, shard, 0, segmentCount, topHits);
+                return topHits;
+            }
+            final int segmentsPerTask = (segmentCount + parallelism - 1) / parallelism;
+            final SegmentSearch task = new SegmentSearch(this, query, candidates, shard, 0, segmentCount, segmentsPerTask, collectors);
+            // Une recherche lancée depuis la recherche d'un autre index est
+            // déjà exécutée dans le pool.
+            return ForkJoinTask.getPool() == SEARCH_POOL
+                    ? task.invoke()
+                    : SEARCH_POOL.invoke(task);
+        }
+
+        /**
+         * Note les documents actifs des segments donnés.
+         *
+         * @param query Requête analysée pour cet instantané.
+         * @param candidates Documents pouvant correspondre ou
+         * <code>null</code> pour noter tous les documents.
+         * @param shard Position de l'index parmi les index de la recherche.
+         * @param fromSegment Premier segment (inclus).
+         * @param toSegment Dernier segment (exclu).
+         * @param topHits Collecteur des résultats.
+         */
+        void searchSegments(Query query, BitSet candidates, int shard, int fromSegment, int toSegment, TopHits topHits) {
+            final int end = Math.min(toSegment * SEGMENT_SIZE, maxOrdinal);
+            int ordinal = fromSegment * SEGMENT_SIZE;
+            while (ordinal < end) {
+                if (candidates != null) {
+                    ordinal = candidates.nextSetBit(ordinal);
+                    if (ordinal < 0 || ordinal >= end) {
+                        return;
+                    }
+                }
+                if (!deleted.get(ordinal)) {
+                    final double score = query.rate(ordinal, documents[ordinal]);
+                    if (score > 0.0) {
+                        topHits.collect(new Hit(this, shard, ordinal, score));
+                    }
+                }
+                ordinal++;
+            }
+        }
+
+        /**
+         * Récupère la colonne des valeurs du champ donné pour le tri. Une
+         * colonne absente est créée depuis cet instantané puis ajoutée à
+         * l'index pour être tenue à jour à chaque ajout.
+         *
+         * @param field Chemin du champ.
+         * @return Valeurs du champ.
+         */
+        SortedDocValues sortValues(String field) {
+            SortedDocValues column = sortColumns.get(field);
+            if (column == null) {
+                column = new SortedDocValues(FieldPath.forField(field));
+                for (int ordinal = deleted.nextClearBit(0); ordinal < maxOrdinal; ordinal = deleted.nextClearBit(ordinal + 1)) {
+                    column.set(ordinal, Index.sortValueOf(column.path(), document(ordinal)));
+                }
+                index.registerSortColumn(sortColumns, field, column, maxOrdinal);
+            }
+            return column;
+        }
+
+        /**
+         * Récupère la colonne des ordinaux de termes du champ donné. Une
+         * colonne absente est créée depuis cet instantané puis ajoutée à
+         * l'index pour être tenue à jour à chaque ajout.
+         *
+         * @param field Chemin du champ, sans le suffixe ".keyword".
+         * @return Termes du champ.
+         */
+        KeywordDocValues keywordValues(String field) {
+            KeywordDocValues column = keywordColumns.get(field);
+            if (column == null) {
+                column = new KeywordDocValues(FieldPath.forField(field));
+                for (int ordinal = deleted.nextClearBit(0); ordinal < maxOrdinal; ordinal = deleted.nextClearBit(ordinal + 1)) {
+                    column.add(ordinal, document(ordinal));
+                }
+                index.registerKeywordColumn(keywordColumns, field, column, maxOrdinal);
+            }
+            return column;
+        }
+
+        /**
+         * Renvoi les ordinaux des documents ayant au moins une des valeurs
+         * données pour le champ donné.
+         *
+         * @param path Chemin du champ, avec ou sans le suffixe ".keyword".
+         * @param values Valeurs normalisées avec <code>stringValueFor</code>.
+         * @return Ordinaux des documents, actifs ou non.
+         */
+        BitSet termCandidates(String path, Collection<String> values) {
+            return terms.union(resolveFields(path), values);
+        }
+
+        /**
+         * Donne les champs réellement stockés pour le chemin donné, en
+         * retirant le suffixe ".keyword" et en suivant les champs "copy to".
+         *
+         * @param path Chemin demandé par une requête.
+         * @return Chemins des champs à lire.
+         */
+        Collection<String> resolveFields(String path) {
+            if (path.endsWith(".keyword")) {
+                path = path.substring(0, path.length() - ".keyword".length());
+            }
+            return copyToFields.containsKey(path)
+                    ? copyToFields.get(path)
+                    : Collections.singleton(path);
+        }
+
+        /**
+         * Compile le chemin d'un champ demandé par une requête, en suivant
+         * les champs "copy to" de cet instantané.
+         *
+         * @param path Chemin du champ, avec ou sans le suffixe ".keyword".
+         * @return Le chemin compilé.
+         */
+        FieldPath fieldPath(String path) {
+            return FieldPath.forField(path, copyToFields);
+        }
+
+        boolean isAnalyzed(String path) {
+            return isAnalyzed(mappings, path);
+        }
+
+        static boolean isAnalyzed(Map<String, FieldMapping> mappings, String path) {
+            final FieldMapping mapping = mappings.get(path);
+            return mapping == null || "text".equals(mapping.getType());
+        }
+
+        List<SearchResponseHit<JsonObject>> search(Query query) {
+            return searchStream(query, 0)
+                    .map(hit -> hit.toResponseHit("_doc"))
+                    .collect(Collectors.toList());
+        }
+
+        Stream<Hit> searchStream(Query query, int shard) {
+            final BitSet candidates = query.candidates(this);
+            final IntStream stream = candidates != null
+                    ? candidates.stream().filter(this::isLive)
+                    : liveOrdinals();
+            return stream
+                    .mapToObj(ordinal -> new Hit(this, shard, ordinal, query.rate(ordinal, documents[ordinal])))
+                    .filter(hit -> hit.score > 0.0);
+        }
+    }
+
+    /**
+     * Document trouvé par une recherche. Le document n'est lu que pour les
+     * résultats renvoyés.
+     */
+    private static final class Hit {
+        /**
+         * Ordre des index de la recherche puis des documents dans chaque
+         * index.
+         */
+        static final Comparator<Hit> DOCUMENT_ORDER = (lhs, rhs) -> {
+            final int shardOrder = Integer.compare(lhs.shard, rhs.shard);
+            return shardOrder != 0 ? shardOrder : Integer.compare(lhs.ordinal, rhs.ordinal);
+        };
+
+        /**
+         * Tri sur le score, du plus grand au plus petit.
+         */
+        static final Comparator<Hit> SCORE_ORDER = (lhs, rhs) -> {
+            final int scoreOrder = Double.compare(rhs.score, lhs.score);
+            return scoreOrder != 0 ? scoreOrder : DOCUMENT_ORDER.compare(lhs, rhs);
+        };
+
+        final Snapshot index;
+        /**
+         * Position de l'index parmi les index de la recherche.
+         */
+        final int shard;
+        final int ordinal;
+        final double score;
+
+        /**
+         * Document, lu à la première demande.
+         */
+        private JsonObject source;
+
+        Hit(Snapshot index, int shard, int ordinal, double score) {
+            this.index = index;
+            this.shard = shard;
+            this.ordinal = ordinal;
+            this.score = score;
+        }
+
+        JsonObject source() {
+            if (source == null) {
+                source = index.document(ordinal);
+            }
+            return source;
+        }
+
+        SearchResponseHit<JsonObject> toResponseHit(String docType) {
+            return new SearchResponseHit<>(index.name, docType, index.identifier(ordinal), score, source());
+        }
+    }
+
+    /**
+     * Tri des résultats selon des champs triables ou le score, puis selon
+     * l'ordre des documents.
+     * <p>
+     * Les valeurs de tri d'un résultat sont renvoyées dans la réponse et
+     * redonnées par search_after pour reprendre la recherche après ce
+     * résultat.
+     */
+    private static final class HitSort implements Comparator<Hit> {
+        private static final String SCORE = "_score";
+
+        private final int fieldCount;
+        private final int[] orders;
+
+        /**
+         * Colonne de chaque champ par index, <code>null</code> pour le
+         * score.
+         */
+        private final SortedDocValues[][] columns;
+        private final SortedDocValues.Ranking[][] rankings;
+
+        /**
+         * Ajoute la position du document aux valeurs de tri, comme
+         * <code>_shard_doc</code>, pour départager les résultats de même
+         * valeur.
+         */
+        private final boolean tiebreaker;
+
+        /**
+         * Crée le tri.
+         *
+         * @param sort Champs et ordres demandés ou <code>null</code> pour
+         * trier sur le score.
+         * @param indexes Instantanés interrogés.
+         * @param tiebreaker <code>true</code> pour ajouter la position du
+         * document aux valeurs de tri.
+         */
+        HitSort(List<Map<String, Map<String, String>>> sort, Snapshot[] indexes, boolean tiebreaker) {
+            if (sort == null) {
+                sort = Collections.singletonList(Collections.singletonMap(SCORE, Collections.emptyMap()));
+            }
+            this.fieldCount = sort.size();
+            this.orders = new int[fieldCount];
+            this.columns = new SortedDocValues[indexes.length][fieldCount];
+            this.rankings = new SortedDocValues.Ranking[indexes.length][fieldCount];
+            this.tiebreaker = tiebreaker;
+            for (int field = 0; field < fieldCount; field++) {
+                final Map.Entry<String, Map<String, String>> entry = sort.get(field).entrySet().iterator().next();
+                final String order = entry.getValue().get("order");
+                if (SCORE.equals(entry.getKey())) {
+                    orders[field] = "asc".equalsIgnoreCase(order) ? 1 : -1;
+                    continue;
+                }
+                orders[field] = "desc".equalsIgnoreCase(order) ? -1 : 1;
+                for (int shard = 0; shard < indexes.length; shard++) {
+                    columns[shard][field] = indexes[shard].sortValues(entry.getKey());
+                    rankings[shard][field] = columns[shard][field].ranking(indexes[shard].maxOrdinal);
+                }
+            }
+        }
+
+        @Override
+        public int compare(Hit lhs, Hit rhs) {
+            for (int field = 0; field < fieldCount; field++) {
+                final int order = orders[field];
+                final SortedDocValues leftColumn = columns[lhs.shard][field];
+                if (leftColumn == null) {
+                    final int scoreOrder = Double.compare(lhs.score, rhs.score);
+                    if (scoreOrder != 0) {
+                        return scoreOrder * order;
+                    }
+                    continue;
+                }
+                final SortedDocValues rightColumn = columns[rhs.shard][field];
+
+                final int[] leftRanks = rankings[lhs.shard][field].ranks;
+                final int[] rightRanks = rankings[rhs.shard][field].ranks;
+                if (leftRanks == rightRanks) {
+                    // Même index : comparaison des rangs.
+                    final int leftRank = lhs.ordinal < leftRanks.length ? leftRanks[lhs.ordinal] : SortedDocValues.MISSING;
+                    final int rightRank = rhs.ordinal < rightRanks.length ? rightRanks[rhs.ordinal] : SortedDocValues.MISSING;
+                    if (leftRank == rightRank) {
+                        continue;
+                    }
+                    if (leftRank == SortedDocValues.MISSING) {
+                        return order;
+                    }
+                    if (rightRank == SortedDocValues.MISSING) {
+                        return -order;
+                    }
+                    return Integer.compare(leftRank, rightRank) * order;
+                }
 
-        return object -> {
-            double score = shouldQueries.isEmpty() ? 1.0 : 0.0;
-            for (final Query subQuery : mustQueries) {
-                final double subScore = subQuery.rate(object);
-                if (subScore <= 0.0) {
-                    return 0.0;
+                final int valueOrder = compareValues(leftColumn.value(lhs.ordinal), rightColumn.value(rhs.ordinal), order);
+                if (valueOrder != 0) {
+                    return valueOrder;
                 }
-                score += subScore;
             }
-            for (final Query subQuery : mustNotQueries) {
-                final double subScore = subQuery.rate(object);
-                if (subScore > 0.0) {
-                    return 0.0;
-                }
-                score += subScore;
+            return Hit.DOCUMENT_ORDER.compare(lhs, rhs);
+        }
+
+        /**
+         * Donne les valeurs de tri d'un résultat.
+         *
+         * @param hit Résultat.
+         * @return Valeur de chaque champ, puis position du document si le
+         * tri est départagé.
+         */
+        Object[] values(Hit hit) {
+            final Object[] values = new Object[tiebreaker ? fieldCount + 1 : fieldCount];
+            for (int field = 0; field < fieldCount; field++) {
+                final SortedDocValues column = columns[hit.shard][field];
+                values[field] = column != null ? column.value(hit.ordinal) : (Object) hit.score;
             }
-            for (final Query subQuery : shouldQueries) {
-                score += subQuery.rate(object);
+            if (tiebreaker) {
+                values[fieldCount] = shardDoc(hit.shard, hit.ordinal);
             }
-            return score;
-        };
-    }
+            return values;
+        }
 
-    private static Query createMatchQuery(final Map<String, Object> match, final Index index) {
-        final Map.Entry<String, Object> entry = match.entrySet().iterator().next();
-        final String path = entry.getKey();
-        final String queryString;
-        if (entry.getValue() instanceof String) {
-            queryString = (String) entry.getValue();
-        } else if (entry.getValue() instanceof Map) {
-            queryString = (String) ((Map<String, Object>) entry.getValue()).get("query");
-        } else {
-            queryString = null;
+        /**
+         * Lit les valeurs de search_after.
+         *
+         * @param searchAfter Valeurs lues depuis la requête.
+         * @return Valeurs comparables à celles des colonnes.
+         * @throws IllegalArgumentException Si le nombre de valeurs ne
+         * correspond pas au tri.
+         */
+        Object[] parseSearchAfter(List<Object> searchAfter) {
+            if (searchAfter.size() != fieldCount && !(tiebreaker && searchAfter.size() == fieldCount + 1)) {
+                throw new IllegalArgumentException("search_after has " + searchAfter.size() + " value(s) but sort has " + (tiebreaker ? fieldCount + 1 : fieldCount) + ".");
+            }
+            final Object[] values = new Object[searchAfter.size()];
+            for (int index = 0; index < values.length; index++) {
+                final Object value = searchAfter.get(index);
+                values[index] = value instanceof Number ? (Object) ((Number) value).doubleValue() : value;
+            }
+            return values;
         }
-        final String[] query = queryString != null
-                ? queryString.toLowerCase().split(" ")
-                : new String[0];
-        return object -> {
-            if (queryString == null || queryString.isEmpty()) {
-                return 0.0;
+
+        /**
+         * Compare un résultat aux valeurs de search_after.
+         *
+         * @param hit Résultat.
+         * @param after Valeurs lues par <code>parseSearchAfter</code>.
+         * @return Un nombre positif si le résultat vient après les valeurs.
+         */
+        int compareToSearchAfter(Hit hit, Object[] after) {
+            for (int field = 0; field < fieldCount; field++) {
+                final SortedDocValues column = columns[hit.shard][field];
+                final int order = column != null
+                        ? compareValues(column.value(hit.ordinal), after[field], orders[field])
+                        : Double.compare(hit.score, ((Number) after[field]).doubleValue()) * orders[field];
+                if (order != 0) {
+                    return order;
+                }
+            }
+            if (after.length > fieldCount) {
+                return Long.compare(shardDoc(hit.shard, hit.ordinal), ((Number) after[fieldCount]).longValue());
             }
+            return 0;
+        }
 
-            final Collection<JsonPrimitive> primitives = getPrimitivesAtPath(path, object, index);
+        /**
+         * Indique si les résultats peuvent être lus dans l'ordre du tri
+         * avec <code>seek</code> : le tri porte sur un seul champ triable.
+         *
+         * @return <code>true</code> si <code>seek</code> est utilisable.
+         */
+        boolean isSeekable() {
+            return fieldCount == 1 && (columns.length == 0 || columns[0][0] != null);
+        }
 
-            double score = 0.0;
-            for (final JsonPrimitive primitive : primitives) {
-                final String primitiveValue;
-                if (primitive.isString()) {
-                    primitiveValue = primitive.getAsString().toLowerCase();
-                } else if (primitive.isNumber()) {
-                    primitiveValue = stringValueForNumber(primitive.getAsNumber());
+        /**
+         * Parcourt les documents d'un instantané dans l'ordre du tri, à
+         * partir des valeurs de search_after, jusqu'à ce que le collecteur
+         * soit plein. Seuls les documents parcourus sont notés.
+         *
+         * @param index Instantané interrogé.
+         * @param shard Position de l'index parmi les index de la recherche.
+         * @param query Requête analysée pour cet instantané.
+         * @param after Valeurs de search_after ou <code>null</code> pour
+         * commencer au début.
+         * @param topHits Collecteur des résultats, dont la capacité donne le
+         * nombre de résultats cherchés.
+         */
+        void seek(Snapshot index, int shard, Query query, Object[] after, TopHits topHits) {
+            final SortedDocValues.Ranking ranking = rankings[shard][0];
+            final int order = orders[0];
+            // Groupes des documents de même rang dans l'ordre du tri : le
+            // groupe "missing" contient les documents sans valeur, placés à
+            // la fin dans l'ordre croissant et au début sinon.
+            final int missing = ranking.values.length;
+            int group = order > 0 ? 0 : missing;
+            int skippedOrdinals = -1;
+            if (after != null) {
+                final Object value = after[0];
+                final int rank = value != null ? ranking.rankOf(value) : missing;
+                if (rank >= 0) {
+                    group = rank;
+                    // Dans le groupe de la valeur, seuls les documents
+                    // placés après la position donnée sont gardés.
+                    skippedOrdinals = Integer.MAX_VALUE;
+                    if (after.length > 1) {
+                        final long position = ((Number) after[1]).longValue();
+                        final int positionShard = (int) (position >>> 32);
+                        skippedOrdinals = shard < positionShard ? Integer.MAX_VALUE
+                                : shard > positionShard ? -1
+                                : (int) position;
+                    }
+                } else if (order > 0) {
+                    group = -rank - 1;
                 } else {
-                    continue;
+                    group = -rank - 2;
+                    if (group < 0) {
+                        return;
+                    }
                 }
-                final String[] fieldValues = primitiveValue.split(" ");
-
-                double term = 1.0;
-                for (final String part : query) {
-                    double distance = term;
-                    for (final String fieldValue : fieldValues) {
-                        if (fieldValue.equals(part)) {
-                            score += distance;
+            }
+            final BitSet candidates = query.candidates(index);
+            final int capacity = topHits.capacity;
+            int found = 0;
+            while (found < capacity) {
+                final int start = ranking.rankStarts[group];
+                final int end = ranking.rankStarts[group + 1];
+                for (int position = start; position < end && found < capacity; position++) {
+                    final int ordinal = ranking.sortedOrdinals[position];
+                    if (ordinal > skippedOrdinals && accept(index, shard, query, candidates, ordinal, topHits)) {
+                        found++;
+                    }
+                }
+                if (group == missing) {
+                    // Documents ajoutés après le calcul du classement.
+                    final int firstOrdinal = skippedOrdinals == Integer.MAX_VALUE
+                            ? index.maxOrdinal
+                            : Math.max(ranking.ranks.length, skippedOrdinals + 1);
+                    for (int ordinal = firstOrdinal; ordinal < index.maxOrdinal && found < capacity; ordinal++) {
+                        if (accept(index, shard, query, candidates, ordinal, topHits)) {
+                            found++;
                         }
-                        distance = distance * 0.9;
                     }
-                    term = term * 0.9;
+                }
+                skippedOrdinals = -1;
+                if (order > 0) {
+                    if (group == missing) {
+                        return;
+                    }
+                    group++;
+                } else {
+                    group = group == missing ? missing - 1 : group - 1;
+                    if (group < 0) {
+                        return;
+                    }
                 }
             }
-            return score;
-        };
-    }
+        }
 
-    private static Query createWildcardQuery(final Map<String, Object> wildcard, final Index index) {
-        final Map.Entry<String, Object> entry = wildcard.entrySet().iterator().next();
-        final String path = entry.getKey();
-        final String queryString;
-        if (entry.getValue() instanceof String) {
-            queryString = (String) entry.getValue();
-        } else if (entry.getValue() instanceof Map) {
-            queryString = (String) ((Map<String, Object>) entry.getValue()).get("value");
-        } else {
-            queryString = "";
+        private static boolean accept(Snapshot index, int shard, Query query, BitSet candidates, int ordinal, TopHits topHits) {
+            if (!index.isLive(ordinal) || (candidates != null && !candidates.get(ordinal))) {
+                return false;
+            }
+            final double score = query.rate(ordinal, index.storedDocument(ordinal));
+            if (score <= 0.0) {
+                return false;
+            }
+            topHits.collect(new Hit(index, shard, ordinal, score));
+            return true;
         }
-        final Pattern pattern = Pattern.compile(globToPatternString(queryString));
-        return object -> {
-            final Collection<JsonPrimitive> primitives = getPrimitivesAtPath(path, object, index);
 
-            double score = 0.0;
-            for (final JsonPrimitive primitive : primitives) {
-                if (!primitive.isString()) {
-                    continue;
-                }
-                final String fieldValue = primitive.getAsString().toLowerCase();
+        private static long shardDoc(int shard, int ordinal) {
+            return ((long) shard << 32) | ordinal;
+        }
 
-                if (pattern.matcher(fieldValue).matches()) {
-                    score += 1.0;
-                }
+        /**
+         * Compare deux valeurs de tri, les valeurs absentes à la fin dans
+         * l'ordre croissant.
+         */
+        private static int compareValues(Object leftValue, Object rightValue, int order) {
+            if (leftValue == null) {
+                return rightValue == null ? 0 : order;
             }
-            return score;
-        };
+            if (rightValue == null) {
+                return -order;
+            }
+            if (leftValue.equals(rightValue)) {
+                return 0;
+            }
+            return SortedDocValues.VALUE_ORDER.compare(leftValue, rightValue) * order;
+        }
     }
 
-    private static Query createTermQuery(final Map<String, Object> term, final Index index) {
-        final Map.Entry<String, Object> entry = term.entrySet().iterator().next();
-        final Object query;
-        final double boost;
-        if (entry.getValue() instanceof Map) {
-            final Map<String, Object> value = (Map<String, Object>) entry.getValue();
-            query = value.get("value");
-            boost = ((Number)value.getOrDefault("boost", 1)).doubleValue();
-        } else {
-            query = entry.getValue();
-            boost = 1.0;
+    /**
+     * Collecte des résultats d'une recherche : compte tous les résultats
+     * mais ne conserve que les meilleurs selon l'ordre donné.
+     */
+    private static final class TopHits {
+        private static final int INITIAL_QUEUE_CAPACITY = 1024;
+
+        private final Comparator<Hit> order;
+        /**
+         * Nombre de résultats conservés, négatif pour tous les conserver.
+         */
+        private final int capacity;
+        /**
+         * Meilleurs résultats, le moins bon en tête.
+         */
+        private final PriorityQueue<Hit> queue;
+        /**
+         * Tous les résultats, seulement si <code>keepAll</code> vaut
+         * <code>true</code>.
+         */
+        final List<Hit> allHits;
+        /**
+         * Condition pour qu'un résultat compté soit conservé, par exemple
+         * être après les valeurs de search_after, ou <code>null</code>.
+         */
+        private final Predicate<Hit> kept;
+        /**
+         * Collecteurs des agrégations calculées segment par segment, un par
+         * agrégation dans l'ordre de la requête.
+         */
+        final AggregationCollector[] aggregations;
+        int total;
+
+        TopHits(Comparator<Hit> order, int capacity, boolean keepAll) {
+            this(order, capacity, keepAll, null, Collections.emptyList());
         }
-        final String queryAsString = stringValueFor(query);
-        return object -> {
-            if (query == null) {
-                return 0.0;
+
+        TopHits(Comparator<Hit> order, int capacity, boolean keepAll, Predicate<Hit> kept, Collection<CollectedAggregation> aggregations) {
+            this.order = order;
+            this.capacity = capacity;
+            // La file grandit avec les résultats : une grande page ne coûte
+            // rien aux tâches qui en trouvent peu.
+            this.queue = capacity > 0 ? new PriorityQueue<>(Math.min(capacity, INITIAL_QUEUE_CAPACITY), order.reversed()) : null;
+            this.allHits = keepAll || capacity < 0 ? new ArrayList<>() : null;
+            this.kept = kept;
+            this.aggregations = new AggregationCollector[aggregations.size()];
+            int index = 0;
+            for (final CollectedAggregation aggregation : aggregations) {
+                this.aggregations[index++] = aggregation.collector();
             }
+        }
 
-            final Collection<JsonPrimitive> primitives = getPrimitivesAtPath(entry.getKey(), object, index);
+        void collect(Hit hit) {
+            total++;
+            if (allHits != null) {
+                allHits.add(hit);
+            }
+            for (final AggregationCollector aggregation : aggregations) {
+                aggregation.collect(hit);
+            }
+            if (kept == null || kept.test(hit)) {
+                offer(hit);
+            }
+        }
 
-            double score = 0.0;
-            for (final JsonPrimitive primitive : primitives) {
-                final Object fieldValue = getPrimitiveValue(primitive);
-                if (fieldValue.equals(query)) {
-                    score += 1.0;
-                } else if (stringValueFor(fieldValue).equals(queryAsString)) {
-                    score += 0.8;
+        /**
+         * Ajoute les résultats collectés par un autre collecteur, par exemple
+         * sur un autre segment.
+         *
+         * @param other Collecteur créé avec le même ordre et la même
+         * capacité.
+         */
+        void merge(TopHits other) {
+            total += other.total;
+            if (allHits != null) {
+                allHits.addAll(other.allHits);
+            }
+            for (int index = 0; index < aggregations.length; index++) {
+                aggregations[index].merge(other.aggregations[index]);
+            }
+            if (other.queue != null) {
+                for (final Hit hit : other.queue) {
+                    offer(hit);
                 }
             }
-            return score * boost;
-        };
-    }
-
-    private static Query createTermsQuery(final Map<String, Object> terms, final Index index) {
-        final Object boostValue = terms.remove("boost");
-        final double boost = boostValue instanceof Number ? ((Number)boostValue).doubleValue() : 1.0;
+        }
 
-        final Map.Entry<String, Object> entry = terms.entrySet().iterator().next();
-        final List<Object> queries = Optional.ofNullable((List<Object>) entry.getValue()).orElse(Collections.emptyList());
-        final List<String> stringQueries = queries.stream()
-                .map(Notela::stringValueFor)
-                .collect(Collectors.toList());
-        return object -> {
-            if (queries.isEmpty()) {
-                return 0.0;
+        private void offer(Hit hit) {
+            if (queue == null) {
+                return;
             }
+            if (queue.size() < capacity) {
+                queue.add(hit);
+            } else if (order.compare(hit, queue.peek()) < 0) {
+                queue.poll();
+                queue.add(hit);
+            }
+        }
 
-            final Collection<JsonPrimitive> primitives = getPrimitivesAtPath(entry.getKey(), object, index);
-
-            double score = 0.0;
-            for (final JsonPrimitive primitive : primitives) {
-                final Object fieldValue = getPrimitiveValue(primitive);
-                for (int i = 0; i < queries.size(); i++) {
-                    final Object query = queries.get(i);
-                    final String queryAsString = stringQueries.get(i);
-                    if (fieldValue.equals(query)) {
-                        score += 1.0;
-                    } else if (stringValueFor(fieldValue).equals(queryAsString)) {
-                        score += 0.8;
-                    }
+        /**
+         * Fusionne des listes de résultats déjà triées en ne parcourant que
+         * les premiers éléments de chaque liste.
+         *
+         * @param sortedHits Listes triées selon <code>order</code>.
+         * @param order Ordre des résultats.
+         * @param capacity Nombre de résultats à garder, négatif pour tous les
+         * garder.
+         * @return Les meilleurs résultats, triés.
+         */
+        static List<Hit> mergeSorted(List<List<Hit>> sortedHits, Comparator<Hit> order, int capacity) {
+            if (sortedHits.size() == 1) {
+                return sortedHits.get(0);
+            }
+            int count = 0;
+            for (final List<Hit> hits : sortedHits) {
+                count += hits.size();
+            }
+            if (capacity >= 0) {
+                count = Math.min(count, capacity);
+            }
+            // Position courante dans chaque liste, classées selon leur
+            // résultat courant.
+            final int[] positions = new int[sortedHits.size()];
+            final PriorityQueue<Integer> lists = new PriorityQueue<>(Math.max(1, sortedHits.size()),
+                    (lhs, rhs) -> order.compare(sortedHits.get(lhs).get(positions[lhs]), sortedHits.get(rhs).get(positions[rhs])));
+            for (int list = 0; list < sortedHits.size(); list++) {
+                if (!sortedHits.get(list).isEmpty()) {
+                    lists.add(list);
                 }
             }
-            return score * boost;
-        };
-    }
-
-    private static Query createExistsQuery(final Map<String, Object> exists, final Index index) {
-        final String path = (String)exists.get("field");
-        if (path == null) {
-            throw new IllegalArgumentException("[exists] requires 'field' field");
-        }
-        final FieldMapping mapping = index.mappings.get(path);
-        if (mapping != null) {
-            if (FieldMapping.TYPE_NESTED.equals(mapping.getType())) {
-                return object -> 0.0;
+            final ArrayList<Hit> merged = new ArrayList<>(count);
+            while (merged.size() < count) {
+                final int list = lists.poll();
+                merged.add(sortedHits.get(list).get(positions[list]));
+                positions[list]++;
+                if (positions[list] < sortedHits.get(list).size()) {
+                    lists.add(list);
+                }
             }
-        } else {
-            LOGGER.warn("Mapping for field '", path, "' of index '", index.name, "' has not been found, exists query may be incoherent with Elasticsearch.");
+            return merged;
         }
-        return object -> {
-            final String fieldName = getLeafName(path);
-            final Collection<JsonObject> nodes = getNodesBeforeLeaf(path, object);
 
-            double score = 0.0;
-            for (final JsonObject node : nodes) {
-                if (node.has(fieldName)) {
-                    score += 1.0;
-                }
+        /**
+         * Donne les résultats conservés, triés.
+         *
+         * @return Les résultats conservés.
+         */
+        List<Hit> sortedHits() {
+            final List<Hit> hits;
+            if (capacity < 0) {
+                hits = allHits;
+            } else if (queue != null) {
+                hits = new ArrayList<>(queue);
+            } else {
+                return Collections.emptyList();
             }
-            return score;
-        };
+            hits.sort(order);
+            return hits;
+        }
     }
 
-    private static Query createNestedQuery(final Map<String, Object> nested, final Index index) {
-        final String path = (String) nested.get("path");
-        if (path == null) {
-            throw new IllegalArgumentException("[nested] requires 'path' field");
-        }
-        final Map<String, Map<String, Object>> query = (Map<String, Map<String, Object>>) nested.get("query");
-        if (query == null) {
-            throw new IllegalArgumentException("[nested] requires 'query' field");
+    /**
+     * Recherche dans une suite de segments d'un instantané. La suite est
+     * découpée en deux tant qu'elle contient plus de
+     * <code>segmentsPerTask</code> segments, puis les résultats des deux
+     * moitiés sont fusionnés.
+     * <p>
+     * Un segment n'est ici qu'une plage d'ordinaux de l'instantané (voir
+     * <code>SEGMENT_SIZE</code>) : les tâches lisent les mêmes index et
+     * colonnes, chacune sur sa plage.
+     */
+    private static final class SegmentSearch extends RecursiveTask<TopHits> {
+        private static final long serialVersionUID = 1L;
+
+        private final Snapshot snapshot;
+        private final Query query;
+        private final BitSet candidates;
+        private final int shard;
+        private final int fromSegment;
+        private final int toSegment;
+        private final int segmentsPerTask;
+        private final Supplier<TopHits> collectors;
+
+        SegmentSearch(Snapshot snapshot, Query query, BitSet candidates, int shard, int fromSegment, int toSegment, int segmentsPerTask, Supplier<TopHits> collectors) {
+            this.snapshot = snapshot;
+            this.query = query;
+            this.candidates = candidates;
+            this.shard = shard;
+            this.fromSegment = fromSegment;
+            this.toSegment = toSegment;
+            this.segmentsPerTask = segmentsPerTask;
+            this.collectors = collectors;
         }
-        final FieldMapping mapping = index.mappings.get(path);
-        if (mapping != null) {
-            if (!FieldMapping.TYPE_NESTED.equals(mapping.getType())) {
-                throw new IllegalArgumentException("[nested] failed to find nested object under path [" + path + "]");
+
+        @Override
+        protected TopHits compute() {
+            if (toSegment - fromSegment <= segmentsPerTask) {
+                final TopHits topHits = collectors.get();
+                snapshot.searchSegments(query, candidates, shard, fromSegment, toSegment, topHits);
+                return topHits;
             }
-        } else {
-            LOGGER.warn("Mapping for path '", path, "' of index '", index.name, "' has not been found missing, nested query may be incoherent with Elasticsearch.");
+            final int middle = (fromSegment + toSegment) >>> 1;
+            final SegmentSearch right = new SegmentSearch(snapshot, query, candidates, shard, middle, toSegment, segmentsPerTask, collectors);
+            right.fork();
+            final TopHits topHits = new SegmentSearch(snapshot, query, candidates, shard, fromSegment, middle, segmentsPerTask, collectors).compute();
+            topHits.merge(right.join());
+            return topHits;
         }
-        final Index nestedIndex = new Index();
-        nestedIndex.mappings = new HashMap<>(index.mappings);
-        nestedIndex.mappings.put(path, FieldMapping.ofType("inside"));
-        return parseQuery(query, nestedIndex);
     }
 
-    private static Query createRangeQuery(final Map<String, Object> range, final Index index) {
-        final Map.Entry<String, Object> entry = range.entrySet().iterator().next();
-        final Map<String, Object> parameters = ((Map<String, Object>) entry.getValue());
-        final Object greaterThanOrEquals = parameters.get("gte");
-        final Object lessThanOrEquals = parameters.get("lte");
-
-        return object -> {
-            final Collection<JsonPrimitive> primitives = getPrimitivesAtPath(entry.getKey(), object, index);
+    private static List<SearchResponseHit<JsonObject>> toResponseHits(List<Hit> hits, String docType) {
+        return toResponseHits(hits, docType, null);
+    }
 
-            double score = 0.0;
-            for (final JsonPrimitive primitive : primitives) {
-                if (primitive.isNumber()) {
-                    final Number value = primitive.getAsNumber();
-                    int passed = 0;
-                    int total = 0;
-                    if (greaterThanOrEquals instanceof Number) {
-                        total++;
-                        passed += value.doubleValue() >= ((Number) greaterThanOrEquals).doubleValue() ? 1 : 0;
-                    }
-                    if (lessThanOrEquals instanceof Number) {
-                        total++;
-                        passed += value.doubleValue() <= ((Number) lessThanOrEquals).doubleValue() ? 1 : 0;
-                    }
-                    score += passed == total ? 1.0 : 0.0;
-                }
-                else if (primitive.isString()) {
-                    LOGGER.warn("Range sur les dates pas encore supporté");
-                }
-            }
-            return score;
-        };
+    /**
+     * Crée les résultats de la réponse.
+     *
+     * @param hits Résultats de la recherche.
+     * @param docType Type des documents.
+     * @param sort Tri des résultats, dont les valeurs sont ajoutées à
+     * chaque résultat, ou <code>null</code>.
+     * @return Les résultats de la réponse.
+     */
+    private static List<SearchResponseHit<JsonObject>> toResponseHits(List<Hit> hits, String docType, HitSort sort) {
+        final ArrayList<SearchResponseHit<JsonObject>> responseHits = new ArrayList<>(hits.size());
+        for (final Hit hit : hits) {
+            responseHits.add(sort != null
+                    ? new SortedSearchResponseHit(hit, docType, sort.values(hit))
+                    : hit.toResponseHit(docType));
+        }
+        return responseHits;
     }
 
-    private static Comparator<SearchResponseHit<JsonObject>> parseSort(final List<Map<String, Map<String, String>>> sort) {
-        return (lhs, rhs) -> {
-            for (final Map<String, Map<String, String>> sortEntry : sort) {
-                final Map.Entry<String, Map<String, String>> entry = sortEntry.entrySet().iterator().next();
-                final String key = entry.getKey();
-                final int order = "desc".equalsIgnoreCase(entry.getValue().get("order")) ? -1 : 1;
+    /**
+     * Écrit les instances des sous-classes d'une classe avec tous leurs
+     * champs, même quand elles sont déclarées avec un type générique comme
+     * <code>List&lt;SearchResponseHit&lt;JsonObject&gt;&gt;</code>, pour
+     * lequel GSON n'utilise que les champs de la classe déclarée.
+     */
+    private static final class SubclassAdapterFactory implements TypeAdapterFactory {
+        private final Class<?> baseClass;
 
-                final List<JsonPrimitive> leftValues = getPrimitivesAtPath(key, lhs.getSource(), null);
-                final List<JsonPrimitive> rightValues = getPrimitivesAtPath(key, rhs.getSource(), null);
+        SubclassAdapterFactory(Class<?> baseClass) {
+            this.baseClass = baseClass;
+        }
 
-                final Object leftValue = leftValues.size() == 1 ? getPrimitiveValue(leftValues.get(0)) : null;
-                final Object rightValue = rightValues.size() == 1 ? getPrimitiveValue(rightValues.get(0)) : null;
-                if (leftValue == null) {
-                    if (rightValue == null) {
-                        continue;
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != baseClass) {
+                return null;
+            }
+            final TypeAdapter<T> declaredAdapter = gson.getDelegateAdapter(this, type);
+            return new TypeAdapter<T>() {
+                @Override
+                public void write(JsonWriter out, T value) throws IOException {
+                    if (value != null && value.getClass() != baseClass) {
+                        ((TypeAdapter<Object>) gson.getAdapter(value.getClass())).write(out, value);
                     } else {
-                        return order;
-                    }
-                }
-                if (rightValue == null) {
-                    return -order;
-                }
-                if (leftValue.equals(rightValue)) {
-                    continue;
-                }
-                if (leftValue instanceof Comparable) {
-                    final int comparison = ((Comparable<Object>) leftValue).compareTo(rightValue);
-                    if (comparison != 0) {
-                        return comparison * order;
+                        declaredAdapter.write(out, value);
                     }
                 }
-            }
-            return 0;
-        };
-    }
 
-    private static Aggregation parseAggregation(Map<String, Map<String, Object>> aggregation) {
-        final Map.Entry<String, Map<String, Object>> entry = aggregation.entrySet().iterator().next();
-        switch (entry.getKey()) {
-            case "terms":
-                return createTermsAggregation(entry.getValue());
-            case "composite":
-                return createCompositeAggregation(entry.getValue());
-            default:
-                LOGGER.warn("Given aggregation is unsupported: ", entry.getKey());
-                return hits -> Collections.emptyMap();
+                @Override
+                public T read(JsonReader in) throws IOException {
+                    return declaredAdapter.read(in);
+                }
+            };
         }
     }
 
-    private static Aggregation createTermsAggregation(Map<String, Object> terms) {
-        final String field = (String)terms.get("field");
-        final int size = ((Number)terms.getOrDefault("size", 10)).intValue();
-        return hits -> {
-            final HashMap<String, Integer> counts = new HashMap<>();
-            for (final SearchResponseHit<JsonObject> hit : hits) {
-                final Set<String> buckets;
-                if ("_index".equals(field)) {
-                    buckets = Collections.singleton(hit.getIndex());
-                } else {
-                    buckets = getPrimitivesAtPath(field, hit.getSource(), null).stream()
-                            .filter(JsonPrimitive::isString)
-                            .map(JsonPrimitive::getAsString)
-                            .collect(Collectors.toSet());
-                }
-                for (final String bucket : buckets) {
-                    counts.put(bucket, counts.getOrDefault(bucket, 0) + 1);
-                }
-            }
-            final HashMap<String, Object> result = new HashMap<>();
-            result.put("doc_count_error_upper_bound", 0);
-            result.put("sum_other_doc_count", 0);
-            result.put("buckets", counts.entrySet().stream()
-                    .map(TermsBucket::new)
-                    .sorted()
-                    .limit(size)
-                    .collect(Collectors.toList()));
-            return result;
-        };
+    /**
+     * Résultat d'une recherche triée, avec les valeurs de tri à donner à
+     * search_after pour obtenir la page suivante.
+     */
+    private static final class SortedSearchResponseHit extends SearchResponseHit<JsonObject> {
+        final Object[] sort;
+
+        SortedSearchResponseHit(Hit hit, String docType, Object[] sort) {
+            super(hit.index.name, docType, hit.index.identifier(hit.ordinal), hit.score, hit.source());
+            this.sort = sort;
+        }
     }
 
-    private static Aggregation createCompositeAggregation(Map<String, Object> composite) {
-        final int size = ((Number)composite.getOrDefault("size", 10)).intValue();
-        final List<TermsCompositeAggregation> aggregations = TermsCompositeAggregation.from((List<Map<String, Map<String, Map<String, Object>>>>) composite.get("sources"));
-        final Map<String, Object> after = (Map<String, Object>)composite.get("after");
-        return hits -> {
-            final HashMap<Map<String, Object>, Integer> counts = new HashMap<>();
-            for (final SearchResponseHit<JsonObject> hit : hits) {
-                List<Map<String, Object>> hitResults = Collections.emptyList();
-                for (final TermsCompositeAggregation aggregation : aggregations) {
-                    final Set<String> terms;
-                    if ("_index".equals(aggregation.field)) {
-                        terms = Collections.singleton(hit.getIndex());
-                    } else {
-                        terms = getPrimitivesAtPath(aggregation.field, hit.getSource(), null).stream()
-                                .filter(JsonPrimitive::isString)
-                                .map(JsonPrimitive::getAsString)
-                                .collect(Collectors.toSet());
-                    }
-                    if (hitResults.isEmpty()) {
-                        hitResults = terms.stream()
-                                .map(term -> map(aggregation.name, (Object)term))
-                                .collect(Collectors.toList());
-                    } else {
-                        hitResults = hitResults.stream()
-                                .flatMap(hitResult -> terms.stream()
-                                    .map(term -> {
-                                        final HashMap<String, Object> termResults = new HashMap<>(hitResult);
-                                        termResults.put(aggregation.name, term);
-                                        return termResults;
-                                    }))
-                                .collect(Collectors.toList());
-                    }
-                }
-                for (final Map<String, Object> hitResult : hitResults) {
-                    final Integer count = counts.get(hitResult);
-                    counts.put(hitResult, count != null ? count + 1 : 1);
-                }
-            }
-            final boolean[] isAfter = new boolean[] { false };
-            final int[] lastBucketIndex = new int[] { 0 };
-            final List<Map<String, Object>> buckets = counts.entrySet().stream()
-                    .sorted((lhs, rhs) -> {
-                        for (final TermsCompositeAggregation aggregation : aggregations) {
-                            final Object leftValue = lhs.getKey().get(aggregation.field);
-                            final Object rightValue = rhs.getKey().get(aggregation.field);
-                            final int order = ((Comparable<Object>)leftValue).compareTo(rightValue);
-                            if (order != 0) {
-                                return order * aggregation.order;
-                            }
-                        }
-                        return 0;
-                    })
-                    .map(entry -> map("key", entry.getKey(), "doc_count", entry.getValue()))
-                    .filter(entry -> {
-                        lastBucketIndex[0]++;
-                        if (after != null && !isAfter[0]) {
-                            isAfter[0] = entry.equals(after);
-                            return false;
-                        }
-                        return true;
-                    })
-                    .limit(size)
-                    .collect(Collectors.toList());
+    /**
+     * Résultat d'une recherche, d'une page de scroll ou de point-in-time,
+     * écrit directement en JSON dans la réponse.
+     * <p>
+     * Les documents ne sont lus qu'à l'écriture de leur résultat. Le JSON
+     * des documents stockés en mode <code>compact</code> ou
+     * <code>off_heap</code> est recopié tel quel, sans être relu ni
+     * réécrit, sauf si la source est filtrée.
+     */
+    private static final class SearchResult {
+        final String pitId;
+        final String scrollId;
+        final SearchResponseHitsTotal total;
+        final List<Hit> hits;
+        final String docType;
+
+        /**
+         * Tri dont les valeurs sont ajoutées à chaque résultat, ou
+         * <code>null</code>.
+         */
+        final HitSort sort;
+
+        final Map<String, Object> aggregations;
+
+        /**
+         * Code d'état écrit dans la réponse : 200 pour une recherche,
+         * <code>null</code> pour une page de scroll.
+         */
+        final Integer status;
+
+        /**
+         * Surlignage de chaque résultat, dans l'ordre des résultats, ou
+         * <code>null</code>.
+         */
+        List<Map<String, List<String>>> highlights;
+
+        /**
+         * Filtrage de la source des résultats, ou <code>null</code>.
+         */
+        Function<JsonObject, JsonObject> sourceMapper;
+
+        /**
+         * Instantanés retenus pour lire les sources des résultats, relâchés
+         * une fois la réponse écrite, ou <code>null</code>.
+         */
+        private Snapshot[] retained;
+
+        SearchResult(String pitId, String scrollId, SearchResponseHitsTotal total, List<Hit> hits, String docType, HitSort sort, Map<String, Object> aggregations, Integer status) {
+            this.pitId = pitId;
+            this.scrollId = scrollId;
+            this.total = total;
+            this.hits = hits;
+            this.docType = docType;
+            this.sort = sort;
+            this.aggregations = aggregations;
+            this.status = status;
+        }
 
-            final HashMap<String, Object> resultMap = new HashMap<>();
-            resultMap.put("buckets", buckets);
-            if (lastBucketIndex[0] < counts.size() && !buckets.isEmpty()) {
-                resultMap.put("after_key", buckets.get(buckets.size() - 1));
+        /**
+         * Écrit la réponse de la recherche, résultat par résultat.
+         *
+         * @param out Destination du JSON.
+         * @param gson Instance utilisée pour les totaux, les valeurs de tri
+         * et les agrégations.
+         * @throws IOException En cas d'erreur d'écriture.
+         */
+        void write(JsonWriter out, Gson gson) throws IOException {
+            try {
+                writeResponse(out, gson);
+            } finally {
+                release();
             }
-            return resultMap;
-        };
-    }
+        }
 
-    private static Function<JsonObject, JsonObject> parseSourceMapper(Object source) {
-        if (source instanceof Boolean) {
-            if (!(Boolean)source) {
-                return hit -> null;
+        private void writeResponse(JsonWriter out, Gson gson) throws IOException {
+            out.beginObject();
+            if (pitId != null) {
+                out.name("pit_id").value(pitId);
             }
-        } else if (source instanceof List) {
-            final List<String> fieldsToInclude = (List<String>)source;
-            return hit -> {
-                final JsonObject filtered  = new JsonObject();
-                for (final String fieldToInclude : fieldsToInclude) {
-                    final JsonElement value = hit.get(fieldToInclude);
-                    if (value != null) {
-                        filtered.add(fieldToInclude, value);
-                    }
-                }
-                return filtered;
-            };
+            out.name("took").value(42);
+            out.name("timed_out").value(false);
+            out.name("_scroll_id").value(scrollId);
+            out.name("_shards").beginObject()
+                    .name("total").value(1)
+                    .name("successful").value(1)
+                    .name("skipped").value(0)
+                    .name("failed").value(0)
+                    .endObject();
+            out.name("hits").beginObject();
+            out.name("total");
+            gson.toJson(total, SearchResponseHitsTotal.class, out);
+            out.name("max_score").value(1.0);
+            out.name("hits").beginArray();
+            for (int position = 0; position < hits.size(); position++) {
+                writeHit(out, gson, position);
+            }
+            out.endArray();
+            out.endObject();
+            out.name("status").value(status);
+            out.name("aggregations");
+            gson.toJson(aggregations, Map.class, out);
+            out.endObject();
         }
-        return null;
-    }
 
-    /**
-     * Récupère la valeur de l'objet JSON s'il s'agit d'une primitive.
-     *
-     * @param element Élément JSON.
-     * @return Valeur en <code>Boolean</code>, <code>Number</code>,
-     * <code>String</code> ou <code>null</code>.
-     */
-    private static Object getPrimitiveValue(JsonElement element) {
-        if (element != null && element.isJsonPrimitive()) {
-            final JsonPrimitive primitive = element.getAsJsonPrimitive();
-            if (primitive.isBoolean()) {
-                return primitive.getAsBoolean();
+        private void writeHit(JsonWriter out, Gson gson, int position) throws IOException {
+            final Hit hit = hits.get(position);
+            out.beginObject();
+            if (sort != null) {
+                out.name("sort");
+                gson.toJson(sort.values(hit), Object[].class, out);
             }
-            if (primitive.isNumber()) {
-                // GSON converti tous les nombres en Double par défaut, donc
-                // renvoi d'un double pour que les comparaisons fonctionnent.
-                return primitive.getAsNumber().doubleValue();
+            out.name("_index").value(hit.index.name);
+            out.name("_type").value(docType);
+            out.name("_id").value(hit.index.identifier(hit.ordinal));
+            out.name("_score").value(hit.score);
+            out.name("_source");
+            final byte[] storedSource = sourceMapper == null ? hit.index.storedSource(hit.ordinal) : null;
+            if (storedSource != null) {
+                writeStoredSource(out, storedSource);
+            } else {
+                gson.toJson(sourceMapper != null ? sourceMapper.apply(hit.source()) : hit.source(), JsonObject.class, out);
             }
-            if (primitive.isString()) {
-                return primitive.getAsString();
+            out.name("highlight");
+            gson.toJson(highlights != null ? highlights.get(position) : null, Map.class, out);
+            out.endObject();
+        }
+
+        /**
+         * Crée la réponse sous forme d'objets, pour l'inclure dans la
+         * réponse d'une recherche multiple.
+         *
+         * @return La réponse de la recherche.
+         */
+        SearchResponse<JsonObject> toSearchResponse() {
+            final List<SearchResponseHit<JsonObject>> responseHits;
+            try {
+                responseHits = toResponseHits(hits, docType, sort);
+            } finally {
+                release();
+            }
+            for (int position = 0; position < responseHits.size(); position++) {
+                final SearchResponseHit<JsonObject> hit = responseHits.get(position);
+                if (highlights != null) {
+                    hit.setHighlight(highlights.get(position));
+                }
+                if (sourceMapper != null) {
+                    hit.setSource(sourceMapper.apply(hit.getSource()));
+                }
             }
+            return createSearchResponse(pitId, scrollId, total, responseHits, aggregations);
         }
-        return null;
-    }
 
-    /**
-     * Créé une nouvelle table en alternant la clef et la valeur.
-     *
-     * @param arguments Alternance de clefs et de valeurs.
-     * @return Une nouvelle table avec le contenu donné.
-     */
-    private static <K, V> Map<K, V> map(final K key, final V value) {
-        final HashMap<K, V> map = new HashMap<>();
-        map.put(key, value);
-        return map;
+        /**
+         * Confie au résultat des instantanés déjà retenus : ils seront
+         * relâchés une fois la réponse écrite.
+         *
+         * @param snapshots Instantanés retenus.
+         * @return Ce résultat.
+         */
+        SearchResult retaining(Snapshot[] snapshots) {
+            this.retained = snapshots;
+            return this;
+        }
+
+        private void release() {
+            final Snapshot[] retained = this.retained;
+            this.retained = null;
+            if (retained != null) {
+                Snapshot.release(retained);
+            }
+        }
     }
 
     /**
-     * Créé une nouvelle table en alternant la clef et la valeur.
-     *
-     * @param arguments Alternance de clefs et de valeurs.
-     * @return Une nouvelle table avec le contenu donné.
+     * Réponse d'une recherche dans un point-in-time.
      */
-    private static Map<String, Object> map(final Object... arguments) {
-        final HashMap<String, Object> map = new HashMap<>();
-        for (int index = 0; index < arguments.length; index += 2) {
-            map.put(arguments[index].toString(), arguments[index + 1]);
+    private static final class PointInTimeSearchResponse extends SearchResponse<JsonObject> {
+        @SerializedName("pit_id")
+        final String pitId;
+
+        PointInTimeSearchResponse(String pitId, String scrollId, SearchResponseHits<JsonObject> hits, Map<String, Object> aggregations) {
+            super(42, false, scrollId, new Shards(1, 1, 0, 0), hits, null, 200, aggregations);
+            this.pitId = pitId;
         }
-        return map;
     }
 
     /**
-     * Récupère les valeurs associées au chemin donné.
-     *
-     * @param path Chemin vers la donnée.
-     * @param object Objet source.
-     * @param index Si non null, permet de rechercher dans les champs "copy to".
-     * @return Les valeurs primitives correspondantes.
+     * Part des résultats d'un scroll ou d'un point-in-time lue par un des
+     * consommateurs d'un export parallèle (<code>slice</code>).
+     * <p>
+     * Les consommateurs d'un point-in-time partagent les mêmes instantanés :
+     * les documents sont répartis selon leur ordinal. Chaque scroll a ses
+     * propres instantanés : les documents sont répartis selon le hash de leur
+     * identifiant, qui ne change pas d'un instantané à l'autre.
      */
-    private static List<JsonPrimitive> getPrimitivesAtPath(String path, JsonObject object, Index index) {
-        if (path.endsWith(".keyword")) {
-            path = path.substring(0, path.length() - ".keyword".length());
+    private static final class Slice {
+        final int id;
+        final int max;
+        final boolean byOrdinal;
+
+        /**
+         * Lit le paramètre <code>slice</code> d'une recherche.
+         *
+         * @param slice Paramètre de la recherche.
+         * @param pointInTime <code>true</code> si la recherche utilise un
+         * point-in-time.
+         * @throws IllegalArgumentException Si le paramètre est invalide.
+         */
+        Slice(Map<String, Object> slice, boolean pointInTime) {
+            final Object field = slice.get("field");
+            if (field != null && !"_id".equals(field)) {
+                throw new IllegalArgumentException("cannot slice on field [" + field + "], only [_id] is supported");
+            }
+            if (!(slice.get("id") instanceof Number) || !(slice.get("max") instanceof Number)) {
+                throw new IllegalArgumentException("[slice] requires [id] and [max]");
+            }
+            this.id = ((Number) slice.get("id")).intValue();
+            this.max = ((Number) slice.get("max")).intValue();
+            if (max <= 1) {
+                throw new IllegalArgumentException("max must be greater than 1");
+            }
+            if (id < 0) {
+                throw new IllegalArgumentException("id must be greater than or equal to 0");
+            }
+            if (id >= max) {
+                throw new IllegalArgumentException("max must be greater than id");
+            }
+            this.byOrdinal = pointInTime && field == null;
         }
-        if (index != null && index.copyToFields.containsKey(path)) {
-            return index.copyToFields.get(path).stream()
-                    .map(object::get)
-                    .filter(element -> element != null && element.isJsonPrimitive())
-                    .map(JsonElement::getAsJsonPrimitive)
-                    .collect(Collectors.toList());
+
+        boolean contains(Snapshot index, int ordinal) {
+            final int hash = byOrdinal ? ordinal : index.identifier(ordinal).hashCode();
+            return Math.floorMod(hash, max) == id;
         }
-        return getElementsAtPath(path.split(Pattern.quote(".")), 0, object).stream()
-                .filter(element -> element != null && element.isJsonPrimitive())
-                .map(JsonElement::getAsJsonPrimitive)
-                .collect(Collectors.toList());
-    }
 
-    private static Collection<JsonObject> getNodesBeforeLeaf(String path, JsonObject object) {
-        final String[] parts = path.split(Pattern.quote("."));
-        if (parts.length == 1) {
-            return Collections.singleton(object);
-        } else {
-            final String[] partsExcludingLastEntry = new String[parts.length - 1];
-            System.arraycopy(parts, 0, partsExcludingLastEntry, 0, partsExcludingLastEntry.length);
-            return getElementsAtPath(partsExcludingLastEntry, 0, object).stream()
-                    .filter(JsonElement::isJsonObject)
-                    .map(JsonElement::getAsJsonObject)
-                    .collect(Collectors.toList());
+        /**
+         * Restreint une requête aux documents de cette part.
+         *
+         * @param index Instantané interrogé.
+         * @param query Requête analysée pour cet instantané.
+         * @return La requête restreinte.
+         */
+        Query filter(Snapshot index, Query query) {
+            return new Query() {
+                @Override
+                public double rate(int ordinal, JsonObject object) {
+                    return contains(index, ordinal) ? query.rate(ordinal, object) : 0.0;
+                }
+
+                @Override
+                public BitSet candidates(Snapshot snapshot) {
+                    return query.candidates(snapshot);
+                }
+            };
         }
     }
 
-    private static Collection<JsonElement> getElementsAtPath(String[] parts, int index, JsonObject object) {
-        JsonObject currentNode = object;
-        for (; index < parts.length - 1; index++) {
-            final JsonElement element = currentNode.get(parts[index]);
-            if (element != null && element.isJsonObject()) {
-                currentNode = element.getAsJsonObject();
-            } else if (element != null && element.isJsonArray()) {
-                final ArrayList<JsonElement> elements = new ArrayList<>();
-                final JsonArray array = element.getAsJsonArray();
-                for (int arrayIndex = 0; arrayIndex < array.size(); arrayIndex++) {
-                    final JsonElement arrayEntry = array.get(arrayIndex);
-                    if (arrayEntry != null && arrayEntry.isJsonObject()) {
-                        elements.addAll(getElementsAtPath(parts, index + 1, arrayEntry.getAsJsonObject()));
-                    }
-                }
-                return elements;
-            } else {
-                return Collections.emptySet();
+    /**
+     * Instantanés figés par l'API <code>_pit</code> et leur durée de vie.
+     */
+    private static final class PointInTime {
+        final Snapshot[] indexes;
+
+        private volatile long expirationTime;
+
+        private boolean released;
+
+        /**
+         * Crée un point-in-time.
+         *
+         * @param indexes Instantanés retenus, relâchés par
+         * <code>release</code>.
+         * @param keepAlive Durée de vie en millisecondes.
+         */
+        PointInTime(Snapshot[] indexes, long keepAlive) {
+            this.indexes = indexes;
+            setKeepAlive(keepAlive);
+        }
+
+        /**
+         * Retient les instantanés pour une recherche.
+         *
+         * @return <code>false</code> si le point-in-time a déjà été fermé.
+         */
+        synchronized boolean retain() {
+            if (released) {
+                return false;
+            }
+            for (final Snapshot index : indexes) {
+                // Réussit : le point-in-time retient déjà le stockage.
+                index.retain();
             }
+            return true;
         }
-        return Collections.singleton(currentNode.get(parts[parts.length - 1]));
-    }
 
-    private static String getLeafName(String path) {
-        final int dotIndex = path.lastIndexOf('.');
-        return dotIndex < 0 ? path : path.substring(dotIndex + 1);
-    }
+        /**
+         * Relâche les instantanés à la fermeture ou à l'expiration du
+         * point-in-time.
+         */
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                Snapshot.release(indexes);
+            }
+        }
 
-    private static String stringValueFor(Object value) {
-        if (value instanceof Number) {
-            return stringValueForNumber((Number)value);
-        } else {
-            return value != null ? value.toString() : "";
+        /**
+         * Fait repartir la durée de vie de maintenant.
+         *
+         * @param keepAlive Durée de vie en millisecondes.
+         */
+        void setKeepAlive(long keepAlive) {
+            this.expirationTime = System.currentTimeMillis() + keepAlive;
         }
-    }
 
-    private static String stringValueForNumber(Number number) {
-        final double value = number.doubleValue();
-        if (Math.floor(value) == Math.ceil(value)) {
-            return Long.toString((long)value);
-        } else {
-            return Double.toString((long)value);
+        boolean isExpired(long now) {
+            return now > expirationTime;
         }
     }
 
-    private static String globToPatternString(final String queryString) {
-        return queryString
-                .replace(".", "\\.")
-                .replace("[", "\\[")
-                .replace("(", "\\(")
-                .replace("?", ".")
-                .replace("*", ".*");
-    }
+    /**
+     * Curseur d'un scroll : position dans les résultats d'une recherche faite
+     * sur des instantanés. Les documents de chaque page ne sont lus qu'à la
+     * demande.
+     */
+    private static final class Scroll {
+        final String scrollId;
+        final String docType;
+        final int size;
+        final int total;
+
+        /**
+         * Taille estimée du curseur en octets.
+         */
+        final long weight;
+
+        /**
+         * Instantanés interrogés, par position dans la recherche.
+         */
+        private final Snapshot[] indexes;
+
+        /**
+         * Résultats triés : position de l'index dans les 32 bits de poids
+         * fort, ordinal dans les 32 bits de poids faible. <code>null</code>
+         * pour parcourir les documents actifs du seul index dans l'ordre des
+         * ordinaux.
+         */
+        private final long[] hits;
+        private final double[] scores;
+
+        /**
+         * Tri, filtrage de la source et surlignage de la recherche,
+         * appliqués à chaque page. <code>null</code> s'ils ne sont pas
+         * demandés.
+         */
+        private final HitSort sort;
+        private final Function<JsonObject, JsonObject> sourceMapper;
+        private final Highlighter highlighter;
+
+        /**
+         * Position du prochain résultat dans <code>hits</code> ou prochain
+         * ordinal à lire.
+         */
+        private int position;
+
+        private volatile long keepAlive;
+        private volatile long expirationTime;
+        private boolean released;
+
+        /**
+         * Crée un scroll sur les résultats triés d'une recherche.
+         *
+         * @param scrollId Identifiant du scroll.
+         * @param docType Type des documents.
+         * @param size Nombre de résultats par page.
+         * @param keepAlive Durée de vie entre deux pages, en millisecondes.
+         * @param queryResults Tous les résultats triés.
+         * @param from Position du premier résultat de la prochaine page.
+         * @param sort Tri de la recherche, ou <code>null</code>.
+         * @param sourceMapper Filtrage de la source, ou <code>null</code>.
+         * @param highlighter Surlignage, ou <code>null</code>.
+         */
+        Scroll(String scrollId, String docType, int size, long keepAlive, List<Hit> queryResults, int from,
+                HitSort sort, Function<JsonObject, JsonObject> sourceMapper, Highlighter highlighter) {
+            this.scrollId = scrollId;
+            this.docType = docType;
+            this.size = size;
+            this.total = queryResults.size();
+            this.sort = sort;
+            this.sourceMapper = sourceMapper;
+            this.highlighter = highlighter;
+            final ArrayList<Snapshot> indexes = new ArrayList<>();
+            this.hits = new long[total];
+            this.scores = new double[total];
+            for (int index = 0; index < total; index++) {
+                final Hit hit = queryResults.get(index);
+                while (indexes.size() <= hit.shard) {
+                    indexes.add(null);
+                }
+                indexes.set(hit.shard, hit.index);
+                hits[index] = ((long) hit.shard << 32) | hit.ordinal;
+                scores[index] = hit.score;
+            }
+            this.indexes = indexes.toArray(new Snapshot[indexes.size()]);
+            retainIndexes();
+            this.position = Math.min(from, total);
+            this.weight = 64 + 16L * total;
+            setKeepAlive(keepAlive);
+        }
 
-    private static void mergeLists(final HashMap<String, List<String>> currentResults, final Map<String, List<String>> newResults) {
-        for (Map.Entry<String, List<String>> entry : newResults.entrySet()) {
-            final List<String> currentValue = currentResults.get(entry.getKey());
-            if (currentValue != null) {
-                currentValue.addAll(entry.getValue());
-            } else {
-                currentResults.put(entry.getKey(), entry.getValue());
+        /**
+         * Crée un scroll parcourant tous les documents d'un index dans
+         * l'ordre des ordinaux.
+         *
+         * @param scrollId Identifiant du scroll.
+         * @param docType Type des documents.
+         * @param size Nombre de résultats par page.
+         * @param keepAlive Durée de vie entre deux pages, en millisecondes.
+         * @param index Instantané parcouru.
+         * @param from Nombre de documents actifs à passer.
+         */
+        Scroll(String scrollId, String docType, int size, long keepAlive, Snapshot index, int from) {
+            this.scrollId = scrollId;
+            this.docType = docType;
+            this.size = size;
+            this.total = index.size();
+            this.indexes = new Snapshot[] {index};
+            retainIndexes();
+            this.hits = null;
+            this.scores = null;
+            this.sort = null;
+            this.sourceMapper = null;
+            this.highlighter = null;
+            int ordinal = 0;
+            for (int skipped = 0; skipped < from && ordinal < index.maxOrdinal; ordinal++) {
+                if (index.isLive(ordinal)) {
+                    skipped++;
+                }
             }
+            this.position = ordinal;
+            this.weight = 64;
+            setKeepAlive(keepAlive);
         }
-    }
 
-    private static class Index {
-        String name;
-        Map<String, FieldMapping> mappings = new HashMap<>();
-        Map<String, Object> settings = new HashMap<>();
-        Map<String, JsonObject> content = new LinkedHashMap<>();
-        Map<String, List<String>> copyToFields = new HashMap<>();
+        /**
+         * Change la durée de vie du scroll et la fait repartir de
+         * maintenant.
+         *
+         * @param keepAlive Durée de vie en millisecondes.
+         */
+        void setKeepAlive(long keepAlive) {
+            this.keepAlive = keepAlive;
+            this.expirationTime = System.currentTimeMillis() + keepAlive;
+        }
 
-        List<SearchResponseHit<JsonObject>> search(Query query) {
-            return searchStream(query)
-                    .collect(Collectors.toList());
+        boolean isExpired(long now) {
+            return now > expirationTime;
         }
 
-        Stream<SearchResponseHit<JsonObject>> searchStream(Query query) {
-            return content.entrySet().stream()
-                    .map(entry -> new SearchResponseHit<>(name, "_doc", entry.getKey(), query.rate(entry.getValue()), entry.getValue()))
-                    .filter(hit -> hit.getScore() > 0.0);
+        /**
+         * Retient les instantanés du scroll. Ils sont déjà retenus par la
+         * recherche qui crée le scroll : la retenue réussit.
+         */
+        private void retainIndexes() {
+            for (final Snapshot index : indexes) {
+                if (index != null) {
+                    index.retain();
+                }
+            }
         }
 
-        public void setMappings(Map<String, FieldMapping> mappings) {
-            this.mappings = mappings;
+        /**
+         * Relâche les instantanés quand le scroll est fermé, expire ou est
+         * retiré pour faire de la place.
+         */
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                Snapshot.release(indexes);
+            }
+        }
+
+        /**
+         * Donne la page suivante. Ses instantanés sont retenus jusqu'à
+         * l'écriture de la réponse, même si le scroll est fermé entre
+         * temps.
+         *
+         * @param version Version d'Elasticsearch simulée.
+         * @return La page suivante.
+         * @throws IllegalArgumentException Si le scroll a été fermé.
+         */
+        synchronized SearchResult nextPage(final VersionNumber version) {
+            if (released) {
+                throw new IllegalArgumentException("No search context found for id [" + scrollId + "]");
+            }
+            retainIndexes();
+            try {
+                return page(version).retaining(indexes);
+            } catch (RuntimeException | Error e) {
+                Snapshot.release(indexes);
+                throw e;
+            }
+        }
 
-            final HashMap<String, List<String>> map = new HashMap<>();
-            for (Map.Entry<String, FieldMapping> mapping : mappings.entrySet()) {
-                for (final String field : mapping.getValue().copyToFields()) {
-                    List<String> sources = map.get(field);
-                    if (sources == null) {
-                        sources = new ArrayList<>();
-                        map.put(field, sources);
+        private SearchResult page(final VersionNumber version) {
+            final ArrayList<Hit> page = new ArrayList<>();
+            if (hits != null) {
+                final int end = Math.min(position + size, hits.length);
+                for (; position < end; position++) {
+                    final int shard = (int) (hits[position] >>> 32);
+                    page.add(new Hit(indexes[shard], shard, (int) hits[position], scores[position]));
+                }
+            } else {
+                final Snapshot index = indexes[0];
+                for (; page.size() < size && position < index.maxOrdinal; position++) {
+                    if (index.isLive(position)) {
+                        page.add(new Hit(index, 0, position, 1.0));
                     }
-                    sources.add(mapping.getKey());
                 }
             }
-            this.copyToFields = map;
+            expirationTime = System.currentTimeMillis() + keepAlive;
+
+            final SearchResult result = new SearchResult(null, scrollId, createTotal(total, version), page, docType, sort, null, null);
+            if (highlighter != null) {
+                highlight(result, highlighter, indexes[0].index.parallelism());
+            }
+            result.sourceMapper = sourceMapper;
+            return result;
         }
     }
 
-    private static class Scroll {
-        List<SearchResponseHit<JsonObject>> queryResults;
-        int from;
-        int size;
-        String scrollId;
+    /**
+     * Requête compilée pour les mappings d'un index, dont les valeurs
+     * littérales sont encore des paramètres.
+     */
+    private static interface QueryTemplate {
+        /**
+         * Crée le plan de la requête pour les valeurs données.
+         *
+         * @param parameters Valeurs des paramètres, par position.
+         * @return Le plan de la requête.
+         */
+        QueryPlan plan(Object[] parameters);
+    }
+
+    /**
+     * Requête compilée, valeurs comprises, indépendante des documents
+     * indexés. Un plan peut être conservé et partagé entre plusieurs
+     * recherches : il ne garde aucune référence vers un instantané.
+     */
+    private static interface QueryPlan {
+        /**
+         * Prépare l'exécution de la requête dans l'instantané donné.
+         *
+         * @param index Instantané interrogé.
+         * @return La requête à exécuter.
+         */
+        Query bind(Snapshot index);
+    }
+
+    /**
+     * Valeur littérale retirée d'une requête par <code>parameterize</code>.
+     */
+    private static final class Parameter {
+        final int position;
+
+        Parameter(List<Object> parameters, Object value) {
+            this.position = parameters.size();
+            parameters.add(value);
+        }
+    }
+
+    /**
+     * Corps d'une recherche, lu une seule fois, et forme de sa requête.
+     */
+    private static final class ParsedSearch {
+        final Map<String, Object> request;
+
+        /**
+         * Forme de la requête ou <code>null</code> si la recherche n'a pas
+         * de requête.
+         */
+        final Map<String, Map<String, Object>> query;
+        final String shape;
+        final Object[] parameters;
+        final List<Object> parameterValues;
+
+        /**
+         * Forme complète de la recherche, clés triées, si elle ne demande
+         * aucun résultat et peut être mise en cache, <code>null</code>
+         * sinon.
+         */
+        final String requestKey;
+
+        ParsedSearch(Map<String, Object> request) {
+            this.request = request;
+            final Object size = request.get("size");
+            if (size instanceof Number && ((Number) size).intValue() == 0) {
+                final StringBuilder requestKey = new StringBuilder();
+                appendShape(requestKey, request);
+                this.requestKey = requestKey.toString();
+            } else {
+                this.requestKey = null;
+            }
+            final Map<String, Map<String, Object>> query = (Map<String, Map<String, Object>>) request.get("query");
+            if (query == null || query.isEmpty()) {
+                this.query = null;
+                this.shape = null;
+                this.parameters = NO_PARAMETERS;
+            } else {
+                final ArrayList<Object> parameters = new ArrayList<>();
+                this.query = parameterize(query, parameters);
+                final StringBuilder shape = new StringBuilder();
+                appendShape(shape, this.query);
+                this.shape = shape.toString();
+                this.parameters = parameters.toArray();
+            }
+            this.parameterValues = Arrays.asList(parameters);
+        }
+    }
 
-        SearchResponse<JsonObject> nextPage(final VersionNumber version) {
-            final int queryResultCount = queryResults.size();
-            final List<SearchResponseHit<JsonObject>> results = queryResults.subList(Math.min(from, queryResultCount), Math.min(from + size, queryResultCount));
-            from += size;
+    /**
+     * Réponse d'une recherche sans résultat conservée dans le cache d'un
+     * index : nombre de documents trouvés et agrégations au format JSON.
+     */
+    private static final class CachedResponse {
+        final int total;
+        final String aggregations;
+
+        /**
+         * Taille estimée en octets de l'entrée du cache, clé comprise.
+         */
+        final long weight;
+
+        CachedResponse(int total, String aggregations, List<Object> key) {
+            this.total = total;
+            this.aggregations = aggregations;
+            long keyWeight = 0;
+            for (final Object part : key) {
+                keyWeight += part instanceof String ? 2L * ((String) part).length() : 16;
+            }
+            this.weight = 64 + keyWeight + 2L * (aggregations != null ? aggregations.length() : 0);
+        }
 
-            return new SearchResponse<>(42, false, scrollId, new Shards(1, 1, 0, 0), new SearchResponseHits<>(
-                    createTotal(queryResultCount, version),
-                    1,
-                    results
-            ), null, null, null);
+        /**
+         * Relit les agrégations.
+         *
+         * @return Agrégations par nom ou <code>null</code> si la recherche
+         * n'en avait pas.
+         */
+        Map<String, Object> aggregations() {
+            if (aggregations == null) {
+                return null;
+            }
+            final LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+            for (final Map.Entry<String, JsonElement> entry : JsonParser.parseString(aggregations).getAsJsonObject().entrySet()) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+            return result;
         }
     }
 
     private static interface Query {
-        double rate(JsonObject object);
+        /**
+         * Note le document donné.
+         *
+         * @param ordinal Ordinal du document dans l'index parcouru.
+         * @param object Document.
+         * @return Score du document, 0 s'il ne correspond pas.
+         */
+        double rate(int ordinal, JsonObject object);
+
+        /**
+         * Renvoi les ordinaux des documents susceptibles de correspondre à
+         * cette requête. Seuls ces documents seront notés.
+         *
+         * @param index Index dans lequel a lieu la recherche.
+         * @return Les ordinaux candidats ou <code>null</code> si tous les
+         * documents doivent être notés.
+         */
+        default BitSet candidates(Snapshot index) {
+            return null;
+        }
     }
 
     private static interface Aggregation {
-        Map<String, Object> aggregate(List<SearchResponseHit<JsonObject>> hits);
+        Map<String, Object> aggregate(List<Hit> hits);
+    }
+
+    /**
+     * État d'une agrégation alimenté document par document. Chaque tâche
+     * d'une recherche remplit son propre collecteur sur ses segments, puis
+     * les collecteurs sont fusionnés comme les meilleurs résultats.
+     */
+    private static interface AggregationCollector {
+        void collect(Hit hit);
+
+        /**
+         * Ajoute l'état d'un autre collecteur de la même agrégation.
+         *
+         * @param other Collecteur créé par la même agrégation.
+         */
+        void merge(AggregationCollector other);
+
+        Map<String, Object> result();
+    }
+
+    /**
+     * Agrégation pouvant être calculée segment par segment : elle n'a pas
+     * besoin de la liste de tous les documents trouvés.
+     */
+    private static final class CollectedAggregation implements Aggregation {
+        private final Supplier<AggregationCollector> collectors;
+
+        CollectedAggregation(Supplier<AggregationCollector> collectors) {
+            this.collectors = collectors;
+        }
+
+        AggregationCollector collector() {
+            return collectors.get();
+        }
+
+        @Override
+        public Map<String, Object> aggregate(List<Hit> hits) {
+            final AggregationCollector collector = collectors.get();
+            for (final Hit hit : hits) {
+                collector.collect(hit);
+            }
+            return collector.result();
+        }
     }
 
-    private static class TermsCompositeAggregation {
+    /**
+     * Source d'une agrégation composite.
+     */
+    private static final class CompositeSource {
         final String name;
+        final String type;
         final String field;
+        final FieldPath path;
         final int order;
-
-        public TermsCompositeAggregation(String name, String field, int order) {
+        /**
+         * Intervalle et décalage d'une source <code>histogram</code>.
+         */
+        final double interval;
+        final double offset;
+        /**
+         * Arrondi d'une source <code>date_histogram</code>.
+         */
+        final DateRounding rounding;
+
+        CompositeSource(String name, String type, Map<String, Object> parameters) {
             this.name = name;
-            this.field = field;
-            this.order = order;
+            this.type = type;
+            this.field = (String) parameters.get("field");
+            if (field == null) {
+                throw new IllegalArgumentException("Required one of fields [field, script], but none were specified.");
+            }
+            this.path = FieldPath.forField(field);
+            this.order = "desc".equals(parameters.getOrDefault("order", "asc")) ? -1 : 1;
+            if ("histogram".equals(type)) {
+                final Object interval = parameters.get("interval");
+                if (!(interval instanceof Number) || ((Number) interval).doubleValue() <= 0) {
+                    throw new IllegalArgumentException("[interval] must be greater than 0 for histogram aggregation [" + name + "]");
+                }
+                this.interval = ((Number) interval).doubleValue();
+                this.offset = ((Number) parameters.getOrDefault("offset", 0)).doubleValue();
+            } else {
+                this.interval = 0;
+                this.offset = 0;
+            }
+            this.rounding = "date_histogram".equals(type) ? DateRounding.parse(parameters) : null;
         }
 
-        static List<TermsCompositeAggregation> from(List<Map<String, Map<String, Map<String, Object>>>> sources) {
-            final ArrayList<TermsCompositeAggregation> aggregations = new ArrayList<>();
+        static List<CompositeSource> from(List<Map<String, Map<String, Map<String, Object>>>> sources) {
+            final ArrayList<CompositeSource> aggregations = new ArrayList<>();
             for (final Map<String, Map<String, Map<String, Object>>> source : sources) {
                 final Map.Entry<String, Map<String, Map<String, Object>>> entry = source.entrySet().iterator().next();
                 final String name = entry.getKey();
@@ -1588,13 +7188,11 @@ public class Notela extends HttpServlet {
 
                 switch (sourceAggregation.getKey()) {
                 case "terms":
-                    final String field = (String)sourceAggregation.getValue().get("field");
-                    final int order = "desc".equals(sourceAggregation.getValue().getOrDefault("order", "asc")) ? -1: 1;
-                    aggregations.add(new TermsCompositeAggregation(name, field, order));
-                    break;
-
                 case "histogram":
                 case "date_histogram":
+                    aggregations.add(new CompositeSource(name, sourceAggregation.getKey(), sourceAggregation.getValue()));
+                    break;
+
                 default:
                     LOGGER.warn("Given composite aggregation is not supported: " + sourceAggregation.getKey());
                     break;
@@ -1602,13 +7200,278 @@ public class Notela extends HttpServlet {
             }
             return aggregations;
         }
+
+        /**
+         * Crée le lecteur des valeurs de cette source pour une exécution de
+         * l'agrégation.
+         *
+         * @return Un nouveau lecteur.
+         */
+        CompositeValues values() {
+            switch (type) {
+                case "terms":
+                    return new TermsCompositeValues(this);
+                case "histogram":
+                    return new HistogramCompositeValues(this);
+                default:
+                    return new DateHistogramCompositeValues(this);
+            }
+        }
+    }
+
+    /**
+     * Valeurs d'une source d'agrégation composite pour le document en cours,
+     * codées en <code>long</code>.
+     */
+    private static abstract class CompositeValues {
+        final CompositeSource source;
+        long[] values = new long[4];
+        int count;
+
+        CompositeValues(CompositeSource source) {
+            this.source = source;
+        }
+
+        /**
+         * Lit les valeurs distinctes d'un document dans <code>values</code>.
+         *
+         * @param hit Document.
+         */
+        abstract void read(Hit hit);
+
+        /**
+         * Compare deux valeurs codées dans l'ordre croissant.
+         */
+        abstract int compare(long lhs, long rhs);
+
+        /**
+         * Code une valeur de clé donnée par <code>after</code>.
+         */
+        abstract long encode(Object key);
+
+        /**
+         * Donne la valeur de clé d'une valeur codée.
+         */
+        abstract Object decode(long value);
+
+        void add(long value) {
+            for (int index = 0; index < count; index++) {
+                if (values[index] == value) {
+                    return;
+                }
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+    }
+
+    /**
+     * Termes d'une source <code>terms</code>, codés par un ordinal global
+     * propre à l'exécution de l'agrégation. Les ordinaux de termes de chaque
+     * index y sont associés au fur et à mesure.
+     */
+    private static final class TermsCompositeValues extends CompositeValues {
+        private final String path;
+        private final HashMap<String, Integer> globalOrdinals = new HashMap<>();
+        private final ArrayList<String> terms = new ArrayList<>();
+        private final ArrayList<KeywordDocValues> columns = new ArrayList<>();
+        /**
+         * Ordinal global + 1 de chaque ordinal de terme, par index.
+         */
+        private final ArrayList<int[]> shardOrdinals = new ArrayList<>();
+
+        TermsCompositeValues(CompositeSource source) {
+            super(source);
+            this.path = source.path.getPath();
+        }
+
+        @Override
+        void read(Hit hit) {
+            count = 0;
+            if ("_index".equals(source.field)) {
+                add(globalOrdinal(hit.index.name));
+                return;
+            }
+            while (columns.size() <= hit.shard) {
+                columns.add(null);
+                shardOrdinals.add(null);
+            }
+            KeywordDocValues column = columns.get(hit.shard);
+            if (column == null) {
+                column = hit.index.keywordValues(path);
+                columns.set(hit.shard, column);
+                shardOrdinals.set(hit.shard, new int[column.termCount()]);
+            }
+            final int[] ordinals = shardOrdinals.get(hit.shard);
+            for (final int term : column.terms(hit.ordinal)) {
+                if (ordinals[term] == 0) {
+                    ordinals[term] = globalOrdinal(column.term(term)) + 1;
+                }
+                add(ordinals[term] - 1);
+            }
+        }
+
+        private int globalOrdinal(String term) {
+            Integer ordinal = globalOrdinals.get(term);
+            if (ordinal == null) {
+                ordinal = terms.size();
+                terms.add(term);
+                globalOrdinals.put(term, ordinal);
+            }
+            return ordinal;
+        }
+
+        @Override
+        int compare(long lhs, long rhs) {
+            return lhs == rhs ? 0 : terms.get((int) lhs).compareTo(terms.get((int) rhs));
+        }
+
+        @Override
+        long encode(Object key) {
+            return globalOrdinal(String.valueOf(key));
+        }
+
+        @Override
+        Object decode(long value) {
+            return terms.get((int) value);
+        }
+    }
+
+    /**
+     * Intervalles d'une source <code>histogram</code>, codés par les bits de
+     * leur borne inférieure.
+     */
+    private static final class HistogramCompositeValues extends CompositeValues {
+        HistogramCompositeValues(CompositeSource source) {
+            super(source);
+        }
+
+        @Override
+        void read(Hit hit) {
+            count = 0;
+            forEachNumber(hit, source.path, value -> add(Double.doubleToLongBits(
+                    histogramKey(value, source.interval, source.offset))));
+        }
+
+        @Override
+        int compare(long lhs, long rhs) {
+            return Double.compare(Double.longBitsToDouble(lhs), Double.longBitsToDouble(rhs));
+        }
+
+        @Override
+        long encode(Object key) {
+            if (!(key instanceof Number)) {
+                throw new IllegalArgumentException("Invalid value for [after." + source.name + "]: [" + key + "]");
+            }
+            return Double.doubleToLongBits(((Number) key).doubleValue());
+        }
+
+        @Override
+        Object decode(long value) {
+            return Double.longBitsToDouble(value);
+        }
+    }
+
+    /**
+     * Intervalles d'une source <code>date_histogram</code>, codés par leur
+     * début en millisecondes depuis l'époque Unix.
+     */
+    private static final class DateHistogramCompositeValues extends CompositeValues {
+        DateHistogramCompositeValues(CompositeSource source) {
+            super(source);
+        }
+
+        @Override
+        void read(Hit hit) {
+            count = 0;
+            forEachDate(hit, source.path, millis -> add(source.rounding.round(millis)));
+        }
+
+        @Override
+        int compare(long lhs, long rhs) {
+            return Long.compare(lhs, rhs);
+        }
+
+        @Override
+        long encode(Object key) {
+            final Long millis = key instanceof Number
+                    ? Long.valueOf(((Number) key).longValue())
+                    : key != null ? DateRounding.millisOf(key.toString()) : null;
+            if (millis == null) {
+                throw new IllegalArgumentException("Invalid value for [after." + source.name + "]: [" + key + "]");
+            }
+            return millis;
+        }
+
+        @Override
+        Object decode(long value) {
+            return value;
+        }
+    }
+
+    /**
+     * Appelle l'action donnée pour chaque valeur numérique d'un champ d'un
+     * résultat. La valeur est lue dans la colonne du champ quand le document
+     * y a une seule valeur, dans sa source sinon.
+     *
+     * @param hit Résultat.
+     * @param path Chemin du champ.
+     * @param action Action à exécuter.
+     */
+    private static void forEachNumber(Hit hit, FieldPath path, DoubleConsumer action) {
+        final NumericDocValues column = hit.index.numerics.get(path.getPath());
+        if (column != null) {
+            final double value = column.get(hit.ordinal);
+            if (!Double.isNaN(value)) {
+                action.accept(value);
+                return;
+            } else if (!column.isIrregular(hit.ordinal)) {
+                return;
+            }
+        }
+        path.forEach(hit.source(), primitive -> {
+            if (primitive.isNumber()) {
+                action.accept(primitive.getAsDouble());
+            }
+        });
+    }
+
+    /**
+     * Appelle l'action donnée pour chaque date d'un champ d'un résultat.
+     *
+     * @param hit Résultat.
+     * @param path Chemin du champ.
+     * @param action Action à exécuter, avec la date en millisecondes depuis
+     * l'époque Unix.
+     */
+    private static void forEachDate(Hit hit, FieldPath path, LongConsumer action) {
+        path.forEach(hit.source(), primitive -> {
+            final Long millis = DateRounding.millisOf(primitive);
+            if (millis != null) {
+                action.accept(millis);
+            }
+        });
+    }
+
+    /**
+     * Donne la borne inférieure de l'intervalle d'histogramme d'une valeur.
+     *
+     * @param value Valeur.
+     * @param interval Largeur des intervalles.
+     * @param offset Décalage des intervalles.
+     * @return Borne inférieure de l'intervalle contenant la valeur.
+     */
+    private static double histogramKey(double value, double interval, double offset) {
+        return Math.floor((value - offset) / interval) * interval + offset;
     }
 
     private static interface Highlighter {
         Map<String, List<String>> highlight(JsonObject object);
     }
 
-    private static Highlighter parseHighlighter(Set<String> fieldsToHighlight, Map<String, Map<String, Object>> query, Index index) {
+    private static Highlighter parseHighlighter(Set<String> fieldsToHighlight, Map<String, Map<String, Object>> query, Snapshot index) {
         final Map.Entry<String, Map<String, Object>> entry = query.entrySet().iterator().next();
         switch (entry.getKey()) {
             case "bool":
@@ -1626,12 +7489,12 @@ public class Notela extends HttpServlet {
         }
     }
 
-    private static Highlighter createBoolHighlighter(Set<String> fieldsToHighlight, Map<String, Object> bool, Index index) {
+    private static Highlighter createBoolHighlighter(Set<String> fieldsToHighlight, Map<String, Object> bool, Snapshot index) {
         // TODO: Supporter ça
         return NO_HIGHLIGHTER;
     }
 
-    private static Highlighter createMatchHighlighter(Set<String> fieldsToHighlight, Map<String, Object> match, Index index) {
+    private static Highlighter createMatchHighlighter(Set<String> fieldsToHighlight, Map<String, Object> match, Snapshot index) {
         final Map.Entry<String, Object> entry = match.entrySet().iterator().next();
         final String queryString;
         if (entry.getValue() instanceof String) {
@@ -1652,7 +7515,7 @@ public class Notela extends HttpServlet {
         return PatternHighlighter.forField(key, index, pattern);
     }
 
-    private static Highlighter createWildcardHighlighter(Set<String> fieldsToHighlight, Map<String, Object> wildcard, Index index) {
+    private static Highlighter createWildcardHighlighter(Set<String> fieldsToHighlight, Map<String, Object> wildcard, Snapshot index) {
         final Map.Entry<String, Object> entry = wildcard.entrySet().iterator().next();
         final String queryString;
         if (entry.getValue() instanceof String) {
@@ -1670,7 +7533,7 @@ public class Notela extends HttpServlet {
         return PatternHighlighter.forField(key, index, pattern);
     }
 
-    private static Highlighter createTermHighlighter(Set<String> fieldsToHighlight, Map<String, Object> term, Index index) {
+    private static Highlighter createTermHighlighter(Set<String> fieldsToHighlight, Map<String, Object> term, Snapshot index) {
         final Map.Entry<String, Object> entry = term.entrySet().iterator().next();
         final Object query;
         if (entry.getValue() instanceof Map) {
@@ -1687,7 +7550,7 @@ public class Notela extends HttpServlet {
         return PatternHighlighter.forField(key, index, pattern);
     }
 
-    private static Highlighter createTermsHighlighter(Set<String> fieldsToHighlight, Map<String, Object> terms, Index index) {
+    private static Highlighter createTermsHighlighter(Set<String> fieldsToHighlight, Map<String, Object> terms, Snapshot index) {
         // TODO: Supporter ça
         return NO_HIGHLIGHTER;
     }
@@ -1721,7 +7584,7 @@ public class Notela extends HttpServlet {
     }
 
     private static class PatternHighlighter implements Highlighter {
-        public static Highlighter forField(String key, Index index, Pattern pattern) {
+        public static Highlighter forField(String key, Snapshot index, Pattern pattern) {
             if (index.copyToFields.containsKey(key)) {
                 return PatternHighlighter.forFieldsWithSamePattern(index.copyToFields.get(key), pattern);
             } else {
@@ -1742,22 +7605,24 @@ public class Notela extends HttpServlet {
         } 
 
         private final String key;
+        private final FieldPath path;
         private final Pattern pattern;
 
         public PatternHighlighter(String key, Pattern pattern) {
             this.key = key;
+            this.path = FieldPath.compile(key);
             this.pattern = pattern;
         }
 
         @Override
         public Map<String, List<String>> highlight(JsonObject object) {
-            final JsonElement element = object.get(key);
+            final JsonElement element = path.get(object);
             if (element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
                 final String value = element.getAsString();
                 final Matcher matcher = pattern.matcher(value);
                 if (matcher.find()) {
                     final ArrayList<String> values = new ArrayList<>();
-                    values.add(pattern.matcher(value).replaceAll("<em>$0</em>"));
+                    values.add(matcher.reset().replaceAll("<em>$0</em>"));
                     return map(key, values);
                 }
             }
@@ -0,0 +1,414 @@
+package com.github.raphcal.notela;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Valeurs numériques d'un champ, stockées en colonne par ordinal de
+ * document, avec une vue triée par valeur pour les requêtes d'intervalle.
+ * <p>
+ * La colonne ne contient que les documents ayant une seule valeur
+ * numérique pour ce champ. Les documents ayant plusieurs valeurs ou des
+ * valeurs d'un autre type sont marqués comme irréguliers et doivent être lus
+ * depuis leur source. Toutes les valeurs numériques, y compris celles des
+ * documents irréguliers, sont présentes dans la vue triée.
+ * <p>
+ * Un seul thread ajoute des valeurs, pendant que d'autres peuvent lire la
+ * colonne ou la vue triée. La vue triée est construite par le premier
+ * lecteur qui en a besoin et publiée une fois complète.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class NumericDocValues {
+
+    /**
+     * Vue triée par valeur des <code>size</code> premières valeurs ajoutées.
+     */
+    private static final class SortedView {
+        final double[] values;
+        final int[] ordinals;
+        final int size;
+
+        SortedView(double[] values, int[] ordinals, int size) {
+            this.values = values;
+            this.ordinals = ordinals;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Chemin du champ dans les documents.
+     */
+    private final FieldPath path;
+
+    /**
+     * Valeur par ordinal, <code>NaN</code> si absente.
+     */
+    private volatile double[] column = new double[0];
+
+    /**
+     * Ordinaux des documents dont la valeur n'est pas dans la colonne, par
+     * ordre croissant.
+     */
+    private final IntList irregular = new IntList();
+
+    /**
+     * Toutes les valeurs, dans l'ordre d'ajout.
+     */
+    private volatile double[] values = new double[16];
+    private volatile int[] ordinals = new int[16];
+    private volatile int size;
+
+    private volatile SortedView sorted = new SortedView(new double[0], new int[0], 0);
+
+    NumericDocValues(FieldPath path) {
+        this.path = path;
+    }
+
+    FieldPath path() {
+        return path;
+    }
+
+    /**
+     * Enregistre les valeurs d'un document.
+     *
+     * @param ordinal Ordinal du document, supérieur à ceux déjà ajoutés.
+     * @param documentValues Valeurs numériques du document.
+     * @param regular <code>false</code> si le document a aussi des valeurs
+     * non numériques.
+     */
+    void add(int ordinal, double[] documentValues, boolean regular) {
+        double[] column = this.column;
+        if (ordinal >= column.length) {
+            final int oldLength = column.length;
+            column = Arrays.copyOf(column, Math.max(ordinal + 1, oldLength + (oldLength >> 1) + 16));
+            Arrays.fill(column, oldLength, column.length, Double.NaN);
+            this.column = column;
+        }
+        if (regular && documentValues.length == 1) {
+            column[ordinal] = documentValues[0];
+        } else if (documentValues.length > 0 || !regular) {
+            irregular.add(ordinal);
+        }
+        int size = this.size;
+        double[] values = this.values;
+        int[] ordinals = this.ordinals;
+        for (final double value : documentValues) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                this.values = values;
+                this.ordinals = ordinals;
+            }
+            values[size] = value;
+            ordinals[size] = ordinal;
+            size++;
+        }
+        this.size = size;
+    }
+
+    /**
+     * Crée une copie de cette colonne en renumérotant les documents et en
+     * retirant les valeurs des documents supprimés. La vue triée est
+     * gardée, sans ces valeurs.
+     *
+     * @param newOrdinals Nouvel ordinal de chaque document, -1 pour les
+     * documents supprimés.
+     * @return La colonne renumérotée.
+     */
+    NumericDocValues compact(int[] newOrdinals) {
+        final NumericDocValues compacted = new NumericDocValues(path);
+        final double[] column = this.column;
+        final int columnSize = Math.min(column.length, newOrdinals.length);
+        final double[] compactedColumn = new double[columnSize];
+        Arrays.fill(compactedColumn, Double.NaN);
+        for (int ordinal = 0; ordinal < columnSize; ordinal++) {
+            if (newOrdinals[ordinal] >= 0) {
+                compactedColumn[newOrdinals[ordinal]] = column[ordinal];
+            }
+        }
+        compacted.column = compactedColumn;
+        for (int index = 0; index < irregular.size(); index++) {
+            final int ordinal = irregular.get(index);
+            if (ordinal < newOrdinals.length && newOrdinals[ordinal] >= 0) {
+                compacted.irregular.add(newOrdinals[ordinal]);
+            }
+        }
+        final int size = this.size;
+        final double[] values = this.values;
+        final int[] ordinals = this.ordinals;
+        final double[] compactedValues = new double[Math.max(size, 16)];
+        final int[] compactedOrdinals = new int[compactedValues.length];
+        int compactedSize = 0;
+        for (int index = 0; index < size; index++) {
+            final int ordinal = ordinals[index];
+            if (ordinal < newOrdinals.length && newOrdinals[ordinal] >= 0) {
+                compactedValues[compactedSize] = values[index];
+                compactedOrdinals[compactedSize] = newOrdinals[ordinal];
+                compactedSize++;
+            }
+        }
+        compacted.values = compactedValues;
+        compacted.ordinals = compactedOrdinals;
+        compacted.size = compactedSize;
+        // Les valeurs gardées restent dans l'ordre : la vue triée est
+        // filtrée sans être triée à nouveau.
+        final SortedView sorted = this.sorted;
+        final double[] sortedValues = new double[sorted.size];
+        final int[] sortedOrdinals = new int[sorted.size];
+        int sortedSize = 0;
+        for (int index = 0; index < sorted.size; index++) {
+            final int ordinal = sorted.ordinals[index];
+            if (ordinal < newOrdinals.length && newOrdinals[ordinal] >= 0) {
+                sortedValues[sortedSize] = sorted.values[index];
+                sortedOrdinals[sortedSize] = newOrdinals[ordinal];
+                sortedSize++;
+            }
+        }
+        compacted.sorted = new SortedView(sortedValues, sortedOrdinals, sortedSize);
+        return compacted;
+    }
+
+    /**
+     * Écrit cette colonne dans un fichier de segment, renumérotée par
+     * <code>compact</code>, avec sa vue triée.
+     *
+     * @param output Section des index du fichier.
+     * @param newOrdinals Rang de chaque document dans le fichier, -1 pour
+     * les documents qui n'y sont pas.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    void writeTo(DataOutput output, int[] newOrdinals) throws IOException {
+        final NumericDocValues compacted = compact(newOrdinals);
+        writeDoubles(output, compacted.column, compacted.column.length);
+        output.writeInt(compacted.irregular.size());
+        for (int index = 0; index < compacted.irregular.size(); index++) {
+            output.writeInt(compacted.irregular.get(index));
+        }
+        writeDoubles(output, compacted.values, compacted.size);
+        writeInts(output, compacted.ordinals, compacted.size);
+        writeDoubles(output, compacted.sorted.values, compacted.sorted.size);
+        writeInts(output, compacted.sorted.ordinals, compacted.sorted.size);
+    }
+
+    /**
+     * Lit une colonne écrite par <code>writeTo</code>.
+     *
+     * @param input Section des index du fichier.
+     * @param path Chemin du champ.
+     * @return La colonne lue.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    static NumericDocValues readFrom(SegmentFile.Input input, FieldPath path) throws IOException {
+        final NumericDocValues column = new NumericDocValues(path);
+        column.column = input.readDoubles(input.readLength());
+        final int irregularCount = input.readLength();
+        for (int index = 0; index < irregularCount; index++) {
+            column.irregular.add(input.readInt());
+        }
+        final int size = input.readLength();
+        // Les tableaux doublent à chaque agrandissement : ils ne doivent
+        // pas être vides.
+        final double[] values = input.readDoubles(size);
+        column.values = size < 16 ? Arrays.copyOf(values, 16) : values;
+        if (input.readLength() != size) {
+            throw new IOException("Corrupted segment file: invalid numeric column " + path);
+        }
+        final int[] ordinals = input.readInts(size);
+        column.ordinals = size < 16 ? Arrays.copyOf(ordinals, 16) : ordinals;
+        column.size = size;
+        final int sortedSize = input.readLength();
+        final double[] sortedValues = input.readDoubles(sortedSize);
+        if (input.readLength() != sortedSize || sortedSize > size) {
+            throw new IOException("Corrupted segment file: invalid numeric column " + path);
+        }
+        column.sorted = new SortedView(sortedValues, input.readInts(sortedSize), sortedSize);
+        return column;
+    }
+
+    private static void writeDoubles(DataOutput output, double[] values, int length) throws IOException {
+        output.writeInt(length);
+        for (int index = 0; index < length; index++) {
+            output.writeDouble(values[index]);
+        }
+    }
+
+    private static void writeInts(DataOutput output, int[] values, int length) throws IOException {
+        output.writeInt(length);
+        for (int index = 0; index < length; index++) {
+            output.writeInt(values[index]);
+        }
+    }
+
+    /**
+     * Récupère la valeur du document donné.
+     *
+     * @param ordinal Ordinal du document.
+     * @return La valeur ou <code>NaN</code> si le document n'a pas de valeur
+     * ou s'il est irrégulier.
+     */
+    double get(int ordinal) {
+        final double[] column = this.column;
+        return ordinal < column.length ? column[ordinal] : Double.NaN;
+    }
+
+    boolean isIrregular(int ordinal) {
+        int low = 0;
+        int high = irregular.size() - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int value = irregular.get(middle);
+            if (value < ordinal) {
+                low = middle + 1;
+            } else if (value > ordinal) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recherche les documents ayant au moins une valeur dans l'intervalle
+     * donné.
+     *
+     * @param min Borne inférieure, <code>NEGATIVE_INFINITY</code> si aucune.
+     * @param minInclusive <code>true</code> si la borne inférieure est
+     * incluse.
+     * @param max Borne supérieure, <code>POSITIVE_INFINITY</code> si aucune.
+     * @param maxInclusive <code>true</code> si la borne supérieure est
+     * incluse.
+     * @return Ordinaux des documents correspondants.
+     */
+    BitSet range(double min, boolean minInclusive, double max, boolean maxInclusive) {
+        SortedView sorted = this.sorted;
+        if (sorted.size != size) {
+            sorted = sort();
+        }
+        final int start = minInclusive
+                ? firstIndexNotLessThan(sorted.values, sorted.size, min)
+                : firstIndexGreaterThan(sorted.values, sorted.size, min);
+        final int end = maxInclusive
+                ? firstIndexGreaterThan(sorted.values, sorted.size, max)
+                : firstIndexNotLessThan(sorted.values, sorted.size, max);
+
+        final BitSet result = new BitSet();
+        for (int index = start; index < end; index++) {
+            result.set(sorted.ordinals[index]);
+        }
+        return result;
+    }
+
+    /**
+     * Trie les valeurs ajoutées depuis le dernier tri et les fusionne avec
+     * la vue triée existante.
+     *
+     * @return La nouvelle vue triée.
+     */
+    private synchronized SortedView sort() {
+        final SortedView previous = this.sorted;
+        final int size = this.size;
+        if (previous.size == size) {
+            return previous;
+        }
+        final int sortedSize = previous.size;
+        final double[] sortedValues = previous.values;
+        final int[] sortedOrdinals = previous.ordinals;
+
+        final int tailSize = size - sortedSize;
+        final double[] tailValues = Arrays.copyOfRange(values, sortedSize, size);
+        final int[] tailOrdinals = Arrays.copyOfRange(ordinals, sortedSize, size);
+        heapSort(tailValues, tailOrdinals, tailSize);
+
+        final double[] mergedValues = new double[size];
+        final int[] mergedOrdinals = new int[size];
+        int left = 0;
+        int right = 0;
+        for (int index = 0; index < size; index++) {
+            if (right >= tailSize || (left < sortedSize && sortedValues[left] <= tailValues[right])) {
+                mergedValues[index] = sortedValues[left];
+                mergedOrdinals[index] = sortedOrdinals[left];
+                left++;
+            } else {
+                mergedValues[index] = tailValues[right];
+                mergedOrdinals[index] = tailOrdinals[right];
+                right++;
+            }
+        }
+        final SortedView sorted = new SortedView(mergedValues, mergedOrdinals, size);
+        this.sorted = sorted;
+        return sorted;
+    }
+
+    private static int firstIndexNotLessThan(double[] array, int length, double value) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (array[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int firstIndexGreaterThan(double[] array, int length, double value) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (array[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Tri par tas de deux tableaux parallèles, selon les valeurs.
+     */
+    private static void heapSort(double[] values, int[] ordinals, int length) {
+        for (int index = length / 2 - 1; index >= 0; index--) {
+            siftDown(values, ordinals, index, length);
+        }
+        for (int end = length - 1; end > 0; end--) {
+            swap(values, ordinals, 0, end);
+            siftDown(values, ordinals, 0, end);
+        }
+    }
+
+    private static void siftDown(double[] values, int[] ordinals, int index, int length) {
+        while (true) {
+            int largest = index;
+            final int left = 2 * index + 1;
+            final int right = left + 1;
+            if (left < length && values[left] > values[largest]) {
+                largest = left;
+            }
+            if (right < length && values[right] > values[largest]) {
+                largest = right;
+            }
+            if (largest == index) {
+                return;
+            }
+            swap(values, ordinals, index, largest);
+            index = largest;
+        }
+    }
+
+    private static void swap(double[] values, int[] ordinals, int i, int j) {
+        final double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+        final int ordinal = ordinals[i];
+        ordinals[i] = ordinals[j];
+        ordinals[j] = ordinal;
+    }
+}
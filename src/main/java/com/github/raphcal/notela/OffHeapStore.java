@@ -0,0 +1,252 @@
+package com.github.raphcal.notela;
+
+import com.github.raphcal.logdorak.Logger;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stockage hors du tas des sources des documents d'un index.
+ * <p>
+ * Les sources sont ajoutées à la suite dans des blocs de mémoire directe.
+ * Le tas ne garde qu'une adresse par document : le ramasse-miettes n'a
+ * ni à parcourir ni à déplacer les octets des documents. Un stockage peut
+ * aussi lire les documents d'un fichier de segment projeté en mémoire,
+ * dont les fenêtres sont ajoutées comme des blocs en lecture seule.
+ * <p>
+ * La place des documents supprimés ou remplacés n'est pas réutilisée : le
+ * compactage de l'index recopie les sources actives dans un nouveau
+ * stockage. La mémoire est rendue à la fermeture, à la suppression de
+ * l'index, ou quand le dernier détenteur d'un stockage remplacé par un
+ * compactage l'abandonne. Une lecture en cours retarde la libération
+ * jusqu'à sa fin ; une lecture commencée après la fermeture échoue.
+ * <p>
+ * Les détenteurs sont l'index, tant que le stockage est le sien, et les
+ * instantanés retenus par une lecture, un scroll ou un point-in-time.
+ * <p>
+ * Un seul thread ajoute des sources, pendant que d'autres peuvent les lire.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class OffHeapStore {
+
+    private static final Logger LOGGER = new Logger(OffHeapStore.class);
+
+    /**
+     * Taille d'un bloc. Une source plus grande reçoit un bloc à sa taille.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Bit de <code>state</code> indiquant que le stockage est fermé.
+     */
+    private static final long CLOSED = 1L << 62;
+
+    /**
+     * Libération immédiate d'un tampon direct,
+     * <code>sun.misc.Unsafe.invokeCleaner</code>, ou <code>null</code> si
+     * elle n'est pas disponible : la mémoire est alors rendue par le
+     * ramasse-miettes.
+     */
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Off-heap memory will be released by the garbage collector: ", e);
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * Blocs par numéro. Seul l'écrivain remplace le tableau.
+     */
+    private volatile ByteBuffer[] chunks = new ByteBuffer[8];
+    private int chunkCount;
+
+    /**
+     * Bloc en cours de remplissage, lu et modifié uniquement par
+     * l'écrivain.
+     */
+    private ByteBuffer current;
+
+    /**
+     * Nombre de lectures et d'écritures en cours et bit
+     * <code>CLOSED</code>.
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * Nombre de détenteurs, 1 pour l'index à la création. Le stockage est
+     * fermé quand il tombe à 0.
+     */
+    private final AtomicInteger holders = new AtomicInteger(1);
+
+    /**
+     * Ajoute une source.
+     *
+     * @param bytes Octets de la source.
+     * @return Adresse de la source, positive.
+     * @throws IllegalStateException Si le stockage est fermé.
+     */
+    long add(byte[] bytes) {
+        acquire();
+        try {
+            final int length = 4 + bytes.length;
+            if (current == null || current.remaining() < length) {
+                current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, length));
+                addChunk(current);
+            }
+            final long address = ((long) (chunkCount - 1) << 32) | current.position();
+            current.putInt(bytes.length);
+            current.put(bytes);
+            return address;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Ajoute un bloc déjà rempli, lu mais jamais modifié par le stockage.
+     * Les sources ajoutées ensuite vont dans un nouveau bloc.
+     *
+     * @param chunk Bloc à ajouter, libéré avec le stockage. Chaque source
+     * y est précédée de sa longueur (int).
+     * @return Adresse du début du bloc, à laquelle ajouter la position
+     * d'une source dans le bloc.
+     * @throws IllegalStateException Si le stockage est fermé.
+     */
+    long attach(ByteBuffer chunk) {
+        acquire();
+        try {
+            current = null;
+            addChunk(chunk);
+            return (long) (chunkCount - 1) << 32;
+        } finally {
+            release();
+        }
+    }
+
+    private void addChunk(ByteBuffer chunk) {
+        ByteBuffer[] chunks = this.chunks;
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        chunks[chunkCount++] = chunk;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Lit une source.
+     *
+     * @param address Adresse donnée par <code>add</code>.
+     * @return Copie des octets de la source.
+     * @throws IllegalStateException Si le stockage est fermé.
+     */
+    byte[] get(long address) {
+        acquire();
+        try {
+            final ByteBuffer chunk = chunks[(int) (address >>> 32)].duplicate();
+            chunk.position((int) address);
+            final byte[] bytes = new byte[chunk.getInt()];
+            chunk.get(bytes);
+            return bytes;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Ajoute un détenteur.
+     *
+     * @return <code>false</code> si tous les détenteurs ont déjà abandonné
+     * le stockage : il est fermé et ne doit plus être lu.
+     */
+    boolean retain() {
+        int current;
+        do {
+            current = holders.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!holders.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Retire un détenteur et ferme le stockage s'il était le dernier.
+     *
+     * @return <code>true</code> si le stockage a été fermé.
+     */
+    boolean abandon() {
+        if (holders.decrementAndGet() == 0) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ferme le stockage, quels que soient ses détenteurs. La mémoire est
+     * rendue dès la fin des lectures en cours.
+     */
+    void close() {
+        long current;
+        do {
+            current = state.get();
+            if ((current & CLOSED) != 0) {
+                return;
+            }
+        } while (!state.compareAndSet(current, current | CLOSED));
+        if (current == 0) {
+            free();
+        }
+    }
+
+    private void acquire() {
+        long current;
+        do {
+            current = state.get();
+            if ((current & CLOSED) != 0) {
+                throw new IllegalStateException("Index has been deleted");
+            }
+        } while (!state.compareAndSet(current, current + 1));
+    }
+
+    private void release() {
+        if (state.decrementAndGet() == CLOSED) {
+            free();
+        }
+    }
+
+    private void free() {
+        final ByteBuffer[] chunks = this.chunks;
+        this.chunks = new ByteBuffer[0];
+        this.current = null;
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        for (final ByteBuffer chunk : chunks) {
+            if (chunk != null) {
+                try {
+                    INVOKE_CLEANER.invoke(UNSAFE, chunk);
+                } catch (ReflectiveOperationException e) {
+                    LOGGER.warn("Unable to release off-heap memory: ", e);
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.github.raphcal.notela;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index inversé des champs texte analysés : pour chaque champ et chaque
+ * terme, conserve les ordinaux des documents contenant le terme ainsi que
+ * ses positions dans chaque valeur du champ.
+ * <p>
+ * Comme pour <code>InvertedIndex</code>, les ajouts sont faits par un seul
+ * thread à la fois et peuvent avoir lieu pendant des lectures.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class PositionalIndex {
+
+    /**
+     * Documents et positions d'un terme.
+     * <p>
+     * Les positions du document <code>ordinals[i]</code> sont stockées dans
+     * <code>positions</code> de <code>starts[i]</code> (inclus) à
+     * <code>ends[i]</code> (exclu).
+     */
+    static final class Postings {
+        final IntList ordinals;
+        final IntList starts;
+        final IntList ends;
+        final IntList positions;
+
+        Postings() {
+            this(new IntList(), new IntList(), new IntList(), new IntList());
+        }
+
+        private Postings(IntList ordinals, IntList starts, IntList ends, IntList positions) {
+            this.ordinals = ordinals;
+            this.starts = starts;
+            this.ends = ends;
+            this.positions = positions;
+        }
+
+        /**
+         * Ajoute toutes les positions d'un document. Les positions et leurs
+         * bornes sont ajoutées avant l'ordinal pour qu'un lecteur trouvant
+         * un document lise exactement ses positions, même si un autre
+         * document est ajouté pendant la lecture.
+         *
+         * @param ordinal Ordinal du document.
+         * @param documentPositions Positions du terme dans le document.
+         */
+        void add(int ordinal, IntList documentPositions) {
+            add(ordinal, documentPositions, 0, documentPositions.size());
+        }
+
+        /**
+         * Ajoute les positions d'un document lues dans une partie d'une
+         * liste.
+         *
+         * @param ordinal Ordinal du document.
+         * @param source Liste contenant les positions.
+         * @param from Première position à lire (incluse).
+         * @param to Dernière position à lire (exclue).
+         */
+        void add(int ordinal, IntList source, int from, int to) {
+            final int start = positions.size();
+            for (int index = from; index < to; index++) {
+                positions.add(source.get(index));
+            }
+            starts.add(start);
+            ends.add(positions.size());
+            ordinals.add(ordinal);
+        }
+
+        /**
+         * Recherche l'entrée du document donné.
+         *
+         * @param ordinal Ordinal du document.
+         * @return Indice de l'entrée ou une valeur négative si le document ne
+         * contient pas ce terme.
+         */
+        int find(int ordinal) {
+            int low = 0;
+            int high = ordinals.size() - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int value = ordinals.get(middle);
+                if (value < ordinal) {
+                    low = middle + 1;
+                } else if (value > ordinal) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        int positionStart(int entry) {
+            return starts.get(entry);
+        }
+
+        int positionEnd(int entry) {
+            return ends.get(entry);
+        }
+    }
+
+    private final Map<String, Map<String, Postings>> fields = new ConcurrentHashMap<>();
+
+    /**
+     * Ajoute les positions d'un terme dans un document. Toutes les positions
+     * du terme dans le document doivent être données en une fois.
+     *
+     * @param field Chemin du champ.
+     * @param term Terme analysé.
+     * @param ordinal Ordinal du document.
+     * @param positions Positions du terme dans le document.
+     */
+    void add(String field, String term, int ordinal, IntList positions) {
+        fields.computeIfAbsent(field, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(term, key -> new Postings())
+                .add(ordinal, positions);
+    }
+
+    Postings get(String field, String term) {
+        final Map<String, Postings> terms = fields.get(field);
+        return terms != null ? terms.get(term) : null;
+    }
+
+    /**
+     * Crée une copie de cet index en renumérotant les documents et en
+     * retirant les documents supprimés ainsi que leurs positions.
+     *
+     * @param newOrdinals Nouvel ordinal de chaque document, -1 pour les
+     * documents supprimés.
+     * @return L'index renuméroté.
+     */
+    PositionalIndex compact(int[] newOrdinals) {
+        final PositionalIndex compacted = new PositionalIndex();
+        for (final Map.Entry<String, Map<String, Postings>> field : fields.entrySet()) {
+            final Map<String, Postings> terms = new ConcurrentHashMap<>();
+            for (final Map.Entry<String, Postings> term : field.getValue().entrySet()) {
+                final Postings postings = term.getValue();
+                Postings compactedPostings = null;
+                for (int entry = 0; entry < postings.ordinals.size(); entry++) {
+                    final int ordinal = postings.ordinals.get(entry);
+                    if (ordinal >= newOrdinals.length || newOrdinals[ordinal] < 0) {
+                        continue;
+                    }
+                    if (compactedPostings == null) {
+                        compactedPostings = new Postings();
+                    }
+                    compactedPostings.add(newOrdinals[ordinal], postings.positions, postings.positionStart(entry), postings.positionEnd(entry));
+                }
+                if (compactedPostings != null) {
+                    terms.put(term.getKey(), compactedPostings);
+                }
+            }
+            if (!terms.isEmpty()) {
+                compacted.fields.put(field.getKey(), terms);
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Écrit cet index dans un fichier de segment en renumérotant les
+     * documents comme <code>compact</code>, sans créer de copie de
+     * l'index. Les positions d'un terme sont écrites à la suite, avec la
+     * fin de celles de chaque document.
+     *
+     * @param output Section des index du fichier.
+     * @param newOrdinals Rang de chaque document dans le fichier, -1 pour
+     * les documents qui n'y sont pas.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    void writeTo(DataOutput output, int[] newOrdinals) throws IOException {
+        for (final Map.Entry<String, Map<String, Postings>> field : fields.entrySet()) {
+            output.writeBoolean(true);
+            SegmentFile.writeString(output, field.getKey());
+            // Nombre de termes avant renumérotation, pour dimensionner la
+            // table à la lecture.
+            output.writeInt(field.getValue().size());
+            for (final Map.Entry<String, Postings> term : field.getValue().entrySet()) {
+                final Postings postings = term.getValue();
+                final IntList entries = new IntList();
+                int positionCount = 0;
+                for (int entry = 0; entry < postings.ordinals.size(); entry++) {
+                    final int ordinal = postings.ordinals.get(entry);
+                    if (ordinal < newOrdinals.length && newOrdinals[ordinal] >= 0) {
+                        entries.add(entry);
+                        positionCount += postings.positionEnd(entry) - postings.positionStart(entry);
+                    }
+                }
+                if (entries.isEmpty()) {
+                    continue;
+                }
+                output.writeBoolean(true);
+                SegmentFile.writeString(output, term.getKey());
+                output.writeInt(entries.size());
+                for (int index = 0; index < entries.size(); index++) {
+                    output.writeInt(newOrdinals[postings.ordinals.get(entries.get(index))]);
+                }
+                int end = 0;
+                for (int index = 0; index < entries.size(); index++) {
+                    final int entry = entries.get(index);
+                    end += postings.positionEnd(entry) - postings.positionStart(entry);
+                    output.writeInt(end);
+                }
+                output.writeInt(positionCount);
+                for (int index = 0; index < entries.size(); index++) {
+                    final int entry = entries.get(index);
+                    for (int position = postings.positionStart(entry); position < postings.positionEnd(entry); position++) {
+                        output.writeInt(postings.positions.get(position));
+                    }
+                }
+            }
+            output.writeBoolean(false);
+        }
+        output.writeBoolean(false);
+    }
+
+    /**
+     * Lit un index écrit par <code>writeTo</code>.
+     *
+     * @param input Section des index du fichier.
+     * @return L'index lu.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    static PositionalIndex readFrom(SegmentFile.Input input) throws IOException {
+        final PositionalIndex index = new PositionalIndex();
+        while (input.readBoolean()) {
+            final String field = input.readString();
+            final Map<String, Postings> terms = new ConcurrentHashMap<>(input.readLength());
+            while (input.readBoolean()) {
+                final String term = input.readString();
+                final int count = input.readLength();
+                final int[] ordinals = input.readInts(count);
+                final int[] ends = input.readInts(count);
+                final int[] positions = input.readInts(input.readLength());
+                final int[] starts = new int[count];
+                for (int entry = 1; entry < count; entry++) {
+                    starts[entry] = ends[entry - 1];
+                }
+                if (count > 0 && ends[count - 1] != positions.length) {
+                    throw new IOException("Corrupted segment file: invalid positions of term " + term);
+                }
+                terms.put(term, new Postings(new IntList(ordinals), new IntList(starts), new IntList(ends), new IntList(positions)));
+            }
+            if (!terms.isEmpty()) {
+                index.fields.put(field, terms);
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,487 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Fichier binaire contenant les documents d'un index, écrit par un
+ * <code>_snapshot</code>.
+ * <p>
+ * Format, entiers en big-endian :
+ * <pre>
+ * en-tête  : magique "NTLS", version (int), longueur (int) puis JSON UTF-8
+ *            des paramètres de l'index (nom, settings, mappings)
+ * document : longueur (int) et octets UTF-8 de l'identifiant, longueur
+ *            (int) et octets UTF-8 du JSON du document
+ * table    : position (long) de chaque document
+ * index    : index et colonnes des documents, écrits par l'index à la
+ *            suite de la table (version 2)
+ * fin      : position de la table (long), nombre de documents (int),
+ *            magique "NTLS"
+ * </pre>
+ * La table des positions est écrite après les documents pour que le
+ * fichier soit écrit d'une traite. Le fichier est d'abord écrit sous un nom
+ * temporaire puis renommé par <code>commit</code> : un fichier présent est
+ * toujours complet.
+ * <p>
+ * La lecture projette le fichier en mémoire par fenêtres : seules les pages
+ * lues sont chargées par le système, sans copie du fichier dans le tas.
+ * Le JSON d'un document est précédé de sa longueur, comme dans
+ * <code>OffHeapStore</code> : les fenêtres des documents peuvent servir de
+ * blocs à un stockage hors du tas. Un lecteur n'est pas synchronisé.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class SegmentFile {
+
+    /**
+     * "NTLS" en ASCII.
+     */
+    private static final int MAGIC = 0x4e544c53;
+    private static final int VERSION = 2;
+
+    /**
+     * Version des fichiers sans section des index.
+     */
+    private static final int VERSION_WITHOUT_INDEXES = 1;
+    private static final int FOOTER_SIZE = 8 + 4 + 4;
+
+    /**
+     * Taille minimale d'une fenêtre de projection.
+     */
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private SegmentFile() {
+    }
+
+    /**
+     * Écrit une chaîne en UTF-8 précédée de sa longueur en octets.
+     * Contrairement à <code>writeUTF</code>, la chaîne n'est pas limitée à
+     * 64 Ko.
+     *
+     * @param output Flux à compléter.
+     * @param value Chaîne à écrire.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    static void writeString(DataOutput output, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Écrit les documents d'un index.
+     */
+    static final class Writer implements Closeable {
+        private final Path file;
+        private final Path temporaryFile;
+        private final DataOutputStream output;
+        private long position;
+        private long[] positions = new long[1024];
+        private int count;
+        private boolean tableWritten;
+        private boolean committed;
+
+        /**
+         * Crée le fichier et écrit son en-tête.
+         *
+         * @param file Fichier à écrire.
+         * @param header Paramètres de l'index.
+         * @throws IOException En cas d'erreur d'écriture.
+         */
+        Writer(Path file, JsonObject header) throws IOException {
+            this.file = file;
+            this.temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+            this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile), 64 * 1024));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            position = 8;
+            writeBytes(header.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Ajoute un document.
+         *
+         * @param id Identifiant du document.
+         * @param source JSON du document, en UTF-8.
+         * @throws IOException En cas d'erreur d'écriture.
+         */
+        void add(String id, byte[] source) throws IOException {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            positions[count++] = position;
+            writeBytes(id.getBytes(StandardCharsets.UTF_8));
+            writeBytes(source);
+        }
+
+        /**
+         * Écrit la table des positions et commence la section des index.
+         * Les documents doivent tous avoir été ajoutés.
+         *
+         * @return Flux dans lequel écrire les index, jusqu'à la fermeture.
+         * @throws IOException En cas d'erreur d'écriture.
+         */
+        DataOutput indexes() throws IOException {
+            if (!tableWritten) {
+                for (int index = 0; index < count; index++) {
+                    output.writeLong(positions[index]);
+                }
+                tableWritten = true;
+            }
+            return output;
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            output.writeInt(bytes.length);
+            output.write(bytes);
+            position += 4 + bytes.length;
+        }
+
+        /**
+         * Termine le fichier puis le renomme.
+         *
+         * @throws IOException En cas d'erreur d'écriture.
+         */
+        void commit() throws IOException {
+            final long tablePosition = position;
+            indexes();
+            output.writeLong(tablePosition);
+            output.writeInt(count);
+            output.writeInt(MAGIC);
+            output.close();
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Supprime le fichier temporaire s'il n'a pas été renommé par
+         * <code>commit</code>.
+         *
+         * @throws IOException En cas d'erreur d'écriture.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                try {
+                    output.close();
+                } finally {
+                    Files.deleteIfExists(temporaryFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lit les documents d'un index depuis un fichier projeté en mémoire.
+     */
+    static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final long size;
+        private final long tablePosition;
+        private final int documentCount;
+        private final int version;
+        private final JsonObject header;
+
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        /**
+         * Ouvre un fichier et lit son en-tête.
+         *
+         * @param file Fichier à lire.
+         * @throws IOException Si le fichier ne peut pas être lu ou s'il
+         * n'est pas un fichier de segment complet.
+         */
+        Reader(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                this.size = channel.size();
+                if (size < 8 + 4 + FOOTER_SIZE) {
+                    throw new IOException("Truncated segment file: " + file);
+                }
+                final ByteBuffer footer = map(size - FOOTER_SIZE, FOOTER_SIZE);
+                this.tablePosition = footer.getLong();
+                this.documentCount = footer.getInt();
+                if (footer.getInt() != MAGIC) {
+                    throw new IOException("Not a segment file: " + file);
+                }
+                final ByteBuffer start = map(0, 8);
+                if (start.getInt() != MAGIC) {
+                    throw new IOException("Unsupported segment file: " + file);
+                }
+                this.version = start.getInt();
+                if (version != VERSION && version != VERSION_WITHOUT_INDEXES) {
+                    throw new IOException("Unsupported segment file: " + file);
+                }
+                if (documentCount < 0 || tablePosition < 8 || tablePosition + 8L * documentCount > size - FOOTER_SIZE) {
+                    throw new IOException("Corrupted segment file: " + file);
+                }
+                this.header = JsonParser.parseString(readString(8)).getAsJsonObject();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        JsonObject header() {
+            return header;
+        }
+
+        int documentCount() {
+            return documentCount;
+        }
+
+        /**
+         * Lit l'identifiant d'un document.
+         *
+         * @param document Rang du document dans le fichier.
+         * @return L'identifiant.
+         * @throws IOException En cas d'erreur de lecture.
+         */
+        String id(int document) throws IOException {
+            return readString(position(document));
+        }
+
+        /**
+         * Lit le contenu d'un document.
+         *
+         * @param document Rang du document dans le fichier.
+         * @return Le document.
+         * @throws IOException En cas d'erreur de lecture.
+         */
+        JsonObject document(int document) throws IOException {
+            final long position = position(document);
+            final int idLength = slice(position, 4).getInt();
+            return JsonParser.parseString(readString(position + 4 + idLength)).getAsJsonObject();
+        }
+
+        /**
+         * Commence la lecture de la section des index.
+         *
+         * @return Lecture de la section, ou <code>null</code> si le fichier
+         * n'en a pas : ses documents doivent alors être indexés un à un.
+         */
+        Input indexes() {
+            final long start = tablePosition + 8L * documentCount;
+            final long end = size - FOOTER_SIZE;
+            return version != VERSION_WITHOUT_INDEXES && start < end ? new Input(this, start, end) : null;
+        }
+
+        /**
+         * Projette le JSON des documents dans le stockage donné, par
+         * fenêtres commençant et finissant entre deux documents. Les
+         * fenêtres restent projetées jusqu'à la fermeture du stockage, même
+         * après celle du lecteur.
+         *
+         * @param store Stockage recevant les fenêtres.
+         * @return Adresse dans le stockage du JSON de chaque document, dans
+         * l'ordre du fichier.
+         * @throws IOException En cas d'erreur de lecture.
+         */
+        long[] mapSources(OffHeapStore store) throws IOException {
+            final long[] positions = new Input(this, tablePosition, tablePosition + 8L * documentCount).readLongs(documentCount);
+            final long[] addresses = new long[documentCount];
+            int first = 0;
+            while (first < documentCount) {
+                final long start = positions[first];
+                int last = first + 1;
+                while (last < documentCount && end(positions, last) - start <= WINDOW_SIZE) {
+                    last++;
+                }
+                final long length = end(positions, last - 1) - start;
+                if (start < 8 || length < 8 || length > Integer.MAX_VALUE) {
+                    throw new IOException("Corrupted segment file: invalid document position");
+                }
+                final ByteBuffer window = map(start, length);
+                final long chunk = store.attach(window);
+                for (int document = first; document < last; document++) {
+                    final int offset = (int) (positions[document] - start);
+                    addresses[document] = chunk | (offset + 4 + window.getInt(offset));
+                }
+                first = last;
+            }
+            return addresses;
+        }
+
+        private long end(long[] positions, int document) {
+            return document + 1 < documentCount ? positions[document + 1] : tablePosition;
+        }
+
+        private long position(int document) throws IOException {
+            if (document < 0 || document >= documentCount) {
+                throw new IndexOutOfBoundsException("Document " + document + " of " + documentCount);
+            }
+            return slice(tablePosition + 8L * document, 8).getLong();
+        }
+
+        private String readString(long position) throws IOException {
+            final int length = slice(position, 4).getInt();
+            final ByteBuffer bytes = slice(position + 4, length);
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+
+        /**
+         * Donne une vue des octets demandés, en déplaçant la fenêtre
+         * projetée si elle ne les contient pas.
+         */
+        private ByteBuffer slice(long position, int length) throws IOException {
+            if (position < 0 || position + length > size) {
+                throw new IOException("Corrupted segment file: read past end of file");
+            }
+            if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+                windowStart = position;
+                window = map(position, Math.min(size - position, Math.max(WINDOW_SIZE, length)));
+            }
+            final ByteBuffer slice = window.duplicate();
+            slice.position((int) (position - windowStart));
+            slice.limit((int) (position - windowStart) + length);
+            return slice.slice();
+        }
+
+        private MappedByteBuffer map(long position, long length) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * Lecture séquentielle d'une partie d'un fichier projeté en mémoire,
+     * par fenêtres. Les tableaux sont copiés d'un bloc depuis la
+     * projection.
+     */
+    static final class Input {
+        private final Reader reader;
+        private final long end;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+        private long bufferStart;
+
+        Input(Reader reader, long start, long end) {
+            this.reader = reader;
+            this.bufferStart = start;
+            this.end = end;
+        }
+
+        boolean readBoolean() throws IOException {
+            require(1);
+            return buffer.get() != 0;
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return buffer.get();
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        double readDouble() throws IOException {
+            require(8);
+            return buffer.getDouble();
+        }
+
+        /**
+         * Lit une chaîne écrite par <code>writeString</code>.
+         *
+         * @return La chaîne lue.
+         * @throws IOException En cas d'erreur de lecture.
+         */
+        String readString() throws IOException {
+            final int length = readLength();
+            require(length);
+            final ByteBuffer bytes = buffer.duplicate();
+            bytes.limit(bytes.position() + length);
+            buffer.position(buffer.position() + length);
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+
+        /**
+         * Lit un nombre d'éléments, qui ne peut pas être négatif.
+         *
+         * @return Le nombre lu.
+         * @throws IOException Si le nombre est négatif.
+         */
+        int readLength() throws IOException {
+            final int length = readInt();
+            if (length < 0) {
+                throw new IOException("Corrupted segment file: negative length");
+            }
+            return length;
+        }
+
+        int[] readInts(int length) throws IOException {
+            final int[] values = new int[length];
+            int offset = 0;
+            while (offset < length) {
+                require(4);
+                final int count = Math.min(length - offset, buffer.remaining() / 4);
+                buffer.asIntBuffer().get(values, offset, count);
+                buffer.position(buffer.position() + count * 4);
+                offset += count;
+            }
+            return values;
+        }
+
+        long[] readLongs(int length) throws IOException {
+            final long[] values = new long[length];
+            int offset = 0;
+            while (offset < length) {
+                require(8);
+                final int count = Math.min(length - offset, buffer.remaining() / 8);
+                buffer.asLongBuffer().get(values, offset, count);
+                buffer.position(buffer.position() + count * 8);
+                offset += count;
+            }
+            return values;
+        }
+
+        double[] readDoubles(int length) throws IOException {
+            final double[] values = new double[length];
+            int offset = 0;
+            while (offset < length) {
+                require(8);
+                final int count = Math.min(length - offset, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().get(values, offset, count);
+                buffer.position(buffer.position() + count * 8);
+                offset += count;
+            }
+            return values;
+        }
+
+        /**
+         * Déplace la fenêtre si elle ne contient pas les octets suivants.
+         */
+        private void require(int length) throws IOException {
+            if (buffer.remaining() >= length) {
+                return;
+            }
+            final long position = bufferStart + buffer.position();
+            if (position + length > end) {
+                throw new IOException("Corrupted segment file: read past end of indexes");
+            }
+            buffer = reader.map(position, Math.min(end - position, Math.max(WINDOW_SIZE, length)));
+            bufferStart = position;
+        }
+    }
+}
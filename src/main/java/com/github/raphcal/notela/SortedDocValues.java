@@ -0,0 +1,301 @@
+package com.github.raphcal.notela;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Valeurs d'un champ utilisé pour trier, stockées en colonne par ordinal de
+ * document.
+ * <p>
+ * Chaque valeur présente reçoit un rang dans l'ordre croissant des valeurs
+ * distinctes pour que le tri compare des entiers. Les rangs sont recalculés
+ * au premier tri suivant une modification.
+ * <p>
+ * Le classement donne aussi les ordinaux triés par valeur pour reprendre un
+ * parcours après une valeur donnée sans trier les documents
+ * (<code>search_after</code>).
+ * <p>
+ * Un seul thread écrit les valeurs, chaque ordinal une seule fois, pendant
+ * que d'autres peuvent trier. Un tri doit lire tous ses rangs dans le même
+ * classement, renvoyé par <code>ranking</code> : un nouveau calcul peut
+ * décaler les rangs pour tenir compte des nouvelles valeurs.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class SortedDocValues {
+
+    /**
+     * Rang donné aux documents sans valeur.
+     */
+    static final int MISSING = -1;
+
+    /**
+     * Types des valeurs écrites dans un fichier de segment.
+     */
+    private static final byte NULL_VALUE = 0;
+    private static final byte BOOLEAN_VALUE = 1;
+    private static final byte NUMBER_VALUE = 2;
+    private static final byte STRING_VALUE = 3;
+
+    /**
+     * Ordre des valeurs : booléens, puis nombres, puis chaînes, chaque type
+     * dans son ordre naturel.
+     */
+    @SuppressWarnings("unchecked")
+    static final Comparator<Object> VALUE_ORDER = (lhs, rhs) -> {
+        final int leftType = typeRank(lhs);
+        final int rightType = typeRank(rhs);
+        if (leftType != rightType) {
+            return Integer.compare(leftType, rightType);
+        }
+        return ((Comparable<Object>) lhs).compareTo(rhs);
+    };
+
+    /**
+     * Classement des valeurs des <code>ranks.length</code> premiers
+     * ordinaux.
+     */
+    static final class Ranking {
+        /**
+         * Rang de la valeur de chaque ordinal, <code>MISSING</code> pour les
+         * documents sans valeur.
+         */
+        final int[] ranks;
+
+        /**
+         * Valeurs distinctes, par rang.
+         */
+        final Object[] values;
+
+        /**
+         * Ordinaux triés par rang puis par ordinal, les documents sans
+         * valeur à la fin.
+         */
+        final int[] sortedOrdinals;
+
+        /**
+         * Position dans <code>sortedOrdinals</code> du premier ordinal de
+         * chaque rang. La case <code>values.length</code> donne le premier
+         * document sans valeur et la dernière case la fin du tableau.
+         */
+        final int[] rankStarts;
+
+        private Ranking(int[] ranks, Object[] values) {
+            this.ranks = ranks;
+            this.values = values;
+            // Tri par dénombrement : les ordinaux de chaque rang restent
+            // dans l'ordre croissant.
+            final int missing = values.length;
+            final int[] rankStarts = new int[values.length + 2];
+            for (final int rank : ranks) {
+                rankStarts[(rank == MISSING ? missing : rank) + 1]++;
+            }
+            for (int rank = 1; rank < rankStarts.length; rank++) {
+                rankStarts[rank] += rankStarts[rank - 1];
+            }
+            final int[] positions = Arrays.copyOf(rankStarts, missing + 1);
+            final int[] sortedOrdinals = new int[ranks.length];
+            for (int ordinal = 0; ordinal < ranks.length; ordinal++) {
+                final int rank = ranks[ordinal] == MISSING ? missing : ranks[ordinal];
+                sortedOrdinals[positions[rank]++] = ordinal;
+            }
+            this.sortedOrdinals = sortedOrdinals;
+            this.rankStarts = rankStarts;
+        }
+
+        /**
+         * Cherche le rang d'une valeur.
+         *
+         * @param value Valeur cherchée.
+         * @return Le rang de la valeur si elle est présente, sinon
+         * <code>-(point d'insertion) - 1</code>.
+         */
+        int rankOf(Object value) {
+            return Arrays.binarySearch(values, value, VALUE_ORDER);
+        }
+    }
+
+    /**
+     * Chemin du champ dans les documents.
+     */
+    private final FieldPath path;
+
+    /**
+     * Valeur par ordinal : <code>Boolean</code>, <code>Double</code>,
+     * <code>String</code> ou <code>null</code>.
+     */
+    private volatile Object[] values = new Object[16];
+    private volatile int size;
+
+    private volatile Ranking ranking = new Ranking(new int[0], new Object[0]);
+
+    SortedDocValues(FieldPath path) {
+        this.path = path;
+    }
+
+    FieldPath path() {
+        return path;
+    }
+
+    void set(int ordinal, Object value) {
+        Object[] values = this.values;
+        if (ordinal >= values.length) {
+            values = Arrays.copyOf(values, Math.max(ordinal + 1, values.length * 2));
+            this.values = values;
+        }
+        values[ordinal] = value;
+        size = Math.max(size, ordinal + 1);
+    }
+
+    Object value(int ordinal) {
+        return ordinal < size ? values[ordinal] : null;
+    }
+
+    /**
+     * Crée une copie de cette colonne en renumérotant les documents et en
+     * retirant les documents supprimés. Les rangs sont recalculés au
+     * premier tri.
+     *
+     * @param newOrdinals Nouvel ordinal de chaque document, -1 pour les
+     * documents supprimés.
+     * @return La colonne renumérotée.
+     */
+    SortedDocValues compact(int[] newOrdinals) {
+        final SortedDocValues compacted = new SortedDocValues(path);
+        final Object[] values = this.values;
+        final int size = Math.min(Math.min(this.size, values.length), newOrdinals.length);
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            if (newOrdinals[ordinal] >= 0 && values[ordinal] != null) {
+                compacted.set(newOrdinals[ordinal], values[ordinal]);
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Écrit cette colonne dans un fichier de segment, renumérotée par
+     * <code>compact</code>. Les rangs ne sont pas écrits : ils sont
+     * recalculés au premier tri.
+     *
+     * @param output Section des index du fichier.
+     * @param newOrdinals Rang de chaque document dans le fichier, -1 pour
+     * les documents qui n'y sont pas.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    void writeTo(DataOutput output, int[] newOrdinals) throws IOException {
+        final SortedDocValues compacted = compact(newOrdinals);
+        output.writeInt(compacted.size);
+        for (int ordinal = 0; ordinal < compacted.size; ordinal++) {
+            final Object value = compacted.values[ordinal];
+            if (value instanceof Boolean) {
+                output.writeByte(BOOLEAN_VALUE);
+                output.writeBoolean((Boolean) value);
+            } else if (value instanceof Number) {
+                output.writeByte(NUMBER_VALUE);
+                output.writeDouble(((Number) value).doubleValue());
+            } else if (value != null) {
+                output.writeByte(STRING_VALUE);
+                SegmentFile.writeString(output, value.toString());
+            } else {
+                output.writeByte(NULL_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Lit une colonne écrite par <code>writeTo</code>.
+     *
+     * @param input Section des index du fichier.
+     * @param path Chemin du champ.
+     * @return La colonne lue.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    static SortedDocValues readFrom(SegmentFile.Input input, FieldPath path) throws IOException {
+        final SortedDocValues column = new SortedDocValues(path);
+        final int size = input.readLength();
+        final Object[] values = new Object[Math.max(size, 16)];
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            final byte type = input.readByte();
+            switch (type) {
+                case NULL_VALUE:
+                    break;
+                case BOOLEAN_VALUE:
+                    values[ordinal] = input.readBoolean();
+                    break;
+                case NUMBER_VALUE:
+                    values[ordinal] = input.readDouble();
+                    break;
+                case STRING_VALUE:
+                    values[ordinal] = input.readString();
+                    break;
+                default:
+                    throw new IOException("Corrupted segment file: unknown value type " + type + " in sort column " + path);
+            }
+        }
+        column.values = values;
+        column.size = size;
+        return column;
+    }
+
+    /**
+     * Récupère les rangs des valeurs des documents.
+     *
+     * @param count Nombre d'ordinaux dont les rangs sont nécessaires.
+     * @return Rangs des valeurs par ordinal, <code>MISSING</code> pour les
+     * documents sans valeur. Les ordinaux au-delà de la taille du tableau
+     * n'ont pas de valeur.
+     */
+    int[] ranks(int count) {
+        return ranking(count).ranks;
+    }
+
+    /**
+     * Récupère le classement des valeurs des documents.
+     *
+     * @param count Nombre d'ordinaux devant être classés.
+     * @return Classement d'au moins <code>count</code> ordinaux ou de tous
+     * les ordinaux ayant reçu une valeur.
+     */
+    Ranking ranking(int count) {
+        final Ranking ranking = this.ranking;
+        if (ranking.ranks.length >= Math.min(count, size)) {
+            return ranking;
+        }
+        return computeRanking();
+    }
+
+    private synchronized Ranking computeRanking() {
+        final int size = this.size;
+        if (ranking.ranks.length == size) {
+            return ranking;
+        }
+        final Object[] values = this.values;
+        final Object[] distinctValues = Arrays.stream(values, 0, size)
+                .filter(value -> value != null)
+                .distinct()
+                .sorted(VALUE_ORDER)
+                .toArray();
+        final int[] ranks = new int[size];
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            final Object value = values[ordinal];
+            ranks[ordinal] = value != null
+                    ? Arrays.binarySearch(distinctValues, value, VALUE_ORDER)
+                    : MISSING;
+        }
+        final Ranking ranking = new Ranking(ranks, distinctValues);
+        this.ranking = ranking;
+        return ranking;
+    }
+
+    private static int typeRank(Object value) {
+        if (value instanceof Boolean) {
+            return 0;
+        } else if (value instanceof Number) {
+            return 1;
+        } else {
+            return 2;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.github.raphcal.notela;
+
+import java.util.Arrays;
+
+/**
+ * Estimation des centiles d'une suite de nombres par l'algorithme t-digest
+ * (version par fusion de Ted Dunning).
+ * <p>
+ * Les valeurs sont regroupées en centroïdes (moyenne et poids). Les
+ * centroïdes sont petits aux extrémités de la distribution et grands au
+ * milieu, ce qui garde les centiles extrêmes précis avec un nombre de
+ * centroïdes borné par la compression. Les valeurs ajoutées sont gardées
+ * dans un tampon et fusionnées par lot avec les centroïdes existants.
+ * <p>
+ * Deux estimations peuvent être fusionnées. Une estimation n'est pas
+ * synchronisée.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class TDigest {
+
+    /**
+     * Compression par défaut, comme dans Elasticsearch.
+     */
+    static final double DEFAULT_COMPRESSION = 100.0;
+
+    private final double compression;
+
+    private double[] means;
+    private double[] weights;
+    private int centroidCount;
+
+    /**
+     * Valeurs et poids pas encore fusionnés.
+     */
+    private final double[] bufferMeans;
+    private final double[] bufferWeights;
+    private int bufferSize;
+
+    private double totalWeight;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    TDigest(double compression) {
+        this.compression = Math.max(compression, 1.0);
+        final int capacity = (int) Math.ceil(this.compression) * 2 + 10;
+        this.means = new double[capacity];
+        this.weights = new double[capacity];
+        this.bufferMeans = new double[capacity * 5];
+        this.bufferWeights = new double[capacity * 5];
+    }
+
+    void add(double value) {
+        add(value, 1.0);
+    }
+
+    /**
+     * Ajoute les valeurs d'une autre estimation.
+     *
+     * @param other Estimation à fusionner.
+     */
+    void merge(TDigest other) {
+        other.compress();
+        for (int index = 0; index < other.centroidCount; index++) {
+            add(other.means[index], other.weights[index]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Estime le centile donné.
+     *
+     * @param percent Centile, entre 0 et 100.
+     * @return La valeur estimée, <code>NaN</code> si aucune valeur n'a été
+     * ajoutée.
+     */
+    double percentile(double percent) {
+        compress();
+        if (centroidCount == 0) {
+            return Double.NaN;
+        } else if (centroidCount == 1) {
+            return means[0];
+        }
+        final double index = Math.max(0.0, Math.min(1.0, percent / 100.0)) * totalWeight;
+        if (index < weights[0] / 2) {
+            return weights[0] <= 1.0 ? means[0] : min + (means[0] - min) * index / (weights[0] / 2);
+        }
+        double cumulated = weights[0] / 2;
+        for (int centroid = 0; centroid < centroidCount - 1; centroid++) {
+            final double gap = (weights[centroid] + weights[centroid + 1]) / 2;
+            if (cumulated + gap > index) {
+                final double fraction = (index - cumulated) / gap;
+                return means[centroid] + fraction * (means[centroid + 1] - means[centroid]);
+            }
+            cumulated += gap;
+        }
+        final int last = centroidCount - 1;
+        if (weights[last] <= 1.0) {
+            return means[last];
+        }
+        final double remaining = index - cumulated;
+        return means[last] + (max - means[last]) * Math.min(1.0, remaining / (weights[last] / 2));
+    }
+
+    private void add(double mean, double weight) {
+        if (bufferSize == bufferMeans.length) {
+            compress();
+        }
+        bufferMeans[bufferSize] = mean;
+        bufferWeights[bufferSize] = weight;
+        bufferSize++;
+        if (weight == 1.0) {
+            min = Math.min(min, mean);
+            max = Math.max(max, mean);
+        }
+    }
+
+    /**
+     * Fusionne le tampon avec les centroïdes. Deux centroïdes voisins sont
+     * réunis tant que leur poids cumulé reste sous la limite donnée par la
+     * fonction d'échelle <code>k(q) = δ / 2π · asin(2q - 1)</code>.
+     */
+    private void compress() {
+        if (bufferSize == 0) {
+            return;
+        }
+        final int count = centroidCount + bufferSize;
+        final double[] allMeans = Arrays.copyOf(means, count);
+        final double[] allWeights = Arrays.copyOf(weights, count);
+        System.arraycopy(bufferMeans, 0, allMeans, centroidCount, bufferSize);
+        System.arraycopy(bufferWeights, 0, allWeights, centroidCount, bufferSize);
+        heapSort(allMeans, allWeights, count);
+
+        double total = 0.0;
+        for (int index = 0; index < count; index++) {
+            total += allWeights[index];
+        }
+        int merged = 0;
+        double mergedMean = allMeans[0];
+        double mergedWeight = allWeights[0];
+        double weightSoFar = 0.0;
+        double weightLimit = total * quantileOf(scaleOf(0.0) + 1.0);
+        for (int index = 1; index < count; index++) {
+            final double proposed = mergedWeight + allWeights[index];
+            if (weightSoFar + proposed <= weightLimit) {
+                mergedMean += (allMeans[index] - mergedMean) * allWeights[index] / proposed;
+                mergedWeight = proposed;
+            } else {
+                allMeans[merged] = mergedMean;
+                allWeights[merged] = mergedWeight;
+                merged++;
+                weightSoFar += mergedWeight;
+                weightLimit = total * quantileOf(scaleOf(weightSoFar / total) + 1.0);
+                mergedMean = allMeans[index];
+                mergedWeight = allWeights[index];
+            }
+        }
+        allMeans[merged] = mergedMean;
+        allWeights[merged] = mergedWeight;
+        merged++;
+
+        if (merged > means.length) {
+            means = new double[merged];
+            weights = new double[merged];
+        }
+        System.arraycopy(allMeans, 0, means, 0, merged);
+        System.arraycopy(allWeights, 0, weights, 0, merged);
+        centroidCount = merged;
+        totalWeight = total;
+        bufferSize = 0;
+    }
+
+    private double scaleOf(double quantile) {
+        return compression / (2 * Math.PI) * Math.asin(2 * quantile - 1);
+    }
+
+    private double quantileOf(double scale) {
+        final double angle = scale * 2 * Math.PI / compression;
+        return angle >= Math.PI / 2 ? 1.0 : (Math.sin(angle) + 1) / 2;
+    }
+
+    /**
+     * Trie les moyennes et leurs poids par moyenne croissante.
+     */
+    private static void heapSort(double[] means, double[] weights, int size) {
+        for (int start = size / 2 - 1; start >= 0; start--) {
+            siftDown(means, weights, start, size);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            swap(means, weights, 0, end);
+            siftDown(means, weights, 0, end);
+        }
+    }
+
+    private static void siftDown(double[] means, double[] weights, int root, int size) {
+        while (true) {
+            int child = root * 2 + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && means[child + 1] > means[child]) {
+                child++;
+            }
+            if (means[root] >= means[child]) {
+                return;
+            }
+            swap(means, weights, root, child);
+            root = child;
+        }
+    }
+
+    private static void swap(double[] means, double[] weights, int lhs, int rhs) {
+        final double mean = means[lhs];
+        means[lhs] = means[rhs];
+        means[rhs] = mean;
+        final double weight = weights[lhs];
+        weights[lhs] = weights[rhs];
+        weights[rhs] = weight;
+    }
+}
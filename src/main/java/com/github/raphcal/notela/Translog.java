@@ -0,0 +1,377 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Journal des écritures d'un index, écrit avant de rendre chaque écriture
+ * visible pour la rejouer après un arrêt brutal.
+ * <p>
+ * Le journal est découpé en générations, un fichier
+ * <code>&lt;génération&gt;.tlog</code> par génération dans le dossier de
+ * l'index. Une génération est fermée à chaque <code>flush</code> : les
+ * fichiers de segment indiquent la première génération qui n'y est pas
+ * incluse, les générations précédentes peuvent être supprimées.
+ * <p>
+ * Chaque opération est écrite avec sa longueur et sa somme de contrôle CRC32
+ * pour que la relecture s'arrête à la première opération incomplète.
+ * <p>
+ * La synchronisation sur disque est groupée : un seul <code>force</code>
+ * couvre toutes les opérations écrites par les threads qui attendent en même
+ * temps.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+final class Translog implements Closeable {
+
+    static final byte INDEX = 'I';
+    static final byte DELETE = 'D';
+    static final byte MAPPINGS = 'M';
+    static final byte SETTINGS = 'S';
+
+    private static final String EXTENSION = ".tlog";
+
+    /**
+     * Longueur et somme de contrôle d'une opération.
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 8;
+
+    private static final Gson GSON = new Gson();
+    private static final TypeToken<Map<String, Object>> SETTINGS_TYPE = new TypeToken<Map<String, Object>>() {};
+
+    /**
+     * Opération lue dans le journal.
+     */
+    interface Replayer {
+        void index(String id, JsonObject document) throws IOException;
+        void delete(String id) throws IOException;
+        void mappings(String mappings) throws IOException;
+        void settings(Map<String, Object> settings) throws IOException;
+    }
+
+    private final Path directory;
+
+    /**
+     * Verrou de la synchronisation, pris avant celui de l'instance.
+     */
+    private final Object syncLock = new Object();
+
+    private FileChannel channel;
+    private long generation;
+    private boolean closed;
+
+    /**
+     * Nombre d'octets écrits depuis l'ouverture, toutes générations
+     * confondues.
+     */
+    private long written;
+
+    /**
+     * Nombre d'octets écrits synchronisés sur disque.
+     */
+    private volatile long synced;
+
+    /**
+     * Ouvre une nouvelle génération après les générations existantes.
+     *
+     * @param directory Dossier du journal de l'index, créé s'il n'existe
+     * pas.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    Translog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        final List<Long> generations = generations(directory);
+        this.generation = generations.isEmpty() ? 1 : generations.get(generations.size() - 1) + 1;
+        this.channel = open(generation);
+    }
+
+    /**
+     * Donne la génération en cours d'écriture.
+     *
+     * @return Génération en cours.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Donne la position après la dernière opération écrite, à donner à
+     * <code>sync</code>.
+     *
+     * @return Nombre d'octets écrits.
+     */
+    synchronized long position() {
+        return written;
+    }
+
+    long index(String id, JsonObject document) throws IOException {
+        return append(INDEX, id, document.toString());
+    }
+
+    long delete(String id) throws IOException {
+        return append(DELETE, id);
+    }
+
+    long mappings(Object mappings) throws IOException {
+        return append(MAPPINGS, GSON.toJson(mappings));
+    }
+
+    long settings(Map<String, Object> settings) throws IOException {
+        return append(SETTINGS, GSON.toJson(settings));
+    }
+
+    /**
+     * Écrit une opération. L'opération n'est pas synchronisée sur disque.
+     *
+     * @return Position après l'opération.
+     */
+    private synchronized long append(byte operation, String... values) throws IOException {
+        if (closed) {
+            // L'index a été supprimé.
+            return written;
+        }
+        final byte[][] bytes = new byte[values.length][];
+        int length = 1;
+        for (int index = 0; index < values.length; index++) {
+            bytes[index] = values[index].getBytes(StandardCharsets.UTF_8);
+            length += 4 + bytes[index].length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        buffer.putInt(length);
+        buffer.putLong(0L);
+        buffer.put(operation);
+        for (final byte[] value : bytes) {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_SIZE, length);
+        buffer.putLong(4, crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        written += buffer.limit();
+        return written;
+    }
+
+    /**
+     * Synchronise sur disque les opérations écrites jusqu'à la position
+     * donnée. Si un autre thread synchronise déjà, attend la fin de sa
+     * synchronisation : elle couvre souvent aussi cette position.
+     *
+     * @param position Position donnée par <code>position</code> ou après
+     * une écriture.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    void sync(long position) throws IOException {
+        if (synced >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            final FileChannel channel;
+            final long target;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                channel = this.channel;
+                target = written;
+            }
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Synchronise les opérations écrites puis commence une nouvelle
+     * génération.
+     *
+     * @return La nouvelle génération.
+     * @throws IOException En cas d'erreur d'écriture.
+     */
+    long roll() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (closed) {
+                    return generation;
+                }
+                channel.force(false);
+                channel.close();
+                synced = written;
+                generation++;
+                channel = open(generation);
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Supprime les générations précédant la génération donnée.
+     *
+     * @param generation Première génération à garder.
+     * @throws IOException En cas d'erreur de suppression.
+     */
+    void trim(long generation) throws IOException {
+        for (final long existing : generations(directory)) {
+            if (existing < generation) {
+                Files.deleteIfExists(file(directory, existing));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (!closed) {
+                    closed = true;
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Ferme le journal et supprime son dossier.
+     *
+     * @throws IOException En cas d'erreur de suppression.
+     */
+    void delete() throws IOException {
+        close();
+        for (final long existing : generations(directory)) {
+            Files.deleteIfExists(file(directory, existing));
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * Relit les opérations du journal d'un index, dans l'ordre d'écriture.
+     * La lecture d'une génération s'arrête à la première opération
+     * incomplète, écrite en partie avant un arrêt brutal.
+     *
+     * @param directory Dossier du journal de l'index.
+     * @param fromGeneration Première génération à relire.
+     * @param replayer Destinataire des opérations.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    static void replay(Path directory, long fromGeneration, Replayer replayer) throws IOException {
+        for (final long generation : generations(directory)) {
+            if (generation < fromGeneration) {
+                continue;
+            }
+            try (final FileChannel channel = FileChannel.open(file(directory, generation), StandardOpenOption.READ)) {
+                final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                while (readFully(channel, header)) {
+                    header.flip();
+                    final int length = header.getInt();
+                    final long checksum = header.getLong();
+                    header.clear();
+                    if (length <= 0 || length > channel.size() - channel.position()) {
+                        break;
+                    }
+                    final ByteBuffer record = ByteBuffer.allocate(length);
+                    if (!readFully(channel, record)) {
+                        break;
+                    }
+                    final CRC32 crc = new CRC32();
+                    crc.update(record.array(), 0, length);
+                    if (crc.getValue() != checksum) {
+                        break;
+                    }
+                    record.flip();
+                    apply(record, replayer);
+                }
+            }
+        }
+    }
+
+    private static void apply(ByteBuffer record, Replayer replayer) throws IOException {
+        final byte operation = record.get();
+        switch (operation) {
+            case INDEX:
+                final String id = readString(record);
+                replayer.index(id, JsonParser.parseString(readString(record)).getAsJsonObject());
+                break;
+            case DELETE:
+                replayer.delete(readString(record));
+                break;
+            case MAPPINGS:
+                replayer.mappings(readString(record));
+                break;
+            case SETTINGS:
+                replayer.settings(GSON.fromJson(readString(record), SETTINGS_TYPE));
+                break;
+            default:
+                throw new IOException("Unknown translog operation: " + (char) operation);
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        final int length = record.getInt();
+        final String value = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private FileChannel open(long generation) throws IOException {
+        return FileChannel.open(file(directory, generation),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private static Path file(Path directory, long generation) {
+        return directory.resolve(generation + EXTENSION);
+    }
+
+    /**
+     * Donne les générations présentes dans le dossier donné.
+     *
+     * @param directory Dossier du journal d'un index.
+     * @return Générations, triées.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    private static List<Long> generations(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (final Stream<Path> files = Files.list(directory)) {
+            final ArrayList<Long> generations = files
+                    .map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(EXTENSION) && name.matches("\\d+\\" + EXTENSION))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - EXTENSION.length())))
+                    .sorted()
+                    .collect(Collectors.toCollection(ArrayList::new));
+            return generations;
+        }
+    }
+}
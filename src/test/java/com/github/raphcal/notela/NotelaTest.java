@@ -0,0 +1,479 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import fr.bdf.center.graalod.api.elastic.mock.FieldMapping;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests de non-régression des recherches, des écritures groupées et de la
+ * persistance, à travers l'API de Notela.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+public class NotelaTest {
+
+    private Notela notela;
+    private Path directory;
+
+    @Before
+    public void createNotela() throws IOException {
+        notela = new Notela();
+        directory = Files.createTempDirectory("notela");
+    }
+
+    @After
+    public void clearNotela() throws IOException {
+        notela.clear();
+        try (final Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void termQueriesReadPostingsOfTheField() throws IOException {
+        notela.setMappings("t", new Gson().fromJson(
+                "{\"tag\":{\"type\":\"keyword\",\"copy_to\":\"all\"},"
+                + "\"color\":{\"type\":\"keyword\",\"copy_to\":\"all\"}}",
+                new TypeToken<Map<String, FieldMapping>>() {}.getType()));
+        notela.add("t", "1", document("red", "blue"));
+        notela.add("t", "2", document("blue", "green"));
+        notela.add("t", "3", document("green", "red"));
+
+        assertEquals(List.of("1"), ids(search("t", "{\"query\":{\"term\":{\"tag\":\"red\"}}}")));
+        // Le suffixe .keyword désigne le même champ.
+        assertEquals(List.of("2"), ids(search("t", "{\"query\":{\"term\":{\"tag.keyword\":\"blue\"}}}")));
+        assertEquals(List.of("1", "2"), ids(search("t", "{\"query\":{\"terms\":{\"tag.keyword\":[\"red\",\"blue\"]}}}")));
+        // Le champ "all" reçoit les valeurs de tag et de color.
+        assertEquals(List.of("1", "3"), ids(search("t", "{\"query\":{\"term\":{\"all\":\"red\"}}}")));
+        assertEquals(List.of("1", "2", "3"), ids(search("t", "{\"query\":{\"terms\":{\"all\":[\"blue\",\"green\"]}}}")));
+        assertEquals(Collections.emptyList(), ids(search("t", "{\"query\":{\"term\":{\"all\":\"black\"}}}")));
+
+        // Les postings suivent les remplacements et les suppressions.
+        notela.add("t", "1", document("black", "white"));
+        bulk("{\"delete\":{\"_index\":\"t\",\"_id\":\"3\"}}",
+                "{\"index\":{\"_index\":\"t\",\"_id\":\"4\"}}",
+                "{\"tag\":\"red\"}");
+        assertEquals(List.of("4"), ids(search("t", "{\"query\":{\"term\":{\"all\":\"red\"}}}")));
+        assertEquals(List.of("1"), ids(search("t", "{\"query\":{\"terms\":{\"all.keyword\":[\"black\"]}}}")));
+        assertEquals(List.of("2"), ids(search("t", "{\"query\":{\"terms\":{\"color\":[\"green\",\"red\",\"blue\"]}}}")));
+    }
+
+    @Test
+    public void bulkGivesStatusOfEachItem() throws IOException {
+        final JsonObject response = bulk(
+                "{\"index\":{\"_index\":\"b\",\"_id\":\"1\"}}",
+                "{\"n\":1}",
+                "{\"index\":{\"_index\":\"b\",\"_id\":\"1\"}}",
+                "{\"n\":2}",
+                "{\"create\":{\"_index\":\"b\",\"_id\":\"1\"}}",
+                "{\"n\":3}",
+                "{\"update\":{\"_index\":\"b\",\"_id\":\"2\"}}",
+                "{\"doc\":{\"n\":3}}",
+                "{\"update\":{\"_index\":\"b\",\"_id\":\"1\"}}",
+                "{\"doc\":{\"m\":4}}",
+                "{\"delete\":{\"_index\":\"b\",\"_id\":\"9\"}}",
+                "{\"delete\":{\"_index\":\"b\",\"_id\":\"1\"}}");
+
+        assertTrue(response.get("errors").getAsBoolean());
+        final JsonArray items = response.getAsJsonArray("items");
+        assertEquals(7, items.size());
+        assertItem(items.get(0), "index", 201, "created");
+        assertItem(items.get(1), "index", 200, "updated");
+        assertItem(items.get(2), "create", 409, null);
+        assertItem(items.get(3), "update", 404, null);
+        assertItem(items.get(4), "update", 200, "updated");
+        assertItem(items.get(5), "delete", 404, "not_found");
+        assertItem(items.get(6), "delete", 200, "deleted");
+        assertEquals("version_conflict_engine_exception", error(items.get(2), "create"));
+        assertEquals("document_missing_exception", error(items.get(3), "update"));
+        assertNull(notela.get("b", "1", JsonObject.class));
+    }
+
+    @Test
+    public void bulkKeepsItemsBeforeMalformedLine() throws IOException {
+        final JsonObject response = bulk(
+                "{\"index\":{\"_index\":\"b\",\"_id\":\"5\"}}",
+                "{\"n\":5}",
+                "{\"index\":{\"_index\":\"b\",\"_id\":\"6\"}}",
+                "{\"n\":");
+
+        assertEquals(400, response.get("status").getAsInt());
+        assertEquals("parse_exception", response.getAsJsonObject("error").get("type").getAsString());
+        final JsonArray items = response.getAsJsonArray("items");
+        assertEquals(1, items.size());
+        assertItem(items.get(0), "index", 201, "created");
+        assertNotNull(notela.get("b", "5", JsonObject.class));
+        assertNull(notela.get("b", "6", JsonObject.class));
+    }
+
+    @Test
+    public void bulkGivesErrorOfInvalidUpdateInItsItem() throws IOException {
+        final JsonObject response = bulk(
+                "{\"index\":{\"_index\":\"b\",\"_id\":\"1\"}}",
+                "{\"n\":1,\"m\":3}",
+                "{\"update\":{\"_index\":\"b\",\"_id\":\"1\"}}",
+                "{\"script\":[\"ctx._source.n = 2\"]}",
+                "{\"update\":{\"_index\":\"b\",\"_id\":\"1\"}}",
+                "{\"script\":\"ctx._source.n = ctx._source.m\"}",
+                "{\"index\":{\"_index\":\"b\",\"_id\":\"2\"}}",
+                "{\"n\":2}");
+
+        assertTrue(response.get("errors").getAsBoolean());
+        assertNull(response.get("error"));
+        final JsonArray items = response.getAsJsonArray("items");
+        assertEquals(4, items.size());
+        assertItem(items.get(0), "index", 201, "created");
+        assertItem(items.get(1), "update", 400, null);
+        assertEquals("illegal_argument_exception", error(items.get(1), "update"));
+        assertItem(items.get(2), "update", 200, "updated");
+        assertItem(items.get(3), "index", 201, "created");
+        assertEquals(3, notela.get("b", "1", JsonObject.class).get("n").getAsInt());
+    }
+
+    @Test
+    public void bulkStopsAtUnknownAction() throws IOException {
+        final JsonObject response = bulk(
+                "{\"index\":{\"_index\":\"b\",\"_id\":\"1\"}}",
+                "{\"n\":1}",
+                "{\"foo\":{\"_index\":\"b\",\"_id\":\"2\"}}",
+                "{\"n\":2}",
+                "{\"index\":{\"_index\":\"b\",\"_id\":\"3\"}}",
+                "{\"n\":3}");
+
+        assertEquals(400, response.get("status").getAsInt());
+        assertEquals("illegal_argument_exception", response.getAsJsonObject("error").get("type").getAsString());
+        final JsonArray items = response.getAsJsonArray("items");
+        assertEquals(1, items.size());
+        assertItem(items.get(0), "index", 201, "created");
+        assertNull(notela.get("b", "2", JsonObject.class));
+        assertNull(notela.get("b", "3", JsonObject.class));
+    }
+
+    @Test
+    public void searchAfterInPointInTimeVisitsEachDocumentOnce() throws IOException {
+        addNumbers("p", 50);
+        final String pit = notela.openPointInTime("p", "1m");
+        // Absent du point-in-time.
+        notela.add("p", "late", number(1000));
+
+        final ArrayList<String> ids = new ArrayList<>();
+        JsonArray after = null;
+        while (true) {
+            final JsonArray hits = hits(search("p",
+                    "{\"size\":7,\"pit\":{\"id\":\"" + pit + "\",\"keep_alive\":\"1m\"},"
+                    + "\"sort\":[{\"n\":{\"order\":\"desc\"}}]"
+                    + (after != null ? ",\"search_after\":" + after : "") + '}'));
+            if (hits.size() == 0) {
+                break;
+            }
+            for (final JsonElement hit : hits) {
+                ids.add(hit.getAsJsonObject().get("_id").getAsString());
+            }
+            after = hits.get(hits.size() - 1).getAsJsonObject().getAsJsonArray("sort");
+        }
+
+        assertEquals(50, ids.size());
+        assertEquals(50, new HashSet<>(ids).size());
+        assertFalse(ids.contains("late"));
+        // Les valeurs de n vont de 0 à 9 : cinq documents par valeur.
+        for (int position = 0; position < ids.size(); position++) {
+            assertEquals(9 - position / 5, Integer.parseInt(ids.get(position)) % 10);
+        }
+    }
+
+    @Test
+    public void scrollSlicesSplitDocuments() throws IOException {
+        addNumbers("s", 100);
+        final Set<String> ids = new HashSet<>();
+        int total = 0;
+        for (int slice = 0; slice < 3; slice++) {
+            JsonObject page = notela.search("s",
+                    "{\"size\":10,\"slice\":{\"id\":" + slice + ",\"max\":3}}",
+                    Collections.singletonMap("scroll", "1m"));
+            final String scrollId = page.get("_scroll_id").getAsString();
+            total += totalHits(page);
+            while (hits(page).size() > 0) {
+                for (final JsonElement hit : hits(page)) {
+                    assertTrue(ids.add(hit.getAsJsonObject().get("_id").getAsString()));
+                }
+                page = notela.scroll(scrollId, "1m");
+            }
+        }
+        assertEquals(100, ids.size());
+        assertEquals(100, total);
+    }
+
+    @Test
+    public void compositeAggregationPagesThroughAllBuckets() throws IOException {
+        for (int document = 0; document < 60; document++) {
+            final JsonObject source = new JsonObject();
+            source.addProperty("tag", "t" + (document % 13));
+            source.addProperty("size", "s" + (document % 4));
+            notela.add("c", Integer.toString(document), source);
+        }
+        final ArrayList<String> keys = new ArrayList<>();
+        int documents = 0;
+        JsonObject after = null;
+        do {
+            final JsonObject composite = search("c",
+                    "{\"size\":0,\"aggs\":{\"c\":{\"composite\":{\"size\":5,\"sources\":["
+                    + "{\"tag\":{\"terms\":{\"field\":\"tag\"}}},{\"size\":{\"terms\":{\"field\":\"size\"}}}]"
+                    + (after != null ? ",\"after\":" + after : "") + "}}}}")
+                    .getAsJsonObject("aggregations").getAsJsonObject("c");
+            for (final JsonElement bucket : composite.getAsJsonArray("buckets")) {
+                final JsonObject key = bucket.getAsJsonObject().getAsJsonObject("key");
+                keys.add(key.get("tag").getAsString() + '/' + key.get("size").getAsString());
+                documents += bucket.getAsJsonObject().get("doc_count").getAsInt();
+            }
+            // La dernière page n'a pas de after_key.
+            after = composite.getAsJsonObject("after_key");
+        } while (after != null);
+
+        // 13 et 4 sont premiers entre eux : 52 couples, dont 8 vus deux fois.
+        assertEquals(52, keys.size());
+        assertEquals(new ArrayList<>(new TreeSet<>(keys)), keys);
+        assertEquals(60, documents);
+    }
+
+    @Test
+    public void cardinalityIsMergedAcrossIndexes() throws IOException {
+        addSplitNumbers();
+        final JsonObject aggregations = search("m1,m2",
+                "{\"size\":0,\"aggs\":{"
+                + "\"tags\":{\"cardinality\":{\"field\":\"tag\"}},"
+                + "\"numbers\":{\"cardinality\":{\"field\":\"n\"}}}}")
+                .getAsJsonObject("aggregations");
+
+        // En dessous du seuil de précision, le compte est exact.
+        assertEquals(300, aggregations.getAsJsonObject("tags").get("value").getAsLong());
+        assertEquals(1001, aggregations.getAsJsonObject("numbers").get("value").getAsLong());
+    }
+
+    @Test
+    public void percentilesAndStatsAreMergedAcrossIndexes() throws IOException {
+        addSplitNumbers();
+        final JsonObject aggregations = search("m1,m2",
+                "{\"size\":0,\"aggs\":{"
+                + "\"p\":{\"percentiles\":{\"field\":\"n\",\"percents\":[1,50,99]}},"
+                + "\"s\":{\"stats\":{\"field\":\"n\"}}}}")
+                .getAsJsonObject("aggregations");
+
+        final JsonObject percentiles = aggregations.getAsJsonObject("p").getAsJsonObject("values");
+        assertEquals(11.0, percentiles.get("1.0").getAsDouble(), 2.0);
+        assertEquals(501.0, percentiles.get("50.0").getAsDouble(), 2.0);
+        assertEquals(991.0, percentiles.get("99.0").getAsDouble(), 2.0);
+        final JsonObject stats = aggregations.getAsJsonObject("s");
+        assertEquals(1001, stats.get("count").getAsLong());
+        assertEquals(1.0, stats.get("min").getAsDouble(), 0.0);
+        assertEquals(1001.0, stats.get("max").getAsDouble(), 0.0);
+        assertEquals(501.0, stats.get("avg").getAsDouble(), 1e-9);
+    }
+
+    @Test
+    public void snapshotIsRestoredWithItsIndexes() throws IOException {
+        addNumbers("r", 20);
+        notela.add("other", "1", number(1));
+        assertNotNull(notela.snapshot(directory.resolve("snapshot"), "r"));
+        // Absent du snapshot.
+        notela.add("r", "late", number(1000));
+
+        final Notela restored = new Notela();
+        assertEquals(Collections.singletonList("r"), restored.restore(directory.resolve("snapshot")));
+        assertFalse(restored.indexExists("other"));
+        assertEquals(20, restored.list("r", JsonObject.class).size());
+        assertNull(restored.get("r", "late", JsonObject.class));
+        assertEquals(7, restored.get("r", "17", JsonObject.class).get("n").getAsInt());
+        assertEquals(2, totalHits(restored.search("r", "{\"query\":{\"range\":{\"n\":{\"gte\":9}}}}", Collections.emptyMap())));
+
+        try {
+            restored.restore(directory.resolve("snapshot"));
+            fail("An existing index must not be replaced");
+        } catch (IllegalArgumentException e) {
+            // Attendu.
+        }
+        restored.clear();
+    }
+
+    @Test
+    public void translogIsReplayedOnRestart() throws IOException {
+        notela.setDataPath(directory);
+        notela.add("t", "1", number(1));
+        notela.add("t", "2", number(2));
+        notela.flush();
+        notela.add("t", "3", number(3));
+        bulk("{\"delete\":{\"_index\":\"t\",\"_id\":\"1\"}}",
+                "{\"index\":{\"_index\":\"t\",\"_id\":\"2\"}}",
+                "{\"n\":20}");
+
+        final Notela restarted = new Notela();
+        restarted.setDataPath(directory);
+        assertNull(restarted.get("t", "1", JsonObject.class));
+        assertEquals(20, restarted.get("t", "2", JsonObject.class).get("n").getAsInt());
+        assertEquals(3, restarted.get("t", "3", JsonObject.class).get("n").getAsInt());
+        assertEquals(2, restarted.list("t", JsonObject.class).size());
+        assertEquals(1, totalHits(restarted.search("t", "{\"query\":{\"term\":{\"n\":20}}}", Collections.emptyMap())));
+    }
+
+    @Test
+    public void resultWindowIsLimitedByIndexSetting() throws IOException {
+        addNumbers("w", 20);
+
+        assertEquals(5, hits(search("w", "{\"from\":15,\"size\":10}")).size());
+        try {
+            search("w", "{\"from\":5,\"size\":" + Integer.MAX_VALUE + "}");
+            fail("from + size dépasse index.max_result_window");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Result window is too large"));
+        }
+    }
+
+    @Test
+    public void restoredIndexReadsItsIndexesFromTheSegment() throws IOException {
+        notela.setMappings("s", new Gson().fromJson(
+                "{\"n\":{\"type\":\"integer\"},\"tag\":{\"type\":\"keyword\"},\"title\":{\"type\":\"text\"}}",
+                new TypeToken<Map<String, FieldMapping>>() {}.getType()));
+        final String[] titles = {"le chat noir", "le chien blanc", "un chat blanc", "le noir chat"};
+        for (int document = 0; document < titles.length; document++) {
+            final JsonObject source = number(document);
+            source.addProperty("tag", document % 2 == 0 ? "even" : "odd");
+            source.addProperty("title", titles[document]);
+            notela.add("s", Integer.toString(document), source);
+        }
+        // Les ordinaux des documents suivants sont renumérotés dans le
+        // fichier.
+        bulk("{\"delete\":{\"_index\":\"s\",\"_id\":\"1\"}}");
+        search("s", "{\"sort\":[{\"n\":{\"order\":\"desc\"}}]}");
+        assertNotNull(notela.snapshot(directory.resolve("snapshot"), "s"));
+
+        final Notela restored = new Notela();
+        restored.restore(directory.resolve("snapshot"));
+        assertEquals(List.of("0", "2", "3"), ids(restored.search("s", "{\"query\":{\"match\":{\"title\":\"chat\"}}}", Collections.emptyMap())));
+        assertEquals(List.of("2"), ids(restored.search("s", "{\"query\":{\"match\":{\"title\":\"blanc\"}}}", Collections.emptyMap())));
+        assertEquals(List.of("0", "2"), ids(restored.search("s", "{\"query\":{\"term\":{\"tag\":\"even\"}}}", Collections.emptyMap())));
+        assertEquals(List.of("2", "3"), ids(restored.search("s", "{\"query\":{\"range\":{\"n\":{\"gte\":2}}}}", Collections.emptyMap())));
+        final JsonArray sorted = hits(restored.search("s", "{\"sort\":[{\"n\":{\"order\":\"desc\"}}]}", Collections.emptyMap()));
+        assertEquals("3", sorted.get(0).getAsJsonObject().get("_id").getAsString());
+        assertEquals("0", sorted.get(2).getAsJsonObject().get("_id").getAsString());
+        final JsonArray buckets = restored.search("s", "{\"size\":0,\"aggs\":{\"tags\":{\"terms\":{\"field\":\"tag\"}}}}", Collections.emptyMap())
+                .getAsJsonObject("aggregations").getAsJsonObject("tags").getAsJsonArray("buckets");
+        assertEquals("even", buckets.get(0).getAsJsonObject().get("key").getAsString());
+        assertEquals(2, buckets.get(0).getAsJsonObject().get("doc_count").getAsInt());
+        assertEquals("le noir chat", restored.get("s", "3", JsonObject.class).get("title").getAsString());
+
+        // Les documents ajoutés après la restauration suivent ceux du
+        // fichier.
+        final JsonObject added = number(9);
+        added.addProperty("tag", "odd");
+        added.addProperty("title", "un chat");
+        restored.add("s", "9", added);
+        assertEquals(List.of("0", "2", "3", "9"), ids(restored.search("s", "{\"query\":{\"match\":{\"title\":\"chat\"}}}", Collections.emptyMap())));
+        assertEquals(List.of("3", "9"), ids(restored.search("s", "{\"query\":{\"range\":{\"n\":{\"gte\":3}}}}", Collections.emptyMap())));
+        restored.clear();
+    }
+
+    private JsonObject search(String indexNames, String requestBody) throws IOException {
+        return notela.search(indexNames, requestBody, Collections.emptyMap());
+    }
+
+    private JsonObject bulk(String... lines) throws IOException {
+        final String body = String.join("\n", lines) + '\n';
+        return notela.bulk(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static JsonObject document(String tag, String color) {
+        final JsonObject document = new JsonObject();
+        document.addProperty("tag", tag);
+        document.addProperty("color", color);
+        return document;
+    }
+
+    private static JsonArray hits(JsonObject response) {
+        return response.getAsJsonObject("hits").getAsJsonArray("hits");
+    }
+
+    /**
+     * Donne les identifiants des documents trouvés, triés.
+     */
+    private static List<String> ids(JsonObject response) {
+        final TreeSet<String> ids = new TreeSet<>();
+        for (final JsonElement hit : hits(response)) {
+            ids.add(hit.getAsJsonObject().get("_id").getAsString());
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private static JsonObject item(JsonElement item, String operation) {
+        return item.getAsJsonObject().getAsJsonObject(operation);
+    }
+
+    private static void assertItem(JsonElement item, String operation, int status, String result) {
+        final JsonObject response = item(item, operation);
+        assertEquals(status, response.get("status").getAsInt());
+        final JsonElement actual = response.get("result");
+        assertEquals(result, actual == null || actual.isJsonNull() ? null : actual.getAsString());
+    }
+
+    /**
+     * Donne le type de l'erreur d'une opération.
+     */
+    private static String error(JsonElement item, String operation) {
+        return item(item, operation).getAsJsonObject("error").get("type").getAsString();
+    }
+
+    /**
+     * Ajoute des documents dont le champ <code>n</code> vaut le dernier
+     * chiffre de leur identifiant.
+     */
+    private void addNumbers(String indexName, int count) {
+        for (int document = 0; document < count; document++) {
+            notela.add(indexName, Integer.toString(document), number(document % 10));
+        }
+    }
+
+    private static JsonObject number(int value) {
+        final JsonObject document = new JsonObject();
+        document.addProperty("n", value);
+        return document;
+    }
+
+    private static int totalHits(JsonObject response) {
+        return response.getAsJsonObject("hits").getAsJsonObject("total").get("value").getAsInt();
+    }
+
+    /**
+     * Répartit les nombres de 1 à 1001 entre les index m1 et m2, avec 300
+     * valeurs différentes pour le champ <code>tag</code>.
+     */
+    private void addSplitNumbers() {
+        for (int value = 1; value <= 1001; value++) {
+            final JsonObject source = number(value);
+            source.addProperty("tag", "t" + (value % 300));
+            notela.add(value % 2 == 0 ? "m1" : "m2", Integer.toString(value), source);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.github.raphcal.notela;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests de la relecture, des générations et de la synchronisation groupée
+ * du journal des écritures.
+ *
+ * @author Raphaël Calabro (raphael.calabro.external2@banque-france.fr)
+ */
+public class TranslogTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("translog");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            for (final Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void replayReadsOperationsInOrder() throws IOException {
+        try (final Translog translog = new Translog(directory)) {
+            translog.sync(translog.index("1", document(1)));
+            translog.sync(translog.delete("1"));
+            translog.sync(translog.index("2", document(2)));
+        }
+        assertEquals(List.of("index 1 {\"n\":1}", "delete 1", "index 2 {\"n\":2}"), replay(1));
+    }
+
+    @Test
+    public void replayStopsAtTornRecord() throws IOException {
+        final long first;
+        try (final Translog translog = new Translog(directory)) {
+            first = translog.index("1", document(1));
+            translog.sync(translog.index("2", document(2)));
+        }
+        // Arrêt brutal pendant l'écriture de la seconde opération.
+        final Path file = directory.resolve("1.tlog");
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 3);
+        }
+        assertEquals(List.of("index 1 {\"n\":1}"), replay(1));
+
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(first + 5);
+        }
+        assertEquals(List.of("index 1 {\"n\":1}"), replay(1));
+    }
+
+    @Test
+    public void replayStopsAtCorruptedRecord() throws IOException {
+        final long first;
+        try (final Translog translog = new Translog(directory)) {
+            first = translog.index("1", document(1));
+            translog.index("2", document(2));
+            translog.sync(translog.index("3", document(3)));
+        }
+        // Le champ "n" du second document devient "N" : l'opération reste
+        // lisible, seule la somme de contrôle le détecte.
+        try (final FileChannel channel = FileChannel.open(directory.resolve("1.tlog"), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer value = ByteBuffer.allocate(1);
+            final long position = first + 4 + 8 + 1 + 4 + 1 + 4 + 2;
+            channel.read(value, position);
+            value.put(0, (byte) (value.get(0) ^ 0x20));
+            value.rewind();
+            channel.write(value, position);
+        }
+        assertEquals(List.of("index 1 {\"n\":1}"), replay(1));
+    }
+
+    @Test
+    public void rollStartsNewGenerationAndTrimDeletesPreviousOnes() throws IOException {
+        try (final Translog translog = new Translog(directory)) {
+            assertEquals(1, translog.generation());
+            translog.index("1", document(1));
+            assertEquals(2, translog.roll());
+            translog.sync(translog.index("2", document(2)));
+
+            assertEquals(List.of("index 1 {\"n\":1}", "index 2 {\"n\":2}"), replay(1));
+            assertEquals(List.of("index 2 {\"n\":2}"), replay(2));
+
+            translog.trim(2);
+            assertFalse(Files.exists(directory.resolve("1.tlog")));
+            assertEquals(List.of("index 2 {\"n\":2}"), replay(1));
+        }
+        // Une réouverture continue après la dernière génération.
+        try (final Translog translog = new Translog(directory)) {
+            assertEquals(3, translog.generation());
+        }
+    }
+
+    @Test
+    public void concurrentWritersAreAllSynced() throws Exception {
+        final int writers = 8;
+        final int operations = 500;
+        final ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try (final Translog translog = new Translog(directory)) {
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int writer = 0; writer < writers; writer++) {
+                final int first = writer * operations;
+                tasks.add(() -> {
+                    for (int operation = first; operation < first + operations; operation++) {
+                        final long position = translog.index(Integer.toString(operation), document(operation));
+                        translog.sync(position);
+                        assertTrue(translog.position() >= position);
+                    }
+                    return null;
+                });
+            }
+            for (final Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final TreeSet<Integer> ids = new TreeSet<>();
+        Translog.replay(directory, 1, new Recorder(new ArrayList<>()) {
+            @Override
+            public void index(String id, JsonObject document) {
+                assertEquals(Integer.parseInt(id), document.get("n").getAsInt());
+                ids.add(Integer.parseInt(id));
+            }
+        });
+        assertEquals(writers * operations, ids.size());
+        assertEquals(0, (int) ids.first());
+        assertEquals(writers * operations - 1, (int) ids.last());
+    }
+
+    private List<String> replay(long fromGeneration) throws IOException {
+        final ArrayList<String> operations = new ArrayList<>();
+        Translog.replay(directory, fromGeneration, new Recorder(operations));
+        return operations;
+    }
+
+    private static JsonObject document(int value) {
+        final JsonObject document = new JsonObject();
+        document.addProperty("n", value);
+        return document;
+    }
+
+    /**
+     * Note les opérations relues sous forme de texte.
+     */
+    private static class Recorder implements Translog.Replayer {
+        private final List<String> operations;
+
+        Recorder(List<String> operations) {
+            this.operations = operations;
+        }
+
+        @Override
+        public void index(String id, JsonObject document) {
+            operations.add("index " + id + ' ' + document);
+        }
+
+        @Override
+        public void delete(String id) {
+            operations.add("delete " + id);
+        }
+
+        @Override
+        public void mappings(String mappings) {
+            operations.add("mappings " + mappings);
+        }
+
+        @Override
+        public void settings(Map<String, Object> settings) {
+            operations.add("settings " + Collections.unmodifiableMap(settings));
+        }
+    }
+}